@@ -0,0 +1,38 @@
+package com.pavlovmedia.oss.osgi.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+
+/**
+ * Publishes a response body as the chunks each read returns, up to 8KB each.
+ * Every chunk is a buffer of its own that the subscriber can keep.
+ *
+ * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
+ *
+ */
+final class BodyPublisher extends PullPublisher<ByteBuffer> {
+    private static final int CHUNK = 8192;
+
+    private final byte[] buffer = new byte[CHUNK];
+
+    BodyPublisher(final PavlovHttpClientImpl client, final Executor executor) {
+        super(client, executor);
+    }
+
+    @Override
+    ByteBuffer pull(final InputStream body) throws IOException {
+        int count;
+        do {
+            count = body.read(buffer);
+        } while (0 == count);
+        if (count < 0) {
+            return null;
+        }
+        ByteBuffer chunk = ByteBuffer.allocate(count);
+        chunk.put(buffer, 0, count);
+        chunk.flip();
+        return chunk;
+    }
+}
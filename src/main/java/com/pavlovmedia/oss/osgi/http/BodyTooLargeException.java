@@ -0,0 +1,25 @@
+package com.pavlovmedia.oss.osgi.http;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a body being read goes past the client's maximum body size.
+ * Reading stops as soon as the limit is crossed, or before reading anything
+ * when the Content-Length already says it is too big.
+ *
+ * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
+ *
+ */
+public class BodyTooLargeException extends IOException {
+    private static final long serialVersionUID = 5169845390245806125L;
+
+    /**
+     * The limit that was crossed, in bytes
+     */
+    public final long limit;
+
+    public BodyTooLargeException(final long limit) {
+        super(String.format("Body is larger than the %d byte limit", limit));
+        this.limit = limit;
+    }
+}
@@ -0,0 +1,250 @@
+package com.pavlovmedia.oss.osgi.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A pool of reusable {@link ByteBuffer}s that response bodies are read into.
+ * Buffers come in power of two sizes, so a body is read into a buffer at most
+ * twice its size and a buffer released by one response fits the next one of
+ * about the same size. Buffers above the largest pooled size are allocated
+ * and dropped like normal.
+ * <p>
+ * Buffers can be on the heap (the default) or direct, which keeps large bodies
+ * out of the garbage collected heap at the cost of a copy when they are
+ * turned into a byte[]. Bodies too large to hold in memory at all can be
+ * spilled to a {@link DiskStore}.
+ *
+ * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
+ *
+ */
+public class BufferPool {
+    /**
+     * The pool used by clients that are not given one
+     */
+    public static final BufferPool DEFAULT = new BufferPool();
+
+    private static final int MIN_SIZE = 4096;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<Integer, ArrayDeque<ByteBuffer>> free = new HashMap<>();
+    private final AtomicLong allocated = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+    private boolean direct = false;
+    private int maxBufferSize = 1 << 22;
+    private int maxPerSize = 16;
+    private Optional<DiskStore> spill = Optional.empty();
+
+    /**
+     * Sets whether new buffers are direct instead of on the heap
+     * @param direct
+     */
+    public BufferPool withDirect(final boolean direct) {
+        this.direct = direct;
+        return this;
+    }
+
+    /**
+     * Sets the largest buffer kept for reuse, 4MB by default
+     * @param maxBufferSize
+     */
+    public BufferPool withMaxBufferSize(final int maxBufferSize) {
+        this.maxBufferSize = maxBufferSize;
+        return this;
+    }
+
+    /**
+     * Sets how many free buffers of each size are kept, 16 by default
+     * @param maxPerSize
+     */
+    public BufferPool withMaxPerSize(final int maxPerSize) {
+        this.maxPerSize = maxPerSize;
+        return this;
+    }
+
+    /**
+     * Moves bodies larger than the store's spill threshold out of the heap and
+     * into memory mapped files. Spilled buffers are not pooled, releasing one
+     * does nothing.
+     * @param store
+     */
+    public BufferPool withSpill(final DiskStore store) {
+        this.spill = Optional.of(store);
+        return this;
+    }
+
+    /**
+     * How many buffers this pool has had to allocate
+     */
+    public long getAllocated() {
+        return allocated.get();
+    }
+
+    /**
+     * How many times a released buffer was handed out again
+     */
+    public long getReused() {
+        return reused.get();
+    }
+
+    /**
+     * Gets a cleared buffer with room for at least the given number of bytes
+     * @param capacity
+     */
+    public ByteBuffer acquire(final int capacity) {
+        int size = sizeFor(capacity);
+        if (size <= maxBufferSize) {
+            lock.lock();
+            try {
+                ArrayDeque<ByteBuffer> buffers = free.get(size);
+                ByteBuffer buffer = null == buffers ? null : buffers.poll();
+                if (null != buffer) {
+                    reused.incrementAndGet();
+                    buffer.clear();
+                    return buffer;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        allocated.incrementAndGet();
+        return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    }
+
+    /**
+     * Hands a buffer back for reuse. Nothing may use the buffer, or any view of
+     * it, afterwards.
+     * @param buffer
+     */
+    public void release(final ByteBuffer buffer) {
+        int size = buffer.capacity();
+        if (size > maxBufferSize || size != sizeFor(size) || buffer.isReadOnly() || buffer.isDirect() != direct) {
+            return;
+        }
+        lock.lock();
+        try {
+            ArrayDeque<ByteBuffer> buffers = free.computeIfAbsent(size, s -> new ArrayDeque<>());
+            if (buffers.size() < maxPerSize) {
+                buffers.push(buffer);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads a stream to the end into a pooled buffer, closing the stream
+     * @param in
+     * @param expectedLength the body length if it is known up front, otherwise -1
+     * @return the buffer, flipped so the body is between position and limit
+     * @throws IOException if the stream fails, in which case the buffer is released
+     */
+    public ByteBuffer readFully(final InputStream in, final long expectedLength) throws IOException {
+        return readFully(in, expectedLength, TextDecoder.UNLIMITED);
+    }
+
+    /**
+     * Reads a stream to the end into a pooled buffer, closing the stream
+     * @param in
+     * @param expectedLength the body length if it is known up front, otherwise -1
+     * @param maxLength the most bytes to read, or -1 for no limit
+     * @return the buffer, flipped so the body is between position and limit
+     * @throws BodyTooLargeException if the body goes past maxLength
+     * @throws IOException if the stream fails, in which case the buffer is released
+     */
+    public ByteBuffer readFully(final InputStream in, final long expectedLength, final long maxLength)
+            throws IOException {
+        if (maxLength >= 0 && expectedLength > maxLength) {
+            in.close();
+            throw new BodyTooLargeException(maxLength);
+        }
+        if (in instanceof ByteBufferInputStream && ((ByteBufferInputStream) in).isMapped()) {
+            // Already in a mapped file, such as a body from a cache's disk tier, so copying it would only cost heap
+            ByteBuffer mapped = ((ByteBufferInputStream) in).drain();
+            if (maxLength >= 0 && mapped.remaining() > maxLength) {
+                throw new BodyTooLargeException(maxLength);
+            }
+            return mapped;
+        }
+        if (spill.isPresent() && expectedLength > spill.get().getSpillThreshold()) {
+            return spill.get().spill(ByteBuffer.allocate(0), in, maxLength);
+        }
+        int initial = expectedLength >= 0 && expectedLength <= 1 << 30 ? (int) expectedLength : MIN_SIZE;
+        ByteBuffer buffer = acquire(initial);
+        try (InputStream stream = in) {
+            byte[] scratch = null;
+            while (true) {
+                if (!buffer.hasRemaining()) {
+                    // Usually the body was exactly Content-Length, so check for the end before growing
+                    int next = stream.read();
+                    if (next < 0) {
+                        break;
+                    }
+                    if (spill.isPresent() && buffer.position() >= spill.get().getSpillThreshold()) {
+                        buffer.flip();
+                        ByteBuffer spilled = spill.get().spill(buffer, new SequenceInputStream(
+                                new ByteArrayInputStream(new byte[] { (byte) next }), stream), maxLength);
+                        release(buffer);
+                        return spilled;
+                    }
+                    buffer = grow(buffer);
+                    buffer.put((byte) next);
+                }
+                int count;
+                if (buffer.hasArray()) {
+                    count = stream.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                    if (count > 0) {
+                        buffer.position(buffer.position() + count);
+                    }
+                } else {
+                    // Streams only read into arrays, so direct buffers are filled through a small one
+                    if (null == scratch) {
+                        scratch = new byte[MIN_SIZE];
+                    }
+                    count = stream.read(scratch, 0, Math.min(scratch.length, buffer.remaining()));
+                    if (count > 0) {
+                        buffer.put(scratch, 0, count);
+                    }
+                }
+                if (count < 0) {
+                    break;
+                }
+                if (maxLength >= 0 && buffer.position() > maxLength) {
+                    throw new BodyTooLargeException(maxLength);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            release(buffer);
+            throw e;
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private ByteBuffer grow(final ByteBuffer buffer) {
+        if (buffer.capacity() >= 1 << 30) {
+            throw new IllegalStateException("Body is too large to buffer");
+        }
+        ByteBuffer bigger = acquire(buffer.capacity() * 2);
+        buffer.flip();
+        bigger.put(buffer);
+        release(buffer);
+        return bigger;
+    }
+
+    private static int sizeFor(final int capacity) {
+        if (capacity <= MIN_SIZE) {
+            return MIN_SIZE;
+        }
+        return capacity > 1 << 30 ? Integer.MAX_VALUE : Integer.highestOneBit(capacity - 1) << 1;
+    }
+}
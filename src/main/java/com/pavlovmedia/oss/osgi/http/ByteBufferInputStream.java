@@ -0,0 +1,84 @@
+package com.pavlovmedia.oss.osgi.http;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the bytes between a buffer's position and limit without copying
+ * them anywhere first, which lets pooled and memory mapped bodies be handed
+ * out as streams. The stream works on its own view, the buffer given to it
+ * is left as it was.
+ *
+ * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
+ *
+ */
+public class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer buffer;
+    private int mark;
+
+    public ByteBufferInputStream(final ByteBuffer buffer) {
+        this.buffer = buffer.duplicate();
+        this.mark = this.buffer.position();
+    }
+
+    @Override
+    public int read() {
+        return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) {
+        if (0 == len) {
+            return 0;
+        }
+        if (!buffer.hasRemaining()) {
+            return -1;
+        }
+        int count = Math.min(len, buffer.remaining());
+        buffer.get(b, off, count);
+        return count;
+    }
+
+    @Override
+    public long skip(final long n) {
+        int count = (int) Math.max(0, Math.min(n, buffer.remaining()));
+        buffer.position(buffer.position() + count);
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return buffer.remaining();
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public void mark(final int readlimit) {
+        mark = buffer.position();
+    }
+
+    @Override
+    public void reset() {
+        buffer.position(mark);
+    }
+
+    /**
+     * Checks whether the bytes are outside the heap, which for read only buffers means a mapped file
+     */
+    boolean isMapped() {
+        return buffer.isDirect() && buffer.isReadOnly();
+    }
+
+    /**
+     * Hands over what is left as a buffer of its own and leaves the stream at its end
+     */
+    ByteBuffer drain() {
+        ByteBuffer rest = buffer.slice();
+        buffer.position(buffer.limit());
+        return rest;
+    }
+}
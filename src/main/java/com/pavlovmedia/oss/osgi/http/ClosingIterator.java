@@ -0,0 +1,66 @@
+package com.pavlovmedia.oss.osgi.http;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.stream.Stream;
+
+/**
+ * Walks a stream and closes it once it runs out or fails, so whatever is
+ * behind a stream handed to {@link PavlovHttpClient#withJsonArray(java.lang.reflect.Type, Stream)},
+ * a file or a cursor, is let go of as soon as the body is written. Once
+ * closed it has nothing more to give.
+ *
+ * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
+ *
+ * @param <T> the elements it walks
+ */
+final class ClosingIterator<T> implements Iterator<T> {
+    private final Stream<T> stream;
+    private final Iterator<T> elements;
+    private boolean closed;
+
+    ClosingIterator(final Stream<T> stream) {
+        this.stream = stream;
+        this.elements = stream.iterator();
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (closed) {
+            return false;
+        }
+        try {
+            if (elements.hasNext()) {
+                return true;
+            }
+        } catch (RuntimeException e) {
+            close();
+            throw e;
+        }
+        close();
+        return false;
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        try {
+            return elements.next();
+        } catch (RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Closes the stream, if it isn't already
+     */
+    void close() {
+        if (!closed) {
+            closed = true;
+            stream.close();
+        }
+    }
+}
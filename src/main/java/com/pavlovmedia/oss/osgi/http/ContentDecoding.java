@@ -0,0 +1,184 @@
+package com.pavlovmedia.oss.osgi.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Undoes the Content-Encoding of a response body as it is read. Every coding
+ * is a stream over the one below it with a fixed size buffer, so memory stays
+ * the same no matter how large the body is, and a long lived body such as an
+ * SSE feed is decoded as the server flushes it.
+ * <p>
+ * gzip (and x-gzip) and deflate are understood, identity is skipped. Deflate
+ * bodies are taken as zlib wrapped like RFC 7230 says, falling back to raw
+ * deflate for the servers that send that instead. Any other coding leaves the
+ * body as it was sent.
+ *
+ * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
+ *
+ */
+public final class ContentDecoding {
+    public static final String CONTENT_ENCODING_HEADER = "Content-Encoding";
+    private static final int BUFFER_SIZE = 8192;
+
+    private ContentDecoding() { }
+
+    /**
+     * Gets the codings applied to a body, in the order the server applied them
+     * @param headers the response headers, matched without regard to case
+     */
+    public static List<String> codings(final Map<String, List<String>> headers) {
+        List<String> codings = new ArrayList<>();
+        headers.forEach((name, values) -> {
+            if (null != name && CONTENT_ENCODING_HEADER.equalsIgnoreCase(name) && null != values) {
+                values.forEach(value -> {
+                    for (String coding : value.split(",")) {
+                        if (!coding.trim().isEmpty()) {
+                            codings.add(coding.trim().toLowerCase(Locale.ROOT));
+                        }
+                    }
+                });
+            }
+        });
+        return codings;
+    }
+
+    /**
+     * Checks whether {@link #decode(InputStream, Map)} knows how to undo every
+     * coding on a body
+     * @param headers
+     */
+    public static boolean isSupported(final Map<String, List<String>> headers) {
+        return codings(headers).stream().allMatch(ContentDecoding::isKnown);
+    }
+
+    /**
+     * Wraps a body so that reading it gives the decoded bytes. The body is
+     * returned as is when it has no coding or one we can't undo.
+     * @param in the body as it came off the connection
+     * @param headers the response headers
+     */
+    public static InputStream decode(final InputStream in, final Map<String, List<String>> headers) {
+        List<String> codings = codings(headers);
+        if (codings.isEmpty() || !codings.stream().allMatch(ContentDecoding::isKnown)) {
+            return in;
+        }
+        // The last coding applied is the first one to undo
+        Collections.reverse(codings);
+        InputStream decoded = in;
+        for (String coding : codings) {
+            if (!"identity".equals(coding)) {
+                decoded = new DecodingInputStream(decoded, coding);
+            }
+        }
+        return decoded;
+    }
+
+    private static boolean isKnown(final String coding) {
+        switch (coding) {
+            case "gzip":
+            case "x-gzip":
+            case "deflate":
+            case "identity":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Holds off building the decoder until the first read, both so that nothing
+     * blocks on the network before the caller asks for data and so that an empty
+     * body (HEAD, 204, 304) reads as empty instead of a truncated gzip header
+     */
+    private static final class DecodingInputStream extends InputStream {
+        private final PushbackInputStream source;
+        private final String coding;
+        private InputStream decoder;
+        private Inflater inflater;
+        private boolean empty;
+
+        DecodingInputStream(final InputStream source, final String coding) {
+            this.source = new PushbackInputStream(source, 2);
+            this.coding = coding;
+        }
+
+        private boolean open() throws IOException {
+            if (null != decoder) {
+                return true;
+            }
+            if (empty) {
+                return false;
+            }
+            int first = source.read();
+            if (-1 == first) {
+                empty = true;
+                return false;
+            }
+            if ("deflate".equals(coding)) {
+                int second = source.read();
+                if (-1 != second) {
+                    source.unread(second);
+                }
+                source.unread(first);
+                inflater = new Inflater(!isZlibHeader(first, second));
+                decoder = new InflaterInputStream(source, inflater, BUFFER_SIZE);
+            } else {
+                source.unread(first);
+                decoder = new GZIPInputStream(source, BUFFER_SIZE);
+            }
+            return true;
+        }
+
+        /**
+         * A zlib stream starts with a deflate method byte and a check value that
+         * makes the first two bytes a multiple of 31
+         */
+        private static boolean isZlibHeader(final int first, final int second) {
+            return -1 != second && 8 == (first & 0x0f) && 0 == ((first << 8) | second) % 31;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return open() ? decoder.read() : -1;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (0 == len) {
+                return 0;
+            }
+            return open() ? decoder.read(b, off, len) : -1;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return null == decoder ? 0 : decoder.available();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (null != decoder) {
+                    decoder.close();
+                } else {
+                    source.close();
+                }
+            } finally {
+                // GZIPInputStream ends its own, but one we hand in is ours to release
+                if (null != inflater) {
+                    inflater.end();
+                }
+            }
+        }
+    }
+}
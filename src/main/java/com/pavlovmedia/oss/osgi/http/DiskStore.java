@@ -0,0 +1,627 @@
+package com.pavlovmedia.oss.osgi.http;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Keeps response bodies in files and hands them back as read only memory
+ * mapped buffers, so a body of any size costs the heap nothing but the
+ * buffer object. It does two jobs:
+ * <ul>
+ * <li>Spilling: a {@link BufferPool} given a store with
+ * {@link BufferPool#withSpill(DiskStore)} moves bodies over the spill
+ * threshold into an unnamed temporary file instead of growing a heap buffer.</li>
+ * <li>Storing: bodies can be kept under a key together with a small block of
+ * metadata, which is how {@link com.pavlovmedia.oss.osgi.http.cache.ResponseCache}
+ * persists entries across restarts.</li>
+ * </ul>
+ * Stored entries are tracked in an append only index file that is replayed
+ * into a map when the store opens, so a lookup is a map get plus, the first
+ * time, mapping the body file. The index is rewritten without dead records
+ * when they outnumber the live ones. Least recently used entries are dropped
+ * once the store is over its maximum size.
+ * <p>
+ * Mapped buffers are limited to 2GB, larger bodies can't be spilled or stored.
+ *
+ * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
+ *
+ */
+public class DiskStore implements Closeable {
+    private static final String INDEX = "index.log";
+    private static final Pattern OWN_FILE = Pattern.compile("[0-9a-f]{16}\\.body|(body|spill)[0-9]+\\.tmp");
+    private static final int MAGIC = 0x50484453;
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+
+    private final Path directory;
+    private final ReentrantLock lock = new ReentrantLock();
+    // Access ordered, so iteration starts at the least recently used entry
+    private final LinkedHashMap<String, Record> records = new LinkedHashMap<>(16, 0.75f, true);
+    private long spillThreshold = 8 * 1024 * 1024;
+    private long maxSize = 1024L * 1024 * 1024;
+
+    // Guarded by lock
+    private DataOutputStream index;
+    private long nextId;
+    private long size;
+    private int deadRecords;
+
+    /**
+     * Opens the store in a directory, creating it if needed and loading any entries left there
+     * @param directory
+     * @throws IOException if the directory or its index can't be used
+     */
+    public DiskStore(final Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+        load();
+        compact();
+    }
+
+    /**
+     * Sets the body size above which a {@link BufferPool} spills to this store, 8MB by default
+     * @param spillThreshold
+     */
+    public DiskStore withSpillThreshold(final long spillThreshold) {
+        this.spillThreshold = spillThreshold;
+        return this;
+    }
+
+    /**
+     * Sets roughly how many bytes of stored bodies are kept, 1GB by default
+     * @param maxSize
+     */
+    public DiskStore withMaxSize(final long maxSize) {
+        this.maxSize = maxSize;
+        return this;
+    }
+
+    public long getSpillThreshold() {
+        return spillThreshold;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Writes the bytes already read followed by the rest of a stream to a temporary
+     * file and maps it. The file is deleted right away where the platform allows
+     * it, the mapping stays valid until the buffer is garbage collected.
+     * @param head bytes already read, between position and limit
+     * @param rest the remainder of the body, which is closed
+     * @param maxLength the most bytes the body may have, or -1 for no limit
+     * @return a read only buffer over the whole body
+     * @throws BodyTooLargeException if the body goes past maxLength
+     */
+    public ByteBuffer spill(final ByteBuffer head, final InputStream rest, final long maxLength)
+            throws IOException {
+        Path file = Files.createTempFile(directory, "spill", ".tmp");
+        try {
+            try (InputStream in = rest) {
+                write(file, head, in, maxLength);
+            }
+            return map(file);
+        } finally {
+            delete(file);
+        }
+    }
+
+    /**
+     * Starts writing a body that will be stored under a key once it is complete
+     */
+    public Writer writer() throws IOException {
+        return new Writer(Files.createTempFile(directory, "body", ".tmp"));
+    }
+
+    /**
+     * A body being written to the store. It is only visible once committed,
+     * and closing it without committing throws it away.
+     */
+    public final class Writer extends OutputStream {
+        private final Path file;
+        private final OutputStream out;
+        private long length;
+        private boolean done;
+
+        private Writer(final Path file) throws IOException {
+            this.file = file;
+            this.out = new BufferedOutputStream(Files.newOutputStream(file), 65536);
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            out.write(b);
+            length++;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            out.write(b, off, len);
+            length += len;
+        }
+
+        /**
+         * Stores the body under the key, replacing anything stored there before
+         * @param key
+         * @param meta caller data kept with the body in the index
+         * @return a read only buffer over the stored body
+         */
+        public ByteBuffer commit(final String key, final byte[] meta) throws IOException {
+            out.close();
+            done = true;
+            if (length > Integer.MAX_VALUE) {
+                delete(file);
+                throw new BodyTooLargeException(Integer.MAX_VALUE);
+            }
+            lock.lock();
+            try {
+                long id = nextId++;
+                Files.move(file, bodyFile(id), StandardCopyOption.ATOMIC_MOVE);
+                Record record = new Record(id, meta, length);
+                replace(key, record);
+                append(PUT, key, record);
+                return record.body();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!done) {
+                done = true;
+                out.close();
+                delete(file);
+            }
+        }
+    }
+
+    /**
+     * Stores a body that is already in memory
+     * @param key
+     * @param meta caller data kept with the body in the index
+     * @param body the bytes between position and limit, which are left unchanged
+     */
+    public void put(final String key, final byte[] meta, final ByteBuffer body) throws IOException {
+        try (Writer writer = writer()) {
+            ByteBuffer view = body.duplicate();
+            if (view.hasArray()) {
+                writer.write(view.array(), view.arrayOffset() + view.position(), view.remaining());
+            } else {
+                byte[] chunk = new byte[8192];
+                while (view.hasRemaining()) {
+                    int count = Math.min(chunk.length, view.remaining());
+                    view.get(chunk, 0, count);
+                    writer.write(chunk, 0, count);
+                }
+            }
+            writer.commit(key, meta);
+        }
+    }
+
+    /**
+     * Replaces the metadata kept for a key without touching its body
+     * @return false if nothing is stored under the key
+     */
+    public boolean updateMeta(final String key, final byte[] meta) throws IOException {
+        lock.lock();
+        try {
+            Record existing = records.get(key);
+            if (null == existing) {
+                return false;
+            }
+            Record record = new Record(existing.id, meta, existing.length);
+            record.mapped = existing.mapped;
+            records.put(key, record);
+            deadRecords++;
+            append(PUT, key, record);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A stored body and the metadata it was stored with
+     */
+    public static final class Entry {
+        public final byte[] meta;
+        /**
+         * A read only buffer over the body, valid for as long as it is referenced
+         */
+        public final ByteBuffer body;
+
+        private Entry(final byte[] meta, final ByteBuffer body) {
+            this.meta = meta;
+            this.body = body;
+        }
+    }
+
+    /**
+     * Looks up a stored body
+     * @param key
+     */
+    public Optional<Entry> get(final String key) {
+        lock.lock();
+        try {
+            Record record = records.get(key);
+            if (null == record) {
+                return Optional.empty();
+            }
+            try {
+                return Optional.of(new Entry(record.meta, record.body()));
+            } catch (IOException e) {
+                // The file went missing or can't be read, so the entry is no good
+                removeLocked(key);
+                return Optional.empty();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean contains(final String key) {
+        lock.lock();
+        try {
+            return records.containsKey(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops what is stored under a key
+     */
+    public void remove(final String key) {
+        lock.lock();
+        try {
+            removeLocked(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops everything that is stored
+     */
+    public void clear() {
+        lock.lock();
+        try {
+            for (String key : new ArrayList<>(records.keySet())) {
+                removeLocked(key);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * How many bodies are stored
+     */
+    public int getEntries() {
+        lock.lock();
+        try {
+            return records.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * How many bytes of bodies are stored
+     */
+    public long getSize() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (null != index) {
+                index.close();
+                index = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void removeLocked(final String key) {
+        Record record = records.remove(key);
+        if (null == record) {
+            return;
+        }
+        size -= record.length;
+        // The PUT and this REMOVE
+        deadRecords += 2;
+        try {
+            append(REMOVE, key, null);
+        } catch (IOException e) {
+            // The body file goes below, so a replayed PUT just finds nothing and is dropped
+        }
+        delete(bodyFile(record.id));
+    }
+
+    /**
+     * Must hold the lock
+     */
+    private void replace(final String key, final Record record) {
+        Record old = records.put(key, record);
+        if (null != old) {
+            size -= old.length;
+            deadRecords++;
+            delete(bodyFile(old.id));
+        }
+        size += record.length;
+        Iterator<Map.Entry<String, Record>> eldest = records.entrySet().iterator();
+        List<String> evict = new ArrayList<>();
+        long over = size - maxSize;
+        while (over > 0 && eldest.hasNext()) {
+            Map.Entry<String, Record> next = eldest.next();
+            if (next.getValue() != record) {
+                evict.add(next.getKey());
+                over -= next.getValue().length;
+            }
+        }
+        evict.forEach(this::removeLocked);
+    }
+
+    /**
+     * Must hold the lock
+     */
+    private void append(final byte op, final String key, final Record record) throws IOException {
+        if (null == index) {
+            throw new IOException("The store has been closed");
+        }
+        index.writeByte(op);
+        index.writeUTF(key);
+        if (PUT == op) {
+            index.writeLong(record.id);
+            index.writeLong(record.length);
+            index.writeInt(record.meta.length);
+            index.write(record.meta);
+        }
+        index.flush();
+        if (deadRecords > records.size() + 64) {
+            compact();
+        }
+    }
+
+    /**
+     * Replays the index. A record cut short by a crash ends the replay, and
+     * any of the store's files the index doesn't know about are left over
+     * from one and deleted. Files the store didn't name are left alone.
+     */
+    private void load() throws IOException {
+        Path indexFile = directory.resolve(INDEX);
+        if (Files.exists(indexFile)) {
+            long fileSize = Files.size(indexFile);
+            CountingInputStream counted = new CountingInputStream(new BufferedInputStream(
+                    Files.newInputStream(indexFile), 65536));
+            try (DataInputStream in = new DataInputStream(counted)) {
+                if (MAGIC != in.readInt()) {
+                    throw new IOException(indexFile + " is not a store index");
+                }
+                while (true) {
+                    byte op = in.readByte();
+                    String key = in.readUTF();
+                    if (PUT == op) {
+                        long id = in.readLong();
+                        long length = in.readLong();
+                        int metaLength = in.readInt();
+                        if (id < 0 || length < 0 || metaLength < 0 || metaLength > fileSize - counted.count) {
+                            // A corrupt record, everything after it is suspect too
+                            break;
+                        }
+                        byte[] meta = new byte[metaLength];
+                        in.readFully(meta);
+                        nextId = Math.max(nextId, id + 1);
+                        Record old = records.put(key, new Record(id, meta, length));
+                        size += length - (null == old ? 0 : old.length);
+                    } else if (REMOVE == op) {
+                        Record old = records.remove(key);
+                        size -= null == old ? 0 : old.length;
+                    } else {
+                        break;
+                    }
+                }
+            } catch (EOFException | UTFDataFormatException e) {
+                // End of the index, possibly partway through a record or at a mangled key
+            }
+        }
+        records.entrySet().removeIf(e -> {
+            boolean missing = !Files.exists(bodyFile(e.getValue().id));
+            if (missing) {
+                size -= e.getValue().length;
+            }
+            return missing;
+        });
+        Set<Path> live = new HashSet<>();
+        records.values().forEach(r -> live.add(bodyFile(r.id)));
+        try (Stream<Path> files = Files.list(directory)) {
+            files.filter(f -> isLeftover(f) && !live.contains(f))
+                    .forEach(DiskStore::delete);
+        }
+    }
+
+    /**
+     * Writes a fresh index holding only the live records and swaps it in,
+     * must hold the lock
+     */
+    private void compact() throws IOException {
+        if (null != index) {
+            index.close();
+            index = null;
+        }
+        Path fresh = directory.resolve(INDEX + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(fresh)))) {
+            out.writeInt(MAGIC);
+            for (Map.Entry<String, Record> record : records.entrySet()) {
+                out.writeByte(PUT);
+                out.writeUTF(record.getKey());
+                out.writeLong(record.getValue().id);
+                out.writeLong(record.getValue().length);
+                out.writeInt(record.getValue().meta.length);
+                out.write(record.getValue().meta);
+            }
+        }
+        Files.move(fresh, directory.resolve(INDEX), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        index = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(directory.resolve(INDEX),
+                StandardOpenOption.APPEND)));
+        deadRecords = 0;
+    }
+
+    private Path bodyFile(final long id) {
+        return directory.resolve(String.format("%016x.body", id));
+    }
+
+    /**
+     * Whether a file is one the store names, a body, a body or spill being
+     * written, or an index being compacted
+     */
+    private static boolean isLeftover(final Path file) {
+        String name = file.getFileName().toString();
+        return OWN_FILE.matcher(name).matches() || (INDEX + ".tmp").equals(name);
+    }
+
+    private static void write(final Path file, final ByteBuffer head, final InputStream rest, final long maxLength)
+            throws IOException {
+        long length = 0;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            ByteBuffer view = head.duplicate();
+            length += view.remaining();
+            while (view.hasRemaining()) {
+                channel.write(view);
+            }
+            byte[] chunk = new byte[65536];
+            ByteBuffer wrapped = ByteBuffer.wrap(chunk);
+            int count;
+            while ((count = rest.read(chunk)) >= 0) {
+                length += count;
+                if ((maxLength >= 0 && length > maxLength) || length > Integer.MAX_VALUE) {
+                    throw new BodyTooLargeException(maxLength >= 0 ? maxLength : Integer.MAX_VALUE);
+                }
+                wrapped.clear().limit(count);
+                while (wrapped.hasRemaining()) {
+                    channel.write(wrapped);
+                }
+            }
+        }
+    }
+
+    private static ByteBuffer map(final Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            // The mapping outlives the channel
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).asReadOnlyBuffer();
+        }
+    }
+
+    private static void delete(final Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (NoSuchFileException e) {
+            // Already gone
+        } catch (IOException e) {
+            // Some platforms refuse while the file is mapped
+            file.toFile().deleteOnExit();
+        }
+    }
+
+    /**
+     * Where a stored body lives, must hold the lock to map it
+     */
+    private final class Record {
+        final long id;
+        final byte[] meta;
+        final long length;
+        ByteBuffer mapped;
+
+        Record(final long id, final byte[] meta, final long length) {
+            this.id = id;
+            this.meta = meta;
+            this.length = length;
+        }
+
+        ByteBuffer body() throws IOException {
+            if (null == mapped) {
+                mapped = map(bodyFile(id));
+            }
+            return mapped.duplicate();
+        }
+    }
+
+    /**
+     * Counts the bytes read through it, so the index replay knows how much is left
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+        private long count;
+
+        CountingInputStream(final InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package com.pavlovmedia.oss.osgi.http;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Runs a set of configured clients with at most a fixed number of requests
+ * in flight at once. A new request is only started when an earlier one
+ * finishes, so nothing blocks waiting for a permit. Errors are reported on
+ * the item that caused them and never fail the rest of the batch.
+ * <p>
+ * Connections are reused across the batch through the transport the clients
+ * share, so clients cloned from one template with a pooling transport such
+ * as {@link com.pavlovmedia.oss.osgi.http.transport.NioHttpTransport} will
+ * keep going back to the same few sockets.
+ * <p>
+ * A batch can only be run once.
+ *
+ * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
+ *
+ */
+public class HttpBatch {
+    private final List<PavlovHttpClient> clients;
+    private final AtomicBoolean started = new AtomicBoolean();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger wip = new AtomicInteger();
+    private int maxInFlight = 16;
+    private Optional<ExecutorService> executor = Optional.empty();
+    private List<CompletableFuture<Result>> results;
+    private Optional<Consumer<Result>> onResult = Optional.empty();
+    private int next = 0;
+
+    private HttpBatch(final List<PavlovHttpClient> clients) {
+        this.clients = clients;
+    }
+
+    /**
+     * Creates a batch from clients that are already configured
+     * @param clients
+     */
+    public static HttpBatch of(final Collection<? extends PavlovHttpClient> clients) {
+        return new HttpBatch(new ArrayList<>(clients));
+    }
+
+    /**
+     * Creates a batch with one clone of the template per item
+     * @param template the client every request starts from
+     * @param items the things to make requests for
+     * @param customizer sets up the clone for one item
+     */
+    public static <T> HttpBatch from(final PavlovHttpClient template, final Collection<T> items,
+            final BiConsumer<T, PavlovHttpClient> customizer) {
+        return new HttpBatch(items.stream()
+                .map(item -> {
+                    PavlovHttpClient client = template.clone();
+                    customizer.accept(item, client);
+                    return client;
+                })
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     * Sets how many requests may be in flight at once, 16 by default
+     * @param maxInFlight
+     */
+    public HttpBatch withMaxInFlight(final int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be at least 1");
+        }
+        this.maxInFlight = maxInFlight;
+        return this;
+    }
+
+    /**
+     * Sets the executor handed to {@link PavlovHttpClient#executeAsync(ExecutorService)},
+     * otherwise each client's {@link PavlovHttpClient#executeAsync()} is used
+     * @param executor
+     */
+    public HttpBatch withExecutor(final ExecutorService executor) {
+        this.executor = Optional.of(executor);
+        return this;
+    }
+
+    /**
+     * The number of requests in this batch
+     */
+    public int size() {
+        return clients.size();
+    }
+
+    /**
+     * Runs the batch, streaming each result as soon as it finishes. The stream
+     * blocks while waiting for the next result.
+     */
+    public Stream<Result> streamByCompletion() {
+        LinkedBlockingQueue<Result> queue = new LinkedBlockingQueue<>();
+        start(Optional.of(queue::add));
+        return IntStream.range(0, clients.size()).mapToObj(i -> {
+            try {
+                return queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new HttpExceptionCollection("Batch interrupted", e);
+            }
+        });
+    }
+
+    /**
+     * Runs the batch, streaming results in the order the clients were given.
+     * The stream blocks while waiting for the next result, even if later ones
+     * have already finished.
+     */
+    public Stream<Result> streamInOrder() {
+        start(Optional.empty());
+        return results.stream().map(CompletableFuture::join);
+    }
+
+    /**
+     * Runs the batch without blocking, calling onResult as each request finishes.
+     * The callback can run on any thread, including the one calling this.
+     * @param onResult
+     * @return a future that completes once every result has been delivered
+     */
+    public CompletableFuture<Void> execute(final Consumer<Result> onResult) {
+        Objects.requireNonNull(onResult);
+        start(Optional.of(onResult));
+        return CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0]));
+    }
+
+    /**
+     * Runs the batch and waits for every result
+     * @return the results in the order the clients were given
+     */
+    public List<Result> executeAll() {
+        return streamInOrder().collect(Collectors.toList());
+    }
+
+    private void start(final Optional<Consumer<Result>> onResult) {
+        if (!started.compareAndSet(false, true)) {
+            throw new IllegalStateException("A batch can only be run once");
+        }
+        this.onResult = onResult;
+        results = new ArrayList<>(clients.size());
+        clients.forEach(c -> results.add(new CompletableFuture<>()));
+        drain();
+    }
+
+    /**
+     * Starts requests while there is room. Completions that happen on this
+     * thread only bump the counter, so an already failed request cannot
+     * recurse into starting the next one.
+     */
+    private void drain() {
+        if (0 != wip.getAndIncrement()) {
+            return;
+        }
+        do {
+            while (next < clients.size() && inFlight.get() < maxInFlight) {
+                inFlight.incrementAndGet();
+                submit(next++);
+            }
+        } while (0 != wip.decrementAndGet());
+    }
+
+    private void submit(final int index) {
+        PavlovHttpClient client = clients.get(index);
+        CompletableFuture<HttpResponse> future;
+        try {
+            future = executor.isPresent() ? client.executeAsync(executor.get()) : client.executeAsync();
+        } catch (RuntimeException e) {
+            future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+        }
+        future.whenComplete((response, failure) -> {
+            Result result = null == failure
+                    ? new Result(index, client, Optional.of(response), Optional.empty())
+                    : new Result(index, client, Optional.empty(), Optional.of(unwrap(failure)));
+            inFlight.decrementAndGet();
+            try {
+                onResult.ifPresent(c -> c.accept(result));
+            } finally {
+                results.get(index).complete(result);
+                drain();
+            }
+        });
+    }
+
+    private static Exception unwrap(final Throwable failure) {
+        Throwable cause = failure instanceof CompletionException && null != failure.getCause()
+                ? failure.getCause()
+                : failure;
+        return cause instanceof Exception ? (Exception) cause : new Exception(cause);
+    }
+
+    /**
+     * The outcome of one request in a batch, which has either a response or an error
+     *
+     * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
+     *
+     */
+    public static final class Result {
+        /**
+         * Where the client was in the batch
+         */
+        public final int index;
+        /**
+         * The client that made the request
+         */
+        public final PavlovHttpClient client;
+        public final Optional<HttpResponse> response;
+        public final Optional<Exception> error;
+
+        private Result(final int index, final PavlovHttpClient client, final Optional<HttpResponse> response,
+                final Optional<Exception> error) {
+            this.index = index;
+            this.client = client;
+            this.response = response;
+            this.error = error;
+        }
+
+        public boolean isSuccess() {
+            return response.isPresent();
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.pavlovmedia.oss.osgi.http;
+
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+import com.pavlovmedia.oss.osgi.http.transport.HttpTransport;
+
+/**
+ * An immutable snapshot of everything a {@link PavlovHttpClient} has been
+ * configured with, in the form an {@link HttpTransport} needs to send it.
+ *
+ * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
+ *
+ */
+public class HttpRequest {
+    /**
+     * The final URL, including path and query parameters
+     */
+    public final URL url;
+
+    /**
+     * The verb to send
+     */
+    public final HttpVerbs verb;
+
+    /**
+     * The request headers, keyed case insensitively
+     */
+    public final Map<String,List<String>> headers;
+
+    /**
+     * Writes the request body, if there is one
+     */
+    public final Optional<Consumer<OutputStream>> body;
+
+    /**
+     * The length of the body if it is known up front, otherwise -1
+     */
+    public final long contentLength;
+
+    /**
+     * Connect timeout in milliseconds
+     */
+    public final int connectTimeout;
+
+    /**
+     * Raw hook called before connecting, only honored by transports
+     * built on {@link HttpURLConnection}
+     */
+    public final Optional<Consumer<HttpURLConnection>> beforeConnect;
+
+    /**
+     * Raw hook called before reading the response, only honored by transports
+     * built on {@link HttpURLConnection}
+     */
+    public final Optional<Consumer<HttpURLConnection>> beforeFinish;
+
+    /**
+     * The most bytes of a response body a transport should hold in memory,
+     * or {@link TextDecoder#UNLIMITED}
+     */
+    public final long maxBodySize;
+
+    protected HttpRequest(final URL url,
+            final HttpVerbs verb,
+            final Map<String,List<String>> headers,
+            final Optional<Consumer<OutputStream>> body,
+            final long contentLength,
+            final int connectTimeout,
+            final Optional<Consumer<HttpURLConnection>> beforeConnect,
+            final Optional<Consumer<HttpURLConnection>> beforeFinish) {
+        this(url, verb, headers, body, contentLength, connectTimeout, beforeConnect, beforeFinish,
+                TextDecoder.UNLIMITED);
+    }
+
+    protected HttpRequest(final URL url,
+            final HttpVerbs verb,
+            final Map<String,List<String>> headers,
+            final Optional<Consumer<OutputStream>> body,
+            final long contentLength,
+            final int connectTimeout,
+            final Optional<Consumer<HttpURLConnection>> beforeConnect,
+            final Optional<Consumer<HttpURLConnection>> beforeFinish,
+            final long maxBodySize) {
+        this.url = url;
+        this.verb = verb;
+        TreeMap<String,List<String>> copy = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        headers.forEach((k, v) -> copy.computeIfAbsent(k, x -> new ArrayList<>()).addAll(v));
+        copy.replaceAll((k, v) -> Collections.unmodifiableList(v));
+        this.headers = Collections.unmodifiableMap(copy);
+        this.body = body;
+        this.contentLength = contentLength;
+        this.connectTimeout = connectTimeout;
+        this.beforeConnect = beforeConnect;
+        this.beforeFinish = beforeFinish;
+        this.maxBodySize = maxBodySize;
+    }
+
+    /**
+     * Gets the first value of a header, if it was set
+     * @param name header name, case insensitive
+     */
+    public Optional<String> getHeader(final String name) {
+        List<String> values = headers.get(name);
+        return null == values || values.isEmpty() ? Optional.empty() : Optional.of(values.get(0));
+    }
+
+    /**
+     * Makes a copy of this request with a header set, replacing any values it had
+     * @param name header name, case insensitive
+     * @param value
+     */
+    public HttpRequest withHeader(final String name, final String value) {
+        TreeMap<String,List<String>> copy = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        copy.putAll(headers);
+        copy.put(name, Collections.singletonList(value));
+        return new HttpRequest(url, verb, copy, body, contentLength, connectTimeout, beforeConnect, beforeFinish,
+                maxBodySize);
+    }
+}
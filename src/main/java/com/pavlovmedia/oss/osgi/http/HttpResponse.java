@@ -1,24 +1,25 @@
 package com.pavlovmedia.oss.osgi.http;
 
-import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.Reader;
+import java.lang.reflect.Type;
 import java.net.URL;
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.Vector;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.stream.Stream;
 import java.util.zip.GZIPInputStream;
 
+import com.google.gson.Gson;
 import com.pavlovmedia.oss.osgi.utilities.convertible.ConvertibleAsset;
 
 /**
@@ -26,7 +27,9 @@ import com.pavlovmedia.oss.osgi.utilities.convertible.ConvertibleAsset;
  * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
  *
  */
-public class HttpResponse {
+public class HttpResponse implements Closeable {
+    private static final Gson GSON = new Gson();
+
     /**
      * The URL that creaeted this response
      */
@@ -54,6 +57,13 @@ public class HttpResponse {
      */
     public final Map<String,List<String>> responseHeaders;
 
+    private final BufferPool bufferPool;
+    private final long maxBodySize;
+    private final ReentrantLock bodyLock = new ReentrantLock();
+    // Guarded by bodyLock
+    private ByteBuffer body;
+    private boolean closed;
+
     /**
      * Constructor for an HTTP Response
      *
@@ -67,16 +77,267 @@ public class HttpResponse {
             final Optional<ConvertibleAsset<InputStream>> errorStream,
             final Optional<ConvertibleAsset<InputStream>> responseStream,
             final Map<String,List<String>> responseHeaders) {
+        this(srcUrl, responseCode, errorStream, responseStream, responseHeaders, BufferPool.DEFAULT,
+                TextDecoder.UNLIMITED);
+    }
+
+    /**
+     * Constructor for an HTTP Response that reads its body into buffers from the given pool
+     *
+     * @param responseCode
+     * @param errorStream
+     * @param responseStream
+     * @param responseHeaders
+     * @param bufferPool
+     * @param maxBodySize the most bytes of a body that will be read, or {@link TextDecoder#UNLIMITED}
+     */
+    protected HttpResponse(final URL srcUrl,
+            final int responseCode,
+            final Optional<ConvertibleAsset<InputStream>> errorStream,
+            final Optional<ConvertibleAsset<InputStream>> responseStream,
+            final Map<String,List<String>> responseHeaders,
+            final BufferPool bufferPool,
+            final long maxBodySize) {
         this.srcUrl = srcUrl;
         this.responseCode = responseCode;
         this.errorStream = errorStream;
         this.responseStream = responseStream;
         this.responseHeaders = responseHeaders;
+        this.bufferPool = bufferPool;
+        this.maxBodySize = maxBodySize;
     }
 
+    /**
+     * Checks whether the server sent the body gzip encoded. Responses from
+     * {@link PavlovHttpClient} have their streams decoded already, see
+     * {@link ContentDecoding}.
+     */
     public boolean isGziped() {
-        return this.responseHeaders.getOrDefault("Content-Encoding", Collections.emptyList())
-                .contains("gzip");
+        return ContentDecoding.codings(this.responseHeaders).contains("gzip");
+    }
+
+    /**
+     * Reads the response stream into a pooled buffer the first time it is asked for.
+     * The buffer belongs to this response until {@link #close()}.
+     */
+    private ByteBuffer readBody(final Consumer<Exception> onError) {
+        bodyLock.lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("The response has been closed");
+            }
+            if (null == body) {
+                if (!responseStream.isPresent()) {
+                    body = ByteBuffer.allocate(0);
+                } else {
+                    try {
+                        body = bufferPool.readFully(responseStream.get().get(),
+                                TextDecoder.contentLength(responseHeaders), maxBodySize);
+                    } catch (IOException e) {
+                        onError.accept(e);
+                        body = ByteBuffer.allocate(0);
+                    }
+                }
+            }
+            return body.asReadOnlyBuffer();
+        } finally {
+            bodyLock.unlock();
+        }
+    }
+
+    /**
+     * Gets the response body as a read only buffer, reading it into a pooled
+     * buffer the first time. The buffer is only valid until this response
+     * is closed, after which it goes back to the pool to be reused. Bodies
+     * past the pool's spill threshold come back memory mapped instead, see
+     * {@link BufferPool#withSpill(DiskStore)}.
+     * @param onError
+     * @return the body, or an empty buffer if there is no body
+     */
+    public ByteBuffer getResponseBuffer(final Consumer<Exception> onError) {
+        return readBody(onError);
+    }
+
+    /**
+     * Gets the response body as a read only buffer, reading it into a pooled
+     * buffer the first time. The buffer is only valid until this response
+     * is closed.
+     */
+    public ByteBuffer getResponseBuffer() {
+        return getResponseBuffer(HttpResponse::ignoreError);
+    }
+
+    /**
+     * Gets the response body as a stream over the buffer from {@link #getResponseBuffer()},
+     * which can be read any number of times, unlike {@link #responseStream}. The stream is
+     * only valid until this response is closed.
+     * @param onError
+     */
+    public ConvertibleAsset<InputStream> getBufferedResponseStream(final Consumer<Exception> onError) {
+        return new ConvertibleAsset<>(new ByteBufferInputStream(readBody(onError)));
+    }
+
+    /**
+     * Gets the response body as a stream over the buffer from {@link #getResponseBuffer()},
+     * only valid until this response is closed
+     */
+    public ConvertibleAsset<InputStream> getBufferedResponseStream() {
+        return getBufferedResponseStream(HttpResponse::ignoreError);
+    }
+
+    /**
+     * Gets a copy of the response body, which stays valid after this response is closed
+     * @param onError
+     * @return the body, or an empty array if there is no body
+     */
+    public byte[] getResponseBytes(final Consumer<Exception> onError) {
+        ByteBuffer buffer = readBody(onError);
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Gets a copy of the response body, which stays valid after this response is closed
+     */
+    public byte[] getResponseBytes() {
+        return getResponseBytes(HttpResponse::ignoreError);
+    }
+
+    /**
+     * Parses the response body as JSON, reading it straight off the stream
+     * in the charset from its Content-Type, or UTF-8, so the text is never
+     * held in memory. The stream is used up unless the body was already
+     * read into a buffer, in which case that is parsed instead.
+     * @param type what to parse it as, a class or a generic type from
+     *  something like Gson's TypeToken
+     * @param onError called if reading or parsing fails, or the body is past the maximum size
+     * @return the value, or empty if there is no body, it was null, or there was an error
+     */
+    public <T> Optional<T> as(final Type type, final Consumer<Exception> onError) {
+        Optional<Reader> reader = getResponseReader(onError);
+        return reader.isPresent() ? JsonConverters.read(GSON, type, reader.get(), onError) : Optional.empty();
+    }
+
+    /**
+     * Parses the response body as JSON, see {@link #as(Type, Consumer)}
+     * @param type what to parse it as
+     */
+    public <T> Optional<T> as(final Type type) {
+        return as(type, HttpResponse::ignoreError);
+    }
+
+    /**
+     * Parses the response body as JSON, see {@link #as(Type, Consumer)}
+     * @param type what to parse it as
+     * @param onError called if reading or parsing fails, or the body is past the maximum size
+     */
+    public <T> Optional<T> as(final Class<T> type, final Consumer<Exception> onError) {
+        return as((Type) type, onError);
+    }
+
+    /**
+     * Parses the response body as JSON, see {@link #as(Type, Consumer)}
+     * @param type what to parse it as
+     */
+    public <T> Optional<T> as(final Class<T> type) {
+        return as((Type) type, HttpResponse::ignoreError);
+    }
+
+    /**
+     * Streams the elements of a response body that is a JSON array, parsing
+     * each one as the stream gets to it, so a list of any length takes
+     * constant memory. The maximum body size does not apply, since the body
+     * is never held. The stream uses up the response stream, and should be
+     * closed if it is not read to the end.
+     * @param elementType what to parse each element as
+     * @param onError called if reading or parsing fails, which ends the stream
+     */
+    public <T> Stream<T> asElements(final Type elementType, final Consumer<Exception> onError) {
+        Optional<Reader> reader = bodyReader(TextDecoder.UNLIMITED, onError);
+        return reader.isPresent()
+                ? JsonConverters.elements(GSON, elementType, reader.get(), onError)
+                : Stream.empty();
+    }
+
+    /**
+     * Streams the elements of a response body that is a JSON array, see {@link #asElements(Type, Consumer)}
+     * @param elementType what to parse each element as
+     */
+    public <T> Stream<T> asElements(final Type elementType) {
+        return asElements(elementType, HttpResponse::ignoreError);
+    }
+
+    /**
+     * Gets a reader over the response body in the charset from its
+     * Content-Type, or UTF-8, for parsing text without holding it. Like
+     * {@link #as(Type, Consumer)} it uses up the response stream unless the
+     * body was already read into a buffer, and it stops with a
+     * {@link BodyTooLargeException} past the maximum body size.
+     * @param onError called if the body is already known to be past the maximum size
+     * @return the reader, which the caller closes, or empty if there is no body
+     */
+    public Optional<Reader> getResponseReader(final Consumer<Exception> onError) {
+        return bodyReader(maxBodySize, onError);
+    }
+
+    /**
+     * A reader over the buffered body if there is one, otherwise straight over the response stream
+     */
+    private Optional<Reader> bodyReader(final long limit, final Consumer<Exception> onError) {
+        if (!responseStream.isPresent()) {
+            return Optional.empty();
+        }
+        InputStream in;
+        bodyLock.lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("The response has been closed");
+            }
+            in = null == body ? responseStream.get().get() : new ByteBufferInputStream(body.asReadOnlyBuffer());
+        } finally {
+            bodyLock.unlock();
+        }
+        try {
+            return Optional.of(new TextDecoder().withMaxBodySize(limit).reader(in, responseHeaders));
+        } catch (BodyTooLargeException e) {
+            onError.accept(e);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Gives the body buffer back to its pool and closes the underlying streams,
+     * which lets an unread connection go. Buffers from {@link #getResponseBuffer()}
+     * must not be used after this.
+     */
+    @Override
+    public void close() {
+        ByteBuffer released;
+        bodyLock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            released = body;
+            body = null;
+        } finally {
+            bodyLock.unlock();
+        }
+        if (null != released) {
+            bufferPool.release(released);
+        }
+        responseStream.ifPresent(HttpResponse::closeQuietly);
+        errorStream.ifPresent(HttpResponse::closeQuietly);
+    }
+
+    private static void closeQuietly(final ConvertibleAsset<InputStream> stream) {
+        try {
+            stream.get().close();
+        } catch (IOException e) {
+            // Nothing left to do with it
+        }
     }
 
     private final AtomicReference<String> responseString = new AtomicReference<>();
@@ -91,22 +352,38 @@ public class HttpResponse {
             return reference.get();
         }
 
-        ConvertibleAsset<InputStream> working = stream.get();
-        if (isGziped()) {
-            working = working.convert(gunzipInputStream(onError));
+        try {
+            reference.compareAndSet(null, textDecoder().decode(stream.get().get(), responseHeaders));
+        } catch (IOException e) {
+            onError.accept(e);
+            reference.compareAndSet(null, "");
         }
-
-        reference.set(working.convert(inputStreamToUTF8StringConverter(onError)));
         return reference.get();
     }
 
+    private TextDecoder textDecoder() {
+        return new TextDecoder().withMaxBodySize(maxBodySize);
+    }
+
     /**
-     * Gets the response stream as text
+     * Gets the response stream as text in the charset from its Content-Type, or UTF-8
      * returns an empty string if there is no response text
      * @param onError
      */
     public String getResponseText(final Consumer<Exception> onError) {
-        return readAndCache(this.responseStream, this.responseString, onError);
+        if (!responseStream.isPresent()) {
+            return "";
+        }
+        if (null == responseString.get()) {
+            // Goes through the body buffer so the bytes can still be had afterwards
+            try {
+                responseString.compareAndSet(null, textDecoder().decode(readBody(onError), responseHeaders));
+            } catch (BodyTooLargeException e) {
+                onError.accept(e);
+                responseString.compareAndSet(null, "");
+            }
+        }
+        return responseString.get();
     }
 
     /**
@@ -120,7 +397,7 @@ public class HttpResponse {
     private final AtomicReference<String> errorString = new AtomicReference<String>();
 
     /**
-     * Gets the error stream as text
+     * Gets the error stream as text in the charset from its Content-Type, or UTF-8
      * returns an empty string if there is no error text
      *
      * @param onError
@@ -134,9 +411,7 @@ public class HttpResponse {
      * returns an empty string if there is no error text
      */
     public String getErrorText() {
-        return this.errorStream.isPresent()
-                ? this.errorStream.get().convert(inputStreamToUTF8StringConverter(HttpResponse::ignoreError))
-                : "";
+        return getErrorText(HttpResponse::ignoreError);
     }
 
     /**
@@ -161,14 +436,8 @@ public class HttpResponse {
      */
     public static Function<InputStream, String> inputStreamToUTF8StringConverter(final Consumer<Exception> onError) {
         return is -> {
-            final InputStreamReader isr = new InputStreamReader(is, StandardCharsets.UTF_8);
-            try (BufferedReader reader = new BufferedReader(isr)) {
-                final char[] charBuffer = new char[is.available()];
-                reader.read(charBuffer, 0, charBuffer.length);
-                return Stream.of(charBuffer)
-                    .map(String::new)
-                    .reduce((t, u) -> String.format("%s%s%s", t, System.lineSeparator(), u))
-                    .orElse("No data");
+            try {
+                return new TextDecoder().decode(is, Collections.emptyMap());
             } catch (final IOException e) {
                 onError.accept(e);
                 return "";
@@ -176,29 +445,23 @@ public class HttpResponse {
         };
     }
 
+    /**
+     * Gives a converter that wraps a gzip stream so that it is decoded as it is read
+     * @param onError called if the gzip header can not be read
+     */
     public static Function<InputStream, ConvertibleAsset<InputStream>> gunzipInputStream(final Consumer<Exception> onError) {
         return in -> gunzipInputStream(in, onError);
     }
 
+    /**
+     * Wraps a gzip stream so that it is decoded as it is read, in constant memory
+     * @param in
+     * @param onError called if the gzip header can not be read
+     * @return the decoded stream, or an empty one if there was an error
+     */
     public static ConvertibleAsset<InputStream> gunzipInputStream(final InputStream in, final Consumer<Exception> onError) {
         try {
-            final Reader reader = new InputStreamReader(new GZIPInputStream(in));
-            final Vector<Byte> byteVector = new Vector<>(1024);
-
-            while (true) {
-                final int ch = reader.read();
-                if (-1 == ch) {
-                    break;
-                }
-                byteVector.add((byte) ch);
-            }
-
-            final byte[] byteArray = new byte[byteVector.size()];
-            for (int i = 0; i < byteVector.size(); i++) {
-                byteArray[i] = byteVector.get(i).byteValue();
-            }
-            return new ConvertibleAsset<>(new ByteArrayInputStream(byteArray));
-
+            return new ConvertibleAsset<>(new GZIPInputStream(in, 8192));
         } catch (final IOException e) {
             onError.accept(e);
             return new ConvertibleAsset<>(new ByteArrayInputStream(new byte[ ] { }));
@@ -0,0 +1,276 @@
+package com.pavlovmedia.oss.osgi.http;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonIOException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Converters that parse JSON with Gson straight off a stream, for use with
+ * {@link com.pavlovmedia.oss.osgi.utilities.convertible.ConvertibleAsset#convert(Function)}.
+ * The bytes go through a {@link JsonReader} as they are read, so the body is
+ * never held as a String first. The element converters go further and hand
+ * over the items of a top level array one at a time as the stream is
+ * consumed, so even a huge list is parsed in constant memory.
+ * <p>
+ * Streams given to these converters are taken to be UTF-8, which is what
+ * JSON is supposed to be; {@link HttpResponse#as(Type, Consumer)} uses the
+ * charset from the Content-Type when there is one.
+ * <p>
+ * Going the other way, the body writers serialize through a {@link JsonWriter}
+ * straight into the request stream as UTF-8, for
+ * {@link PavlovHttpClient#withData(Consumer)}.
+ *
+ * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
+ *
+ */
+public final class JsonConverters {
+    private static final Gson GSON = new Gson();
+
+    private JsonConverters() {
+        // Static converters only
+    }
+
+    /**
+     * Gives a converter that parses a stream, closing it, as a single JSON value
+     * @param type what to parse it as
+     * @param onError called if reading or parsing fails
+     * @return the value, or empty if it was null or there was an error
+     */
+    public static <T> Function<InputStream, Optional<T>> fromJson(final Type type, final Consumer<Exception> onError) {
+        return fromJson(GSON, type, onError);
+    }
+
+    /**
+     * Gives a converter that parses a stream, closing it, as a single JSON value
+     * @param type what to parse it as
+     * @param onError called if reading or parsing fails
+     * @return the value, or empty if it was null or there was an error
+     */
+    public static <T> Function<InputStream, Optional<T>> fromJson(final Class<T> type,
+            final Consumer<Exception> onError) {
+        return fromJson(GSON, type, onError);
+    }
+
+    /**
+     * Gives a converter that parses a stream, closing it, as a single JSON value
+     * @param gson configured with whatever adapters the type needs
+     * @param type what to parse it as
+     * @param onError called if reading or parsing fails
+     * @return the value, or empty if it was null or there was an error
+     */
+    public static <T> Function<InputStream, Optional<T>> fromJson(final Gson gson, final Type type,
+            final Consumer<Exception> onError) {
+        return in -> read(gson, type, utf8(in), onError);
+    }
+
+    /**
+     * Gives a converter that streams the elements of a top level JSON array.
+     * Each element is parsed when the stream gets to it, and the input is
+     * closed when the stream is closed or runs out, so use it in a
+     * try-with-resources if it might not be read to the end.
+     * @param elementType what to parse each element as
+     * @param onError called if reading or parsing fails, which ends the stream
+     */
+    public static <T> Function<InputStream, Stream<T>> fromJsonArray(final Type elementType,
+            final Consumer<Exception> onError) {
+        return fromJsonArray(GSON, elementType, onError);
+    }
+
+    /**
+     * Gives a converter that streams the elements of a top level JSON array,
+     * see {@link #fromJsonArray(Type, Consumer)}
+     * @param gson configured with whatever adapters the type needs
+     * @param elementType what to parse each element as
+     * @param onError called if reading or parsing fails, which ends the stream
+     */
+    public static <T> Function<InputStream, Stream<T>> fromJsonArray(final Gson gson, final Type elementType,
+            final Consumer<Exception> onError) {
+        return in -> elements(gson, elementType, utf8(in), onError);
+    }
+
+    /**
+     * Gives a body writer that serializes a value as it is written to the connection
+     * @param gson configured with whatever adapters the type needs
+     * @param type the type to serialize it as, which matters for generic types
+     * @param value
+     */
+    public static Consumer<OutputStream> toJson(final Gson gson, final Type type, final Object value) {
+        return out -> write(out, json -> gson.toJson(value, type, json));
+    }
+
+    /**
+     * Gives a body writer that serializes the elements of an iterator as a
+     * JSON array, pulling each one only when it is written, so a bulk upload
+     * never has to be in memory all at once. The iterator can only be walked
+     * once, so the body can only be sent once.
+     * @param gson configured with whatever adapters the type needs
+     * @param elementType the type to serialize each element as
+     * @param elements
+     */
+    public static Consumer<OutputStream> toJsonArray(final Gson gson, final Type elementType,
+            final Iterator<?> elements) {
+        return out -> write(out, json -> {
+            json.beginArray();
+            while (elements.hasNext()) {
+                gson.toJson(elements.next(), elementType, json);
+            }
+            json.endArray();
+        });
+    }
+
+    /**
+     * Something that writes JSON and might fail doing it
+     */
+    private interface JsonWriting {
+        void writeTo(JsonWriter json) throws IOException;
+    }
+
+    private static void write(final OutputStream out, final JsonWriting writing) {
+        // The stream belongs to the transport, so it is flushed but not closed
+        JsonWriter json = new JsonWriter(new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8)));
+        try {
+            writing.writeTo(json);
+            json.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (JsonIOException e) {
+            // Gson wraps the connection's failures, the transports look for them unchecked
+            if (e.getCause() instanceof IOException) {
+                throw new UncheckedIOException((IOException) e.getCause());
+            }
+            throw e;
+        }
+    }
+
+    private static Reader utf8(final InputStream in) {
+        return new InputStreamReader(in, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Parses a single value, closing the reader
+     */
+    static <T> Optional<T> read(final Gson gson, final Type type, final Reader reader,
+            final Consumer<Exception> onError) {
+        try (JsonReader json = new JsonReader(reader)) {
+            T value = gson.fromJson(json, type);
+            if (JsonToken.END_DOCUMENT != json.peek()) {
+                throw new JsonIOException("JSON document was not fully consumed");
+            }
+            return Optional.ofNullable(value);
+        } catch (IOException | RuntimeException e) {
+            onError.accept(e);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Streams the elements of an array, closing the reader when the stream ends or is closed
+     */
+    static <T> Stream<T> elements(final Gson gson, final Type elementType, final Reader reader,
+            final Consumer<Exception> onError) {
+        JsonReader json = new JsonReader(reader);
+        try {
+            json.beginArray();
+        } catch (IOException | RuntimeException e) {
+            closeQuietly(json);
+            onError.accept(e);
+            return Stream.empty();
+        }
+        ElementIterator<T> elements = new ElementIterator<>(gson, elementType, json, onError);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(elements, Spliterator.ORDERED), false)
+                .onClose(elements::finish);
+    }
+
+    private static void closeQuietly(final JsonReader json) {
+        try {
+            json.close();
+        } catch (IOException e) {
+            // Nothing left to do with it
+        }
+    }
+
+    /**
+     * Reads one element ahead of the stream, stopping at the end of the
+     * array or the first error
+     */
+    private static final class ElementIterator<T> implements Iterator<T> {
+        private final Gson gson;
+        private final Type elementType;
+        private final JsonReader json;
+        private final Consumer<Exception> onError;
+        private T next;
+        private boolean ready;
+        private boolean finished;
+
+        ElementIterator(final Gson gson, final Type elementType, final JsonReader json,
+                final Consumer<Exception> onError) {
+            this.gson = gson;
+            this.elementType = elementType;
+            this.json = json;
+            this.onError = onError;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (ready) {
+                return true;
+            }
+            if (finished) {
+                return false;
+            }
+            try {
+                if (json.hasNext()) {
+                    next = gson.fromJson(json, elementType);
+                    ready = true;
+                    return true;
+                }
+                json.endArray();
+            } catch (IOException | RuntimeException e) {
+                // Whatever comes after a bad element can't be trusted
+                onError.accept(e);
+            }
+            finish();
+            return false;
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            ready = false;
+            T element = next;
+            next = null;
+            return element;
+        }
+
+        void finish() {
+            if (!finished) {
+                finished = true;
+                closeQuietly(json);
+            }
+        }
+    }
+}
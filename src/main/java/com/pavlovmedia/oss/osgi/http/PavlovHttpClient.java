@@ -2,15 +2,24 @@ package com.pavlovmedia.oss.osgi.http;
 
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.reflect.Type;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
-import java.util.List;
-import java.util.Map;
-import java.util.Optional;
+import java.util.stream.Stream;
+
+import com.pavlovmedia.oss.osgi.http.cache.ResponseCache;
+import com.pavlovmedia.oss.osgi.http.flow.Flow;
+import com.pavlovmedia.oss.osgi.http.transport.HttpTransport;
+import com.pavlovmedia.oss.osgi.http.transport.StreamMultiplexer;
 
 /**
  * A modern take on an HTTP client
@@ -71,13 +80,15 @@ public interface PavlovHttpClient {
     PavlovHttpClient withAcceptTypes(String...acceptTypes);
     
     /**
-     * Gives a chance to directly modify the connection before it is used
+     * Gives a chance to directly modify the connection before it is used.
+     * Only called by transports built on {@link HttpURLConnection}
      * @param rawConnection
      */
     PavlovHttpClient beforeConnectRaw(Consumer<HttpURLConnection> rawConnection);
     
     /**
-     * Give a chance to directly inspect the connection results before return
+     * Give a chance to directly inspect the connection results before return.
+     * Only called by transports built on {@link HttpURLConnection}
      * @param rawConnection
      */
     PavlovHttpClient beforeFinishRaw(Consumer<HttpURLConnection> rawConnection);
@@ -116,20 +127,70 @@ public interface PavlovHttpClient {
     PavlovHttpClient withData(Consumer<OutputStream> handleStream);
     
     /**
-     * Specifies a string to be used as data (cannot be used with {@link #withData(Consumer)})
+     * Specifies a string to be used as data, sent as UTF-8 (cannot be used with {@link #withData(Consumer)})
      * @param data
      */
     PavlovHttpClient withData(String data);
     
+    /**
+     * Sends an object as JSON, serialized with Gson straight into the
+     * connection as UTF-8 rather than into a String first. Sets the content
+     * type to application/json unless one has been set. Takes the place of
+     * {@link #withData(Consumer)}.
+     * @param body
+     */
+    PavlovHttpClient withJsonBody(Object body);
+    
+    /**
+     * Sends an object as JSON, see {@link #withJsonBody(Object)}
+     * @param type the type to serialize it as, which matters for generic types
+     * @param body
+     */
+    PavlovHttpClient withJsonBody(Type type, Object body);
+    
+    /**
+     * Sends the elements of an iterator as a JSON array, pulling each one
+     * only as it is written to the connection, so a bulk upload is never
+     * in memory all at once. The NIO and HTTP/2 transports send it chunked
+     * as it is written; {@link HttpURLConnection} holds the whole body
+     * unless it is put in chunked streaming mode with {@link #beforeConnectRaw(Consumer)},
+     * and async NIO requests are buffered before they go to the event loop.
+     * The iterator can only be walked once, so a request that has to be
+     * sent again (a redirect, or a clone) sends what is left of it.
+     * @param elementType the type to serialize each element as
+     * @param elements
+     */
+    PavlovHttpClient withJsonArray(Type elementType, Iterator<?> elements);
+    
+    /**
+     * Sends the elements of a stream as a JSON array, see {@link #withJsonArray(Type, Iterator)}.
+     * The stream is closed once the body has been written or writing it fails.
+     * @param elementType the type to serialize each element as
+     * @param elements
+     */
+    PavlovHttpClient withJsonArray(Type elementType, Stream<?> elements);
+    
     /**
      * Treats this connection as SSE and will dispatch events to the provided
-     * consumer.
+     * consumer. The consumer runs on the thread reading the stream; pass an
+     * {@link SseRingBuffer} to run it somewhere else.
      * Note: Can't be used with {@link #asStreaming(Consumer)}
      * 
      * @param sseConsumer
      */
     PavlovHttpClient asSse(Consumer<SseMessageEvent> sseConsumer);
     
+    /**
+     * Makes a subscription that keeps an SSE stream from this request open,
+     * reconnecting with Last-Event-ID when it drops, until the interrupt from
+     * {@link #withInterrupt(AtomicBoolean)} is set, the subscription is closed
+     * or the server answers with a status that retrying won't change.
+     * Nothing is sent until the subscription is run or started.
+     * 
+     * @param sseConsumer
+     */
+    SseSubscription subscribeSse(Consumer<SseMessageEvent> sseConsumer);
+    
     /**
      * Treats this connection as a stream and hands the input stream
      * off once connected to the streamConsumer
@@ -140,10 +201,89 @@ public interface PavlovHttpClient {
     PavlovHttpClient asStreaming(Consumer<InputStream> streamConsumer);
     
     /**
-     * Attempts to get this stream with gzip encoding
+     * Attempts to get this stream with gzip (or deflate) encoding. The
+     * body is decoded as it is read, whether it ends up in the response,
+     * a streaming consumer or an SSE consumer.
      */
     PavlovHttpClient usingGzip();
     
+    /**
+     * Sets the transport used to send requests, which is shared with any
+     * clones made from this client. Defaults to {@link com.pavlovmedia.oss.osgi.http.transport.UrlConnectionTransport}
+     * @param transport
+     */
+    PavlovHttpClient withTransport(HttpTransport transport);
+    
+    /**
+     * Sets the pool that {@link HttpResponse#getResponseBuffer()} and friends read
+     * bodies into, which is shared with any clones made from this client.
+     * Defaults to {@link BufferPool#DEFAULT}.
+     * @param bufferPool
+     */
+    PavlovHttpClient withBufferPool(BufferPool bufferPool);
+    
+    /**
+     * Sets the most bytes of a response or error body that {@link HttpResponse} will
+     * read into memory, after which it gives up with a {@link BodyTooLargeException}.
+     * Defaults to {@link TextDecoder#UNLIMITED}.
+     * @param maxBodySize
+     */
+    PavlovHttpClient withMaxBodySize(long maxBodySize);
+    
+    /**
+     * Answers GETs from the cache when it can, sending conditional requests to
+     * revalidate stale entries. The cache is shared with any clones made from
+     * this client, so a {@link Spider} built on it reuses what earlier runs fetched.
+     * @param cache
+     */
+    PavlovHttpClient withCache(ResponseCache cache);
+    
+    /**
+     * Runs SSE requests made with {@link #executeAsync()} on the multiplexer's
+     * selector threads rather than a thread of their own, which is what lets
+     * thousands of feeds stay open at once. The consumer then runs on a
+     * selector thread shared with other streams, so it should be quick or be an
+     * {@link SseRingBuffer}. Only plain http streams can be multiplexed, and
+     * their bodies are not content decoded. The multiplexer is shared with any
+     * clones made from this client.
+     * @param multiplexer
+     */
+    PavlovHttpClient withMultiplexer(StreamMultiplexer multiplexer);
+    
+    /**
+     * Runs {@link #executeAsync()} on a new virtual thread per request instead of the
+     * common pool, so blocking requests and SSE streams no longer need a sized pool.
+     * On JDKs without virtual threads this is ignored and the common pool is used.
+     */
+    PavlovHttpClient withVirtualThreads();
+    
+    /**
+     * Makes a publisher that sends this request when its subscriber first asks
+     * for data, then hands over the decoded body in chunks, reading from the
+     * socket only while there is demand. Cancelling closes the connection. Reads
+     * run on the same pool {@link #executeAsync()} would use.
+     */
+    Flow.Publisher<ByteBuffer> publishBody();
+    
+    /**
+     * Like {@link #publishBody()}, reading on the given pool
+     * @param pool
+     */
+    Flow.Publisher<ByteBuffer> publishBody(ExecutorService pool);
+    
+    /**
+     * Makes a publisher of this request's SSE events, which reads from the
+     * socket only while its subscriber has demand. Cancelling closes the
+     * connection. Reads run on the same pool {@link #executeAsync()} would use.
+     */
+    Flow.Publisher<SseMessageEvent> publishSse();
+    
+    /**
+     * Like {@link #publishSse()}, reading on the given pool
+     * @param pool
+     */
+    Flow.Publisher<SseMessageEvent> publishSse(ExecutorService pool);
+    
     /**
      * Executes this request synchronously, sending along any errors to
      * the onError handler, and only returning a response if there are no
@@ -162,7 +302,8 @@ public interface PavlovHttpClient {
     /**
      * Executes this request asynchronously using the specified pool. Any exceptions will be
      * fed through the {@link CompletableFuture#exceptionally(java.util.function.Function)}
-     * method.
+     * method. Transports that support it do their I/O without tying up a pool thread, which
+     * is only used to complete the future; SSE and streaming requests run on the pool.
      * @param pool
      */
     CompletableFuture<HttpResponse> executeAsync(ExecutorService pool);
@@ -1,35 +1,45 @@
 package com.pavlovmedia.oss.osgi.http;
 
-import java.io.BufferedReader;
-import java.io.FileNotFoundException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
 import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Type;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
-import java.net.ProtocolException;
 import java.net.URL;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Base64;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
+import com.google.gson.Gson;
+import com.pavlovmedia.oss.osgi.http.cache.ResponseCache;
+import com.pavlovmedia.oss.osgi.http.flow.Flow;
+import com.pavlovmedia.oss.osgi.http.transport.HttpExchange;
+import com.pavlovmedia.oss.osgi.http.transport.HttpTransport;
+import com.pavlovmedia.oss.osgi.http.transport.StreamMultiplexer;
+import com.pavlovmedia.oss.osgi.http.transport.UrlConnectionTransport;
 import com.pavlovmedia.oss.osgi.utilities.convertible.ConvertibleAsset;
 
 /**
@@ -41,8 +51,9 @@ import com.pavlovmedia.oss.osgi.utilities.convertible.ConvertibleAsset;
 public class PavlovHttpClientImpl implements PavlovHttpClient {
     public static final String ACCEPT_TYPE_HEADER = "Accept";
     public static final String CONTENT_TYPE_HEADER = "Content-type";
+    private static final String JSON_CONTENT_TYPE = "application/json; charset=UTF-8";
+    private static final Gson GSON = new Gson();
     private static final int TIMEOUT = 5000; // XXX: Should this be settable?
-    private static final Pattern SSE_ENTRY = Pattern.compile("(?<field>\\w+):(?<data>.+)");
     
     private Optional<URL> httpUrl = Optional.empty();
     private Optional<String> httpPath = Optional.empty();
@@ -58,6 +69,14 @@ public class PavlovHttpClientImpl implements PavlovHttpClient {
     private Optional<Consumer<InputStream>> streamConsumer = Optional.empty();
     private Optional<Consumer<OutputStream>> handleStream = Optional.empty();
     private Optional<String> data = Optional.empty();
+    private HttpTransport transport = UrlConnectionTransport.INSTANCE;
+    private boolean virtualThreads = false;
+    private BufferPool bufferPool = BufferPool.DEFAULT;
+    private long maxBodySize = TextDecoder.UNLIMITED;
+    private Optional<ResponseCache> cache = Optional.empty();
+    private Optional<StreamMultiplexer> multiplexer = Optional.empty();
+    private Optional<SseParser> sseParser = Optional.empty();
+    private Optional<Consumer<Closeable>> onSseConnect = Optional.empty();
     
     private URL validatedUrl;
     
@@ -77,6 +96,12 @@ public class PavlovHttpClientImpl implements PavlovHttpClient {
         this.streamConsumer.ifPresent(ret::asStreaming);
         this.handleStream.ifPresent(ret::withData);
         this.data.ifPresent(ret::withData);
+        ret.transport = this.transport;
+        ret.virtualThreads = this.virtualThreads;
+        ret.bufferPool = this.bufferPool;
+        ret.maxBodySize = this.maxBodySize;
+        ret.cache = this.cache;
+        ret.multiplexer = this.multiplexer;
         return ret;
     }
     
@@ -182,12 +207,67 @@ public class PavlovHttpClientImpl implements PavlovHttpClient {
         return this;
     }
 
+    @Override
+    public PavlovHttpClientImpl withJsonBody(final Object body) {
+        return withJsonBody(null == body ? Object.class : body.getClass(), body);
+    }
+
+    @Override
+    public PavlovHttpClientImpl withJsonBody(final Type type, final Object body) {
+        return withJson(JsonConverters.toJson(GSON, type, body));
+    }
+
+    @Override
+    public PavlovHttpClientImpl withJsonArray(final Type elementType, final Iterator<?> elements) {
+        return withJson(JsonConverters.toJsonArray(GSON, elementType, elements));
+    }
+
+    @Override
+    public PavlovHttpClientImpl withJsonArray(final Type elementType, final Stream<?> elements) {
+        ClosingIterator<?> iterator = new ClosingIterator<>(elements);
+        Consumer<OutputStream> writer = JsonConverters.toJsonArray(GSON, elementType, iterator);
+        // The iterator closes the stream when it runs out, this covers the write itself failing
+        return withJson(out -> {
+            try {
+                writer.accept(out);
+            } finally {
+                iterator.close();
+            }
+        });
+    }
+
+    private PavlovHttpClientImpl withJson(final Consumer<OutputStream> writer) {
+        if (additionalHeaders.keySet().stream().noneMatch(CONTENT_TYPE_HEADER::equalsIgnoreCase)) {
+            withContentType(JSON_CONTENT_TYPE);
+        }
+        return withData(writer);
+    }
+
     @Override
     public PavlovHttpClientImpl asSse(final Consumer<SseMessageEvent> sseConsumer) {
         this.sseConsumer = Optional.of(sseConsumer);
         return this;
     }
 
+    @Override
+    public SseSubscription subscribeSse(final Consumer<SseMessageEvent> sseConsumer) {
+        PavlovHttpClientImpl template = (PavlovHttpClientImpl) clone();
+        AtomicBoolean flag = interrupt.orElseGet(AtomicBoolean::new);
+        template.withInterrupt(flag).asSse(sseConsumer);
+        return new SseSubscription(template, flag, sseConsumer);
+    }
+
+    /**
+     * Has SSE streams decoded by a parser that outlives this request, so the
+     * last event id carries over, and hands onConnect what closes a stream
+     * when it opens, so another thread can end a blocked read
+     */
+    PavlovHttpClientImpl usingSseParser(final SseParser parser, final Consumer<Closeable> onConnect) {
+        this.sseParser = Optional.of(parser);
+        this.onSseConnect = Optional.of(onConnect);
+        return this;
+    }
+
     @Override
     public PavlovHttpClientImpl asStreaming(final Consumer<InputStream> streamConsumer) {
         this.streamConsumer = Optional.of(streamConsumer);
@@ -196,7 +276,67 @@ public class PavlovHttpClientImpl implements PavlovHttpClient {
 
     @Override
     public PavlovHttpClientImpl usingGzip() {
-        addHeader("Accept-Encoding", "gzip");
+        addHeader("Accept-Encoding", "gzip, deflate");
+        return this;
+    }
+
+    @Override
+    public PavlovHttpClientImpl withTransport(final HttpTransport transport) {
+        Objects.requireNonNull(transport);
+        this.transport = transport;
+        return this;
+    }
+    
+    @Override
+    public PavlovHttpClientImpl withBufferPool(final BufferPool bufferPool) {
+        Objects.requireNonNull(bufferPool);
+        this.bufferPool = bufferPool;
+        return this;
+    }
+    
+    @Override
+    public PavlovHttpClientImpl withMaxBodySize(final long maxBodySize) {
+        this.maxBodySize = maxBodySize;
+        return this;
+    }
+    
+    @Override
+    public PavlovHttpClientImpl withCache(final ResponseCache cache) {
+        Objects.requireNonNull(cache);
+        this.cache = Optional.of(cache);
+        return this;
+    }
+    
+    @Override
+    public Flow.Publisher<ByteBuffer> publishBody() {
+        return publishBody(defaultPool());
+    }
+
+    @Override
+    public Flow.Publisher<ByteBuffer> publishBody(final ExecutorService pool) {
+        return new BodyPublisher((PavlovHttpClientImpl) clone(), pool);
+    }
+
+    @Override
+    public Flow.Publisher<SseMessageEvent> publishSse() {
+        return publishSse(defaultPool());
+    }
+
+    @Override
+    public Flow.Publisher<SseMessageEvent> publishSse(final ExecutorService pool) {
+        return new SsePublisher((PavlovHttpClientImpl) clone(), pool);
+    }
+
+    @Override
+    public PavlovHttpClientImpl withMultiplexer(final StreamMultiplexer multiplexer) {
+        Objects.requireNonNull(multiplexer);
+        this.multiplexer = Optional.of(multiplexer);
+        return this;
+    }
+
+    @Override
+    public PavlovHttpClientImpl withVirtualThreads() {
+        this.virtualThreads = true;
         return this;
     }
     
@@ -207,82 +347,76 @@ public class PavlovHttpClientImpl implements PavlovHttpClient {
             onError.accept(new HttpExceptionCollection("execute failed", validationErrors));
             return Optional.empty();
         }
-        
-        
-        System.out.println("Final url is: "+validatedUrl.toExternalForm());
-        
+
+        HttpExchange exchange = null;
         try {
-            HttpURLConnection connection = (HttpURLConnection) validatedUrl.openConnection();
-            connection.setConnectTimeout(TIMEOUT);
-            
-            this.handleHeaders(connection);
-            this.setVerb(connection);
-
-            beforeConnect.ifPresent(c -> c.accept(connection));
-            
-            if (data.isPresent()) {
-                connection.setDoOutput(true);
-                try (OutputStreamWriter writer = new OutputStreamWriter(connection.getOutputStream())) {
-                    writer.write(data.get());
-                }
-            } else if (handleStream.isPresent()) {
-                connection.setDoOutput(true);
-                handleStream.get().accept(connection.getOutputStream());
-            } else {
-                connection.connect();
-            }
-            
-            beforeFinish.ifPresent(f -> f.accept(connection));
-            int responseCode = -1;
-            try {
-                responseCode = connection.getResponseCode();
-            } catch (FileNotFoundException e) {
-                responseCode = 404;
-            }
-            
-            if (responseCode >= 200 && responseCode < 300) {
-                Optional<ConvertibleAsset<InputStream>> inputStream = Optional.empty();
-                if (sseConsumer.isPresent()) {
-                    handleSse(connection);
-                } else if (streamConsumer.isPresent()) {
-                    streamConsumer.get().accept(connection.getInputStream());
-                } else {
-                    inputStream = Optional.of(new ConvertibleAsset<>(connection.getInputStream()));
-                }
-                return Optional.of(new HttpResponse(validatedUrl, responseCode, Optional.empty(), inputStream,
-                        connection.getHeaderFields()));
+            exchange = transport().open(buildRequest());
+            return Optional.of(readResponse(exchange, onError));
+        } catch (IOException e) {
+            if (null != exchange) {
+                exchange.close();
             }
-            
-            Optional<ConvertibleAsset<InputStream>> response = Optional.empty();
-            try {
-                    response = connection.getInputStream() != null 
-                        ? Optional.of(new ConvertibleAsset<>(connection.getInputStream()))
-                        : Optional.empty();
-            } catch (IOException e) {
-                onError.accept(e);
+            onError.accept(new HttpExceptionCollection("execute failed", e));
+            return Optional.empty();
+        }
+    }
+    
+    /**
+     * Turns an exchange into the response, handing the body to any SSE or
+     * streaming consumer along the way. Every body is run through
+     * {@link ContentDecoding} first, so consumers never see compressed bytes.
+     */
+    private HttpResponse readResponse(final HttpExchange exchange, final Consumer<Exception> onError)
+            throws IOException {
+        int responseCode = exchange.getResponseCode();
+        Map<String, List<String>> headers = exchange.getHeaderFields();
+        
+        if (responseCode >= 200 && responseCode < 300) {
+            Optional<ConvertibleAsset<InputStream>> inputStream = Optional.empty();
+            if (sseConsumer.isPresent()) {
+                onSseConnect.ifPresent(c -> c.accept(exchange::abort));
+                handleSse(ContentDecoding.decode(exchange.getInputStream(), headers), onError);
+            } else if (streamConsumer.isPresent()) {
+                streamConsumer.get().accept(ContentDecoding.decode(exchange.getInputStream(), headers));
+            } else {
+                inputStream = Optional.of(new ConvertibleAsset<>(
+                        ContentDecoding.decode(exchange.getInputStream(), headers)));
             }
-            
-            Optional<ConvertibleAsset<InputStream>> error =
-                    connection.getErrorStream() != null 
-                    ? Optional.of(new ConvertibleAsset<>(connection.getErrorStream()))
-                    : Optional.empty();
-                    
-            return Optional.of(new HttpResponse(
-                    validatedUrl,
-                    responseCode,
-                    error,
-                    response,
-                    connection.getHeaderFields()));
+            return new HttpResponse(validatedUrl, responseCode, Optional.empty(), inputStream, headers, bufferPool,
+                    maxBodySize);
+        }
         
+        Optional<ConvertibleAsset<InputStream>> response = Optional.empty();
+        try {
+                response = exchange.getInputStream() != null 
+                    ? Optional.of(new ConvertibleAsset<>(ContentDecoding.decode(exchange.getInputStream(), headers)))
+                    : Optional.empty();
         } catch (IOException e) {
-            onError.accept(new HttpExceptionCollection("execute failed", validationErrors));
-            return Optional.empty();
+            onError.accept(e);
         }
+        
+        Optional<ConvertibleAsset<InputStream>> error = exchange.getErrorStream()
+                .map(es -> new ConvertibleAsset<>(ContentDecoding.decode(es, headers)));
+                
+        return new HttpResponse(
+                validatedUrl,
+                responseCode,
+                error,
+                response,
+                headers,
+                bufferPool,
+                maxBodySize);
     }
     
     @Override
     public CompletableFuture<HttpResponse> executeAsync() {
-        return executeAsync(ForkJoinPool.commonPool());
+        return executeAsync(defaultPool());
+    }
+    
+    private ExecutorService defaultPool() {
+        return virtualThreads
+                ? VirtualThreads.executor().orElse(ForkJoinPool.commonPool())
+                : ForkJoinPool.commonPool();
     }
 
     @Override
@@ -296,7 +430,106 @@ public class PavlovHttpClientImpl implements PavlovHttpClient {
             return future;
         }
         
-        return CompletableFuture.supplyAsync(this::execute);
+        if (sseConsumer.isPresent() && multiplexer.isPresent()) {
+            return executeMultiplexed(multiplexer.get());
+        }
+        
+        if (sseConsumer.isPresent() || streamConsumer.isPresent()) {
+            // These hand a live stream to the caller, so they need a thread of their own
+            return CompletableFuture.supplyAsync(this::execute, pool);
+        }
+        
+        return transport().openAsync(buildRequest(), pool)
+                .handle((exchange, failure) -> {
+                    ArrayList<Exception> exceptions = new ArrayList<>();
+                    if (null != failure) {
+                        Throwable cause = failure instanceof CompletionException ? failure.getCause() : failure;
+                        exceptions.add(cause instanceof Exception ? (Exception) cause : new Exception(cause));
+                        throw new HttpExceptionCollection("ExecuteAsync failed", exceptions);
+                    }
+                    HttpResponse response = null;
+                    try {
+                        response = readResponse(exchange, exceptions::add);
+                    } catch (IOException e) {
+                        exchange.close();
+                        exceptions.add(e);
+                    }
+                    if (!exceptions.isEmpty()) {
+                        throw new HttpExceptionCollection("ExecuteAsync failed", exceptions);
+                    }
+                    return response;
+                });
+    }
+    
+    /**
+     * Runs an SSE request on a multiplexer's loop threads, completing the
+     * future once the stream ends. Error bodies are collected so the response
+     * has them, successful ones go straight to the parser uncompressed.
+     */
+    private CompletableFuture<HttpResponse> executeMultiplexed(final StreamMultiplexer streams) {
+        CompletableFuture<HttpResponse> future = new CompletableFuture<>();
+        AtomicBoolean isFalse = new AtomicBoolean();
+        SseParser parser = sseParser.orElseGet(() -> new SseParser(sseConsumer.get()));
+        URL url = validatedUrl;
+        // The stream is parsed as it arrives on the loop thread, so ask for it uncompressed
+        HttpRequest request = buildRequest().withHeader("Accept-Encoding", "identity");
+        // The head can arrive before open returns, so the stream is closed through this once it is known
+        AtomicReference<StreamMultiplexer.Stream> opened = new AtomicReference<>();
+        StreamMultiplexer.Stream stream = streams.open(request, new StreamMultiplexer.Listener() {
+            private int code;
+            private Map<String, List<String>> headers;
+            private final ByteArrayOutputStream errorBody = new ByteArrayOutputStream();
+
+            @Override
+            public void onHead(final int responseCode, final Map<String, List<String>> responseHeaders) {
+                code = responseCode;
+                headers = responseHeaders;
+                if (code >= 200 && code < 300) {
+                    onSseConnect.ifPresent(c -> c.accept(() -> Optional.ofNullable(opened.get())
+                            .ifPresent(StreamMultiplexer.Stream::close)));
+                }
+            }
+
+            @Override
+            public void onData(final ByteBuffer data) {
+                if (code >= 200 && code < 300) {
+                    parser.feed(data);
+                } else {
+                    byte[] bytes = new byte[data.remaining()];
+                    data.get(bytes);
+                    errorBody.write(bytes, 0, bytes.length);
+                }
+            }
+
+            @Override
+            public void onEnd(final Optional<Throwable> failure) {
+                if (failure.isPresent() || null == headers) {
+                    Throwable cause = failure.orElse(new IOException("Stream ended without a response"));
+                    future.completeExceptionally(new HttpExceptionCollection("ExecuteAsync failed",
+                            cause instanceof Exception ? (Exception) cause : new Exception(cause)));
+                    return;
+                }
+                Optional<ConvertibleAsset<InputStream>> error = code >= 200 && code < 300
+                        ? Optional.empty()
+                        : Optional.of(new ConvertibleAsset<>(ContentDecoding.decode(
+                                new ByteArrayInputStream(errorBody.toByteArray()), headers)));
+                future.complete(new HttpResponse(url, code, error, Optional.empty(), headers, bufferPool,
+                        maxBodySize));
+            }
+        }, () -> interrupt.orElse(isFalse).get());
+        opened.set(stream);
+        return future;
+    }
+    
+    /**
+     * The transport requests go through, behind the cache if there is one.
+     * SSE and streaming bodies skip it, a cache reads a body to the end
+     * before handing it on, which a stream never reaches.
+     */
+    private HttpTransport transport() {
+        return cache.isPresent() && !sseConsumer.isPresent() && !streamConsumer.isPresent()
+                ? cache.get().over(transport)
+                : transport;
     }
     
     private List<Exception> validate() {
@@ -385,7 +618,59 @@ public class PavlovHttpClientImpl implements PavlovHttpClient {
         return ret.get();
     }
     
-    protected void handleHeaders(final HttpURLConnection connection) {
+    /**
+     * Sends the request and returns the exchange as is, for callers that read
+     * the body themselves as it arrives, so it never goes through the cache
+     * @throws HttpExceptionCollection if the client isn't valid
+     */
+    HttpExchange openExchange() throws IOException {
+        List<Exception> validationErrors = validate();
+        if (!validationErrors.isEmpty()) {
+            throw new HttpExceptionCollection("open failed", validationErrors);
+        }
+        return transport.open(buildRequest());
+    }
+    
+    URL getValidatedUrl() {
+        return validatedUrl;
+    }
+    
+    /**
+     * Validates this client and snapshots it into a request without sending anything
+     */
+    Optional<HttpRequest> toRequest(final Consumer<Exception> onError) {
+        List<Exception> validationErrors = validate();
+        if (!validationErrors.isEmpty()) {
+            onError.accept(new HttpExceptionCollection("validation failed", validationErrors));
+            return Optional.empty();
+        }
+        return Optional.of(buildRequest());
+    }
+    
+    /**
+     * Snapshots this client into the request handed to the transport,
+     * must be called after {@link #validate()}
+     */
+    protected HttpRequest buildRequest() {
+        Optional<Consumer<OutputStream>> body = handleStream;
+        long contentLength = -1;
+        if (data.isPresent()) {
+            byte[] bytes = data.get().getBytes(StandardCharsets.UTF_8);
+            contentLength = bytes.length;
+            body = Optional.of(os -> {
+                try {
+                    os.write(bytes);
+                    os.close();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+        return new HttpRequest(validatedUrl, verb.get(), buildHeaders(), body, contentLength, TIMEOUT,
+                beforeConnect, beforeFinish, maxBodySize);
+    }
+    
+    protected Map<String,List<String>> buildHeaders() {
         // We are going to be using a map, based off of what has already been set
         HashMap<String,List<String>> headers = new HashMap<>(additionalHeaders);
         // Now pass along to any modification routines
@@ -401,67 +686,16 @@ public class PavlovHttpClientImpl implements PavlovHttpClient {
                 headers.get(key).add(value);
             });
         });
-        
-        // Now do the setting
-        headers.forEach((key, valueList) -> {
-            valueList.forEach(value -> connection.setRequestProperty(key, value));
-        });
+        return headers;
     }
     
-    protected void setVerb(final HttpURLConnection connection) throws ProtocolException {
-        switch (verb.get()) {
-            case PATCH:
-                connection.setRequestProperty("X-HTTP-Method-Override", "PATCH");
-                connection.setRequestMethod("POST");
-                break;
-            default:
-                connection.setRequestMethod(verb.get().toString());
-        }
-    }
-    
-    private void handleSse(final HttpURLConnection connection) {
+    private void handleSse(final InputStream body, final Consumer<Exception> onError) {
         AtomicBoolean isFalse = new AtomicBoolean();
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream()))) {
-            while (!interrupt.orElse(isFalse).get()) {
-                Optional<String> id = Optional.empty();
-                Optional<ConvertibleAsset<String>> event = Optional.empty();
-                Optional<ConvertibleAsset<String>> data = Optional.empty();
-                while (!interrupt.orElse(isFalse).get()) {
-                    // Empty line is the end of an event
-                    String line = reader.readLine();
-                    if (line.trim().isEmpty()) {
-                        // If we have at least data, emit an sse event
-                        if (data.isPresent()) {
-                            SseMessageEvent currentEvent = new SseMessageEvent(id, event, data);
-                            sseConsumer.get().accept(currentEvent);
-                        }
-                        break; // Next message
-                    }
-
-                    // This ignores comment lines
-                    if (!line.trim().startsWith(":")) {
-                        Matcher lineMatcher = SSE_ENTRY.matcher(line.trim());
-                        if (lineMatcher.matches()) {
-                            switch (lineMatcher.group("field")) {
-                                case "id":
-                                    id = Optional.of(lineMatcher.group("data"));
-                                    break;
-                                case "event":
-                                    event = Optional.of(new ConvertibleAsset<>(lineMatcher.group("data")));
-                                    break;
-                                case "data":
-                                    data = Optional.of(new ConvertibleAsset<>(lineMatcher.group("data")));
-                                    break;
-                                default:
-                                    // Do nothing
-                            }
-                        }
-                    }
-                }
-            }
+        SseParser parser = sseParser.orElseGet(() -> new SseParser(sseConsumer.get()));
+        try (InputStream stream = body) {
+            parser.parse(stream, () -> interrupt.orElse(isFalse).get());
         } catch (IOException e) {
-            // TODO: Is there any point in logging this somehow?
-            e.printStackTrace();
+            onError.accept(e);
         }
     }
 }
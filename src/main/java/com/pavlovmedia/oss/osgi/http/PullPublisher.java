@@ -0,0 +1,179 @@
+package com.pavlovmedia.oss.osgi.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.pavlovmedia.oss.osgi.http.flow.Flow;
+import com.pavlovmedia.oss.osgi.http.transport.HttpExchange;
+
+/**
+ * A publisher that pulls items out of a response body only while its
+ * subscriber has demand. Nothing is sent until the first request, the
+ * body is read on the executor a chunk at a time for as long as demand
+ * lasts, and cancelling aborts the exchange, which drops the connection
+ * even while a read is blocked on it.
+ * Each publisher runs its request once, so it takes a single subscriber.
+ *
+ * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
+ *
+ * @param <T> the items it publishes
+ */
+abstract class PullPublisher<T> implements Flow.Publisher<T>, Flow.Subscription {
+    private final PavlovHttpClientImpl client;
+    private final Executor executor;
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+    private final AtomicLong demand = new AtomicLong();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final ReentrantLock exchangeLock = new ReentrantLock();
+    private volatile boolean done;
+    private volatile Exception badRequest;
+    private Flow.Subscriber<? super T> subscriber;
+    // Guarded by exchangeLock
+    private HttpExchange exchange;
+    // Only touched by the drain task
+    private InputStream body;
+
+    PullPublisher(final PavlovHttpClientImpl client, final Executor executor) {
+        this.client = client;
+        this.executor = executor;
+    }
+
+    /**
+     * Reads the next item from the body, blocking as needed
+     * @return the item, or null at the end of the body
+     */
+    abstract T pull(InputStream body) throws IOException;
+
+    @Override
+    public void subscribe(final Flow.Subscriber<? super T> newSubscriber) {
+        if (!subscribed.compareAndSet(false, true)) {
+            newSubscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(final long n) {
+                    // Nothing to give
+                }
+
+                @Override
+                public void cancel() {
+                    // Nothing to stop
+                }
+            });
+            newSubscriber.onError(new IllegalStateException("This publisher already has a subscriber"));
+            return;
+        }
+        this.subscriber = newSubscriber;
+        newSubscriber.onSubscribe(this);
+    }
+
+    @Override
+    public void request(final long n) {
+        if (done) {
+            return;
+        }
+        if (n <= 0) {
+            // Reported by the drain task, so it can't overlap an onNext
+            badRequest = new IllegalArgumentException("Demand must be positive, got " + n);
+            demand.compareAndSet(0, 1);
+        } else {
+            // Demand adds up, capped where the spec treats it as unbounded
+            demand.accumulateAndGet(n, (a, b) -> a + b < 0 ? Long.MAX_VALUE : a + b);
+        }
+        if (draining.compareAndSet(false, true)) {
+            executor.execute(this::drain);
+        }
+    }
+
+    @Override
+    public void cancel() {
+        done = true;
+        closeExchange(true);
+    }
+
+    private void drain() {
+        try {
+            while (!done) {
+                if (null != badRequest) {
+                    fail(badRequest);
+                    return;
+                }
+                if (0 == demand.get()) {
+                    draining.set(false);
+                    // Demand that arrived after the check above would otherwise wait for the next request
+                    if (0 == demand.get() || !draining.compareAndSet(false, true)) {
+                        return;
+                    }
+                    continue;
+                }
+                if (null == body) {
+                    body = open();
+                }
+                T item = pull(body);
+                if (null == item) {
+                    done = true;
+                    closeExchange(false);
+                    subscriber.onComplete();
+                    return;
+                }
+                demand.decrementAndGet();
+                subscriber.onNext(item);
+            }
+        } catch (IOException | RuntimeException e) {
+            fail(e);
+        }
+    }
+
+    private InputStream open() throws IOException {
+        HttpExchange opened = client.openExchange();
+        exchangeLock.lock();
+        try {
+            if (done) {
+                opened.abort();
+                throw new IOException("Cancelled");
+            }
+            exchange = opened;
+        } finally {
+            exchangeLock.unlock();
+        }
+        int code = opened.getResponseCode();
+        Map<String, List<String>> headers = opened.getHeaderFields();
+        if (code < 200 || code >= 300) {
+            throw new HttpExceptionCollection(String.format("%s answered with %d", client.getValidatedUrl(),
+                    code));
+        }
+        return ContentDecoding.decode(opened.getInputStream(), headers);
+    }
+
+    private void fail(final Exception e) {
+        if (done) {
+            return;
+        }
+        done = true;
+        closeExchange(true);
+        subscriber.onError(e);
+    }
+
+    /**
+     * Lets go of the exchange, aborting it unless the body was read to the end
+     */
+    private void closeExchange(final boolean abort) {
+        exchangeLock.lock();
+        try {
+            if (null != exchange) {
+                if (abort) {
+                    exchange.abort();
+                } else {
+                    exchange.close();
+                }
+                exchange = null;
+            }
+        } finally {
+            exchangeLock.unlock();
+        }
+    }
+}
@@ -1,95 +1,518 @@
 package com.pavlovmedia.oss.osgi.http;
 
-import java.net.MalformedURLException;
+import java.io.IOException;
+import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.OptionalLong;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Predicate;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.stream.Collectors;
+import java.util.function.Supplier;
+
+import com.pavlovmedia.oss.osgi.http.spider.BloomVisitedSet;
+import com.pavlovmedia.oss.osgi.http.spider.CrawlCheckpoint;
+import com.pavlovmedia.oss.osgi.http.spider.CrawlSink;
+import com.pavlovmedia.oss.osgi.http.spider.ExactVisitedSet;
+import com.pavlovmedia.oss.osgi.http.spider.Frontier;
+import com.pavlovmedia.oss.osgi.http.spider.LinkExtractor;
+import com.pavlovmedia.oss.osgi.http.spider.UrlNormalizer;
+import com.pavlovmedia.oss.osgi.http.spider.VisitedSet;
 
 /**
+ * Crawls a site from a start page. A number of workers share a
+ * {@link Frontier} of found but unfetched URLs, each taking the next one
+ * as soon as it is free, so one slow page only holds up its own worker.
+ * Links are put in their {@link UrlNormalizer normal form} and marked
+ * visited when they are found, in a {@link VisitedSet}, so no page is fetched
+ * twice however many ways it is linked. Pages are fetched, and saved, under
+ * their normal form.
+ * <p>
+ * The frontier keeps a queue per host and hands out work in turn from the
+ * hosts that may be fetched now, so per host rate and concurrency limits
+ * never idle the workers while another host has room. A 429 or 503 backs
+ * off only the host that sent it, for as long as its Retry-After asks, and
+ * the page is tried again afterwards.
+ * <p>
+ * With a {@link CrawlCheckpoint} the frontier and visited set are logged
+ * and checkpointed as the crawl goes, and a crawl that is stopped or dies
+ * partway is resumed by the next doSpider given the same checkpoint. With
+ * a frontier spill, only a window of the frontier is held in memory.
+ * <p>
+ * Pages that pass the save predicate are handed to a {@link CrawlSink} as
+ * soon as they are fetched, which writes them out and closes them, so the
+ * crawl's memory stays flat however many pages it saves. The older form
+ * of doSpider puts them in an accumulator map instead, under a lock, where
+ * they hold on to their bodies until the caller closes them. Pages that
+ * pass the follow predicate are fetched for their links, then closed. The
+ * predicates, the url parser, the sink and onError are called from the
+ * workers, so they need to be thread safe.
  * 
  * @author shawn
  *
  */
 public class Spider {
     private final PavlovHttpClient baseClient;
-    private Function<HttpResponse, Set<URL>> urlParser = this::parseForUrls;
+    private Function<HttpResponse, Set<URL>> urlParser = new LinkExtractor();
+    private Optional<ExecutorService> executor = Optional.empty();
+    private int parallelism = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+    private double hostRate = 0;
+    private int hostBurst = 1;
+    private int maxPerHost = Integer.MAX_VALUE;
+    private int maxRetries = 3;
+    private long defaultBackoff = 5000;
+    private Supplier<VisitedSet> visitedSets = ExactVisitedSet::new;
+    private Optional<CrawlCheckpoint> checkpoint = Optional.empty();
+    private Optional<Path> spillDirectory = Optional.empty();
+    private int hotWindow = Integer.MAX_VALUE;
+    private final Set<Crawl> running = new CopyOnWriteArraySet<>();
     
-    private static final Pattern ANCHOR_SEARCH = Pattern.compile("(?i)<a.+href=\"(?<url>.+?)\"");
+    private static final int TOO_MANY_REQUESTS = 429;
     
     public Spider(final PavlovHttpClient baseClient) {
         this.baseClient = baseClient;
     }
     
+    /**
+     * Sets what finds the links on a followed page, a {@link LinkExtractor} by default
+     * @param urlParser
+     */
     public Spider setUrlParser(final Function<HttpResponse, Set<URL>> urlParser) {
         this.urlParser = urlParser;
         return this;
     }
     
+    /**
+     * Sets how many pages are fetched at once, twice the processors and
+     * at least 4 by default. Crawling waits on the network, so this can
+     * go well past the processor count until the link is full.
+     * @param parallelism
+     */
+    public Spider withParallelism(final int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+        return this;
+    }
+    
+    /**
+     * Limits how fast any one host is fetched, with a token bucket per host,
+     * so the workers spread over the hosts that have room. Unlimited by default.
+     * @param requestsPerSecond the steady rate per host, 0 or less for no limit
+     * @param burst how many fetches of a host can go back to back after it has been idle
+     */
+    public Spider withHostRate(final double requestsPerSecond, final int burst) {
+        this.hostRate = requestsPerSecond;
+        this.hostBurst = burst;
+        return this;
+    }
+    
+    /**
+     * Limits how many fetches of any one host run at once, unlimited by default
+     * @param maxPerHost
+     */
+    public Spider withMaxPerHost(final int maxPerHost) {
+        this.maxPerHost = maxPerHost;
+        return this;
+    }
+    
+    /**
+     * Sets how many times a page that got a 429 or 503 is tried again, 3 by default.
+     * A page still refused after that goes to onError.
+     * @param maxRetries
+     */
+    public Spider withMaxRetries(final int maxRetries) {
+        this.maxRetries = maxRetries;
+        return this;
+    }
+    
+    /**
+     * Sets how long a host is left alone after a 429 or 503 without a
+     * Retry-After, in milliseconds, 5 seconds by default
+     * @param defaultBackoff
+     */
+    public Spider withDefaultBackoff(final long defaultBackoff) {
+        this.defaultBackoff = defaultBackoff;
+        return this;
+    }
+    
+    /**
+     * Sets what makes the visited set for each crawl, an {@link ExactVisitedSet}
+     * on the heap by default. Very large crawls can size one ahead of time,
+     * keep it off the heap, or trade exactness for memory with a {@link BloomVisitedSet}.
+     * Holding on to the set a crawl got tells how big it grew.
+     * @param visitedSets
+     */
+    public Spider withVisitedSet(final Supplier<VisitedSet> visitedSets) {
+        this.visitedSets = visitedSets;
+        return this;
+    }
+    
+    /**
+     * Keeps each crawl's state in a checkpoint, so a crawl that doesn't
+     * finish can be resumed. A doSpider given a checkpoint with a crawl in
+     * it carries on with that crawl, whatever its start URL, and a crawl
+     * that runs to the end clears the checkpoint. Only one crawl at a time
+     * can use a checkpoint.
+     * @param checkpoint
+     */
+    public Spider withCheckpoint(final CrawlCheckpoint checkpoint) {
+        this.checkpoint = Optional.of(checkpoint);
+        return this;
+    }
+    
+    /**
+     * Keeps only a window of each crawl's frontier in memory, queueing the
+     * rest in a temporary file in a directory, for crawls whose frontier
+     * outgrows the heap
+     * @param directory
+     * @param hotWindow how many URLs to keep in memory
+     */
+    public Spider withFrontierSpill(final Path directory, final int hotWindow) {
+        this.spillDirectory = Optional.of(directory);
+        this.hotWindow = hotWindow;
+        return this;
+    }
+    
+    /**
+     * Stops the crawls this spider is running. Each doSpider returns once its
+     * workers finish the pages they are on, after a last checkpoint if it has one.
+     */
+    public void stop() {
+        running.forEach(c -> c.frontier.stop());
+    }
+    
+    /**
+     * Runs the workers on the given executor, which is left running. By
+     * default each crawl gets a fork join pool of its own.
+     * @param executor
+     */
+    public Spider withExecutor(final ExecutorService executor) {
+        this.executor = Optional.of(executor);
+        return this;
+    }
+    
+    /**
+     * Runs each worker on a virtual thread, which makes a high parallelism
+     * cheap. On JDKs without virtual threads this does nothing.
+     */
+    public Spider withVirtualThreads() {
+        VirtualThreads.executor().ifPresent(this::withExecutor);
+        return this;
+    }
+    
+    /**
+     * Crawls from a URL, returning once every page it can reach has been
+     * fetched or the crawl is stopped. With a checkpoint holding an unfinished
+     * crawl, that crawl is resumed instead.
+     * @param startUrl
+     * @param follow whether to fetch a page for its links
+     * @param save whether to fetch a page into the accumulator, checked before follow
+     * @param accumulator gets the saved pages, pages already in it are not fetched again
+     * @param onError
+     */
     public void doSpider(final URL startUrl, final Predicate<URL> follow, final Predicate<URL> save, 
             final Map<URL,HttpResponse> accumulator, 
             final Consumer<Exception> onError) {
-        if (accumulator.containsKey(startUrl)) {
+        ReentrantLock lock = new ReentrantLock();
+        CrawlSink sink = (url, response) -> {
+            lock.lock();
+            try {
+                accumulator.put(url, response);
+            } finally {
+                lock.unlock();
+            }
+        };
+        crawl(startUrl, follow, save, sink, accumulator.keySet(), onError);
+    }
+    
+    /**
+     * Crawls from a URL, handing each saved page to a sink as soon as it is
+     * fetched, and returning once every page it can reach has been fetched
+     * or the crawl is stopped. With a checkpoint holding an unfinished crawl,
+     * that crawl is resumed instead. The sink is left open.
+     * @param startUrl
+     * @param follow whether to fetch a page for its links
+     * @param save whether to fetch a page into the sink, checked before follow
+     * @param sink takes over the saved pages
+     * @param onError also gets the pages the sink failed to save
+     */
+    public void doSpider(final URL startUrl, final Predicate<URL> follow, final Predicate<URL> save,
+            final CrawlSink sink, final Consumer<Exception> onError) {
+        crawl(startUrl, follow, save, sink, Collections.emptySet(), onError);
+    }
+    
+    private void crawl(final URL startUrl, final Predicate<URL> follow, final Predicate<URL> save,
+            final CrawlSink sink, final Collection<URL> saved, final Consumer<Exception> onError) {
+        Crawl crawl = new Crawl(follow, save, sink, onError);
+        try {
+            crawl.open();
+        } catch (IOException e) {
+            onError.accept(e);
+            crawl.close(false);
             return;
         }
+        // Pages saved already count as visited, compared by normal form rather than URL.equals
+        saved.forEach(u -> crawl.visited.add(UrlNormalizer.normalize(u)));
+        crawl.claim(UrlNormalizer.normalized(startUrl));
         
-        if (save.test(startUrl)) {
-            Optional<HttpResponse> response = baseClient.clone()
-                    .againstUrl(startUrl)
-                    .withVerb(HttpVerbs.GET)
-                    .execute(onError);
-            response.ifPresent(r -> accumulator.put(startUrl, r));
-        } else if (follow.test(startUrl)) {
-            Optional<HttpResponse> response = baseClient.clone()
-                .againstUrl(startUrl)
-                .withVerb(HttpVerbs.GET)
-                .execute(onError);
-            if (response.isPresent()) {
-                urlParser.apply(response.get())
-                    .forEach(u -> doSpider(u, follow, save, accumulator, onError));
+        running.add(crawl);
+        ExecutorService pool = executor.orElseGet(() -> new ForkJoinPool(parallelism));
+        boolean waited = false;
+        try {
+            List<Future<?>> workers = new ArrayList<>(parallelism);
+            for (int i = 0; i < parallelism; i++) {
+                workers.add(pool.submit(crawl::work));
+            }
+            for (Future<?> worker : workers) {
+                worker.get();
             }
+            waited = true;
+        } catch (InterruptedException e) {
+            crawl.frontier.stop();
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            crawl.frontier.stop();
+            onError.accept(e);
+        } finally {
+            running.remove(crawl);
+            if (!executor.isPresent()) {
+                pool.shutdown();
+            }
+            // Workers that weren't waited for may still be on a page, which the last checkpoint has as pending
+            crawl.close(waited);
         }
     }
     
-    private Set<URL> parseForUrls(final HttpResponse response) {
-        if (response.isValidResponse(e -> { }) && response.responseHeaders.getOrDefault("Content-Type", 
-                Arrays.asList("text/html"))
-                .contains("text/html")) {
-            // We scan for href links
-            ArrayList<String> links = new ArrayList<>();
-            Matcher matcher = ANCHOR_SEARCH.matcher(response.getResponseText());
-            while (matcher.find()) {
-                links.add(matcher.group("url"));
+    /**
+     * Reads how long a server asked to be left alone, in seconds or as an HTTP date
+     */
+    static OptionalLong retryAfter(final Map<String, List<String>> headers) {
+        Optional<String> value = headers.entrySet().stream()
+                .filter(e -> "Retry-After".equalsIgnoreCase(e.getKey()) && !e.getValue().isEmpty())
+                .map(e -> e.getValue().get(0).trim())
+                .findFirst();
+        if (!value.isPresent()) {
+            return OptionalLong.empty();
+        }
+        try {
+            return OptionalLong.of(TimeUnit.SECONDS.toMillis(Math.max(0, Long.parseLong(value.get()))));
+        } catch (NumberFormatException e) {
+            try {
+                ZonedDateTime at = ZonedDateTime.parse(value.get(), DateTimeFormatter.RFC_1123_DATE_TIME);
+                return OptionalLong.of(Math.max(0, Duration.between(Instant.now(), at).toMillis()));
+            } catch (DateTimeParseException ex) {
+                return OptionalLong.empty();
             }
-            
-            return links.stream()
-                   .filter(s -> !(s.startsWith(".") || s.startsWith("..")))
-                   .map(s -> fromRef(s, response.srcUrl))
-                   .filter(Optional::isPresent)
-                   .map(Optional::get)
-                   .collect(Collectors.toSet());
         }
-        return Collections.emptySet();
     }
     
-    private Optional<URL> fromRef(final String ref, final URL srcUrl) {
-        try {
-            if (ref.matches("~http.+")) {
-                    return Optional.of(new URL(ref));
-            } else {
-                return Optional.of(PavlovHttpClientImpl.combinePath(srcUrl, ref));
+    /**
+     * What one call to doSpider shares between its workers
+     */
+    private final class Crawl {
+        final Frontier frontier = new Frontier().withRate(hostRate, hostBurst).withMaxPerHost(maxPerHost);
+        final VisitedSet visited = visitedSets.get();
+        final Map<String, Integer> attempts = new ConcurrentHashMap<>();
+        /**
+         * Claiming, retrying and finishing pages share this, a checkpoint
+         * takes it alone so its snapshot falls between them
+         */
+        final ReentrantReadWriteLock stateLock = new ReentrantReadWriteLock();
+        final AtomicLong nextCheckpoint = new AtomicLong();
+        final Predicate<URL> follow;
+        final Predicate<URL> save;
+        final CrawlSink sink;
+        final Consumer<Exception> onError;
+        
+        Crawl(final Predicate<URL> follow, final Predicate<URL> save, final CrawlSink sink,
+                final Consumer<Exception> onError) {
+            this.follow = follow;
+            this.save = save;
+            this.sink = sink;
+            this.onError = onError;
+        }
+        
+        void open() throws IOException {
+            if (spillDirectory.isPresent()) {
+                Files.createDirectories(spillDirectory.get());
+                frontier.withSpill(Files.createTempFile(spillDirectory.get(), "frontier", ".spill"), hotWindow);
+            }
+            if (checkpoint.isPresent()) {
+                checkpoint.get().open(visited, frontier);
+                nextCheckpoint.set(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(checkpoint.get().getInterval()));
+            }
+        }
+        
+        /**
+         * Takes a last checkpoint and closes it, or clears it if the crawl is over
+         */
+        void close(final boolean finished) {
+            try {
+                if (checkpoint.isPresent()) {
+                    if (finished && !frontier.isStopped()) {
+                        checkpoint.get().clear();
+                    } else {
+                        if (finished) {
+                            checkpoint();
+                        }
+                        checkpoint.get().close();
+                    }
+                }
+            } catch (IOException e) {
+                onError.accept(e);
+            } finally {
+                try {
+                    frontier.close();
+                } catch (IOException e) {
+                    onError.accept(e);
+                }
+            }
+        }
+        
+        void work() {
+            try {
+                Optional<URL> next;
+                while ((next = frontier.take()).isPresent()) {
+                    try {
+                        visit(next.get());
+                    } catch (RuntimeException e) {
+                        onError.accept(e);
+                    } finally {
+                        finish(next.get());
+                    }
+                    long due = nextCheckpoint.get();
+                    if (checkpoint.isPresent() && System.nanoTime() - due >= 0 && nextCheckpoint.compareAndSet(due,
+                            System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(checkpoint.get().getInterval()))) {
+                        checkpoint();
+                    }
+                }
+            } catch (InterruptedException e) {
+                frontier.stop();
+                Thread.currentThread().interrupt();
+            }
+        }
+        
+        private void checkpoint() {
+            stateLock.writeLock().lock();
+            try {
+                checkpoint.get().checkpoint(frontier);
+            } catch (IOException e) {
+                onError.accept(e);
+            } finally {
+                stateLock.writeLock().unlock();
+            }
+        }
+        
+        /**
+         * Marks a URL visited and queues it, unless it already was
+         */
+        void claim(final URL url) {
+            String key = url.toExternalForm();
+            stateLock.readLock().lock();
+            try {
+                if (visited.add(key)) {
+                    frontier.add(url);
+                    if (checkpoint.isPresent()) {
+                        checkpoint.get().claimed(key);
+                    }
+                }
+            } catch (IOException e) {
+                onError.accept(e);
+            } finally {
+                stateLock.readLock().unlock();
+            }
+        }
+        
+        private void retry(final URL url) {
+            stateLock.readLock().lock();
+            try {
+                frontier.add(url);
+                if (checkpoint.isPresent()) {
+                    checkpoint.get().retried(url.toExternalForm());
+                }
+            } catch (IOException e) {
+                onError.accept(e);
+            } finally {
+                stateLock.readLock().unlock();
+            }
+        }
+        
+        private void finish(final URL url) {
+            stateLock.readLock().lock();
+            try {
+                if (checkpoint.isPresent()) {
+                    checkpoint.get().done(url.toExternalForm());
+                }
+            } catch (IOException e) {
+                onError.accept(e);
+            } finally {
+                frontier.done(url);
+                stateLock.readLock().unlock();
+            }
+        }
+        
+        private void visit(final URL url) {
+            boolean saving = save.test(url);
+            if (!saving && !follow.test(url)) {
+                return;
+            }
+            
+            Optional<HttpResponse> response = baseClient.clone()
+                    .againstUrl(url)
+                    .withVerb(HttpVerbs.GET)
+                    .execute(onError);
+            if (!response.isPresent()) {
+                return;
+            }
+            int code = response.get().responseCode;
+            if (TOO_MANY_REQUESTS == code || HttpURLConnection.HTTP_UNAVAILABLE == code) {
+                // Only this host waits, the workers carry on with the others
+                response.get().close();
+                frontier.backOff(url, retryAfter(response.get().responseHeaders).orElse(defaultBackoff));
+                int attempt = attempts.merge(url.toExternalForm(), 1, Integer::sum);
+                if (attempt <= maxRetries) {
+                    retry(url);
+                } else {
+                    onError.accept(new IOException(String.format("Gave up on %s, it still got a %d on attempt %d",
+                            url, code, attempt)));
+                }
+                return;
+            }
+            if (saving) {
+                try {
+                    sink.save(url, response.get());
+                } catch (IOException e) {
+                    onError.accept(e);
+                }
+                return;
+            }
+            try (HttpResponse page = response.get()) {
+                urlParser.apply(page).stream()
+                    .map(UrlNormalizer::normalized)
+                    .forEach(this::claim);
             }
-        } catch (MalformedURLException e) {
-            return Optional.empty();
         }
     }
 }
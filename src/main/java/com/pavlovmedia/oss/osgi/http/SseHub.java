@@ -0,0 +1,474 @@
+package com.pavlovmedia.oss.osgi.http;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Shares SSE streams between everything in the container that wants them.
+ * Subscriptions to the same URL with the same headers ride on one upstream
+ * {@link SseSubscription}, whose single parser fans each event out to every
+ * local subscriber.
+ * <p>
+ * The upstream reader never waits on a subscriber. Each subscriber has a
+ * bounded queue that is drained on the hub's pool, and when a slow one lets
+ * its queue fill up its {@link OverflowPolicy} decides what gives. The
+ * upstream connection opens with the first subscriber for a stream and
+ * closes when the last one leaves. If the upstream gives up by itself, its
+ * subscribers get what was already queued and are then disconnected.
+ *
+ * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
+ *
+ */
+public class SseHub implements AutoCloseable {
+    /**
+     * What happens when an event arrives for a subscriber whose queue is full
+     */
+    public enum OverflowPolicy {
+        /**
+         * Drop the oldest queued event to make room, so the subscriber sees the latest
+         */
+        DROP_OLDEST,
+        /**
+         * Drop the new event, so the subscriber sees an unbroken run of the earliest
+         */
+        DROP_NEWEST,
+        /**
+         * Drop the subscriber, which is told through its disconnect handler
+         */
+        DISCONNECT
+    }
+
+    private final ExecutorService pool;
+    private final ReentrantLock lock = new ReentrantLock();
+    // Guarded by lock
+    private final Map<String, Upstream> upstreams = new HashMap<>();
+    private int queueSize = 1024;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+
+    /**
+     * Makes a hub that runs streams and deliveries on virtual threads when
+     * the JDK has them, and on the common pool otherwise
+     */
+    public SseHub() {
+        this(VirtualThreads.executor().orElse(ForkJoinPool.commonPool()));
+    }
+
+    /**
+     * Makes a hub that runs streams and deliveries on a pool, which needs a
+     * thread for every upstream connection plus some for delivery
+     * @param pool
+     */
+    public SseHub(final ExecutorService pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Sets how many events each subscriber can have waiting, 1024 by default
+     * @param queueSize
+     */
+    public SseHub withQueueSize(final int queueSize) {
+        this.queueSize = queueSize;
+        return this;
+    }
+
+    /**
+     * Sets what happens when a subscriber's queue is full, {@link OverflowPolicy#DROP_OLDEST} by default
+     * @param overflowPolicy
+     */
+    public SseHub withOverflowPolicy(final OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+        return this;
+    }
+
+    /**
+     * Subscribes to the SSE stream a client's request describes, with the hub's queue size and policy
+     * @param client a client from {@link PavlovHttpClientImpl}, which is copied so it can be reused
+     * @param consumer
+     * @throws HttpExceptionCollection if the client's request isn't valid
+     */
+    public Subscriber subscribe(final PavlovHttpClient client, final Consumer<SseMessageEvent> consumer) {
+        return subscribe(client, consumer, queueSize, overflowPolicy);
+    }
+
+    /**
+     * Subscribes to the SSE stream a client's request describes
+     * @param client a client from {@link PavlovHttpClientImpl}, which is copied so it can be reused
+     * @param consumer
+     * @param queueSize how many events this subscriber can have waiting
+     * @param overflowPolicy what happens when they don't fit
+     * @throws HttpExceptionCollection if the client's request isn't valid
+     */
+    public Subscriber subscribe(final PavlovHttpClient client, final Consumer<SseMessageEvent> consumer,
+            final int queueSize, final OverflowPolicy overflowPolicy) {
+        if (!(client instanceof PavlovHttpClientImpl)) {
+            throw new IllegalArgumentException("The hub needs a client from PavlovHttpClientImpl");
+        }
+        PavlovHttpClientImpl copy = (PavlovHttpClientImpl) client.clone();
+        List<Exception> errors = new ArrayList<>();
+        Optional<HttpRequest> request = copy.toRequest(errors::add);
+        if (!request.isPresent()) {
+            throw new HttpExceptionCollection("subscribe failed", errors);
+        }
+        String key = key(request.get());
+        Subscriber subscriber = new Subscriber(key, consumer, queueSize, overflowPolicy);
+        Upstream starting = null;
+        lock.lock();
+        try {
+            Upstream upstream = upstreams.get(key);
+            if (null == upstream) {
+                upstream = new Upstream(key, copy);
+                upstreams.put(key, upstream);
+                starting = upstream;
+            }
+            upstream.subscribers.add(subscriber);
+        } finally {
+            lock.unlock();
+        }
+        // Started outside the lock, since a stream that ends right away calls back into the hub
+        if (null != starting) {
+            starting.start();
+        }
+        return subscriber;
+    }
+
+    /**
+     * How many upstream connections the hub is keeping
+     */
+    public int getUpstreamCount() {
+        lock.lock();
+        try {
+            return upstreams.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Looks up the upstream subscription for a subscriber, for its reconnect and gap stats
+     * @param subscriber
+     */
+    public Optional<SseSubscription> getUpstream(final Subscriber subscriber) {
+        lock.lock();
+        try {
+            return Optional.ofNullable(upstreams.get(subscriber.key)).map(u -> u.subscription);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes every upstream connection and drops every subscriber
+     */
+    @Override
+    public void close() {
+        List<Upstream> closing;
+        lock.lock();
+        try {
+            closing = new ArrayList<>(upstreams.values());
+            upstreams.clear();
+        } finally {
+            lock.unlock();
+        }
+        closing.forEach(upstream -> {
+            upstream.subscribers.forEach(s -> s.connected.set(false));
+            upstream.subscription.close();
+        });
+    }
+
+    /**
+     * Streams are the same when they go to the same URL with the same headers
+     */
+    private static String key(final HttpRequest request) {
+        return request.verb + " " + request.url.toExternalForm() + " " + new TreeMap<>(request.headers);
+    }
+
+    private void unsubscribe(final Subscriber subscriber) {
+        Upstream closing = null;
+        lock.lock();
+        try {
+            Upstream upstream = upstreams.get(subscriber.key);
+            if (null != upstream && upstream.subscribers.remove(subscriber) && upstream.subscribers.isEmpty()) {
+                upstreams.remove(subscriber.key);
+                closing = upstream;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (null != closing) {
+            closing.subscription.close();
+        }
+    }
+
+    /**
+     * Forgets an upstream that stopped by itself and winds down its subscribers
+     */
+    private void ended(final Upstream upstream, final Throwable failure) {
+        lock.lock();
+        try {
+            upstreams.remove(upstream.key, upstream);
+        } finally {
+            lock.unlock();
+        }
+        Throwable cause = failure instanceof CompletionException && null != failure.getCause()
+                ? failure.getCause()
+                : failure;
+        for (Subscriber subscriber : upstream.subscribers) {
+            if (null != cause) {
+                subscriber.onError.accept(cause instanceof Exception
+                        ? (Exception) cause
+                        : new IllegalStateException("SSE upstream failed", cause));
+            }
+            subscriber.end();
+        }
+    }
+
+    /**
+     * One upstream connection and the subscribers it feeds
+     */
+    private final class Upstream {
+        final String key;
+        final CopyOnWriteArrayList<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+        final SseSubscription subscription;
+
+        Upstream(final String key, final PavlovHttpClientImpl client) {
+            this.key = key;
+            client.withInterrupt(new AtomicBoolean());
+            subscription = client.subscribeSse(this::fanOut)
+                    .withErrorHandler(this::fanOutError);
+        }
+
+        void start() {
+            try {
+                subscription.start(pool).whenComplete((done, e) -> ended(this, e));
+            } catch (RejectedExecutionException e) {
+                ended(this, e);
+            }
+        }
+
+        private void fanOut(final SseMessageEvent event) {
+            for (Subscriber subscriber : subscribers) {
+                subscriber.offer(event);
+            }
+        }
+
+        private void fanOutError(final Exception e) {
+            for (Subscriber subscriber : subscribers) {
+                subscriber.onError.accept(e);
+            }
+        }
+    }
+
+    /**
+     * A local subscriber, with its own queue of events waiting to be delivered
+     */
+    public final class Subscriber implements AutoCloseable {
+        private final String key;
+        private final Consumer<SseMessageEvent> consumer;
+        private final int queueSize;
+        private final OverflowPolicy overflowPolicy;
+        private final ReentrantLock queueLock = new ReentrantLock();
+        // Guarded by queueLock
+        private final ArrayDeque<SseMessageEvent> queue = new ArrayDeque<>();
+        private boolean draining;
+        private boolean ended;
+        private volatile Optional<Runnable> onDisconnect = Optional.empty();
+        private volatile Consumer<Exception> onError = e -> { };
+        private final AtomicBoolean connected = new AtomicBoolean(true);
+        private final AtomicLong delivered = new AtomicLong();
+        private final AtomicLong dropped = new AtomicLong();
+
+        private Subscriber(final String key, final Consumer<SseMessageEvent> consumer, final int queueSize,
+                final OverflowPolicy overflowPolicy) {
+            this.key = key;
+            this.consumer = consumer;
+            this.queueSize = queueSize;
+            this.overflowPolicy = overflowPolicy;
+        }
+
+        /**
+         * Sets what runs when the hub drops this subscriber, under
+         * {@link OverflowPolicy#DISCONNECT} or because its upstream ended
+         * @param onDisconnect
+         */
+        public Subscriber onDisconnect(final Runnable onDisconnect) {
+            this.onDisconnect = Optional.of(onDisconnect);
+            return this;
+        }
+
+        /**
+         * Sets what hears about upstream failures and deliveries the hub's pool turned away
+         * @param onError
+         */
+        public Subscriber onError(final Consumer<Exception> onError) {
+            this.onError = onError;
+            return this;
+        }
+
+        public boolean isConnected() {
+            return connected.get();
+        }
+
+        /**
+         * Events handed to the consumer
+         */
+        public long getDelivered() {
+            return delivered.get();
+        }
+
+        /**
+         * Events this subscriber lost to overflow
+         */
+        public long getDropped() {
+            return dropped.get();
+        }
+
+        /**
+         * Events waiting to be delivered
+         */
+        public int getQueued() {
+            queueLock.lock();
+            try {
+                return queue.size();
+            } finally {
+                queueLock.unlock();
+            }
+        }
+
+        /**
+         * Stops delivery and, if this was the last subscriber to its stream, closes the upstream connection
+         */
+        @Override
+        public void close() {
+            if (connected.getAndSet(false)) {
+                queueLock.lock();
+                try {
+                    queue.clear();
+                } finally {
+                    queueLock.unlock();
+                }
+                unsubscribe(this);
+            }
+        }
+
+        /**
+         * Called from the upstream reader, so it never blocks on the consumer
+         */
+        private void offer(final SseMessageEvent event) {
+            if (!connected.get()) {
+                return;
+            }
+            boolean schedule = false;
+            boolean disconnect = false;
+            queueLock.lock();
+            try {
+                if (queue.size() >= queueSize) {
+                    dropped.incrementAndGet();
+                    switch (overflowPolicy) {
+                        case DROP_NEWEST:
+                            return;
+                        case DISCONNECT:
+                            queue.clear();
+                            disconnect = true;
+                            break;
+                        default:
+                            queue.pollFirst();
+                    }
+                }
+                if (!disconnect) {
+                    queue.addLast(event);
+                    schedule = !draining;
+                    draining = true;
+                }
+            } finally {
+                queueLock.unlock();
+            }
+            if (disconnect) {
+                if (connected.getAndSet(false)) {
+                    unsubscribe(this);
+                    onDisconnect.ifPresent(Runnable::run);
+                }
+            } else if (schedule) {
+                try {
+                    pool.execute(this::drain);
+                } catch (RejectedExecutionException e) {
+                    // No task is coming, so the next event has to be able to start one
+                    queueLock.lock();
+                    try {
+                        draining = false;
+                    } finally {
+                        queueLock.unlock();
+                    }
+                    onError.accept(e);
+                }
+            }
+        }
+
+        /**
+         * Called once the upstream has stopped, disconnects after what is queued is delivered
+         */
+        private void end() {
+            boolean now;
+            queueLock.lock();
+            try {
+                ended = true;
+                now = !draining;
+            } finally {
+                queueLock.unlock();
+            }
+            if (now) {
+                disconnect();
+            }
+        }
+
+        private void disconnect() {
+            if (connected.getAndSet(false)) {
+                onDisconnect.ifPresent(Runnable::run);
+            }
+        }
+
+        private void drain() {
+            while (true) {
+                SseMessageEvent event;
+                boolean finished = false;
+                queueLock.lock();
+                try {
+                    event = queue.pollFirst();
+                    if (null == event || !connected.get()) {
+                        draining = false;
+                        finished = ended;
+                        event = null;
+                    }
+                } finally {
+                    queueLock.unlock();
+                }
+                if (null == event) {
+                    if (finished) {
+                        disconnect();
+                    }
+                    return;
+                }
+                try {
+                    consumer.accept(event);
+                    delivered.incrementAndGet();
+                } catch (RuntimeException e) {
+                    // A failing consumer shouldn't stop its own deliveries, let alone anyone else's
+                    dropped.incrementAndGet();
+                }
+            }
+        }
+    }
+}
@@ -5,6 +5,7 @@ import java.util.Optional;
 import com.pavlovmedia.oss.osgi.utilities.convertible.ConvertibleAsset;
 
 /**
+ * A single server sent event, as decoded by {@link SseParser}
  * 
  * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
  *
@@ -21,4 +22,32 @@ public class SseMessageEvent {
         this.event = event;
         this.data = data;
     }
+
+    /**
+     * The last event id the stream set, which carries over from earlier events
+     */
+    public Optional<String> getId() {
+        return id;
+    }
+
+    /**
+     * The event type, empty for the default "message" type
+     */
+    public Optional<ConvertibleAsset<String>> getEvent() {
+        return event;
+    }
+
+    /**
+     * The event type, with "message" when the stream didn't name one
+     */
+    public String getEventType() {
+        return event.map(ConvertibleAsset::get).orElse("message");
+    }
+
+    /**
+     * The data, with multiple data lines joined by a line feed
+     */
+    public Optional<ConvertibleAsset<String>> getData() {
+        return data;
+    }
 }
@@ -0,0 +1,281 @@
+package com.pavlovmedia.oss.osgi.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+
+import com.pavlovmedia.oss.osgi.utilities.convertible.ConvertibleAsset;
+
+/**
+ * An incremental server sent events decoder following the WHATWG event stream
+ * rules. Bytes are fed in as they arrive, in chunks of any size, and scanned
+ * for line ends in place; field names are matched on the raw bytes and the
+ * value bytes are collected in buffers that are reused from event to event,
+ * so the only allocations are the strings of each event that is dispatched.
+ * <p>
+ * Lines may end in CR, LF or CRLF, even with the CR and LF in different
+ * chunks. Multiple data lines are joined with a line feed, the last event id
+ * carries over to the events after it, a leading byte order mark is skipped,
+ * and retry values are reported to a listener. An event without a blank line
+ * after it when the stream ends is dropped, as the spec says.
+ * <p>
+ * A parser is not thread safe, it is meant to be driven by whatever reads the stream.
+ *
+ * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
+ *
+ */
+public class SseParser {
+    private static final byte[] DATA = "data".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] EVENT = "event".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] ID = "id".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] RETRY = "retry".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] BOM = { (byte) 0xef, (byte) 0xbb, (byte) 0xbf };
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+
+    private final Consumer<SseMessageEvent> onEvent;
+    private Optional<LongConsumer> onRetry = Optional.empty();
+
+    private byte[] line = new byte[256];
+    private int lineLength;
+    private byte[] data = new byte[256];
+    private int dataLength;
+    private boolean hasData;
+    private byte[] event = new byte[32];
+    private int eventLength;
+    private Optional<String> lastEventId = Optional.empty();
+    private boolean lastWasCr;
+    private int bomChecked;
+    private byte[] scratch;
+
+    /**
+     * @param onEvent gets every complete event
+     */
+    public SseParser(final Consumer<SseMessageEvent> onEvent) {
+        this.onEvent = onEvent;
+    }
+
+    /**
+     * Sets what gets the reconnection time, in milliseconds, whenever the stream sends one
+     * @param onRetry
+     */
+    public SseParser withRetryListener(final LongConsumer onRetry) {
+        this.onRetry = Optional.of(onRetry);
+        return this;
+    }
+
+    /**
+     * The id of the last event that set one, which is what a reconnect
+     * sends as Last-Event-ID
+     */
+    public Optional<String> getLastEventId() {
+        return lastEventId;
+    }
+
+    /**
+     * Forgets a partly read line or event, for when the stream it came from
+     * has dropped and a new one is about to be fed. The last event id is kept,
+     * since that is what the new stream picks up from.
+     */
+    public void reset() {
+        lineLength = 0;
+        dataLength = 0;
+        hasData = false;
+        eventLength = 0;
+        lastWasCr = false;
+        bomChecked = 0;
+    }
+
+    /**
+     * Decodes the next chunk of the stream, dispatching any events it completes
+     * @param bytes
+     * @param offset
+     * @param length
+     */
+    public void feed(final byte[] bytes, final int offset, final int length) {
+        int position = offset;
+        int end = offset + length;
+        while (bomChecked < BOM.length && position < end) {
+            if (bytes[position] != BOM[bomChecked]) {
+                // Not a BOM after all, so what matched so far is part of the first line
+                appendLine(BOM, 0, bomChecked);
+                bomChecked = BOM.length;
+                break;
+            }
+            position++;
+            bomChecked++;
+        }
+        int start = position;
+        while (position < end) {
+            byte b = bytes[position];
+            if (CR == b || LF == b) {
+                if (LF == b && lastWasCr && start == position && 0 == lineLength) {
+                    // The LF of a CRLF whose CR ended the last chunk
+                    lastWasCr = false;
+                    start = ++position;
+                    continue;
+                }
+                appendLine(bytes, start, position - start);
+                processLine();
+                lineLength = 0;
+                position++;
+                if (CR == b && position < end && LF == bytes[position]) {
+                    position++;
+                    lastWasCr = false;
+                } else {
+                    lastWasCr = CR == b;
+                }
+                start = position;
+            } else {
+                lastWasCr = false;
+                position++;
+            }
+        }
+        appendLine(bytes, start, end - start);
+    }
+
+    /**
+     * Decodes the bytes between a buffer's position and limit, leaving the buffer at its limit
+     * @param bytes
+     */
+    public void feed(final ByteBuffer bytes) {
+        if (bytes.hasArray()) {
+            feed(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+            bytes.position(bytes.limit());
+            return;
+        }
+        if (null == scratch) {
+            scratch = new byte[8192];
+        }
+        while (bytes.hasRemaining()) {
+            int count = Math.min(scratch.length, bytes.remaining());
+            bytes.get(scratch, 0, count);
+            feed(scratch, 0, count);
+        }
+    }
+
+    /**
+     * Reads a stream to its end, or until stop says to, decoding as it goes.
+     * The stream is not closed.
+     * @param in
+     * @param stop checked between reads
+     * @throws IOException if the stream fails
+     */
+    public void parse(final InputStream in, final BooleanSupplier stop) throws IOException {
+        byte[] buffer = new byte[8192];
+        int count;
+        while (!stop.getAsBoolean() && (count = in.read(buffer)) >= 0) {
+            feed(buffer, 0, count);
+        }
+    }
+
+    private void appendLine(final byte[] bytes, final int offset, final int length) {
+        if (0 == length) {
+            return;
+        }
+        line = ensure(line, lineLength + length);
+        System.arraycopy(bytes, offset, line, lineLength, length);
+        lineLength += length;
+    }
+
+    private void processLine() {
+        if (0 == lineLength) {
+            dispatch();
+            return;
+        }
+        if (':' == line[0]) {
+            // A comment, usually a keep alive
+            return;
+        }
+        int colon = indexOf(line, lineLength, (byte) ':');
+        int nameLength = colon < 0 ? lineLength : colon;
+        int valueStart = colon < 0 ? lineLength : colon + 1;
+        if (valueStart < lineLength && ' ' == line[valueStart]) {
+            valueStart++;
+        }
+        int valueLength = lineLength - valueStart;
+
+        if (matches(DATA, nameLength)) {
+            data = ensure(data, dataLength + valueLength + 1);
+            System.arraycopy(line, valueStart, data, dataLength, valueLength);
+            dataLength += valueLength;
+            data[dataLength++] = LF;
+            hasData = true;
+        } else if (matches(EVENT, nameLength)) {
+            event = ensure(event, valueLength);
+            System.arraycopy(line, valueStart, event, 0, valueLength);
+            eventLength = valueLength;
+        } else if (matches(ID, nameLength)) {
+            // An id with a NUL in it is ignored
+            if (indexOf(line, lineLength, (byte) 0) < 0) {
+                lastEventId = Optional.of(new String(line, valueStart, valueLength, StandardCharsets.UTF_8));
+            }
+        } else if (matches(RETRY, nameLength)) {
+            parseRetry(valueStart, valueLength);
+        }
+        // Any other field is ignored
+    }
+
+    private void parseRetry(final int start, final int length) {
+        if (0 == length || length > 18) {
+            return;
+        }
+        long value = 0;
+        for (int i = start; i < start + length; i++) {
+            if (line[i] < '0' || line[i] > '9') {
+                return;
+            }
+            value = value * 10 + (line[i] - '0');
+        }
+        long retry = value;
+        onRetry.ifPresent(r -> r.accept(retry));
+    }
+
+    private void dispatch() {
+        if (hasData) {
+            // The last line feed added to data is not part of it
+            String text = new String(data, 0, dataLength - 1, StandardCharsets.UTF_8);
+            Optional<ConvertibleAsset<String>> type = 0 == eventLength
+                    ? Optional.empty()
+                    : Optional.of(new ConvertibleAsset<>(new String(event, 0, eventLength, StandardCharsets.UTF_8)));
+            onEvent.accept(new SseMessageEvent(lastEventId, type, Optional.of(new ConvertibleAsset<>(text))));
+        }
+        dataLength = 0;
+        hasData = false;
+        eventLength = 0;
+    }
+
+    private boolean matches(final byte[] name, final int length) {
+        if (name.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (name[i] != line[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(final byte[] bytes, final int length, final byte value) {
+        for (int i = 0; i < length; i++) {
+            if (value == bytes[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static byte[] ensure(final byte[] buffer, final int needed) {
+        if (needed <= buffer.length) {
+            return buffer;
+        }
+        return Arrays.copyOf(buffer, Math.max(needed, buffer.length * 2));
+    }
+}
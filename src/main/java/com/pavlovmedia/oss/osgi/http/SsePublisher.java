@@ -0,0 +1,36 @@
+package com.pavlovmedia.oss.osgi.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+/**
+ * Publishes SSE events. A read can complete several events at once, so the
+ * extras wait here and the next read only happens once they have all been
+ * asked for; what is held never goes past one read's worth.
+ *
+ * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
+ *
+ */
+final class SsePublisher extends PullPublisher<SseMessageEvent> {
+    private final byte[] buffer = new byte[8192];
+    private final ArrayDeque<SseMessageEvent> pending = new ArrayDeque<>();
+    private final SseParser parser = new SseParser(pending::add);
+
+    SsePublisher(final PavlovHttpClientImpl client, final Executor executor) {
+        super(client, executor);
+    }
+
+    @Override
+    SseMessageEvent pull(final InputStream body) throws IOException {
+        while (pending.isEmpty()) {
+            int count = body.read(buffer);
+            if (count < 0) {
+                return null;
+            }
+            parser.feed(buffer, 0, count);
+        }
+        return pending.poll();
+    }
+}
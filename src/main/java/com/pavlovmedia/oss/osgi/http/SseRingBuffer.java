@@ -0,0 +1,208 @@
+package com.pavlovmedia.oss.osgi.http;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Takes SSE events off the thread reading the stream. Handing a ring to
+ * {@link PavlovHttpClient#asSse(Consumer)} (or to a subscription or hub in
+ * its place) makes the reader do nothing per event but drop it into a
+ * preallocated slot; a drain task on the ring's executor hands the events
+ * to the consumer in batches. A slow consumer then only fills the ring,
+ * it never holds up the socket.
+ * <p>
+ * The ring has a single producer, the stream's reader, and a single
+ * consumer, so slots are handed over with ordered writes to two counters
+ * and no locks. When the ring is full new events are dropped and counted,
+ * the reader never waits.
+ * <p>
+ * The drain task only runs while there are events, so an idle ring holds
+ * no thread. Under steady load it gives its thread back every so often so
+ * it can't starve the rest of a shared pool. If the executor turns the task
+ * down, that goes to the error handler and the next event tries again.
+ *
+ * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
+ *
+ */
+public class SseRingBuffer implements Consumer<SseMessageEvent> {
+    private static final int BATCHES_PER_RUN = 64;
+
+    private final SseMessageEvent[] slots;
+    private final int mask;
+    // Next slot to read, only written by the drain task
+    private final AtomicLong head = new AtomicLong();
+    // Next slot to write, only written by the reader
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private Consumer<List<SseMessageEvent>> batchConsumer = batch -> { };
+    private Consumer<Exception> onError = e -> { };
+    private ExecutorService executor = VirtualThreads.executor().orElse(ForkJoinPool.commonPool());
+    private int maxBatch = 64;
+
+    /**
+     * Makes a ring with room for at least capacity events, rounded up to a power of two
+     * @param capacity
+     */
+    public SseRingBuffer(final int capacity) {
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Capacity must be between 1 and 2^30");
+        }
+        int size = Integer.highestOneBit(capacity);
+        size = size < capacity ? size << 1 : size;
+        this.slots = new SseMessageEvent[size];
+        this.mask = size - 1;
+    }
+
+    /**
+     * Sets what gets the events in groups of up to the maximum batch. The
+     * list is reused, so it must not be kept after the consumer returns.
+     * @param batchConsumer
+     */
+    public SseRingBuffer withBatchConsumer(final Consumer<List<SseMessageEvent>> batchConsumer) {
+        this.batchConsumer = batchConsumer;
+        return this;
+    }
+
+    /**
+     * Sets what gets the events one at a time, still off the reader's thread
+     * @param consumer
+     */
+    public SseRingBuffer withConsumer(final Consumer<SseMessageEvent> consumer) {
+        this.batchConsumer = batch -> batch.forEach(consumer);
+        return this;
+    }
+
+    /**
+     * Sets where the drain task runs, virtual threads or the common pool by
+     * default. A single thread executor gives the ring a consumer thread of its own.
+     * @param executor
+     */
+    public SseRingBuffer withExecutor(final ExecutorService executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * Sets the most events handed to the consumer at once, 64 by default
+     * @param maxBatch
+     */
+    public SseRingBuffer withMaxBatch(final int maxBatch) {
+        this.maxBatch = maxBatch;
+        return this;
+    }
+
+    /**
+     * Sets what gets exceptions thrown by the consumer, which lose the rest of
+     * their batch, and the executor turning the drain task down
+     * @param onError
+     */
+    public SseRingBuffer withErrorHandler(final Consumer<Exception> onError) {
+        this.onError = onError;
+        return this;
+    }
+
+    public int getCapacity() {
+        return slots.length;
+    }
+
+    /**
+     * Events waiting in the ring
+     */
+    public int getDepth() {
+        return (int) (tail.get() - head.get());
+    }
+
+    /**
+     * Events dropped because the ring was full
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Events handed to the consumer
+     */
+    public long getDelivered() {
+        return delivered.get();
+    }
+
+    /**
+     * Batches handed to the consumer
+     */
+    public long getBatches() {
+        return batches.get();
+    }
+
+    /**
+     * Puts an event in the ring, or drops it if the ring is full. Only the
+     * stream's reader may call this.
+     */
+    @Override
+    public void accept(final SseMessageEvent event) {
+        long position = tail.get();
+        if (position - head.get() >= slots.length) {
+            dropped.incrementAndGet();
+            return;
+        }
+        slots[(int) (position & mask)] = event;
+        // Publishes the slot write along with the new tail
+        tail.lazySet(position + 1);
+        if (draining.compareAndSet(false, true)) {
+            schedule();
+        }
+    }
+
+    /**
+     * Runs the drain task, must only be called by whoever set draining
+     */
+    private void schedule() {
+        try {
+            executor.execute(this::drain);
+        } catch (RejectedExecutionException e) {
+            // No task is coming, so the next event has to be able to start one
+            draining.set(false);
+            onError.accept(e);
+        }
+    }
+
+    private void drain() {
+        List<SseMessageEvent> batch = new ArrayList<>(maxBatch);
+        for (int run = 0; run < BATCHES_PER_RUN; run++) {
+            long position = head.get();
+            long available = Math.min(tail.get() - position, maxBatch);
+            if (0 == available) {
+                draining.set(false);
+                // An event that landed after the check above would otherwise wait for the next one
+                if (tail.get() == head.get() || !draining.compareAndSet(false, true)) {
+                    return;
+                }
+                continue;
+            }
+            for (long i = 0; i < available; i++) {
+                int slot = (int) ((position + i) & mask);
+                batch.add(slots[slot]);
+                slots[slot] = null;
+            }
+            head.lazySet(position + available);
+            try {
+                batchConsumer.accept(batch);
+                delivered.addAndGet(available);
+                batches.incrementAndGet();
+            } catch (RuntimeException e) {
+                onError.accept(e);
+            }
+            batch.clear();
+        }
+        // Still busy, so go to the back of the pool's queue rather than hold the thread
+        schedule();
+    }
+}
@@ -0,0 +1,62 @@
+package com.pavlovmedia.oss.osgi.http;
+
+/**
+ * A point in time snapshot of an {@link SseSubscription}'s health
+ *
+ * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
+ *
+ */
+public final class SseStats {
+    /**
+     * Connections that got a successful response, the first one included
+     */
+    public final long connects;
+
+    /**
+     * Connections made after the first, successful or not
+     */
+    public final long reconnects;
+
+    /**
+     * Attempts that failed to connect, got an error status, or broke off with an exception
+     */
+    public final long failures;
+
+    /**
+     * Events handed to the consumer
+     */
+    public final long events;
+
+    /**
+     * Milliseconds between the last stream ending and the next one starting
+     */
+    public final long lastGapMillis;
+
+    /**
+     * The longest such gap, in milliseconds
+     */
+    public final long maxGapMillis;
+
+    /**
+     * All of the gaps added up, in milliseconds
+     */
+    public final long totalGapMillis;
+
+    SseStats(final long connects, final long reconnects, final long failures, final long events,
+            final long lastGapMillis, final long maxGapMillis, final long totalGapMillis) {
+        this.connects = connects;
+        this.reconnects = reconnects;
+        this.failures = failures;
+        this.events = events;
+        this.lastGapMillis = lastGapMillis;
+        this.maxGapMillis = maxGapMillis;
+        this.totalGapMillis = totalGapMillis;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("SseStats[connects=%d, reconnects=%d, failures=%d, events=%d, lastGap=%dms, "
+                + "maxGap=%dms, totalGap=%dms]", connects, reconnects, failures, events, lastGapMillis,
+                maxGapMillis, totalGapMillis);
+    }
+}
@@ -0,0 +1,269 @@
+package com.pavlovmedia.oss.osgi.http;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Keeps an SSE stream open, reconnecting whenever it ends or fails. Each
+ * reconnect sends Last-Event-ID with the id of the last event seen, so a
+ * server that supports it picks up where the stream broke off. The wait
+ * before reconnecting starts at the server's retry value, or the initial
+ * delay when it hasn't sent one, doubles with each failed attempt up to the
+ * maximum delay, and is jittered so that a server coming back isn't hit by
+ * every client at once.
+ * <p>
+ * The subscription stops when the interrupt flag is set, either the one the
+ * client was given with {@link PavlovHttpClient#withInterrupt(AtomicBoolean)}
+ * or through {@link #close()}, or when the server answers with a 204 as the
+ * spec asks. Only network failures and 5xx answers are retried, any other
+ * status that isn't a success goes to the error handler and stops the
+ * subscription, since asking again would get the same answer.
+ * <p>
+ * Closing also aborts the live connection, so on the NIO and HTTP/2
+ * transports a stream blocked in a read ends right away. A flag set any
+ * other way, or a blocked read on the {@link
+ * com.pavlovmedia.oss.osgi.http.transport.UrlConnectionTransport}, is
+ * noticed when the stream's next data or keep alive arrives.
+ * <p>
+ * Subscriptions are made with {@link PavlovHttpClient#subscribeSse(Consumer)}.
+ *
+ * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
+ *
+ */
+public class SseSubscription implements AutoCloseable {
+    private final PavlovHttpClientImpl template;
+    private final AtomicBoolean interrupt;
+    private final Consumer<SseMessageEvent> consumer;
+    private final SseParser parser;
+    private final ReentrantLock lock = new ReentrantLock();
+    private Consumer<Exception> onError = e -> { };
+    private long initialDelay = 1000;
+    private long maxDelay = 30000;
+    // Set from the stream, which another thread may be reading
+    private volatile long serverRetry = -1;
+
+    private final AtomicLong connects = new AtomicLong();
+    private final AtomicLong reconnects = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong events = new AtomicLong();
+    // Guarded by lock
+    private long lastGap;
+    private long maxGap;
+    private long totalGap;
+    // Guarded by lock, what closes the stream that is open right now
+    private Closeable live;
+
+    SseSubscription(final PavlovHttpClientImpl template, final AtomicBoolean interrupt,
+            final Consumer<SseMessageEvent> consumer) {
+        this.template = template;
+        this.interrupt = interrupt;
+        this.consumer = consumer;
+        this.parser = new SseParser(this::dispatch).withRetryListener(retry -> serverRetry = retry);
+    }
+
+    /**
+     * Sets what gets errors from attempts that fail, including the status
+     * that stopped the subscription
+     * @param onError
+     */
+    public SseSubscription withErrorHandler(final Consumer<Exception> onError) {
+        this.onError = onError;
+        return this;
+    }
+
+    /**
+     * Sets the wait before reconnecting when the server hasn't sent a retry value, 1 second by default
+     * @param initialDelay in milliseconds
+     */
+    public SseSubscription withInitialDelay(final long initialDelay) {
+        this.initialDelay = initialDelay;
+        return this;
+    }
+
+    /**
+     * Sets the longest wait between attempts, 30 seconds by default
+     * @param maxDelay in milliseconds
+     */
+    public SseSubscription withMaxDelay(final long maxDelay) {
+        this.maxDelay = maxDelay;
+        return this;
+    }
+
+    /**
+     * The id of the last event seen, which is sent as Last-Event-ID on reconnect
+     */
+    public Optional<String> getLastEventId() {
+        return parser.getLastEventId();
+    }
+
+    public SseStats getStats() {
+        lock.lock();
+        try {
+            return new SseStats(connects.get(), reconnects.get(), failures.get(), events.get(), lastGap, maxGap,
+                    totalGap);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Runs the subscription on the calling thread until it stops
+     */
+    public void run() {
+        int attempt = 0;
+        long endedAt = -1;
+        while (!interrupt.get()) {
+            if (endedAt >= 0) {
+                reconnects.incrementAndGet();
+            }
+            final long previousEnd = endedAt;
+            PavlovHttpClientImpl client = (PavlovHttpClientImpl) template.clone();
+            // Whatever the last stream left half read is no part of the next one
+            parser.reset();
+            // An empty id is the server clearing it, so there is nothing to send
+            parser.getLastEventId()
+                .filter(id -> !id.isEmpty())
+                .ifPresent(id -> client.addHeader("Last-Event-ID", id));
+            List<Exception> errors = new ArrayList<>();
+            Optional<HttpResponse> response = client.usingSseParser(parser, closer -> {
+                connects.incrementAndGet();
+                if (previousEnd >= 0) {
+                    recordGap(System.currentTimeMillis() - previousEnd);
+                }
+                setLive(closer);
+            }).execute(errors::add);
+            endedAt = System.currentTimeMillis();
+            setLive(null);
+            if (interrupt.get()) {
+                // Whatever the read ended with, it was most likely the close
+                return;
+            }
+
+            if (response.isPresent() && 204 == response.get().responseCode) {
+                // The server's way of saying there is nothing more to read
+                return;
+            }
+            boolean retryable = !response.isPresent() || isSuccess(response.get().responseCode)
+                    || response.get().responseCode >= 500;
+            if (!errors.isEmpty() || !response.isPresent() || !isSuccess(response.get().responseCode)) {
+                failures.incrementAndGet();
+                errors.forEach(onError);
+                if (!retryable) {
+                    onError.accept(new IllegalStateException(String.format(
+                            "SSE stream answered with %d, which won't change by asking again",
+                            response.get().responseCode)));
+                    return;
+                }
+                if (errors.isEmpty()) {
+                    onError.accept(new IllegalStateException("SSE stream answered with "
+                            + response.map(r -> String.valueOf(r.responseCode)).orElse("nothing")));
+                }
+                attempt++;
+            } else {
+                // The stream was up, so this is a fresh start rather than another failure
+                attempt = 0;
+            }
+            pause(delay(attempt));
+        }
+    }
+
+    /**
+     * Runs the subscription on a pool thread, the future completes when it stops
+     * @param pool
+     */
+    public CompletableFuture<Void> start(final ExecutorService pool) {
+        return CompletableFuture.runAsync(this::run, pool);
+    }
+
+    /**
+     * Stops the subscription
+     */
+    @Override
+    public void close() {
+        interrupt.set(true);
+        setLive(null);
+    }
+
+    /**
+     * Swaps in what closes the open stream, closing the old one if the subscription is stopping
+     */
+    private void setLive(final Closeable closer) {
+        Closeable closing = null;
+        lock.lock();
+        try {
+            if (interrupt.get()) {
+                closing = null == closer ? live : closer;
+                live = null;
+            } else {
+                live = closer;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (null != closing) {
+            try {
+                closing.close();
+            } catch (IOException e) {
+                // It is being thrown away either way
+            }
+        }
+    }
+
+    private void dispatch(final SseMessageEvent event) {
+        events.incrementAndGet();
+        consumer.accept(event);
+    }
+
+    private void recordGap(final long gap) {
+        lock.lock();
+        try {
+            lastGap = gap;
+            maxGap = Math.max(maxGap, gap);
+            totalGap += gap;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static boolean isSuccess(final int code) {
+        return code >= 200 && code < 300;
+    }
+
+    /**
+     * The wait before the next attempt, half fixed and half random so it never drops to nothing
+     */
+    private long delay(final int attempt) {
+        long base = serverRetry >= 0 ? serverRetry : initialDelay;
+        long backoff = Math.min(maxDelay, base << Math.min(attempt, 20));
+        long half = backoff / 2;
+        return half + (half > 0 ? ThreadLocalRandom.current().nextLong(half + 1) : 0);
+    }
+
+    /**
+     * Sleeps in short steps so setting the interrupt doesn't wait out the whole delay
+     */
+    private void pause(final long millis) {
+        long until = System.currentTimeMillis() + millis;
+        long remaining = millis;
+        while (remaining > 0 && !interrupt.get()) {
+            try {
+                Thread.sleep(Math.min(remaining, 100));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                interrupt.set(true);
+                return;
+            }
+            remaining = until - System.currentTimeMillis();
+        }
+    }
+}
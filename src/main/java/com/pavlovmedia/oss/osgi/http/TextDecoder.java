@@ -0,0 +1,194 @@
+package com.pavlovmedia.oss.osgi.http;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Turns a body into a String using the charset from its Content-Type,
+ * falling back to UTF-8 when there isn't one or it isn't supported. The
+ * whole body is read in one pass into a builder presized from
+ * Content-Length, and reading stops with a {@link BodyTooLargeException}
+ * once the body goes past the maximum size.
+ *
+ * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
+ *
+ */
+public class TextDecoder {
+    /**
+     * A max body size that means no limit
+     */
+    public static final long UNLIMITED = -1;
+
+    private static final int BUFFER_SIZE = 8192;
+    // Content-Length is only a hint for presizing, a huge one shouldn't allocate up front
+    private static final int MAX_PRESIZE = 1 << 24;
+
+    private Charset defaultCharset = StandardCharsets.UTF_8;
+    private long maxBodySize = UNLIMITED;
+
+    /**
+     * Sets the charset used when a body doesn't declare one, UTF-8 by default
+     * @param defaultCharset
+     */
+    public TextDecoder withDefaultCharset(final Charset defaultCharset) {
+        this.defaultCharset = defaultCharset;
+        return this;
+    }
+
+    /**
+     * Sets the most bytes of body that will be read, {@link #UNLIMITED} by default
+     * @param maxBodySize
+     */
+    public TextDecoder withMaxBodySize(final long maxBodySize) {
+        this.maxBodySize = maxBodySize;
+        return this;
+    }
+
+    /**
+     * Gets the charset a body declares in its Content-Type, if it declares one we support
+     * @param headers the response headers, matched without regard to case
+     */
+    public static Optional<Charset> charsetOf(final Map<String, List<String>> headers) {
+        return header(headers, "Content-Type").flatMap(contentType -> {
+            for (String parameter : contentType.split(";")) {
+                int equals = parameter.indexOf('=');
+                if (equals > 0 && "charset".equalsIgnoreCase(parameter.substring(0, equals).trim())) {
+                    String name = parameter.substring(equals + 1).trim().replace("\"", "");
+                    try {
+                        return Optional.of(Charset.forName(name));
+                    } catch (IllegalArgumentException e) {
+                        // Illegal or unsupported, either way we can't use it
+                        return Optional.empty();
+                    }
+                }
+            }
+            return Optional.empty();
+        });
+    }
+
+    /**
+     * Gets the body length from Content-Length, which is only the decoded length
+     * when there is no Content-Encoding
+     * @param headers
+     * @return the length, or -1 if it isn't known
+     */
+    public static long contentLength(final Map<String, List<String>> headers) {
+        if (!ContentDecoding.codings(headers).isEmpty()) {
+            return -1;
+        }
+        return header(headers, "Content-Length").map(value -> {
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                return -1L;
+            }
+        }).orElse(-1L);
+    }
+
+    private static Optional<String> header(final Map<String, List<String>> headers, final String name) {
+        return headers.entrySet().stream()
+                .filter(e -> name.equalsIgnoreCase(e.getKey()) && null != e.getValue())
+                .flatMap(e -> e.getValue().stream())
+                .findFirst();
+    }
+
+    /**
+     * Reads a stream to the end as text, closing it
+     * @param in the decoded body
+     * @param headers the response headers, for the charset and length
+     * @throws BodyTooLargeException if the body goes past the maximum size
+     * @throws IOException if reading fails
+     */
+    public String decode(final InputStream in, final Map<String, List<String>> headers) throws IOException {
+        long length = contentLength(headers);
+        checkLimit(length);
+        long presize = length < 0 ? BUFFER_SIZE : length;
+        if (maxBodySize >= 0) {
+            presize = Math.min(presize, maxBodySize);
+        }
+        StringBuilder text = new StringBuilder((int) Math.min(presize, MAX_PRESIZE));
+        Charset charset = charsetOf(headers).orElse(defaultCharset);
+        try (Reader reader = new InputStreamReader(maxBodySize < 0 ? in : new LimitedInputStream(in), charset)) {
+            char[] buffer = new char[BUFFER_SIZE];
+            int count;
+            while ((count = reader.read(buffer)) >= 0) {
+                text.append(buffer, 0, count);
+            }
+        }
+        return text.toString();
+    }
+
+    /**
+     * Wraps a stream in a reader for its charset that enforces the maximum size as it goes,
+     * for callers that parse the text instead of collecting it
+     * @param in the decoded body
+     * @param headers the response headers, for the charset and length
+     * @throws BodyTooLargeException if the Content-Length is already past the maximum size
+     */
+    Reader reader(final InputStream in, final Map<String, List<String>> headers) throws BodyTooLargeException {
+        checkLimit(contentLength(headers));
+        return new InputStreamReader(maxBodySize < 0 ? in : new LimitedInputStream(in),
+                charsetOf(headers).orElse(defaultCharset));
+    }
+
+    /**
+     * Decodes a body that has already been read
+     * @param body the body between position and limit, which is left unchanged
+     * @param headers the response headers, for the charset
+     * @throws BodyTooLargeException if the body is past the maximum size
+     */
+    public String decode(final ByteBuffer body, final Map<String, List<String>> headers)
+            throws BodyTooLargeException {
+        checkLimit(body.remaining());
+        return charsetOf(headers).orElse(defaultCharset).decode(body.duplicate()).toString();
+    }
+
+    private void checkLimit(final long length) throws BodyTooLargeException {
+        if (maxBodySize >= 0 && length > maxBodySize) {
+            throw new BodyTooLargeException(maxBodySize);
+        }
+    }
+
+    /**
+     * Counts bytes as they go by and stops the read that crosses the limit
+     */
+    private final class LimitedInputStream extends FilterInputStream {
+        private long count;
+
+        LimitedInputStream(final InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                counted(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                counted(read);
+            }
+            return read;
+        }
+
+        private void counted(final int read) throws BodyTooLargeException {
+            count += read;
+            checkLimit(count);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.pavlovmedia.oss.osgi.http;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Access to JDK 21 virtual threads from code that still has to run on JDK 8.
+ * Everything is looked up reflectively once, and on older JDKs this simply
+ * reports that virtual threads are not there so callers can fall back to
+ * their platform thread behavior.
+ *
+ * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
+ *
+ */
+public final class VirtualThreads {
+    private static final Optional<MethodHandle> IS_VIRTUAL = lookupIsVirtual();
+    private static final Optional<ExecutorService> EXECUTOR = createExecutor();
+
+    private VirtualThreads() { }
+
+    /**
+     * True if this JVM can run virtual threads
+     */
+    public static boolean isSupported() {
+        return EXECUTOR.isPresent();
+    }
+
+    /**
+     * Checks if a thread is virtual, which is always false before JDK 21
+     * @param thread
+     */
+    public static boolean isVirtual(final Thread thread) {
+        if (!IS_VIRTUAL.isPresent()) {
+            return false;
+        }
+        try {
+            return (boolean) IS_VIRTUAL.get().invokeExact(thread);
+        } catch (Throwable t) {
+            return false;
+        }
+    }
+
+    /**
+     * Gets a shared executor that starts a new virtual thread for every task,
+     * or empty if virtual threads are not supported. It is shared by every
+     * client, so it should never be shut down; it holds no threads when idle.
+     */
+    public static Optional<ExecutorService> executor() {
+        return EXECUTOR;
+    }
+
+    private static Optional<MethodHandle> lookupIsVirtual() {
+        try {
+            return Optional.of(MethodHandles.publicLookup()
+                    .findVirtual(Thread.class, "isVirtual", MethodType.methodType(boolean.class)));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            return Optional.empty();
+        }
+    }
+
+    private static Optional<ExecutorService> createExecutor() {
+        try {
+            return Optional.of((ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor")
+                    .invoke(null));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Pre JDK 21, or preview features are off
+            return Optional.empty();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.pavlovmedia.oss.osgi.http.cache;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.stream.Collectors;
+
+/**
+ * The Cache-Control directives of a request or response, along with the
+ * header helpers the cache needs. Directive names are lower cased and
+ * values have their quotes removed.
+ *
+ * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
+ *
+ */
+final class CacheControl {
+    private final Map<String, String> directives;
+
+    private CacheControl(final Map<String, String> directives) {
+        this.directives = directives;
+    }
+
+    static CacheControl of(final Map<String, List<String>> headers) {
+        Map<String, String> directives = new HashMap<>();
+        values(headers, "Cache-Control").forEach(value -> {
+            for (String directive : value.split(",")) {
+                int equals = directive.indexOf('=');
+                String name = (equals < 0 ? directive : directive.substring(0, equals)).trim().toLowerCase(Locale.ROOT);
+                if (!name.isEmpty()) {
+                    directives.put(name, equals < 0 ? "" : directive.substring(equals + 1).trim().replace("\"", ""));
+                }
+            }
+        });
+        // Pragma: no-cache is the HTTP/1.0 spelling, and only counts without Cache-Control
+        if (directives.isEmpty() && values(headers, "Pragma").stream().anyMatch(p -> p.contains("no-cache"))) {
+            directives.put("no-cache", "");
+        }
+        return new CacheControl(directives);
+    }
+
+    boolean has(final String directive) {
+        return directives.containsKey(directive);
+    }
+
+    /**
+     * Gets a delta-seconds directive such as max-age, ignoring values that aren't numbers
+     */
+    OptionalLong seconds(final String directive) {
+        String value = directives.get(directive);
+        if (null == value) {
+            return OptionalLong.empty();
+        }
+        try {
+            return OptionalLong.of(Math.max(0, Long.parseLong(value)));
+        } catch (NumberFormatException e) {
+            return OptionalLong.empty();
+        }
+    }
+
+    /**
+     * Gets every value of a header, matching the name without regard to case
+     */
+    static List<String> values(final Map<String, List<String>> headers, final String name) {
+        return headers.entrySet().stream()
+                .filter(e -> name.equalsIgnoreCase(e.getKey()) && null != e.getValue())
+                .flatMap(e -> e.getValue().stream())
+                .collect(Collectors.toList());
+    }
+
+    static Optional<String> first(final Map<String, List<String>> headers, final String name) {
+        List<String> values = values(headers, name);
+        return values.isEmpty() ? Optional.empty() : Optional.of(values.get(0));
+    }
+
+    /**
+     * Parses an HTTP-date header into epoch milliseconds. Anything that isn't a
+     * valid date, such as "Expires: 0", comes back as empty.
+     */
+    static OptionalLong date(final Map<String, List<String>> headers, final String name) {
+        Optional<String> value = first(headers, name);
+        if (!value.isPresent()) {
+            return OptionalLong.empty();
+        }
+        try {
+            return OptionalLong.of(ZonedDateTime.parse(value.get().trim(), DateTimeFormatter.RFC_1123_DATE_TIME)
+                    .toInstant().toEpochMilli());
+        } catch (DateTimeParseException e) {
+            return OptionalLong.empty();
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package com.pavlovmedia.oss.osgi.http.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import com.pavlovmedia.oss.osgi.http.DiskStore;
+import com.pavlovmedia.oss.osgi.http.HttpRequest;
+
+/**
+ * A stored response, with the request and response times RFC 7234 section
+ * 4.2.3 needs to work out its age. Entries are never changed, revalidating
+ * one replaces it with a new entry carrying the merged headers.
+ *
+ * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
+ *
+ */
+final class CacheEntry {
+    /**
+     * Statuses a response can be stored for without explicit freshness (RFC 7231 section 6.1)
+     */
+    private static final Set<Integer> HEURISTIC_CODES = new HashSet<>(
+            Arrays.asList(200, 203, 204, 300, 301, 404, 405, 410, 414, 501));
+
+    /**
+     * Headers a 304 can not replace (RFC 7234 section 4.3.4 leaves this to us,
+     * these describe the stored body rather than the resource)
+     */
+    private static final Set<String> KEEP_ON_UPDATE = new HashSet<>(
+            Arrays.asList("content-length", "content-encoding", "transfer-encoding", "content-range"));
+
+    /**
+     * Bumped whenever {@link #meta()} changes, so stores from older versions are ignored
+     */
+    private static final int META_VERSION = 1;
+
+    final URL url;
+    final int code;
+    final Map<String, List<String>> headers;
+    /**
+     * The body between position and limit, on the heap or memory mapped from a {@link DiskStore}
+     */
+    final ByteBuffer body;
+    final long requestTime;
+    final long responseTime;
+    /**
+     * The request's values for each header named in Vary
+     */
+    final Map<String, List<String>> varyValues;
+    private final CacheControl control;
+    private final long weight;
+
+    private CacheEntry(final URL url, final int code, final Map<String, List<String>> headers, final ByteBuffer body,
+            final long requestTime, final long responseTime, final Map<String, List<String>> varyValues) {
+        this.url = url;
+        this.code = code;
+        TreeMap<String, List<String>> copy = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        headers.forEach((name, values) -> {
+            // HttpURLConnection puts the status line under a null key
+            if (null != name && null != values) {
+                copy.computeIfAbsent(name, k -> new ArrayList<>()).addAll(values);
+            }
+        });
+        copy.replaceAll((k, v) -> Collections.unmodifiableList(v));
+        this.headers = Collections.unmodifiableMap(copy);
+        this.body = body.asReadOnlyBuffer();
+        this.requestTime = requestTime;
+        this.responseTime = responseTime;
+        this.control = CacheControl.of(this.headers);
+        this.varyValues = varyValues;
+        // Mapped bodies live outside the heap, so they don't count against the memory limit
+        long total = body.isDirect() ? 0 : body.remaining();
+        for (Map.Entry<String, List<String>> header : this.headers.entrySet()) {
+            total += header.getKey().length();
+            for (String value : header.getValue()) {
+                total += value.length();
+            }
+        }
+        this.weight = total;
+    }
+
+    /**
+     * Makes the entry for a response to a request
+     */
+    static CacheEntry of(final URL url, final int code, final Map<String, List<String>> headers,
+            final ByteBuffer body, final long requestTime, final long responseTime, final HttpRequest request) {
+        Map<String, List<String>> vary = new HashMap<>();
+        varyNames(headers).forEach(name -> vary.put(name, request.headers.getOrDefault(name,
+                Collections.emptyList())));
+        return new CacheEntry(url, code, headers, body, requestTime, responseTime, vary);
+    }
+
+    /**
+     * Writes everything but the body, for a {@link DiskStore} to keep in its index
+     */
+    byte[] meta() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(META_VERSION);
+            out.writeUTF(url.toExternalForm());
+            out.writeInt(code);
+            out.writeLong(requestTime);
+            out.writeLong(responseTime);
+            writeHeaders(out, headers);
+            writeHeaders(out, varyValues);
+        } catch (IOException e) {
+            // Not from a ByteArrayOutputStream
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeHeaders(final DataOutputStream out, final Map<String, List<String>> headers)
+            throws IOException {
+        out.writeInt(headers.size());
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            out.writeUTF(header.getKey());
+            out.writeInt(header.getValue().size());
+            for (String value : header.getValue()) {
+                out.writeUTF(value);
+            }
+        }
+    }
+
+    /**
+     * Rebuilds an entry from what {@link #meta()} wrote and its stored body
+     * @throws IOException if the metadata is from another version or is damaged
+     */
+    static CacheEntry fromMeta(final byte[] meta, final ByteBuffer body) throws IOException {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(meta))) {
+            if (META_VERSION != in.readInt()) {
+                throw new IOException("Stored entry is from another version");
+            }
+            URL url = new URL(in.readUTF());
+            int code = in.readInt();
+            long requestTime = in.readLong();
+            long responseTime = in.readLong();
+            Map<String, List<String>> headers = readHeaders(in);
+            Map<String, List<String>> vary = readHeaders(in);
+            return new CacheEntry(url, code, headers, body, requestTime, responseTime, vary);
+        }
+    }
+
+    private static Map<String, List<String>> readHeaders(final DataInputStream in) throws IOException {
+        Map<String, List<String>> headers = new HashMap<>();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String name = in.readUTF();
+            int values = in.readInt();
+            List<String> list = new ArrayList<>(values);
+            for (int j = 0; j < values; j++) {
+                list.add(in.readUTF());
+            }
+            headers.put(name, list);
+        }
+        return headers;
+    }
+
+    private static List<String> varyNames(final Map<String, List<String>> headers) {
+        List<String> names = new ArrayList<>();
+        CacheControl.values(headers, "Vary").forEach(value -> {
+            for (String name : value.split(",")) {
+                if (!name.trim().isEmpty()) {
+                    names.add(name.trim().toLowerCase(Locale.ROOT));
+                }
+            }
+        });
+        return names;
+    }
+
+    /**
+     * Checks whether a response can be stored at all (RFC 7234 section 3)
+     */
+    static boolean isStorable(final int code, final Map<String, List<String>> headers) {
+        CacheControl control = CacheControl.of(headers);
+        if (control.has("no-store") || varyNames(headers).contains("*")) {
+            return false;
+        }
+        boolean explicit = control.seconds("max-age").isPresent()
+                || CacheControl.first(headers, "Expires").isPresent();
+        // Without a lifetime or a validator there would be nothing to do with it but throw it away
+        boolean validator = CacheControl.first(headers, "ETag").isPresent()
+                || CacheControl.first(headers, "Last-Modified").isPresent();
+        return (HEURISTIC_CODES.contains(code) && (explicit || validator))
+                || (explicit && 200 <= code && code < 400 && 206 != code && 304 != code);
+    }
+
+    /**
+     * Checks that the request asks for the same variant this entry was stored for
+     */
+    boolean matches(final HttpRequest request) {
+        return varyValues.entrySet().stream()
+                .allMatch(e -> e.getValue().equals(request.headers.getOrDefault(e.getKey(),
+                        Collections.emptyList())));
+    }
+
+    /**
+     * How long the response is fresh for, in milliseconds (RFC 7234 section 4.2.1).
+     * Without max-age or Expires this is a tenth of the time since Last-Modified,
+     * capped at a day, which is the heuristic the RFC suggests.
+     */
+    long freshnessLifetime() {
+        OptionalLong maxAge = control.seconds("max-age");
+        if (maxAge.isPresent()) {
+            return TimeUnit.SECONDS.toMillis(maxAge.getAsLong());
+        }
+        long date = dateValue();
+        if (CacheControl.first(headers, "Expires").isPresent()) {
+            // An invalid Expires, such as 0, means already expired
+            return Math.max(0, CacheControl.date(headers, "Expires").orElse(date) - date);
+        }
+        OptionalLong lastModified = CacheControl.date(headers, "Last-Modified");
+        if (lastModified.isPresent() && HEURISTIC_CODES.contains(code)) {
+            return Math.min(TimeUnit.DAYS.toMillis(1), Math.max(0, (date - lastModified.getAsLong()) / 10));
+        }
+        return 0;
+    }
+
+    /**
+     * The age of the response at the given time, in milliseconds (RFC 7234 section 4.2.3)
+     */
+    long currentAge(final long now) {
+        long apparentAge = Math.max(0, responseTime - dateValue());
+        long ageValue = CacheControl.first(headers, "Age").map(CacheEntry::parseSeconds).orElse(0L);
+        long correctedAgeValue = ageValue + (responseTime - requestTime);
+        long correctedInitialAge = Math.max(apparentAge, correctedAgeValue);
+        return correctedInitialAge + (now - responseTime);
+    }
+
+    private static long parseSeconds(final String value) {
+        try {
+            return TimeUnit.SECONDS.toMillis(Math.max(0, Long.parseLong(value.trim())));
+        } catch (NumberFormatException e) {
+            return 0L;
+        }
+    }
+
+    private long dateValue() {
+        return CacheControl.date(headers, "Date").orElse(responseTime);
+    }
+
+    /**
+     * Checks whether this can be served without asking the server, taking the
+     * request's own max-age and min-fresh into account
+     */
+    boolean isFresh(final long now, final CacheControl requestControl) {
+        if (control.has("no-cache") || requestControl.has("no-cache")) {
+            return false;
+        }
+        long lifetime = freshnessLifetime();
+        OptionalLong maxAge = requestControl.seconds("max-age");
+        if (maxAge.isPresent()) {
+            lifetime = Math.min(lifetime, TimeUnit.SECONDS.toMillis(maxAge.getAsLong()));
+        }
+        long minFresh = TimeUnit.SECONDS.toMillis(requestControl.seconds("min-fresh").orElse(0));
+        return currentAge(now) + minFresh < lifetime;
+    }
+
+    Optional<String> etag() {
+        return CacheControl.first(headers, "ETag");
+    }
+
+    Optional<String> lastModified() {
+        return CacheControl.first(headers, "Last-Modified");
+    }
+
+    /**
+     * Builds the entry that replaces this one after a 304, with the new headers
+     * laid over the stored ones (RFC 7234 section 4.3.4)
+     */
+    CacheEntry updated(final Map<String, List<String>> notModifiedHeaders, final long newRequestTime,
+            final long newResponseTime, final HttpRequest request) {
+        TreeMap<String, List<String>> merged = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        merged.putAll(headers);
+        notModifiedHeaders.forEach((name, values) -> {
+            if (null != name && null != values && !KEEP_ON_UPDATE.contains(name.toLowerCase(Locale.ROOT))) {
+                merged.put(name, values);
+            }
+        });
+        return new CacheEntry(url, code, merged, body, newRequestTime, newResponseTime, varyValues);
+    }
+
+    /**
+     * Roughly how much memory the entry holds, which is what the cache's size limit counts
+     */
+    long weight() {
+        return weight;
+    }
+}
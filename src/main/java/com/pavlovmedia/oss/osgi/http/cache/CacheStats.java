@@ -0,0 +1,61 @@
+package com.pavlovmedia.oss.osgi.http.cache;
+
+/**
+ * A point in time snapshot of a {@link ResponseCache}.
+ *
+ * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
+ *
+ */
+public final class CacheStats {
+    /**
+     * Requests answered from the cache without going to the server
+     */
+    public final long hits;
+
+    /**
+     * Requests that had nothing usable in the cache and went to the server
+     */
+    public final long misses;
+
+    /**
+     * Conditional requests sent to check a stale entry
+     */
+    public final long revalidations;
+
+    /**
+     * Revalidations the server answered with 304, so the stored body was served
+     */
+    public final long notModified;
+
+    /**
+     * Entries dropped to stay within the cache's limits
+     */
+    public final long evictions;
+
+    /**
+     * Entries currently stored
+     */
+    public final int entries;
+
+    /**
+     * Roughly how many bytes the stored entries hold
+     */
+    public final long size;
+
+    CacheStats(final long hits, final long misses, final long revalidations, final long notModified,
+            final long evictions, final int entries, final long size) {
+        this.hits = hits;
+        this.misses = misses;
+        this.revalidations = revalidations;
+        this.notModified = notModified;
+        this.evictions = evictions;
+        this.entries = entries;
+        this.size = size;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("CacheStats[hits=%d, misses=%d, revalidations=%d, notModified=%d, evictions=%d, "
+                + "entries=%d, size=%d]", hits, misses, revalidations, notModified, evictions, entries, size);
+    }
+}
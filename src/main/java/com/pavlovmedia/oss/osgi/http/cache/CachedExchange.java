@@ -0,0 +1,59 @@
+package com.pavlovmedia.oss.osgi.http.cache;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import com.pavlovmedia.oss.osgi.http.ByteBufferInputStream;
+import com.pavlovmedia.oss.osgi.http.transport.HttpExchange;
+
+/**
+ * Serves a {@link CacheEntry}, or a response that was read into memory on its
+ * way into the cache, the same way a live exchange would
+ *
+ * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
+ *
+ */
+final class CachedExchange implements HttpExchange {
+    private final CacheEntry entry;
+
+    CachedExchange(final CacheEntry entry) {
+        this.entry = entry;
+    }
+
+    @Override
+    public int getResponseCode() {
+        return entry.code;
+    }
+
+    @Override
+    public Map<String, List<String>> getHeaderFields() {
+        return entry.headers;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        // Same as HttpURLConnection, which the other transports follow too
+        if (404 == entry.code || 410 == entry.code) {
+            throw new FileNotFoundException(entry.url.toExternalForm());
+        }
+        if (entry.code >= 400) {
+            throw new IOException(String.format("Server returned HTTP response code: %d for URL: %s",
+                    entry.code, entry.url.toExternalForm()));
+        }
+        return new ByteBufferInputStream(entry.body);
+    }
+
+    @Override
+    public Optional<InputStream> getErrorStream() {
+        return entry.code >= 400 ? Optional.of(new ByteBufferInputStream(entry.body)) : Optional.empty();
+    }
+
+    @Override
+    public void close() {
+        // Nothing is held open
+    }
+}
@@ -0,0 +1,327 @@
+package com.pavlovmedia.oss.osgi.http.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+import com.pavlovmedia.oss.osgi.http.DiskStore;
+import com.pavlovmedia.oss.osgi.http.HttpRequest;
+import com.pavlovmedia.oss.osgi.http.HttpVerbs;
+import com.pavlovmedia.oss.osgi.http.transport.HttpExchange;
+import com.pavlovmedia.oss.osgi.http.transport.HttpTransport;
+import com.pavlovmedia.oss.osgi.http.transport.PoolStats;
+
+/**
+ * Puts a {@link ResponseCache} in front of another transport. Only GETs
+ * without a body are looked up and stored, other safe verbs pass straight
+ * through, and unsafe ones that succeed invalidate what is stored for their
+ * URL and Location (RFC 7234 section 4.4).
+ *
+ * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
+ *
+ */
+final class CachingTransport implements HttpTransport {
+    private static final List<HttpVerbs> SAFE = Arrays.asList(HttpVerbs.GET, HttpVerbs.HEAD,
+            HttpVerbs.OPTIONS);
+
+    private final ResponseCache cache;
+    private final HttpTransport delegate;
+
+    CachingTransport(final ResponseCache cache, final HttpTransport delegate) {
+        this.cache = cache;
+        this.delegate = delegate;
+    }
+
+    @Override
+    public HttpExchange open(final HttpRequest request) throws IOException {
+        if (!isCacheable(request)) {
+            HttpExchange exchange = delegate.open(request);
+            invalidateAfter(request, exchange.getResponseCode(), exchange.getHeaderFields());
+            return exchange;
+        }
+        Lookup lookup = lookup(request);
+        if (lookup.fresh) {
+            return new CachedExchange(lookup.entry.get());
+        }
+        long requestTime = cache.now();
+        HttpExchange exchange = delegate.open(lookup.send);
+        return complete(request, lookup, exchange, requestTime);
+    }
+
+    /**
+     * Fresh hits complete right away without touching the executor, everything
+     * else completes on it since storing a response reads its body
+     */
+    @Override
+    public CompletableFuture<HttpExchange> openAsync(final HttpRequest request, final Executor executor) {
+        if (!isCacheable(request)) {
+            return delegate.openAsync(request, executor).thenApply(exchange -> {
+                try {
+                    invalidateAfter(request, exchange.getResponseCode(), exchange.getHeaderFields());
+                } catch (IOException e) {
+                    exchange.close();
+                    throw new CompletionException(e);
+                }
+                return exchange;
+            });
+        }
+        Lookup lookup = lookup(request);
+        if (lookup.fresh) {
+            return CompletableFuture.completedFuture(new CachedExchange(lookup.entry.get()));
+        }
+        long requestTime = cache.now();
+        return delegate.openAsync(lookup.send, executor).thenApplyAsync(exchange -> {
+            try {
+                return complete(request, lookup, exchange, requestTime);
+            } catch (IOException e) {
+                exchange.close();
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    private static boolean isEventStream(final Map<String, List<String>> headers) {
+        return CacheControl.first(headers, "Content-Type")
+                .map(type -> type.trim().toLowerCase(Locale.ROOT).startsWith("text/event-stream"))
+                .orElse(false);
+    }
+
+    private static boolean isCacheable(final HttpRequest request) {
+        return HttpVerbs.GET == request.verb && !request.body.isPresent();
+    }
+
+    /**
+     * What the cache has for a request and what, if anything, to send for it
+     */
+    private static final class Lookup {
+        final Optional<CacheEntry> entry;
+        final boolean fresh;
+        final HttpRequest send;
+        final boolean conditional;
+
+        Lookup(final Optional<CacheEntry> entry, final boolean fresh, final HttpRequest send,
+                final boolean conditional) {
+            this.entry = entry;
+            this.fresh = fresh;
+            this.send = send;
+            this.conditional = conditional;
+        }
+    }
+
+    private Lookup lookup(final HttpRequest request) {
+        CacheControl control = CacheControl.of(request.headers);
+        boolean callerConditional = request.getHeader("If-None-Match").isPresent()
+                || request.getHeader("If-Modified-Since").isPresent();
+        Optional<CacheEntry> entry = control.has("no-store") || callerConditional
+                ? Optional.empty()
+                : cache.get(ResponseCache.key(request.url)).filter(e -> e.matches(request));
+        if (entry.isPresent() && entry.get().isFresh(cache.now(), control)) {
+            cache.hits.incrementAndGet();
+            return new Lookup(entry, true, request, false);
+        }
+        if (entry.isPresent() && (entry.get().etag().isPresent() || entry.get().lastModified().isPresent())) {
+            cache.revalidations.incrementAndGet();
+            HttpRequest send = request;
+            if (entry.get().etag().isPresent()) {
+                send = send.withHeader("If-None-Match", entry.get().etag().get());
+            }
+            if (entry.get().lastModified().isPresent()) {
+                send = send.withHeader("If-Modified-Since", entry.get().lastModified().get());
+            }
+            return new Lookup(entry, false, send, true);
+        }
+        cache.misses.incrementAndGet();
+        return new Lookup(Optional.empty(), false, request, false);
+    }
+
+    private HttpExchange complete(final HttpRequest request, final Lookup lookup, final HttpExchange exchange,
+            final long requestTime) throws IOException {
+        int code = exchange.getResponseCode();
+        long responseTime = cache.now();
+        Map<String, List<String>> headers = exchange.getHeaderFields();
+        String key = ResponseCache.key(request.url);
+
+        if (lookup.conditional && 304 == code) {
+            exchange.close();
+            cache.notModified.incrementAndGet();
+            CacheEntry updated = lookup.entry.get().updated(headers, requestTime, responseTime, request);
+            cache.put(key, updated);
+            return new CachedExchange(updated);
+        }
+
+        if (isEventStream(headers)) {
+            // It never ends, so there is no whole body to store
+            return exchange;
+        }
+        if (CacheControl.of(request.headers).has("no-store") || !CacheEntry.isStorable(code, headers)) {
+            if (code < 500 && 304 != code) {
+                // The stored copy no longer says what the server does
+                cache.remove(key);
+            }
+            return exchange;
+        }
+
+        long length = CacheControl.first(headers, "Content-Length").map(CachingTransport::parseLength).orElse(-1L);
+        Optional<DiskStore> disk = cache.getDiskStore();
+        if (length > cache.getMaxEntrySize() && !disk.isPresent()) {
+            return exchange;
+        }
+
+        InputStream body = code >= 400
+                ? exchange.getErrorStream().orElse(new ByteArrayInputStream(new byte[0]))
+                : exchange.getInputStream();
+        if (length > cache.getMaxEntrySize()) {
+            return toDisk(request, key, code, headers, body, requestTime, responseTime, disk.get(),
+                    new byte[0], 0);
+        }
+        ByteArrayOutputStream stored = new ByteArrayOutputStream(length < 0 ? 4096 : (int) length);
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = body.read(buffer)) >= 0) {
+            stored.write(buffer, 0, count);
+            if (stored.size() > cache.getMaxEntrySize()) {
+                if (disk.isPresent()) {
+                    return toDisk(request, key, code, headers, body, requestTime, responseTime, disk.get(),
+                            stored.toByteArray(), stored.size());
+                }
+                // Too big after all, so hand back what we read followed by the rest
+                return new PartlyReadExchange(exchange, new SequenceInputStream(
+                        new ByteArrayInputStream(stored.toByteArray()), body));
+            }
+        }
+        body.close();
+        CacheEntry entry = CacheEntry.of(request.url, code, headers, ByteBuffer.wrap(stored.toByteArray()),
+                requestTime, responseTime, request);
+        cache.put(key, entry);
+        return new CachedExchange(entry);
+    }
+
+    /**
+     * Streams a body too big for memory into the disk tier and answers from the mapped file
+     */
+    private CachedExchange toDisk(final HttpRequest request, final String key, final int code,
+            final Map<String, List<String>> headers, final InputStream body, final long requestTime,
+            final long responseTime, final DiskStore disk, final byte[] head, final int headLength)
+            throws IOException {
+        // The metadata doesn't include the body, so it can be written before the body is known
+        byte[] meta = CacheEntry.of(request.url, code, headers, ByteBuffer.allocate(0), requestTime,
+                responseTime, request).meta();
+        ByteBuffer mapped;
+        try (DiskStore.Writer writer = disk.writer()) {
+            writer.write(head, 0, headLength);
+            byte[] buffer = new byte[65536];
+            int count;
+            while ((count = body.read(buffer)) >= 0) {
+                writer.write(buffer, 0, count);
+            }
+            mapped = writer.commit(key, meta);
+        } finally {
+            body.close();
+        }
+        CacheEntry entry = CacheEntry.of(request.url, code, headers, mapped, requestTime, responseTime, request);
+        cache.remember(key, entry);
+        return new CachedExchange(entry);
+    }
+
+    private static long parseLength(final String value) {
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1L;
+        }
+    }
+
+    private void invalidateAfter(final HttpRequest request, final int code, final Map<String, List<String>> headers) {
+        if (SAFE.contains(request.verb) || code < 200 || code >= 400) {
+            return;
+        }
+        cache.invalidate(request.url);
+        for (String header : new String[] { "Location", "Content-Location" }) {
+            CacheControl.first(headers, header).ifPresent(location -> {
+                try {
+                    URL target = new URL(request.url, location);
+                    // Only the same origin, so one server can't empty the cache for another
+                    if (target.getHost().equalsIgnoreCase(request.url.getHost())) {
+                        cache.invalidate(target);
+                    }
+                } catch (MalformedURLException e) {
+                    // Nothing to invalidate
+                }
+            });
+        }
+    }
+
+    @Override
+    public Optional<PoolStats> getPoolStats() {
+        return delegate.getPoolStats();
+    }
+
+    @Override
+    public void close() {
+        delegate.close();
+    }
+
+    /**
+     * A live exchange whose body we already started reading
+     */
+    private static final class PartlyReadExchange implements HttpExchange {
+        private final HttpExchange exchange;
+        private final InputStream body;
+
+        PartlyReadExchange(final HttpExchange exchange, final InputStream body) {
+            this.exchange = exchange;
+            this.body = body;
+        }
+
+        @Override
+        public int getResponseCode() throws IOException {
+            return exchange.getResponseCode();
+        }
+
+        @Override
+        public Map<String, List<String>> getHeaderFields() {
+            return exchange.getHeaderFields();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            if (exchange.getResponseCode() >= 400) {
+                // Let the real exchange throw the right exception
+                return exchange.getInputStream();
+            }
+            return body;
+        }
+
+        @Override
+        public Optional<InputStream> getErrorStream() {
+            try {
+                return exchange.getResponseCode() >= 400 ? Optional.of(body) : Optional.empty();
+            } catch (IOException e) {
+                return Optional.empty();
+            }
+        }
+
+        @Override
+        public void close() {
+            exchange.close();
+        }
+
+        @Override
+        public void abort() {
+            exchange.abort();
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package com.pavlovmedia.oss.osgi.http.cache;
+
+import java.io.IOException;
+import java.net.URL;
+import java.time.Clock;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.pavlovmedia.oss.osgi.http.DiskStore;
+import com.pavlovmedia.oss.osgi.http.transport.HttpTransport;
+
+/**
+ * An in memory HTTP cache following RFC 7234 for a single (private) user.
+ * GET responses are stored when their Cache-Control, Expires, ETag or
+ * Last-Modified headers allow it, fresh ones are served without touching the
+ * network, and stale ones are checked with If-None-Match or If-Modified-Since
+ * so that a 304 can be answered from the stored body. Vary is honored by
+ * keeping the variant that was last stored for a URL.
+ * <p>
+ * The cache is bounded by total size and entry count, dropping the least
+ * recently used entries first. Bodies are stored as they came from the
+ * server, before any content decoding.
+ * <p>
+ * With {@link #withDiskStore(DiskStore)} every entry is also written to disk,
+ * bodies too large for memory are kept only there, and entries survive a
+ * restart. Bodies read back from disk are memory mapped rather than copied
+ * onto the heap, so they don't count against the memory limits' size.
+ * <p>
+ * A cache is put in front of a transport with {@link #over(HttpTransport)},
+ * or on a client with
+ * {@link com.pavlovmedia.oss.osgi.http.PavlovHttpClient#withCache(ResponseCache)}.
+ * It can be shared by any number of transports and clients.
+ *
+ * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
+ *
+ */
+public class ResponseCache {
+    private final ReentrantLock lock = new ReentrantLock();
+    // Access ordered, so iteration starts at the least recently used entry
+    private final LinkedHashMap<String, CacheEntry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long maxSize = 10 * 1024 * 1024;
+    private int maxEntries = 1000;
+    private int maxEntrySize = 1024 * 1024;
+    private Clock clock = Clock.systemUTC();
+    private Optional<DiskStore> disk = Optional.empty();
+
+    final AtomicLong hits = new AtomicLong();
+    final AtomicLong misses = new AtomicLong();
+    final AtomicLong revalidations = new AtomicLong();
+    final AtomicLong notModified = new AtomicLong();
+    // Guarded by lock
+    private long evictions;
+    private long size;
+
+    /**
+     * Sets roughly how many bytes of responses are kept, 10MB by default
+     * @param maxSize
+     */
+    public ResponseCache withMaxSize(final long maxSize) {
+        this.maxSize = maxSize;
+        return this;
+    }
+
+    /**
+     * Sets how many responses are kept, 1000 by default
+     * @param maxEntries
+     */
+    public ResponseCache withMaxEntries(final int maxEntries) {
+        this.maxEntries = maxEntries;
+        return this;
+    }
+
+    /**
+     * Sets the largest body that will be stored in memory, 1MB by default.
+     * Larger responses are kept only in the disk tier, or passed through
+     * without being kept when there isn't one.
+     * @param maxEntrySize
+     */
+    public ResponseCache withMaxEntrySize(final int maxEntrySize) {
+        this.maxEntrySize = maxEntrySize;
+        return this;
+    }
+
+    /**
+     * Adds a disk tier behind memory. Entries are written through to it, looked
+     * up in it when memory doesn't have them, and bodies over the largest entry
+     * size are stored there instead of being passed through. The store's own
+     * maximum size bounds the tier.
+     * @param store
+     */
+    public ResponseCache withDiskStore(final DiskStore store) {
+        this.disk = Optional.of(store);
+        return this;
+    }
+
+    /**
+     * Sets the clock used to age responses
+     * @param clock
+     */
+    public ResponseCache withClock(final Clock clock) {
+        this.clock = clock;
+        return this;
+    }
+
+    /**
+     * Wraps a transport so that requests through it use this cache
+     * @param transport
+     */
+    public HttpTransport over(final HttpTransport transport) {
+        return new CachingTransport(this, transport);
+    }
+
+    public CacheStats getStats() {
+        lock.lock();
+        try {
+            return new CacheStats(hits.get(), misses.get(), revalidations.get(), notModified.get(), evictions,
+                    entries.size(), size);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops anything stored for a URL
+     * @param url
+     */
+    public void invalidate(final URL url) {
+        remove(key(url));
+    }
+
+    /**
+     * Drops everything
+     */
+    public void clear() {
+        lock.lock();
+        try {
+            entries.clear();
+            size = 0;
+        } finally {
+            lock.unlock();
+        }
+        disk.ifPresent(DiskStore::clear);
+    }
+
+    int getMaxEntrySize() {
+        return maxEntrySize;
+    }
+
+    Optional<DiskStore> getDiskStore() {
+        return disk;
+    }
+
+    long now() {
+        return clock.millis();
+    }
+
+    /**
+     * The fragment never reaches the server, so it isn't part of the key
+     */
+    static String key(final URL url) {
+        String external = url.toExternalForm();
+        int hash = external.indexOf('#');
+        return hash < 0 ? external : external.substring(0, hash);
+    }
+
+    Optional<CacheEntry> get(final String key) {
+        lock.lock();
+        try {
+            CacheEntry entry = entries.get(key);
+            if (null != entry) {
+                return Optional.of(entry);
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (!disk.isPresent()) {
+            return Optional.empty();
+        }
+        Optional<DiskStore.Entry> stored = disk.get().get(key);
+        if (!stored.isPresent()) {
+            return Optional.empty();
+        }
+        try {
+            CacheEntry entry = CacheEntry.fromMeta(stored.get().meta, stored.get().body);
+            remember(key, entry);
+            return Optional.of(entry);
+        } catch (IOException e) {
+            // Left by another version or damaged, either way of no use
+            disk.get().remove(key);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Stores an entry in memory and, when there is a disk tier, on disk
+     */
+    void put(final String key, final CacheEntry entry) {
+        disk.ifPresent(store -> {
+            try {
+                // A mapped body came from the store, so only the headers need writing
+                if (!entry.body.isDirect() || !store.updateMeta(key, entry.meta())) {
+                    store.put(key, entry.meta(), entry.body);
+                }
+            } catch (IOException e) {
+                // The disk tier is best effort, memory still has the entry
+                store.remove(key);
+            }
+        });
+        remember(key, entry);
+    }
+
+    /**
+     * Stores an entry in memory only
+     */
+    void remember(final String key, final CacheEntry entry) {
+        long weight = entry.weight();
+        if (weight > maxSize) {
+            forget(key);
+            return;
+        }
+        lock.lock();
+        try {
+            CacheEntry replaced = entries.put(key, entry);
+            if (null != replaced) {
+                size -= replaced.weight();
+            }
+            size += weight;
+            Iterator<Map.Entry<String, CacheEntry>> eldest = entries.entrySet().iterator();
+            while ((size > maxSize || entries.size() > maxEntries) && eldest.hasNext()) {
+                Map.Entry<String, CacheEntry> next = eldest.next();
+                if (next.getValue() == entry) {
+                    continue;
+                }
+                size -= next.getValue().weight();
+                eldest.remove();
+                evictions++;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops an entry from memory and disk
+     */
+    void remove(final String key) {
+        forget(key);
+        disk.ifPresent(store -> store.remove(key));
+    }
+
+    private void forget(final String key) {
+        lock.lock();
+        try {
+            CacheEntry removed = entries.remove(key);
+            if (null != removed) {
+                size -= removed.weight();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.pavlovmedia.oss.osgi.http.flow;
+
+/**
+ * The reactive streams interfaces, with the same names, methods and rules as
+ * JDK 9's {@code java.util.concurrent.Flow}. This bundle still targets Java 8,
+ * so it can't use those directly; on newer JDKs, or with a reactive library,
+ * adapting between the two is a matter of passing each call straight through.
+ *
+ * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
+ *
+ */
+public final class Flow {
+    private Flow() {
+        // Only holds the interfaces
+    }
+
+    /**
+     * A source of items that are sent to a subscriber only as fast as it asks for them
+     * @param <T> the item type
+     */
+    @FunctionalInterface
+    public interface Publisher<T> {
+        /**
+         * Adds a subscriber, which is always called back with
+         * {@link Subscriber#onSubscribe(Subscription)} first
+         * @param subscriber
+         */
+        void subscribe(Subscriber<? super T> subscriber);
+    }
+
+    /**
+     * Receives items, in order and never concurrently
+     * @param <T> the item type
+     */
+    public interface Subscriber<T> {
+        void onSubscribe(Subscription subscription);
+
+        void onNext(T item);
+
+        /**
+         * The stream failed, no more calls follow
+         */
+        void onError(Throwable throwable);
+
+        /**
+         * The stream ended, no more calls follow
+         */
+        void onComplete();
+    }
+
+    /**
+     * The link between a publisher and a subscriber
+     */
+    public interface Subscription {
+        /**
+         * Asks for up to n more items, which must be positive
+         * @param n
+         */
+        void request(long n);
+
+        /**
+         * Stops the stream, possibly after items that were already on their way
+         */
+        void cancel();
+    }
+
+    /**
+     * Both ends of a stage in a pipeline
+     * @param <T> the items it subscribes to
+     * @param <R> the items it publishes
+     */
+    public interface Processor<T, R> extends Subscriber<T>, Publisher<R> {
+    }
+}
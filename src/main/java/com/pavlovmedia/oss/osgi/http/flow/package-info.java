@@ -0,0 +1,7 @@
+/**
+ * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
+ * Reactive streams interfaces shaped like JDK 9's {@link java.util.concurrent.Flow}, for
+ * the publishers {@link com.pavlovmedia.oss.osgi.http.PavlovHttpClient} hands out while
+ * the bundle still runs on Java 8
+ */
+package com.pavlovmedia.oss.osgi.http.flow;
@@ -0,0 +1,159 @@
+package com.pavlovmedia.oss.osgi.http.spider;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A visited set that is a Bloom filter, a fixed array of bits sized from
+ * how many URLs are expected and how often a new URL may be wrongly taken
+ * as seen. At a 1% false positive rate that is about 1.2 bytes a URL,
+ * whatever the URLs are, so even a huge crawl's set fits in a small fixed
+ * amount of memory. The price is that a false positive skips a page the
+ * crawl never fetched, and the rate climbs if more URLs than expected go in.
+ * <p>
+ * Each URL sets bits picked from its 128 bit hash by double hashing. The
+ * bits are checked and set under one lock, which only costs a few memory
+ * reads and writes, so claiming stays atomic.
+ *
+ * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
+ *
+ */
+public class BloomVisitedSet implements VisitedSet {
+    private final ReentrantLock lock = new ReentrantLock();
+    private final long bits;
+    private final int hashes;
+    // Guarded by lock
+    private final LongBuffer words;
+    // Guarded by lock
+    private long count;
+
+    /**
+     * Makes a filter on the heap
+     * @param expectedUrls how many URLs the crawl should see
+     * @param falsePositiveRate how often a new URL may be taken as seen, such as 0.01
+     */
+    public BloomVisitedSet(final long expectedUrls, final double falsePositiveRate) {
+        this(expectedUrls, falsePositiveRate, false);
+    }
+
+    /**
+     * Makes a filter
+     * @param expectedUrls how many URLs the crawl should see
+     * @param falsePositiveRate how often a new URL may be taken as seen, such as 0.01
+     * @param offHeap keeps the bits in a direct buffer
+     */
+    public BloomVisitedSet(final long expectedUrls, final double falsePositiveRate, final boolean offHeap) {
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("The false positive rate must be between 0 and 1");
+        }
+        long n = Math.max(1, expectedUrls);
+        this.bits = bitsFor(n, falsePositiveRate);
+        this.hashes = (int) Math.max(1, Math.round((double) bits / n * Math.log(2)));
+        int wordCount = (int) (bits >>> 6);
+        if (offHeap) {
+            words = ByteBuffer.allocateDirect(wordCount * 8).order(ByteOrder.nativeOrder()).asLongBuffer();
+        } else {
+            words = LongBuffer.allocate(wordCount);
+        }
+    }
+
+    /**
+     * How many bytes a filter for this many URLs at this rate would take
+     * @param urls
+     * @param falsePositiveRate
+     */
+    public static long bytesFor(final long urls, final double falsePositiveRate) {
+        return bitsFor(Math.max(1, urls), falsePositiveRate) / 8;
+    }
+
+    private static long bitsFor(final long urls, final double falsePositiveRate) {
+        long bits = (long) Math.ceil(-urls * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        // Whole words, and no more than a direct buffer can hold
+        long rounded = Math.max(64, (bits + 63) & ~63L);
+        if (rounded / 64 > Integer.MAX_VALUE / 8) {
+            throw new IllegalArgumentException("That many URLs at that rate needs more than 2GB");
+        }
+        return rounded;
+    }
+
+    @Override
+    public boolean add(final String url) {
+        long[] hash = Murmur3.hash128(url.getBytes(StandardCharsets.UTF_8));
+        lock.lock();
+        try {
+            boolean added = false;
+            for (int i = 0; i < hashes; i++) {
+                long bit = bitOf(hash, i);
+                int word = (int) (bit >>> 6);
+                long mask = 1L << bit;
+                long current = words.get(word);
+                if (0 == (current & mask)) {
+                    words.put(word, current | mask);
+                    added = true;
+                }
+            }
+            if (added) {
+                count++;
+            }
+            return added;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean contains(final String url) {
+        long[] hash = Murmur3.hash128(url.getBytes(StandardCharsets.UTF_8));
+        lock.lock();
+        try {
+            for (int i = 0; i < hashes; i++) {
+                long bit = bitOf(hash, i);
+                if (0 == (words.get((int) (bit >>> 6)) & (1L << bit))) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private long bitOf(final long[] hash, final int i) {
+        return Math.floorMod(hash[0] + i * hash[1], bits);
+    }
+
+    /**
+     * How many URLs have been claimed, not counting the new ones that were false positives
+     */
+    @Override
+    public long size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long getBytesUsed() {
+        return bits / 8;
+    }
+
+    /**
+     * How many bits each URL sets
+     */
+    public int getHashCount() {
+        return hashes;
+    }
+
+    /**
+     * The false positive rate to expect now, given how full the filter is
+     */
+    public double getFalsePositiveRate() {
+        return Math.pow(1 - Math.exp(-(double) hashes * size() / bits), hashes);
+    }
+}
@@ -0,0 +1,391 @@
+package com.pavlovmedia.oss.osgi.http.spider;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * Keeps the state of a crawl in a directory, so a crawl that stops partway,
+ * because it was stopped, its bundle was restarted or the process died,
+ * can be picked up by a new {@link com.pavlovmedia.oss.osgi.http.Spider}
+ * where it left off instead of fetching everything again. There are three
+ * files:
+ * <ul>
+ * <li>visited.log, every URL the crawl has claimed, appended as it is found.
+ * A URL is only claimed once, so this never needs compacting, and replaying
+ * it rebuilds the {@link VisitedSet}.</li>
+ * <li>pending, a snapshot of the frontier taken at each checkpoint: every URL
+ * queued, spilled or being fetched, and how much of visited.log it covers.</li>
+ * <li>journal-N.log, the pages finished and retried since checkpoint N.</li>
+ * </ul>
+ * Resuming takes the snapshot, adds the URLs claimed after it, and removes
+ * the ones the journal says were finished. Each checkpoint writes a new
+ * snapshot to the side, swaps it in and starts an empty journal, which is
+ * the compaction: the journal never holds more than one interval of pages.
+ * <p>
+ * Records are flushed as they are written, so what was logged survives the
+ * process dying; the files are only synced to the disk at checkpoints.
+ *
+ * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
+ *
+ */
+public class CrawlCheckpoint implements Closeable {
+    private static final String VISITED = "visited.log";
+    private static final String PENDING = "pending";
+    private static final String JOURNAL = "journal-";
+    private static final int MAGIC = 0x50484350;
+    private static final byte RETRIED = 1;
+    private static final byte DONE = 2;
+
+    private final Path directory;
+    private final ReentrantLock lock = new ReentrantLock();
+    private long interval = 30000;
+
+    // Guarded by lock
+    private FileOutputStream visitedFile;
+    private DataOutputStream visited;
+    private DataOutputStream journal;
+    private long claims;
+    private long generation;
+
+    /**
+     * Keeps a crawl's state in a directory, which is created when the crawl starts
+     * @param directory
+     */
+    public CrawlCheckpoint(final Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Sets how often a running crawl checkpoints, in milliseconds, 30 seconds
+     * by default. Resuming replays at most this much of the journal.
+     * @param interval
+     */
+    public CrawlCheckpoint withInterval(final long interval) {
+        this.interval = Math.max(0, interval);
+        return this;
+    }
+
+    public long getInterval() {
+        return interval;
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Whether there is a crawl to resume
+     */
+    public boolean exists() {
+        return Files.exists(directory.resolve(PENDING));
+    }
+
+    /**
+     * Opens the checkpoint for a crawl. If one was left there, the visited
+     * set and frontier are loaded from it, otherwise the directory is
+     * cleared out for a new crawl. Either way a checkpoint is taken right away.
+     * @param visitedSet an empty set for the crawl
+     * @param frontier an empty frontier for the crawl
+     * @return true if a crawl was resumed
+     * @throws IOException if the files can't be read or written
+     */
+    public boolean open(final VisitedSet visitedSet, final Frontier frontier) throws IOException {
+        lock.lock();
+        try {
+            close();
+            Files.createDirectories(directory);
+            boolean resumed = exists();
+            if (resumed) {
+                resume(visitedSet, frontier);
+            } else {
+                clear();
+                Files.createDirectories(directory);
+                claims = 0;
+                generation = 0;
+            }
+            visitedFile = new FileOutputStream(directory.resolve(VISITED).toFile(), true);
+            visited = new DataOutputStream(new BufferedOutputStream(visitedFile, 65536));
+            checkpoint(frontier);
+            return resumed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Logs a URL the crawl has claimed and queued
+     * @param url its normal form
+     */
+    public void claimed(final String url) throws IOException {
+        lock.lock();
+        try {
+            if (null != visited) {
+                visited.writeUTF(url);
+                claims++;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Logs a page that was taken and has been queued again to be retried
+     * @param url its normal form
+     */
+    public void retried(final String url) throws IOException {
+        append(RETRIED, url);
+    }
+
+    /**
+     * Logs a page the crawl has finished with, after the links it found were claimed
+     * @param url its normal form
+     */
+    public void done(final String url) throws IOException {
+        append(DONE, url);
+    }
+
+    /**
+     * Takes a checkpoint of the crawl. Nothing may be claimed, retried or
+     * finished while this runs, or the snapshot won't match the logs.
+     * @param frontier
+     * @throws IOException if the snapshot can't be written, in which case the last one still stands
+     */
+    public void checkpoint(final Frontier frontier) throws IOException {
+        lock.lock();
+        try {
+            if (null == visited) {
+                throw new IOException("The checkpoint is not open");
+            }
+            // The snapshot covers the claims so far, so they have to be on the disk before it is
+            visited.flush();
+            visitedFile.getFD().sync();
+            long next = generation + 1;
+            Path fresh = directory.resolve(PENDING + ".tmp");
+            try (FileOutputStream file = new FileOutputStream(fresh.toFile());
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 65536))) {
+                out.writeInt(MAGIC);
+                out.writeLong(next);
+                out.writeLong(claims);
+                try {
+                    frontier.forEachPending(url -> {
+                        try {
+                            out.writeBoolean(true);
+                            out.writeUTF(url);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+                out.writeBoolean(false);
+                out.flush();
+                file.getFD().sync();
+            }
+            Files.move(fresh, directory.resolve(PENDING), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            if (null != journal) {
+                journal.close();
+            }
+            Files.deleteIfExists(journalFile(generation));
+            generation = next;
+            journal = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(journalFile(next)), 8192));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Deletes the crawl kept here, so the next one starts over
+     * @throws IOException
+     */
+    public void clear() throws IOException {
+        lock.lock();
+        try {
+            close();
+            if (Files.isDirectory(directory)) {
+                try (Stream<Path> files = Files.list(directory)) {
+                    for (Path file : (Iterable<Path>) files::iterator) {
+                        if (isOurs(file)) {
+                            Files.deleteIfExists(file);
+                        }
+                    }
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes the logs, leaving the crawl to be resumed. Anything logged
+     * after this is dropped, for workers still finishing a page.
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            try {
+                if (null != visited) {
+                    visited.close();
+                }
+            } finally {
+                visited = null;
+                visitedFile = null;
+                if (null != journal) {
+                    journal.close();
+                    journal = null;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void append(final byte op, final String url) throws IOException {
+        lock.lock();
+        try {
+            if (null == journal) {
+                return;
+            }
+            // A page's links have to reach the file before the page is marked done
+            visited.flush();
+            journal.writeByte(op);
+            journal.writeUTF(url);
+            journal.flush();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Loads the last snapshot, the claims since and its journal, must hold the lock
+     */
+    private void resume(final VisitedSet visitedSet, final Frontier frontier) throws IOException {
+        Path snapshot = directory.resolve(PENDING);
+        try (DataInputStream in = reader(snapshot)) {
+            if (MAGIC != in.readInt()) {
+                throw new IOException(snapshot + " is not a crawl checkpoint");
+            }
+            generation = in.readLong();
+            long covered = in.readLong();
+            Map<String, Integer> finished = replayJournal();
+            while (in.readBoolean()) {
+                pending(in.readUTF(), finished, frontier);
+            }
+            claims = 0;
+            long length = 0;
+            Path log = directory.resolve(VISITED);
+            if (Files.exists(log)) {
+                try (DataInputStream claimed = reader(log)) {
+                    while (true) {
+                        String url = claimed.readUTF();
+                        visitedSet.add(url);
+                        if (claims >= covered) {
+                            pending(url, finished, frontier);
+                        }
+                        claims++;
+                        length += utfLength(url);
+                    }
+                } catch (EOFException e) {
+                    // End of the log, possibly partway through a URL
+                }
+                try (FileChannel channel = FileChannel.open(log, StandardOpenOption.WRITE)) {
+                    channel.truncate(length);
+                }
+            }
+        }
+        // Journals from before the snapshot have nothing more to say
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if (name.startsWith(JOURNAL) && !file.equals(journalFile(generation))) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * How many times each page was finished, less how many times it was
+     * retried, since the snapshot
+     */
+    private Map<String, Integer> replayJournal() throws IOException {
+        Map<String, Integer> finished = new HashMap<>();
+        Path file = journalFile(generation);
+        if (!Files.exists(file)) {
+            return finished;
+        }
+        try (DataInputStream in = reader(file)) {
+            while (true) {
+                byte op = in.readByte();
+                finished.merge(in.readUTF(), DONE == op ? 1 : -1, Integer::sum);
+            }
+        } catch (EOFException e) {
+            // End of the journal, possibly partway through a record
+        }
+        return finished;
+    }
+
+    /**
+     * Queues a URL that was pending at the snapshot or claimed since, unless it has been finished
+     */
+    private static void pending(final String url, final Map<String, Integer> finished, final Frontier frontier)
+            throws IOException {
+        Integer count = finished.remove(url);
+        if (null != count && count > 0) {
+            return;
+        }
+        try {
+            frontier.add(new URL(url));
+        } catch (MalformedURLException e) {
+            throw new IOException("The checkpoint holds a bad URL " + url, e);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * How many bytes writeUTF took for a string
+     */
+    private static long utfLength(final String value) {
+        long length = 2;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            length += c >= 0x0001 && c <= 0x007f ? 1 : (c <= 0x07ff ? 2 : 3);
+        }
+        return length;
+    }
+
+    private Path journalFile(final long forGeneration) {
+        return directory.resolve(JOURNAL + forGeneration + ".log");
+    }
+
+    private static boolean isOurs(final Path file) {
+        String name = file.getFileName().toString();
+        return VISITED.equals(name) || PENDING.equals(name) || (PENDING + ".tmp").equals(name)
+                || name.startsWith(JOURNAL);
+    }
+
+    private static DataInputStream reader(final Path file) throws IOException {
+        return new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 65536));
+    }
+}
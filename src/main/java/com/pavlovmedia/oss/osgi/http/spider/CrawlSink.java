@@ -0,0 +1,55 @@
+package com.pavlovmedia.oss.osgi.http.spider;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URL;
+import java.time.Instant;
+
+import com.pavlovmedia.oss.osgi.http.HttpResponse;
+
+/**
+ * Where a {@link com.pavlovmedia.oss.osgi.http.Spider} puts the pages it
+ * saves. Each page is handed over as soon as it is fetched, and the sink
+ * takes the response over: it reads what it needs and closes it, which
+ * frees the connection and the body's buffer. So, unlike an accumulator
+ * map, a crawl's memory doesn't grow with the number of pages it saves.
+ * <p>
+ * Sinks are called from the crawl's workers at the same time, so they need
+ * to be thread safe. {@link WriteBehindSink} puts a bounded queue and a
+ * writer thread in front of a slow sink. The spider doesn't close the sink,
+ * so one can be shared by several crawls.
+ *
+ * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
+ *
+ */
+@FunctionalInterface
+public interface CrawlSink extends Closeable {
+    /**
+     * Saves a page, closing the response once done with it, even on failure
+     * @param url the page's normal form
+     * @param response
+     * @throws IOException if the page couldn't be saved
+     */
+    void save(URL url, HttpResponse response) throws IOException;
+
+    /**
+     * Saves a page fetched earlier, for sinks that hand pages on later and
+     * want the record to say when the page was fetched rather than written.
+     * By default the time is ignored.
+     * @param url the page's normal form
+     * @param response
+     * @param fetched when the page was fetched
+     * @throws IOException if the page couldn't be saved
+     */
+    default void save(final URL url, final HttpResponse response, final Instant fetched) throws IOException {
+        save(url, response);
+    }
+
+    /**
+     * Flushes and closes whatever the sink writes to
+     */
+    @Override
+    default void close() throws IOException {
+        // Nothing to close
+    }
+}
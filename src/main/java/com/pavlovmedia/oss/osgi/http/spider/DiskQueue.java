@@ -0,0 +1,158 @@
+package com.pavlovmedia.oss.osgi.http.spider;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+
+/**
+ * A first in, first out queue of strings kept in a file, for the part of a
+ * {@link Frontier} that is over its hot window. Strings are appended at the
+ * end, each as its length and UTF-8 bytes, and read back from the front in
+ * order. Once every one has been read the file is emptied, and once the
+ * part already read passes {@link #COMPACT_AT} and outweighs what is left,
+ * the rest is copied to a fresh file, so a queue that never quite drains
+ * doesn't grow its file without end.
+ * <p>
+ * Not thread safe, the frontier only uses it under its lock.
+ *
+ * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
+ *
+ */
+final class DiskQueue implements Closeable {
+    static final long COMPACT_AT = 4 * 1024 * 1024;
+
+    private final Path file;
+    private DataOutputStream out;
+    private DataInputStream in;
+    // Bytes in the file, and how many of them at the front have been read
+    private long written;
+    private long read;
+    private long size;
+
+    /**
+     * Starts an empty queue in a file, replacing whatever the file held
+     * @param file
+     */
+    DiskQueue(final Path file) throws IOException {
+        this.file = file;
+        this.out = open();
+    }
+
+    void add(final String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        written += 4 + bytes.length;
+        size++;
+    }
+
+    /**
+     * Takes the string at the front
+     * @return the string, or null if the queue is empty
+     */
+    String poll() throws IOException {
+        if (0 == size) {
+            return null;
+        }
+        // Everything counted in size has to be in the file before it can be read back
+        out.flush();
+        if (null == in) {
+            in = reader(read);
+        }
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        read += 4 + bytes.length;
+        size--;
+        if (0 == size) {
+            in.close();
+            in = null;
+            out.close();
+            out = open();
+            written = 0;
+            read = 0;
+        } else if (read >= COMPACT_AT && read >= written - read) {
+            compact();
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    long size() {
+        return size;
+    }
+
+    /**
+     * Walks the strings still queued, front to back, without taking them
+     * @param action
+     */
+    void forEach(final Consumer<String> action) throws IOException {
+        out.flush();
+        try (DataInputStream all = reader(read)) {
+            for (long i = 0; i < size; i++) {
+                byte[] bytes = new byte[all.readInt()];
+                all.readFully(bytes);
+                action.accept(new String(bytes, StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    /**
+     * Drops the queue and deletes its file
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (null != in) {
+                in.close();
+                in = null;
+            }
+            out.close();
+        } finally {
+            size = 0;
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * Copies what hasn't been read to a fresh file and swaps it in
+     */
+    private void compact() throws IOException {
+        in.close();
+        in = null;
+        out.close();
+        Path fresh = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel from = FileChannel.open(file, StandardOpenOption.READ);
+                FileChannel to = FileChannel.open(fresh, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+            long position = read;
+            while (position < written) {
+                position += from.transferTo(position, written - position, to);
+            }
+        }
+        Files.move(fresh, file, StandardCopyOption.REPLACE_EXISTING);
+        written -= read;
+        read = 0;
+        out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(file, StandardOpenOption.APPEND), 65536));
+    }
+
+    private DataInputStream reader(final long from) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        channel.position(from);
+        return new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 65536));
+    }
+
+    private DataOutputStream open() throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 65536));
+    }
+}
@@ -0,0 +1,221 @@
+package com.pavlovmedia.oss.osgi.http.spider;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A visited set that keeps a 128 bit hash of each URL instead of the URL,
+ * 16 bytes a URL in open addressed tables of longs, which comes to around
+ * 23 to 46 bytes a URL with the room kept for growth against well over a
+ * hundred for a String in a HashSet. Two URLs sharing a hash is so unlikely,
+ * around 10^-20 for a billion URLs, that the set is exact for any real crawl.
+ * <p>
+ * The tables are split into segments by hash, each with its own lock, so
+ * workers rarely wait on each other and a resize only copies one segment.
+ * They can live off the heap, which keeps a large crawl's set out of the
+ * collector's way.
+ *
+ * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
+ *
+ */
+public class ExactVisitedSet implements VisitedSet {
+    private static final int SEGMENT_BITS = 4;
+    private static final double LOAD_FACTOR = 0.7;
+    private static final int MIN_SLOTS = 1 << 8;
+    /**
+     * Two longs a slot, and a direct buffer can't reach 2GB, so a segment tops out at 1GB
+     */
+    private static final int MAX_SLOTS = 1 << 26;
+
+    private final Segment[] segments = new Segment[1 << SEGMENT_BITS];
+    private final boolean offHeap;
+
+    /**
+     * Makes a set on the heap that starts small and grows
+     */
+    public ExactVisitedSet() {
+        this(0, false);
+    }
+
+    /**
+     * Makes a set sized for a number of URLs, which still grows past it
+     * @param expectedUrls
+     * @param offHeap keeps the tables in direct buffers
+     */
+    public ExactVisitedSet(final long expectedUrls, final boolean offHeap) {
+        this.offHeap = offHeap;
+        int slots = slotsFor(expectedUrls);
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment(slots);
+        }
+    }
+
+    /**
+     * How many bytes a set sized for this many URLs would take
+     * @param urls
+     */
+    public static long bytesFor(final long urls) {
+        return (1L << SEGMENT_BITS) * slotsFor(urls) * 16L;
+    }
+
+    private static int slotsFor(final long urls) {
+        long perSegment = (long) Math.ceil((urls >> SEGMENT_BITS) / LOAD_FACTOR) + 1;
+        long slots = Long.highestOneBit(Math.max(MIN_SLOTS, perSegment));
+        slots = slots < perSegment ? slots << 1 : slots;
+        return (int) Math.min(MAX_SLOTS, slots);
+    }
+
+    @Override
+    public boolean add(final String url) {
+        long[] hash = hash(url);
+        return segmentOf(hash).add(hash[0], hash[1]);
+    }
+
+    @Override
+    public boolean contains(final String url) {
+        long[] hash = hash(url);
+        return segmentOf(hash).contains(hash[0], hash[1]);
+    }
+
+    @Override
+    public long size() {
+        return Arrays.stream(segments).mapToLong(Segment::size).sum();
+    }
+
+    @Override
+    public long getBytesUsed() {
+        return Arrays.stream(segments).mapToLong(Segment::bytes).sum();
+    }
+
+    public boolean isOffHeap() {
+        return offHeap;
+    }
+
+    private static long[] hash(final String url) {
+        long[] hash = Murmur3.hash128(url.getBytes(StandardCharsets.UTF_8));
+        if (0 == hash[0] && 0 == hash[1]) {
+            // All zeros marks an empty slot
+            hash[1] = 1;
+        }
+        return hash;
+    }
+
+    private Segment segmentOf(final long[] hash) {
+        return segments[(int) (hash[0] >>> (64 - SEGMENT_BITS))];
+    }
+
+    private LongBuffer allocate(final int slots) {
+        return offHeap
+                ? ByteBuffer.allocateDirect(slots * 16).order(ByteOrder.nativeOrder()).asLongBuffer()
+                : LongBuffer.allocate(slots * 2);
+    }
+
+    /**
+     * One table, probed linearly from the slot the low bits of the hash pick
+     */
+    private final class Segment {
+        private final ReentrantLock lock = new ReentrantLock();
+        // Guarded by lock
+        private LongBuffer table;
+        // Guarded by lock
+        private int slots;
+        // Guarded by lock
+        private int count;
+
+        Segment(final int slots) {
+            this.slots = slots;
+            this.table = allocate(slots);
+        }
+
+        boolean add(final long high, final long low) {
+            lock.lock();
+            try {
+                int slot = find(table, slots, high, low);
+                if (0 != table.get(slot * 2) || 0 != table.get(slot * 2 + 1)) {
+                    return false;
+                }
+                if (count + 1 > slots * LOAD_FACTOR) {
+                    grow();
+                    slot = find(table, slots, high, low);
+                }
+                table.put(slot * 2, high);
+                table.put(slot * 2 + 1, low);
+                count++;
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        boolean contains(final long high, final long low) {
+            lock.lock();
+            try {
+                int slot = find(table, slots, high, low);
+                return 0 != table.get(slot * 2) || 0 != table.get(slot * 2 + 1);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        long size() {
+            lock.lock();
+            try {
+                return count;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        long bytes() {
+            lock.lock();
+            try {
+                return slots * 16L;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void grow() {
+            if (slots >= MAX_SLOTS) {
+                if (count + 1 < slots) {
+                    // Past the load factor it only gets slower, until it is truly full
+                    return;
+                }
+                throw new IllegalStateException("The visited set is full");
+            }
+            int grown = slots << 1;
+            LongBuffer next = allocate(grown);
+            for (int i = 0; i < slots; i++) {
+                long high = table.get(i * 2);
+                long low = table.get(i * 2 + 1);
+                if (0 != high || 0 != low) {
+                    int slot = find(next, grown, high, low);
+                    next.put(slot * 2, high);
+                    next.put(slot * 2 + 1, low);
+                }
+            }
+            table = next;
+            slots = grown;
+        }
+    }
+
+    /**
+     * Finds the slot holding a hash, or the empty slot where it would go
+     */
+    private static int find(final LongBuffer table, final int slots, final long high, final long low) {
+        int mask = slots - 1;
+        int slot = (int) low & mask;
+        while (true) {
+            long h = table.get(slot * 2);
+            long l = table.get(slot * 2 + 1);
+            if ((h == high && l == low) || (0 == h && 0 == l)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+}
@@ -0,0 +1,408 @@
+package com.pavlovmedia.oss.osgi.http.spider;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * The URLs a crawl has found but not fetched yet, shared by all of its
+ * workers and kept in a queue per host. A worker asking for work gets the
+ * oldest URL of the next host, in turn, that may be fetched right now: it
+ * has a token in its bucket, it is under its limit of fetches at once, and
+ * it isn't backing off. So a slow or throttled host only holds up its own
+ * queue while the workers keep busy with the others, and within a host the
+ * crawl goes breadth first with its depth costing heap rather than stack.
+ * <p>
+ * The frontier also knows when the crawl is over: a worker that finds
+ * nothing ready waits while any URL is queued or any other worker is still
+ * busy, since that one may yet add links, and is told to stop once nothing
+ * is queued and no one is.
+ * <p>
+ * Given a spill file with {@link #withSpill(Path, int)}, only a hot window
+ * of URLs is kept in the host queues. Past that, new URLs go to the end of
+ * the file, and are read back into the queues in the order they came once
+ * the window has drained to half, so a crawl's frontier can be far larger
+ * than the heap.
+ *
+ * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
+ *
+ */
+public class Frontier implements Closeable {
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    // Guarded by lock
+    private final Map<String, Host> hosts = new HashMap<>();
+    // Guarded by lock, hosts with URLs waiting, in the order they get their turn
+    private final ArrayDeque<Host> turns = new ArrayDeque<>();
+    // Guarded by lock
+    private int queued;
+    // Guarded by lock, workers between take and done
+    private int busy;
+    // Guarded by lock, the external forms of the URLs between take and done
+    private final Map<String, Integer> taken = new HashMap<>();
+    // Guarded by lock
+    private Optional<DiskQueue> spill = Optional.empty();
+    private int hotWindow = Integer.MAX_VALUE;
+    // Guarded by lock
+    private boolean stopped;
+    // Guarded by lock, how many hosts there can be before idle ones are swept out
+    private int sweepAt = 1024;
+    private double rate = 0;
+    private int burst = 1;
+    private int maxPerHost = Integer.MAX_VALUE;
+
+    /**
+     * Limits how fast each host is fetched, with a token bucket per host.
+     * Unlimited by default.
+     * @param requestsPerSecond the steady rate, 0 or less for no limit
+     * @param burst how many fetches can go back to back after the host has been idle
+     */
+    public Frontier withRate(final double requestsPerSecond, final int burst) {
+        this.rate = requestsPerSecond;
+        this.burst = Math.max(1, burst);
+        return this;
+    }
+
+    /**
+     * Limits how many fetches of one host can run at once, unlimited by default
+     * @param maxPerHost
+     */
+    public Frontier withMaxPerHost(final int maxPerHost) {
+        this.maxPerHost = Math.max(1, maxPerHost);
+        return this;
+    }
+
+    /**
+     * Keeps no more than a window of URLs in memory, queueing the rest in
+     * a file, which is replaced and is deleted when the frontier is closed
+     * @param file
+     * @param hotWindow how many URLs to keep in memory
+     * @throws IOException if the file can't be written
+     */
+    public Frontier withSpill(final Path file, final int hotWindow) throws IOException {
+        lock.lock();
+        try {
+            if (spill.isPresent()) {
+                spill.get().close();
+            }
+            this.spill = Optional.of(new DiskQueue(file));
+            this.hotWindow = Math.max(2, hotWindow);
+            return this;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds a URL to be fetched
+     * @param url
+     * @throws UncheckedIOException if it has to be spilled and the spill file can't be written
+     */
+    public void add(final URL url) {
+        lock.lock();
+        try {
+            // Once anything is spilled, new URLs queue up behind it to keep the order
+            if (spill.isPresent() && (queued >= hotWindow || spill.get().size() > 0)) {
+                spill.get().add(url.toExternalForm());
+            } else {
+                enqueue(url);
+            }
+            changed.signal();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Must hold the lock
+     */
+    private void enqueue(final URL url) {
+        if (hosts.size() >= sweepAt) {
+            sweep();
+        }
+        Host host = hosts.computeIfAbsent(keyOf(url), k -> new Host());
+        if (host.queue.isEmpty()) {
+            turns.add(host);
+        }
+        host.queue.add(url);
+        queued++;
+    }
+
+    /**
+     * Tops the host queues back up from the spill file once they are down
+     * to half the window, must hold the lock
+     */
+    private void refill() throws IOException {
+        if (!spill.isPresent() || queued > hotWindow / 2) {
+            return;
+        }
+        String next;
+        while (queued < hotWindow && null != (next = spill.get().poll())) {
+            try {
+                enqueue(new URL(next));
+            } catch (MalformedURLException e) {
+                // It was a URL when it was spilled, so this can't happen
+            }
+        }
+    }
+
+    /**
+     * Takes the next URL that may be fetched now, waiting until one may be
+     * or the crawl is over. Every URL taken must be followed by {@link #done(URL)}.
+     * @return the URL, or empty once the crawl is over
+     * @throws InterruptedException
+     * @throws UncheckedIOException if the spill file can't be read
+     */
+    public Optional<URL> take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (true) {
+                refill();
+                if (stopped || (0 == queued && 0 == busy)) {
+                    // Nothing left and no one to add more, so everyone else can stop too
+                    changed.signalAll();
+                    return Optional.empty();
+                }
+                long now = System.nanoTime();
+                long wait = Long.MAX_VALUE;
+                for (int i = turns.size(); i > 0; i--) {
+                    Host host = turns.poll();
+                    long readyIn = host.readyIn(now);
+                    if (0 == readyIn) {
+                        URL url = host.queue.poll();
+                        host.start();
+                        queued--;
+                        busy++;
+                        taken.merge(url.toExternalForm(), 1, Integer::sum);
+                        if (!host.queue.isEmpty()) {
+                            turns.add(host);
+                        }
+                        return Optional.of(url);
+                    }
+                    wait = Math.min(wait, readyIn);
+                    turns.add(host);
+                }
+                if (Long.MAX_VALUE == wait) {
+                    // Only a fetch finishing can free a host
+                    changed.await();
+                } else {
+                    changed.awaitNanos(wait);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Says the worker is done with a URL it took, and any links it found are in
+     * @param url
+     */
+    public void done(final URL url) {
+        lock.lock();
+        try {
+            busy--;
+            taken.computeIfPresent(url.toExternalForm(), (u, count) -> count > 1 ? count - 1 : null);
+            Host host = hosts.get(keyOf(url));
+            if (null != host) {
+                host.active--;
+            }
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Holds off fetching from a URL's host, for when it has asked to be left alone for a while
+     * @param url any URL on the host
+     * @param millis how long to wait, unless a backoff already running ends later
+     */
+    public void backOff(final URL url, final long millis) {
+        lock.lock();
+        try {
+            Host host = hosts.computeIfAbsent(keyOf(url), k -> new Host());
+            long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+            if (until - host.notBefore > 0) {
+                host.notBefore = until;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Ends the crawl early, workers get nothing more once they ask
+     */
+    public void stop() {
+        lock.lock();
+        try {
+            stopped = true;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Whether {@link #stop()} ended the crawl
+     */
+    public boolean isStopped() {
+        lock.lock();
+        try {
+            return stopped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * How many URLs are waiting, in memory and spilled
+     */
+    public long size() {
+        lock.lock();
+        try {
+            return queued + (spill.isPresent() ? spill.get().size() : 0);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Walks, in their external form, every URL that hasn't been fully
+     * fetched: the ones taken but not done, then the queued ones, then the
+     * spilled ones. Nothing can be added, taken or done until it returns,
+     * so this is a consistent snapshot to checkpoint a crawl from.
+     * @param action
+     * @throws IOException if the spill file can't be read
+     */
+    public void forEachPending(final Consumer<String> action) throws IOException {
+        lock.lock();
+        try {
+            taken.forEach((url, count) -> {
+                for (int i = 0; i < count; i++) {
+                    action.accept(url);
+                }
+            });
+            for (Host host : turns) {
+                host.queue.forEach(u -> action.accept(u.toExternalForm()));
+            }
+            if (spill.isPresent()) {
+                spill.get().forEach(action);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * How many hosts the frontier is keeping track of
+     */
+    public int getHostCount() {
+        lock.lock();
+        try {
+            return hosts.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops the hosts that have nothing queued or running and would start
+     * over the same anyway, with a full bucket and no backoff, so a wide
+     * crawl doesn't keep every host it touched. Hosts are kept in between,
+     * since a host's queue often runs dry and fills again and forgetting
+     * its bucket would let it be fetched faster than its rate.
+     */
+    private void sweep() {
+        long now = System.nanoTime();
+        hosts.values().removeIf(h -> h.queue.isEmpty() && 0 == h.active && now - h.notBefore >= 0 && h.isFull(now));
+        sweepAt = Math.max(1024, hosts.size() * 2);
+    }
+
+    /**
+     * Deletes the spill file, if there is one
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (spill.isPresent()) {
+                spill.get().close();
+                spill = Optional.empty();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static String keyOf(final URL url) {
+        int port = -1 == url.getPort() ? url.getDefaultPort() : url.getPort();
+        return String.format("%s:%d", url.getHost().toLowerCase(Locale.ROOT), port);
+    }
+
+    /**
+     * A host's queue and what decides when it may be fetched next
+     */
+    private final class Host {
+        final ArrayDeque<URL> queue = new ArrayDeque<>();
+        int active;
+        long notBefore = System.nanoTime();
+        double tokens = burst;
+        long refilledAt = System.nanoTime();
+
+        /**
+         * How long until this host may be fetched, 0 if it may be now, or
+         * Long.MAX_VALUE if that waits on one of its fetches finishing
+         */
+        long readyIn(final long now) {
+            if (active >= maxPerHost) {
+                return Long.MAX_VALUE;
+            }
+            if (now - notBefore < 0) {
+                return notBefore - now;
+            }
+            if (rate <= 0) {
+                return 0;
+            }
+            refill(now);
+            return tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) / rate * TimeUnit.SECONDS.toNanos(1));
+        }
+
+        void start() {
+            active++;
+            if (rate > 0) {
+                tokens -= 1;
+            }
+        }
+
+        boolean isFull(final long now) {
+            if (rate <= 0) {
+                return true;
+            }
+            refill(now);
+            return tokens >= burst;
+        }
+
+        private void refill(final long now) {
+            tokens = Math.min(burst, tokens + (now - refilledAt) * rate / TimeUnit.SECONDS.toNanos(1));
+            refilledAt = now;
+        }
+    }
+}
@@ -0,0 +1,398 @@
+package com.pavlovmedia.oss.osgi.http.spider;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import com.pavlovmedia.oss.osgi.http.HttpResponse;
+
+/**
+ * Pulls the links out of an HTML page as it is read. A small tokenizer
+ * walks the characters once, keeping only the tag and attribute it is in,
+ * so the page is never held whole and there is no pattern to backtrack.
+ * <p>
+ * Links come from the href of a, area and base tags, quoted with either
+ * quote or not quoted at all, with character references decoded. They
+ * are resolved against the first base href if there is one, otherwise the
+ * page's URL, so relative, ./ and ../ links all work. Comments, doctypes
+ * and the insides of script and style are skipped. Only http and https
+ * links are kept; a link to a fragment of the same page is not a link.
+ * <p>
+ * This is the {@link com.pavlovmedia.oss.osgi.http.Spider}'s default url parser.
+ *
+ * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
+ *
+ */
+public class LinkExtractor implements Function<HttpResponse, Set<URL>> {
+    private Consumer<Exception> onError = e -> { };
+
+    /**
+     * Sets what gets the errors reading a page, whose links up to that point are still kept
+     * @param onError
+     */
+    public LinkExtractor withErrorHandler(final Consumer<Exception> onError) {
+        this.onError = onError;
+        return this;
+    }
+
+    /**
+     * Gets the links of a successful HTML response, reading its body as it goes
+     * @return the links, in the order they first appear
+     */
+    @Override
+    public Set<URL> apply(final HttpResponse response) {
+        if (!response.isValidResponse(e -> { }) || !isHtml(response.responseHeaders)) {
+            return Collections.emptySet();
+        }
+        Set<URL> links = new LinkedHashSet<>();
+        Optional<Reader> reader = response.getResponseReader(onError);
+        if (reader.isPresent()) {
+            try (Reader in = reader.get()) {
+                extract(in, response.srcUrl, links::add);
+            } catch (IOException e) {
+                onError.accept(e);
+            }
+        }
+        return links;
+    }
+
+    /**
+     * Reads HTML to the end, handing over each link as soon as its tag closes.
+     * The reader is not closed.
+     * @param in
+     * @param source the page's URL, which relative links are resolved against
+     * @param onLink
+     * @throws IOException if reading fails
+     */
+    public static void extract(final Reader in, final URL source, final Consumer<URL> onLink) throws IOException {
+        Tokenizer tokenizer = new Tokenizer(source, onLink);
+        char[] buffer = new char[8192];
+        int count;
+        while ((count = in.read(buffer)) >= 0) {
+            for (int i = 0; i < count; i++) {
+                tokenizer.step(buffer[i]);
+            }
+        }
+    }
+
+    /**
+     * Pages are taken to be HTML when they don't say what they are
+     */
+    private static boolean isHtml(final Map<String, List<String>> headers) {
+        return headers.entrySet().stream()
+                .filter(e -> "Content-Type".equalsIgnoreCase(e.getKey()))
+                .flatMap(e -> e.getValue().stream())
+                .map(v -> v.toLowerCase(Locale.ROOT))
+                .allMatch(v -> v.contains("text/html") || v.contains("application/xhtml"));
+    }
+
+    private enum State {
+        TEXT, TAG_OPEN, BANG, COMMENT, SKIP_TAG, TAG_NAME, BEFORE_ATTRIBUTE, ATTRIBUTE_NAME, AFTER_ATTRIBUTE_NAME,
+        BEFORE_VALUE, DOUBLE_QUOTED, SINGLE_QUOTED, UNQUOTED, RAW_TEXT
+    }
+
+    /**
+     * The HTML tokenizer states that matter for finding links, fed a character at a time
+     */
+    private static final class Tokenizer {
+        /**
+         * Longer names are cut off, no tag that matters is that long. A longer
+         * value is marked as overflowed, and an href cut off that way is dropped
+         * rather than crawled as some other URL.
+         */
+        private static final int MAX_NAME = 16;
+        private static final int MAX_VALUE = 8192;
+
+        private final Consumer<URL> onLink;
+        private URL base;
+        private boolean baseSeen;
+        private State state = State.TEXT;
+        private final StringBuilder tag = new StringBuilder();
+        private final StringBuilder name = new StringBuilder();
+        private final StringBuilder value = new StringBuilder();
+        private boolean overflowed;
+        private String href;
+        private String rawEnd;
+        private int matched;
+
+        Tokenizer(final URL source, final Consumer<URL> onLink) {
+            this.base = source;
+            this.onLink = onLink;
+        }
+
+        void step(final char c) {
+            switch (state) {
+                case TEXT:
+                    if ('<' == c) {
+                        state = State.TAG_OPEN;
+                    }
+                    break;
+                case TAG_OPEN:
+                    if ('!' == c) {
+                        matched = 0;
+                        state = State.BANG;
+                    } else if ('/' == c || '?' == c) {
+                        // End tags and processing instructions have no links
+                        state = State.SKIP_TAG;
+                    } else if (isLetter(c)) {
+                        tag.setLength(0);
+                        href = null;
+                        append(tag, Character.toLowerCase(c), MAX_NAME);
+                        state = State.TAG_NAME;
+                    } else {
+                        state = '<' == c ? State.TAG_OPEN : State.TEXT;
+                    }
+                    break;
+                case BANG:
+                    if ('-' == c && ++matched == 2) {
+                        matched = 0;
+                        state = State.COMMENT;
+                    } else if ('-' != c) {
+                        state = '>' == c ? State.TEXT : State.SKIP_TAG;
+                    }
+                    break;
+                case COMMENT:
+                    if ('-' == c) {
+                        matched++;
+                    } else {
+                        if ('>' == c && matched >= 2) {
+                            state = State.TEXT;
+                        }
+                        matched = 0;
+                    }
+                    break;
+                case SKIP_TAG:
+                    if ('>' == c) {
+                        state = State.TEXT;
+                    }
+                    break;
+                case TAG_NAME:
+                    if (isSpace(c) || '/' == c) {
+                        state = State.BEFORE_ATTRIBUTE;
+                    } else if ('>' == c) {
+                        endOfTag();
+                    } else {
+                        append(tag, Character.toLowerCase(c), MAX_NAME);
+                    }
+                    break;
+                case BEFORE_ATTRIBUTE:
+                    if ('>' == c) {
+                        endOfTag();
+                    } else if (!isSpace(c) && '/' != c) {
+                        startAttribute(c);
+                    }
+                    break;
+                case ATTRIBUTE_NAME:
+                    if ('=' == c) {
+                        state = State.BEFORE_VALUE;
+                    } else if (isSpace(c)) {
+                        state = State.AFTER_ATTRIBUTE_NAME;
+                    } else if ('/' == c) {
+                        state = State.BEFORE_ATTRIBUTE;
+                    } else if ('>' == c) {
+                        endOfTag();
+                    } else {
+                        append(name, Character.toLowerCase(c), MAX_NAME);
+                    }
+                    break;
+                case AFTER_ATTRIBUTE_NAME:
+                    if ('=' == c) {
+                        state = State.BEFORE_VALUE;
+                    } else if ('/' == c) {
+                        state = State.BEFORE_ATTRIBUTE;
+                    } else if ('>' == c) {
+                        endOfTag();
+                    } else if (!isSpace(c)) {
+                        startAttribute(c);
+                    }
+                    break;
+                case BEFORE_VALUE:
+                    value.setLength(0);
+                    overflowed = false;
+                    if ('"' == c) {
+                        state = State.DOUBLE_QUOTED;
+                    } else if ('\'' == c) {
+                        state = State.SINGLE_QUOTED;
+                    } else if ('>' == c) {
+                        attribute();
+                        endOfTag();
+                    } else if (!isSpace(c)) {
+                        appendValue(c);
+                        state = State.UNQUOTED;
+                    }
+                    break;
+                case DOUBLE_QUOTED:
+                case SINGLE_QUOTED:
+                    if ((State.DOUBLE_QUOTED == state ? '"' : '\'') == c) {
+                        attribute();
+                        state = State.BEFORE_ATTRIBUTE;
+                    } else {
+                        appendValue(c);
+                    }
+                    break;
+                case UNQUOTED:
+                    if (isSpace(c)) {
+                        attribute();
+                        state = State.BEFORE_ATTRIBUTE;
+                    } else if ('>' == c) {
+                        attribute();
+                        endOfTag();
+                    } else {
+                        appendValue(c);
+                    }
+                    break;
+                case RAW_TEXT:
+                    // Looking for the end tag, anything else in a script or style is text
+                    if (Character.toLowerCase(c) == rawEnd.charAt(matched)) {
+                        if (++matched == rawEnd.length()) {
+                            state = State.SKIP_TAG;
+                        }
+                    } else {
+                        matched = '<' == c ? 1 : 0;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void startAttribute(final char c) {
+            name.setLength(0);
+            append(name, Character.toLowerCase(c), MAX_NAME);
+            state = State.ATTRIBUTE_NAME;
+        }
+
+        private void attribute() {
+            if (null == href && "href".contentEquals(name)) {
+                // Empty goes nowhere, so an href too long to keep is treated as one
+                href = overflowed ? "" : value.toString();
+            }
+        }
+
+        private void endOfTag() {
+            String tagName = tag.toString();
+            if (null != href) {
+                if ("base".equals(tagName)) {
+                    if (!baseSeen) {
+                        // Only the first base counts
+                        baseSeen = true;
+                        resolve(href).ifPresent(b -> base = b);
+                    }
+                } else if ("a".equals(tagName) || "area".equals(tagName)) {
+                    resolve(href).ifPresent(onLink);
+                }
+                href = null;
+            }
+            if ("script".equals(tagName) || "style".equals(tagName)) {
+                rawEnd = "</" + tagName;
+                matched = 0;
+                state = State.RAW_TEXT;
+            } else {
+                state = State.TEXT;
+            }
+        }
+
+        private Optional<URL> resolve(final String ref) {
+            String link = decode(ref).trim();
+            if (link.isEmpty() || link.startsWith("#")) {
+                return Optional.empty();
+            }
+            try {
+                URL url = new URL(base, link);
+                return "http".equals(url.getProtocol()) || "https".equals(url.getProtocol())
+                        ? Optional.of(url)
+                        : Optional.empty();
+            } catch (MalformedURLException e) {
+                // Unknown schemes, such as javascript: and mailto:, end up here too
+                return Optional.empty();
+            }
+        }
+
+        private static void append(final StringBuilder builder, final char c, final int max) {
+            if (builder.length() < max) {
+                builder.append(c);
+            }
+        }
+
+        private void appendValue(final char c) {
+            if (value.length() < MAX_VALUE) {
+                value.append(c);
+            } else {
+                overflowed = true;
+            }
+        }
+
+        private static boolean isSpace(final char c) {
+            return ' ' == c || '\t' == c || '\n' == c || '\r' == c || '\f' == c;
+        }
+
+        private static boolean isLetter(final char c) {
+            return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+        }
+    }
+
+    /**
+     * Decodes the character references that turn up in links, leaving any others as they are
+     */
+    static String decode(final String value) {
+        int amp = value.indexOf('&');
+        if (amp < 0) {
+            return value;
+        }
+        StringBuilder decoded = new StringBuilder(value.length());
+        int position = 0;
+        while (amp >= 0) {
+            decoded.append(value, position, amp);
+            int semi = value.indexOf(';', amp);
+            String reference = semi < 0 ? "" : value.substring(amp + 1, semi);
+            String replacement = replacement(reference);
+            if (null == replacement) {
+                decoded.append('&');
+                position = amp + 1;
+            } else {
+                decoded.append(replacement);
+                position = semi + 1;
+            }
+            amp = value.indexOf('&', position);
+        }
+        return decoded.append(value, position, value.length()).toString();
+    }
+
+    private static String replacement(final String reference) {
+        switch (reference) {
+            case "amp":
+                return "&";
+            case "quot":
+                return "\"";
+            case "apos":
+                return "'";
+            case "lt":
+                return "<";
+            case "gt":
+                return ">";
+            default:
+                break;
+        }
+        if (reference.length() < 2 || '#' != reference.charAt(0)) {
+            return null;
+        }
+        try {
+            int code = 'x' == Character.toLowerCase(reference.charAt(1))
+                    ? Integer.parseInt(reference.substring(2), 16)
+                    : Integer.parseInt(reference.substring(1));
+            return Character.isValidCodePoint(code) ? new String(Character.toChars(code)) : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.pavlovmedia.oss.osgi.http.spider;
+
+/**
+ * MurmurHash3, the x64 128 bit variant, which is fast, spreads well and is
+ * wide enough that two URLs sharing a hash never happens in practice
+ *
+ * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
+ *
+ */
+final class Murmur3 {
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    private Murmur3() {
+        // Static methods only
+    }
+
+    /**
+     * Hashes bytes with a seed of 0
+     * @return the two halves of the hash
+     */
+    static long[] hash128(final byte[] data) {
+        int length = data.length;
+        long h1 = 0;
+        long h2 = 0;
+        int blocks = length / 16;
+        for (int i = 0; i < blocks; i++) {
+            long k1 = getLong(data, i * 16);
+            long k2 = getLong(data, i * 16 + 8);
+            h1 ^= mixK1(k1);
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+            h2 ^= mixK2(k2);
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        int tail = blocks * 16;
+        long k1 = 0;
+        long k2 = 0;
+        for (int i = length - 1; i >= tail + 8; i--) {
+            k2 ^= (data[i] & 0xffL) << ((i - tail - 8) * 8);
+        }
+        for (int i = Math.min(length, tail + 8) - 1; i >= tail; i--) {
+            k1 ^= (data[i] & 0xffL) << ((i - tail) * 8);
+        }
+        if (length - tail > 8) {
+            h2 ^= mixK2(k2);
+        }
+        if (length > tail) {
+            h1 ^= mixK1(k1);
+        }
+
+        h1 ^= length;
+        h2 ^= length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+        h1 += h2;
+        h2 += h1;
+        return new long[] { h1, h2 };
+    }
+
+    private static long mixK1(final long k1) {
+        return Long.rotateLeft(k1 * C1, 31) * C2;
+    }
+
+    private static long mixK2(final long k2) {
+        return Long.rotateLeft(k2 * C2, 33) * C1;
+    }
+
+    private static long fmix(final long k) {
+        long h = k;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static long getLong(final byte[] data, final int offset) {
+        long value = 0;
+        for (int i = 7; i >= 0; i--) {
+            value = (value << 8) | (data[offset + i] & 0xffL);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,121 @@
+package com.pavlovmedia.oss.osgi.http.spider;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.gson.stream.JsonWriter;
+import com.pavlovmedia.oss.osgi.http.HttpResponse;
+
+/**
+ * Writes a line of JSON for each saved page, newline delimited, with what
+ * was fetched but not the page itself:
+ * <pre>
+ * {"url":"...","status":200,"fetched":"2016-01-01T00:00:00Z","contentType":"text/html","length":1234}
+ * </pre>
+ * The content type is left out when the server didn't send one. The body
+ * is read to count it and to free the connection, then dropped. Lines are
+ * buffered and flushed at most once a second, and on close.
+ *
+ * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
+ *
+ */
+public class NdjsonSink implements CrawlSink {
+    private static final long FLUSH_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final ReentrantLock lock = new ReentrantLock();
+    // Guarded by lock
+    private final Writer out;
+    private long lastFlush = System.nanoTime();
+
+    /**
+     * Writes to the end of a file, creating it if needed
+     * @param file
+     * @throws IOException if the file can't be opened
+     */
+    public NdjsonSink(final Path file) throws IOException {
+        this(Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND,
+                StandardOpenOption.WRITE));
+    }
+
+    /**
+     * Writes to a stream as UTF-8, it is closed with the sink
+     * @param out
+     */
+    public NdjsonSink(final OutputStream out) {
+        this.out = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 65536);
+    }
+
+    @Override
+    public void save(final URL url, final HttpResponse response) throws IOException {
+        save(url, response, Instant.now());
+    }
+
+    @Override
+    public void save(final URL url, final HttpResponse response, final Instant fetched) throws IOException {
+        try (HttpResponse page = response) {
+            AtomicReference<Exception> failed = new AtomicReference<>();
+            ByteBuffer body = page.getResponseBuffer(failed::set);
+            if (null != failed.get()) {
+                throw new IOException("Could not read " + url, failed.get());
+            }
+            StringWriter line = new StringWriter();
+            try (JsonWriter json = new JsonWriter(line)) {
+                json.beginObject();
+                json.name("url").value(url.toExternalForm());
+                json.name("status").value(page.responseCode);
+                json.name("fetched").value(DateTimeFormatter.ISO_INSTANT.format(fetched));
+                String contentType = contentType(page);
+                if (null != contentType) {
+                    json.name("contentType").value(contentType);
+                }
+                json.name("length").value(body.remaining());
+                json.endObject();
+            }
+            lock.lock();
+            try {
+                out.write(line.toString());
+                out.write('\n');
+                long now = System.nanoTime();
+                if (now - lastFlush >= FLUSH_NANOS) {
+                    out.flush();
+                    lastFlush = now;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            out.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static String contentType(final HttpResponse response) {
+        return response.responseHeaders.entrySet().stream()
+                .filter(e -> "Content-Type".equalsIgnoreCase(e.getKey()) && !e.getValue().isEmpty())
+                .map(e -> e.getValue().get(0))
+                .findFirst()
+                .orElse(null);
+    }
+}
@@ -0,0 +1,64 @@
+package com.pavlovmedia.oss.osgi.http.spider;
+
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.Locale;
+
+/**
+ * Reduces the ways of writing the same address to one, so a crawl can tell
+ * it has seen a page before. The scheme and host are lower cased, a default
+ * port is dropped, an empty path becomes /, dot segments are resolved and
+ * the fragment is dropped, since it never reaches the server. The query is
+ * kept as it is, parameter order can matter to the server.
+ *
+ * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
+ *
+ */
+public final class UrlNormalizer {
+    private UrlNormalizer() {
+        // Static methods only
+    }
+
+    /**
+     * Gives the normal form of a URL, or its external form as is if it can't be parsed as a URI
+     * @param url
+     */
+    public static String normalize(final URL url) {
+        String scheme = url.getProtocol().toLowerCase(Locale.ROOT);
+        String host = null == url.getHost() ? "" : url.getHost().toLowerCase(Locale.ROOT);
+        int port = url.getPort() == url.getDefaultPort() ? -1 : url.getPort();
+        String path = url.getPath().isEmpty() ? "/" : url.getPath();
+        try {
+            path = new URI(null, null, path, null).normalize().getRawPath();
+        } catch (URISyntaxException e) {
+            return url.toExternalForm();
+        }
+        StringBuilder normal = new StringBuilder(scheme).append("://");
+        if (null != url.getUserInfo()) {
+            normal.append(url.getUserInfo()).append('@');
+        }
+        normal.append(host);
+        if (port >= 0) {
+            normal.append(':').append(port);
+        }
+        normal.append(path.isEmpty() ? "/" : path);
+        if (null != url.getQuery()) {
+            normal.append('?').append(url.getQuery());
+        }
+        return normal.toString();
+    }
+
+    /**
+     * Gives the normal form of a URL as a URL, or the URL as is if it can't be normalized
+     * @param url
+     */
+    public static URL normalized(final URL url) {
+        try {
+            return new URL(normalize(url));
+        } catch (MalformedURLException e) {
+            return url;
+        }
+    }
+}
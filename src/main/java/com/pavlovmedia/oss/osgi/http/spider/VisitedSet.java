@@ -0,0 +1,42 @@
+package com.pavlovmedia.oss.osgi.http.spider;
+
+/**
+ * The URLs a crawl has already claimed, by their {@link UrlNormalizer normal form}.
+ * Claiming is atomic, so when several workers find the same link only one
+ * of them gets to fetch it. Implementations trade exactness for memory, and
+ * report what they use so a crawl can be sized ahead of time.
+ *
+ * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
+ *
+ */
+public interface VisitedSet {
+    /**
+     * Claims a URL
+     * @param url the normal form
+     * @return true if it had not been seen before
+     */
+    boolean add(String url);
+
+    /**
+     * Checks for a URL without claiming it
+     * @param url the normal form
+     */
+    boolean contains(String url);
+
+    /**
+     * How many URLs have been claimed
+     */
+    long size();
+
+    /**
+     * How many bytes the set holds for its tables, which is nearly all it uses
+     */
+    long getBytesUsed();
+
+    /**
+     * What each URL claimed so far has cost, which includes room kept for growth
+     */
+    default double getBytesPerUrl() {
+        return (double) getBytesUsed() / Math.max(1, size());
+    }
+}
@@ -0,0 +1,203 @@
+package com.pavlovmedia.oss.osgi.http.spider;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.GZIPOutputStream;
+
+import com.pavlovmedia.oss.osgi.http.HttpResponse;
+
+/**
+ * Writes saved pages as WARC/1.1 response records, each compressed as a
+ * gzip member of its own, which is the usual .warc.gz layout: any gzip
+ * reader reads the whole file and WARC tools can seek to a record.
+ * <p>
+ * Bodies come from {@link HttpResponse#getResponseBuffer()}, so they are
+ * the decoded bytes rather than what went over the wire. The headers in a
+ * record say so: Content-Encoding and Transfer-Encoding are left out and
+ * Content-Length is the length stored.
+ *
+ * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
+ *
+ */
+public class WarcSink implements CrawlSink {
+    private static final byte[] END_OF_RECORD = "\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final ReentrantLock lock = new ReentrantLock();
+    // Guarded by lock
+    private final OutputStream out;
+
+    /**
+     * Writes to the end of a file, creating it if needed
+     * @param file
+     * @throws IOException if the file can't be opened
+     */
+    public WarcSink(final Path file) throws IOException {
+        this(Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND,
+                StandardOpenOption.WRITE));
+    }
+
+    /**
+     * Writes to a stream, which is closed with the sink
+     * @param out
+     */
+    public WarcSink(final OutputStream out) {
+        this.out = new BufferedOutputStream(out, 65536);
+    }
+
+    @Override
+    public void save(final URL url, final HttpResponse response) throws IOException {
+        save(url, response, Instant.now());
+    }
+
+    @Override
+    public void save(final URL url, final HttpResponse response, final Instant fetched) throws IOException {
+        try (HttpResponse page = response) {
+            AtomicReference<Exception> failed = new AtomicReference<>();
+            ByteBuffer body = page.getResponseBuffer(failed::set);
+            if (null != failed.get()) {
+                throw new IOException("Could not read " + url, failed.get());
+            }
+            byte[] http = httpHead(page, body.remaining());
+            byte[] warc = warcHead(url, fetched, http.length + (long) body.remaining());
+            lock.lock();
+            try {
+                try (GZIPOutputStream member = new GZIPOutputStream(new Unclosable(out), 8192)) {
+                    member.write(warc);
+                    member.write(http);
+                    writeBody(member, body);
+                    member.write(END_OF_RECORD);
+                }
+                out.flush();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            out.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static byte[] warcHead(final URL url, final Instant fetched, final long blockLength) {
+        StringBuilder head = new StringBuilder("WARC/1.1\r\n")
+            .append("WARC-Type: response\r\n")
+            .append("WARC-Record-ID: <urn:uuid:").append(UUID.randomUUID()).append(">\r\n")
+            .append("WARC-Date: ")
+            .append(DateTimeFormatter.ISO_INSTANT.format(fetched.truncatedTo(ChronoUnit.SECONDS)))
+            .append("\r\n")
+            .append("WARC-Target-URI: ").append(url.toExternalForm()).append("\r\n")
+            .append("Content-Type: application/http; msgtype=response\r\n")
+            .append("Content-Length: ").append(blockLength).append("\r\n\r\n");
+        return head.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The status line and headers as a server would have sent them for the decoded body
+     */
+    private static byte[] httpHead(final HttpResponse response, final int bodyLength) {
+        StringBuilder head = new StringBuilder();
+        // HttpURLConnection keeps the status line under the null key, which case insensitive maps can't look up
+        head.append(response.responseHeaders.entrySet().stream()
+                .filter(e -> null == e.getKey() && !e.getValue().isEmpty())
+                .map(e -> e.getValue().get(0))
+                .findFirst()
+                .orElse("HTTP/1.1 " + response.responseCode + " " + reason(response.responseCode)))
+            .append("\r\n");
+        for (Map.Entry<String, List<String>> header : response.responseHeaders.entrySet()) {
+            if (null == header.getKey()) {
+                continue;
+            }
+            String name = header.getKey().toLowerCase(Locale.ROOT);
+            if ("content-encoding".equals(name) || "transfer-encoding".equals(name)
+                    || "content-length".equals(name)) {
+                continue;
+            }
+            for (String value : header.getValue()) {
+                head.append(header.getKey()).append(": ").append(value).append("\r\n");
+            }
+        }
+        head.append("Content-Length: ").append(bodyLength).append("\r\n\r\n");
+        return head.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The usual reason phrase for a status, the status line needs one even if it is empty
+     */
+    private static String reason(final int code) {
+        switch (code) {
+            case 200:
+                return "OK";
+            case 203:
+                return "Non-Authoritative Information";
+            case 204:
+                return "No Content";
+            case 206:
+                return "Partial Content";
+            case 301:
+                return "Moved Permanently";
+            case 302:
+                return "Found";
+            case 304:
+                return "Not Modified";
+            case 404:
+                return "Not Found";
+            case 410:
+                return "Gone";
+            default:
+                return "";
+        }
+    }
+
+    private static void writeBody(final OutputStream out, final ByteBuffer body) throws IOException {
+        // The buffer is read only, so there's no array to write straight from
+        ByteBuffer view = body.duplicate();
+        byte[] chunk = new byte[8192];
+        while (view.hasRemaining()) {
+            int count = Math.min(chunk.length, view.remaining());
+            view.get(chunk, 0, count);
+            out.write(chunk, 0, count);
+        }
+    }
+
+    /**
+     * Lets each gzip member be closed, which frees its deflater, without closing the file
+     */
+    private static final class Unclosable extends FilterOutputStream {
+        Unclosable(final OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
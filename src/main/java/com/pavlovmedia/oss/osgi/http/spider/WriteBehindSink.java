@@ -0,0 +1,176 @@
+package com.pavlovmedia.oss.osgi.http.spider;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+import com.pavlovmedia.oss.osgi.http.HttpResponse;
+
+/**
+ * Puts a bounded queue and a writer thread in front of another sink, so a
+ * crawl's workers go back to fetching as soon as a page's body is read
+ * instead of waiting on the disk. The body is read into its buffer before
+ * the page is queued, which frees the connection right away, and the
+ * writer hands the pages on in order. When the queue is full the workers
+ * wait for room, so at most the queue's capacity of bodies is held at once
+ * however many pages are saved.
+ * <p>
+ * Since saving happens later, failures go to the error handler rather than
+ * back to the crawl. Closing waits for the queue to be written out, then
+ * closes the sink behind it.
+ *
+ * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
+ *
+ */
+public class WriteBehindSink implements CrawlSink {
+    private final CrawlSink sink;
+    // Empty marks the end of the pages
+    private final BlockingQueue<Optional<Page>> queue;
+    private final Thread writer;
+    // Saves share this, closing takes it alone so nothing is queued behind the end
+    private final ReentrantReadWriteLock closeLock = new ReentrantReadWriteLock();
+    private volatile Consumer<Exception> onError = e -> { };
+    // Guarded by closeLock
+    private boolean closed;
+
+    /**
+     * Starts the writer for a sink
+     * @param sink where the pages go, which is only called from the writer thread
+     * @param capacity how many pages can wait to be written
+     */
+    public WriteBehindSink(final CrawlSink sink, final int capacity) {
+        this.sink = sink;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+        this.writer = new Thread(this::drain, "pavlov-crawl-sink");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Sets what gets the errors saving pages
+     * @param onError
+     */
+    public WriteBehindSink withErrorHandler(final Consumer<Exception> onError) {
+        this.onError = onError;
+        return this;
+    }
+
+    /**
+     * How many pages are waiting to be written
+     */
+    public int getQueued() {
+        return queue.size();
+    }
+
+    /**
+     * Reads the page's body and queues it, waiting for room if the queue is full
+     * @throws IOException if the body can't be read or the sink is closed
+     */
+    @Override
+    public void save(final URL url, final HttpResponse response) throws IOException {
+        save(url, response, Instant.now());
+    }
+
+    /**
+     * Queues a page like {@link #save(URL, HttpResponse)}, the sink behind is given the fetch time
+     * @throws IOException if the body can't be read or the sink is closed
+     */
+    @Override
+    public void save(final URL url, final HttpResponse response, final Instant fetched) throws IOException {
+        closeLock.readLock().lock();
+        try {
+            if (closed) {
+                throw new IOException("The sink has been closed");
+            }
+            // Reading the body now frees the connection rather than when the writer gets to it
+            AtomicReference<Exception> failed = new AtomicReference<>();
+            response.getResponseBuffer(failed::set);
+            if (null != failed.get()) {
+                throw new IOException("Could not read " + url, failed.get());
+            }
+            queue.put(Optional.of(new Page(url, response, fetched)));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            response.close();
+            throw new InterruptedIOException("Interrupted waiting to queue " + url);
+        } catch (IOException | RuntimeException e) {
+            response.close();
+            throw e;
+        } finally {
+            closeLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Waits for the queued pages to be written, then closes the sink behind this one
+     */
+    @Override
+    public void close() throws IOException {
+        closeLock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    queue.put(Optional.empty());
+                    writer.join();
+                    break;
+                } catch (InterruptedException e) {
+                    // The pages already taken over still have to be written
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        } finally {
+            closeLock.writeLock().unlock();
+        }
+        sink.close();
+    }
+
+    private void drain() {
+        while (true) {
+            Optional<Page> next;
+            try {
+                next = queue.take();
+            } catch (InterruptedException e) {
+                // Only close ends the writer
+                continue;
+            }
+            if (!next.isPresent()) {
+                return;
+            }
+            try {
+                sink.save(next.get().url, next.get().response, next.get().fetched);
+            } catch (IOException | RuntimeException e) {
+                onError.accept(e);
+            }
+        }
+    }
+
+    /**
+     * A page waiting to be written
+     */
+    private static final class Page {
+        final URL url;
+        final HttpResponse response;
+        final Instant fetched;
+
+        Page(final URL url, final HttpResponse response, final Instant fetched) {
+            this.url = url;
+            this.response = response;
+            this.fetched = fetched;
+        }
+    }
+}
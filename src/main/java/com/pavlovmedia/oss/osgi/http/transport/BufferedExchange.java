@@ -0,0 +1,64 @@
+package com.pavlovmedia.oss.osgi.http.transport;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * An exchange whose response has already been read completely into memory,
+ * so nothing on it can block and there is no connection left to give back.
+ *
+ * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
+ *
+ */
+final class BufferedExchange implements HttpExchange {
+    private final URL url;
+    private final ResponseHead head;
+    private final byte[] body;
+    private final int length;
+
+    BufferedExchange(final URL url, final ResponseHead head, final byte[] body, final int length) {
+        this.url = url;
+        this.head = head;
+        this.body = body;
+        this.length = length;
+    }
+
+    URL getUrl() {
+        return url;
+    }
+
+    Optional<String> header(final String name) {
+        return head.header(name);
+    }
+
+    @Override
+    public int getResponseCode() {
+        return head.code;
+    }
+
+    @Override
+    public Map<String, List<String>> getHeaderFields() {
+        return head.headers;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        NioExchange.checkStatus(head.code, url);
+        return new ByteArrayInputStream(body, 0, length);
+    }
+
+    @Override
+    public Optional<InputStream> getErrorStream() {
+        return head.code >= 400 ? Optional.of(new ByteArrayInputStream(body, 0, length)) : Optional.empty();
+    }
+
+    @Override
+    public void close() {
+        // Nothing is held open
+    }
+}
@@ -0,0 +1,120 @@
+package com.pavlovmedia.oss.osgi.http.transport;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A body framed with chunked transfer encoding. Chunk extensions and
+ * trailers are read and thrown away.
+ *
+ * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
+ *
+ */
+final class ChunkedInputStream extends InputStream {
+    private static final int MAX_LINE = 8192;
+
+    private final InputStream source;
+    private final Runnable onComplete;
+    private final Runnable onAbort;
+    private long chunkRemaining;
+    private boolean finished;
+    private boolean started;
+
+    ChunkedInputStream(final InputStream source, final Runnable onComplete, final Runnable onAbort) {
+        this.source = source;
+        this.onComplete = onComplete;
+        this.onAbort = onAbort;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        return -1 == read(one, 0, 1) ? -1 : one[0] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        if (finished) {
+            return -1;
+        }
+        if (0 == len) {
+            return 0;
+        }
+        try {
+            if (0 == chunkRemaining) {
+                nextChunk();
+                if (finished) {
+                    return -1;
+                }
+            }
+            int count = source.read(b, off, (int) Math.min(len, chunkRemaining));
+            if (count < 0) {
+                throw new EOFException("Connection closed inside a chunk");
+            }
+            chunkRemaining -= count;
+            return count;
+        } catch (IOException e) {
+            finished = true;
+            onAbort.run();
+            throw e;
+        }
+    }
+
+    private void nextChunk() throws IOException {
+        if (started) {
+            // The CRLF that ends the previous chunk's data
+            readLine();
+        }
+        started = true;
+        String line = readLine();
+        int extension = line.indexOf(';');
+        String size = (extension >= 0 ? line.substring(0, extension) : line).trim();
+        try {
+            chunkRemaining = Long.parseLong(size, 16);
+        } catch (NumberFormatException e) {
+            throw new IOException("Bad chunk size: " + line);
+        }
+        if (0 == chunkRemaining) {
+            // Skip any trailers up to the blank line
+            while (!readLine().isEmpty()) {
+                continue;
+            }
+            finished = true;
+            onComplete.run();
+        }
+    }
+
+    private String readLine() throws IOException {
+        StringBuilder sb = new StringBuilder(16);
+        while (true) {
+            int ch = source.read();
+            if (ch < 0) {
+                throw new EOFException("Connection closed inside chunk framing");
+            }
+            if ('\n' == ch) {
+                break;
+            }
+            if ('\r' != ch) {
+                if (sb.length() >= MAX_LINE) {
+                    throw new IOException("Chunk header too long");
+                }
+                sb.append((char) ch);
+            }
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public int available() throws IOException {
+        return finished ? 0 : (int) Math.min(chunkRemaining, source.available());
+    }
+
+    @Override
+    public void close() {
+        if (!finished) {
+            finished = true;
+            onAbort.run();
+        }
+    }
+}
@@ -0,0 +1,534 @@
+package com.pavlovmedia.oss.osgi.http.transport;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A pool of keep-alive connections for {@link NioHttpTransport}, kept per
+ * route (scheme, host and port). The pool caps connections per route and
+ * in total, closes connections that sit idle too long, and makes requests
+ * wait, up to a timeout, when it is at its limits.
+ * <p>
+ * All bookkeeping is done under a {@link ReentrantLock}, never while doing
+ * socket I/O, so waiting on the pool does not pin virtual threads.
+ *
+ * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
+ *
+ */
+public class ConnectionPool implements AutoCloseable {
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    private final Map<Route, RouteState> routes = new HashMap<>();
+    private final List<AsyncWaiter> asyncWaiters = new ArrayList<>();
+
+    private int maxPerRoute = 20;
+    private int maxTotal = 200;
+    private long idleTimeout = TimeUnit.SECONDS.toMillis(60);
+    private long leaseTimeout = TimeUnit.SECONDS.toMillis(30);
+
+    private int totalLeased;
+    private int totalIdle;
+    private int totalPending;
+    private long totalCreated;
+    private long totalEvicted;
+    private long nextSweep = System.nanoTime();
+    private boolean closed;
+
+    /**
+     * Sets the most connections, leased and idle, kept for one route
+     * @param maxPerRoute
+     */
+    public ConnectionPool withMaxPerRoute(final int maxPerRoute) {
+        this.maxPerRoute = maxPerRoute;
+        return this;
+    }
+
+    /**
+     * Sets the most connections, leased and idle, kept across all routes
+     * @param maxTotal
+     */
+    public ConnectionPool withMaxTotal(final int maxTotal) {
+        this.maxTotal = maxTotal;
+        return this;
+    }
+
+    /**
+     * Sets how long in milliseconds a connection can sit idle before it is closed
+     * @param idleTimeout
+     */
+    public ConnectionPool withIdleTimeout(final long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+        return this;
+    }
+
+    /**
+     * Sets how long in milliseconds a request waits for a connection when the pool
+     * is at its limits before failing with a {@link SocketTimeoutException}
+     * @param leaseTimeout
+     */
+    public ConnectionPool withLeaseTimeout(final long leaseTimeout) {
+        this.leaseTimeout = leaseTimeout;
+        return this;
+    }
+
+    /**
+     * Opens new connections for the pool
+     */
+    @FunctionalInterface
+    interface Connector {
+        NioConnection connect(Route route) throws IOException;
+    }
+
+    /**
+     * Told the outcome of an asynchronous lease, on whichever thread resolved it
+     */
+    interface LeaseCallback {
+        /**
+         * A connection was leased. If fresh is true the caller must open it and
+         * report the result through {@link ConnectionPool#opened(Route, boolean)},
+         * otherwise it is an idle connection that has already been checked.
+         */
+        void leased(Route route, NioConnection connection, boolean fresh);
+
+        void failed(IOException e);
+    }
+
+    /**
+     * Leases a connection for a route, reusing an idle one if it is still good,
+     * opening one if the limits allow, or else waiting for one to be released.
+     */
+    NioConnection lease(final Route route, final Connector connector) throws IOException {
+        long remaining = TimeUnit.MILLISECONDS.toNanos(leaseTimeout);
+        while (true) {
+            Reservation reservation;
+            List<NioConnection> victims = new ArrayList<>();
+            lock.lock();
+            try {
+                reservation = reserve(route, victims);
+                if (null == reservation) {
+                    if (remaining <= 0) {
+                        throw timeout(route);
+                    }
+                    RouteState state = state(route);
+                    state.pending++;
+                    totalPending++;
+                    try {
+                        remaining = available.awaitNanos(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted waiting for a pooled connection");
+                    } finally {
+                        state.pending--;
+                        totalPending--;
+                    }
+                    continue;
+                }
+            } finally {
+                lock.unlock();
+                victims.forEach(NioConnection::close);
+            }
+
+            if (null == reservation.idle) {
+                NioConnection connection;
+                try {
+                    connection = connector.connect(route);
+                } catch (IOException | RuntimeException e) {
+                    opened(route, false);
+                    throw e;
+                }
+                opened(route, true);
+                return connection;
+            }
+            if (isStillGood(reservation.idle)) {
+                return reservation.idle;
+            }
+        }
+    }
+
+    /**
+     * Leases a connection without ever waiting on the calling thread. If the pool is at
+     * its limits the callback is queued and run once a connection is released, or
+     * failed through the timeouts scheduler when the lease timeout runs out.
+     */
+    void leaseAsync(final Route route, final LeaseCallback callback, final NioEventLoop timeouts) {
+        Reservation reservation = null;
+        IOException failure = null;
+        List<NioConnection> victims = new ArrayList<>();
+        lock.lock();
+        try {
+            reservation = reserve(route, victims);
+            if (null == reservation) {
+                AsyncWaiter waiter = new AsyncWaiter(route, callback, timeouts);
+                waiter.timer = timeouts.schedule(() -> {
+                    if (removeWaiter(waiter)) {
+                        callback.failed(timeout(route));
+                    }
+                }, leaseTimeout);
+                asyncWaiters.add(waiter);
+                state(route).pending++;
+                totalPending++;
+                return;
+            }
+        } catch (IOException e) {
+            // Reported once the lock is let go, the callback is the caller's code
+            failure = e;
+        } finally {
+            lock.unlock();
+            victims.forEach(NioConnection::close);
+        }
+
+        if (null != failure) {
+            callback.failed(failure);
+        } else if (null == reservation.idle) {
+            callback.leased(route, null, true);
+        } else if (isStillGood(reservation.idle)) {
+            callback.leased(route, reservation.idle, false);
+        } else {
+            leaseAsync(route, callback, timeouts);
+        }
+    }
+
+    /**
+     * Reports how opening a connection leased with nothing in it went
+     */
+    void opened(final Route route, final boolean success) {
+        if (success) {
+            lock.lock();
+            try {
+                state(route).created++;
+                totalCreated++;
+            } finally {
+                lock.unlock();
+            }
+        } else {
+            dropLease(route, false);
+        }
+    }
+
+    /**
+     * Claims a slot for the route under the lock: an idle connection, an empty
+     * slot to open a new connection in, or null if the caller has to wait.
+     * Connections evicted on the way are added to victims, for the caller to
+     * close once it has let go of the lock.
+     */
+    private Reservation reserve(final Route route, final List<NioConnection> victims) throws IOException {
+        while (true) {
+            if (closed) {
+                throw new IOException("Connection pool is closed");
+            }
+            sweep(false, victims);
+            RouteState state = state(route);
+            NioConnection candidate = state.idle.pollFirst();
+            if (null != candidate) {
+                totalIdle--;
+                state.leased++;
+                totalLeased++;
+                return new Reservation(candidate);
+            }
+            if (state.leased < maxPerRoute && totalLeased + totalIdle < maxTotal) {
+                state.leased++;
+                totalLeased++;
+                return new Reservation(null);
+            }
+            if (state.leased < maxPerRoute && totalIdle > 0) {
+                // Make room by closing the oldest idle connection on another route
+                evictOldestIdle(victims);
+                continue;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Probes an idle connection outside of the lock since it touches the socket,
+     * dropping the lease if it has gone bad
+     */
+    private boolean isStillGood(final NioConnection candidate) {
+        if (candidate.idleMillis() < idleTimeout && candidate.isReusable()) {
+            return true;
+        }
+        candidate.close();
+        dropLease(candidate.route, true);
+        return false;
+    }
+
+    private SocketTimeoutException timeout(final Route route) {
+        return new SocketTimeoutException(String.format(
+                "Timed out after %dms waiting for a pooled connection to %s", leaseTimeout, route));
+    }
+
+    private boolean removeWaiter(final AsyncWaiter waiter) {
+        lock.lock();
+        try {
+            if (asyncWaiters.remove(waiter)) {
+                state(waiter.route).pending--;
+                totalPending--;
+                return true;
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Called with the lock held whenever capacity frees up, hands back the
+     * async waiters so they can retry once the lock is released
+     */
+    private List<AsyncWaiter> drainWaiters() {
+        available.signalAll();
+        if (asyncWaiters.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<AsyncWaiter> ret = new ArrayList<>(asyncWaiters);
+        asyncWaiters.clear();
+        ret.forEach(w -> {
+            state(w.route).pending--;
+            totalPending--;
+        });
+        return ret;
+    }
+
+    private void retry(final List<AsyncWaiter> waiters) {
+        waiters.forEach(w -> {
+            w.timer.cancel();
+            leaseAsync(w.route, w.callback, w.timeouts);
+        });
+    }
+
+    /**
+     * Gives a leased connection back, keeping it for reuse if it is still good
+     */
+    void release(final NioConnection connection, final boolean reusable) {
+        boolean kept = false;
+        List<AsyncWaiter> waiters;
+        lock.lock();
+        try {
+            RouteState state = state(connection.route);
+            state.leased--;
+            totalLeased--;
+            if (reusable && !closed) {
+                connection.touch();
+                state.idle.offerFirst(connection);
+                totalIdle++;
+                kept = true;
+            }
+            waiters = drainWaiters();
+        } finally {
+            lock.unlock();
+        }
+        if (!kept) {
+            connection.close();
+        }
+        retry(waiters);
+    }
+
+    private void dropLease(final Route route, final boolean evicted) {
+        List<AsyncWaiter> waiters;
+        lock.lock();
+        try {
+            RouteState state = state(route);
+            state.leased--;
+            totalLeased--;
+            if (evicted) {
+                state.evicted++;
+                totalEvicted++;
+            }
+            waiters = drainWaiters();
+        } finally {
+            lock.unlock();
+        }
+        retry(waiters);
+    }
+
+    /**
+     * Closes every idle connection that has been idle longer than the idle timeout.
+     * This also happens as the pool is used, so calling it is only needed to
+     * trim a pool that has gone quiet.
+     */
+    public void evictIdle() {
+        List<NioConnection> victims = new ArrayList<>();
+        lock.lock();
+        try {
+            sweep(true, victims);
+        } finally {
+            lock.unlock();
+        }
+        victims.forEach(NioConnection::close);
+    }
+
+    /**
+     * Closes every idle connection on a route, for when one of them turned
+     * out to have been closed by the server and the rest are older still
+     */
+    void evictIdle(final Route route) {
+        List<NioConnection> victims = new ArrayList<>();
+        lock.lock();
+        try {
+            RouteState state = routes.get(route);
+            if (null == state) {
+                return;
+            }
+            NioConnection idle;
+            while (null != (idle = state.idle.pollFirst())) {
+                totalIdle--;
+                state.evicted++;
+                totalEvicted++;
+                victims.add(idle);
+            }
+        } finally {
+            lock.unlock();
+        }
+        victims.forEach(NioConnection::close);
+    }
+
+    /**
+     * Walks the idle connections at most every half idle timeout, unless forced.
+     * Each route's idle deque is ordered most recent first, so only the tail is checked.
+     * What it takes out goes to victims, to be closed after the lock is let go.
+     */
+    private void sweep(final boolean force, final List<NioConnection> victims) {
+        long now = System.nanoTime();
+        if (!force && now - nextSweep < 0) {
+            return;
+        }
+        nextSweep = now + TimeUnit.MILLISECONDS.toNanos(Math.max(1, idleTimeout / 2));
+        for (Iterator<RouteState> it = routes.values().iterator(); it.hasNext();) {
+            RouteState state = it.next();
+            NioConnection oldest;
+            while (null != (oldest = state.idle.peekLast()) && oldest.idleMillis() >= idleTimeout) {
+                state.idle.pollLast();
+                totalIdle--;
+                state.evicted++;
+                totalEvicted++;
+                victims.add(oldest);
+            }
+            if (state.isUnused()) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Takes out the connection that has been idle longest on any route, adding it to victims
+     */
+    private void evictOldestIdle(final List<NioConnection> victims) {
+        RouteState victim = null;
+        long longest = -1;
+        for (RouteState state : routes.values()) {
+            NioConnection oldest = state.idle.peekLast();
+            if (null != oldest && oldest.idleMillis() > longest) {
+                longest = oldest.idleMillis();
+                victim = state;
+            }
+        }
+        if (null != victim) {
+            victims.add(victim.idle.pollLast());
+            totalIdle--;
+            victim.evicted++;
+            totalEvicted++;
+        }
+    }
+
+    private RouteState state(final Route route) {
+        return routes.computeIfAbsent(route, r -> new RouteState());
+    }
+
+    /**
+     * Gets the statistics for the whole pool
+     */
+    public PoolStats getStats() {
+        lock.lock();
+        try {
+            return new PoolStats(totalLeased, totalIdle, totalPending, totalCreated, totalEvicted);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the statistics for each route the pool currently knows about
+     */
+    public Map<Route, PoolStats> getRouteStats() {
+        lock.lock();
+        try {
+            HashMap<Route, PoolStats> ret = new HashMap<>();
+            routes.forEach((route, state) -> ret.put(route, state.toStats()));
+            return Collections.unmodifiableMap(ret);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes all idle connections and stops pooling, leased connections
+     * are closed as they are released
+     */
+    @Override
+    public void close() {
+        List<NioConnection> toClose = new ArrayList<>();
+        List<AsyncWaiter> waiters;
+        lock.lock();
+        try {
+            closed = true;
+            waiters = drainWaiters();
+            routes.values().forEach(state -> {
+                toClose.addAll(state.idle);
+                state.idle.clear();
+            });
+            totalIdle = 0;
+        } finally {
+            lock.unlock();
+        }
+        toClose.forEach(NioConnection::close);
+        retry(waiters);
+    }
+
+    private static final class Reservation {
+        final NioConnection idle;
+
+        Reservation(final NioConnection idle) {
+            this.idle = idle;
+        }
+    }
+
+    private static final class AsyncWaiter {
+        final Route route;
+        final LeaseCallback callback;
+        final NioEventLoop timeouts;
+        NioEventLoop.Timer timer;
+
+        AsyncWaiter(final Route route, final LeaseCallback callback, final NioEventLoop timeouts) {
+            this.route = route;
+            this.callback = callback;
+            this.timeouts = timeouts;
+        }
+    }
+
+    private static final class RouteState {
+        final ArrayDeque<NioConnection> idle = new ArrayDeque<>();
+        int leased;
+        int pending;
+        long created;
+        long evicted;
+
+        boolean isUnused() {
+            return idle.isEmpty() && 0 == leased && 0 == pending;
+        }
+
+        PoolStats toStats() {
+            return new PoolStats(leased, idle.size(), pending, created, evicted);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.pavlovmedia.oss.osgi.http.transport;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A body framed by Content-Length. The completion callback runs as soon as the
+ * last byte is handed out so the connection can go back to the pool right away,
+ * after which this stream never touches the source again. A negative length
+ * reads until the server closes the connection.
+ *
+ * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
+ *
+ */
+final class FixedLengthInputStream extends InputStream {
+    private final InputStream source;
+    private final Runnable onComplete;
+    private final Runnable onAbort;
+    private long remaining;
+
+    FixedLengthInputStream(final InputStream source, final long length,
+            final Runnable onComplete, final Runnable onAbort) {
+        this.source = source;
+        this.remaining = length;
+        this.onComplete = onComplete;
+        this.onAbort = onAbort;
+        if (0 == length) {
+            onComplete.run();
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        return -1 == read(one, 0, 1) ? -1 : one[0] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        if (0 == remaining) {
+            return -1;
+        }
+        if (0 == len) {
+            return 0;
+        }
+        if (remaining < 0) {
+            int count = source.read(b, off, len);
+            if (count < 0) {
+                remaining = 0;
+                onComplete.run();
+            }
+            return count;
+        }
+        int count = source.read(b, off, (int) Math.min(len, remaining));
+        if (count < 0) {
+            remaining = 0;
+            onAbort.run();
+            throw new EOFException("Connection closed before the end of the body");
+        }
+        remaining -= count;
+        if (0 == remaining) {
+            onComplete.run();
+        }
+        return count;
+    }
+
+    @Override
+    public int available() throws IOException {
+        if (remaining < 0) {
+            return source.available();
+        }
+        return (int) Math.min(remaining, source.available());
+    }
+
+    @Override
+    public void close() {
+        if (0 != remaining) {
+            remaining = 0;
+            onAbort.run();
+        }
+    }
+}
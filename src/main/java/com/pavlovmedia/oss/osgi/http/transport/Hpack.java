@@ -0,0 +1,343 @@
+package com.pavlovmedia.oss.osgi.http.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HPACK header compression for {@link Http2Transport} (RFC 7541). The encoder
+ * never adds to the peer's dynamic table, so it is stateless and safe to share,
+ * while each connection keeps its own {@link Decoder} for what the server sends.
+ *
+ * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
+ *
+ */
+final class Hpack {
+    static final int DEFAULT_TABLE_SIZE = 4096;
+    private static final int ENTRY_OVERHEAD = 32;
+
+    private static final String[][] STATIC_TABLE = {
+        { ":authority", "" }, { ":method", "GET" }, { ":method", "POST" }, { ":path", "/" },
+        { ":path", "/index.html" }, { ":scheme", "http" }, { ":scheme", "https" }, { ":status", "200" },
+        { ":status", "204" }, { ":status", "206" }, { ":status", "304" }, { ":status", "400" },
+        { ":status", "404" }, { ":status", "500" }, { "accept-charset", "" }, { "accept-encoding", "gzip, deflate" },
+        { "accept-language", "" }, { "accept-ranges", "" }, { "accept", "" }, { "access-control-allow-origin", "" },
+        { "age", "" }, { "allow", "" }, { "authorization", "" }, { "cache-control", "" },
+        { "content-disposition", "" }, { "content-encoding", "" }, { "content-language", "" },
+        { "content-length", "" }, { "content-location", "" }, { "content-range", "" }, { "content-type", "" },
+        { "cookie", "" }, { "date", "" }, { "etag", "" }, { "expect", "" }, { "expires", "" }, { "from", "" },
+        { "host", "" }, { "if-match", "" }, { "if-modified-since", "" }, { "if-none-match", "" },
+        { "if-range", "" }, { "if-unmodified-since", "" }, { "last-modified", "" }, { "link", "" },
+        { "location", "" }, { "max-forwards", "" }, { "proxy-authenticate", "" }, { "proxy-authorization", "" },
+        { "range", "" }, { "referer", "" }, { "refresh", "" }, { "retry-after", "" }, { "server", "" },
+        { "set-cookie", "" }, { "strict-transport-security", "" }, { "transfer-encoding", "" },
+        { "user-agent", "" }, { "vary", "" }, { "via", "" }, { "www-authenticate", "" }
+    };
+
+    private static final Map<String, Integer> STATIC_NAMES = new HashMap<>();
+    private static final Map<String, Integer> STATIC_FIELDS = new HashMap<>();
+
+    static {
+        for (int i = STATIC_TABLE.length - 1; i >= 0; i--) {
+            STATIC_NAMES.put(STATIC_TABLE[i][0], i + 1);
+            if (!STATIC_TABLE[i][1].isEmpty()) {
+                STATIC_FIELDS.put(STATIC_TABLE[i][0] + '\0' + STATIC_TABLE[i][1], i + 1);
+            }
+        }
+    }
+
+    /**
+     * The Huffman code for each octet, from RFC 7541 Appendix B
+     */
+    private static final int[] CODES = {
+        0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+        0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+        0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+        0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+        0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+        0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+        0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+        0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+        0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+        0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+        0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+        0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+        0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+        0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+        0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+        0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+        0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+        0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+        0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+        0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+        0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+        0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+        0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+        0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+        0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+        0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+        0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+        0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+        0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+        0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+        0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+        0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee
+    };
+
+    private static final byte[] LENGTHS = {
+        13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+        28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+        6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+        5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+        13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+        7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+        15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+        6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+        20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+        24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+        22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+        21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+        26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+        19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+        20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+        26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26
+    };
+
+    /**
+     * The decoding tree, two child slots per node with leaves stored as the
+     * negated symbol minus one
+     */
+    private static final int[] TREE = buildTree();
+
+    private Hpack() { }
+
+    /**
+     * A decoded header
+     */
+    static final class Field {
+        final String name;
+        final String value;
+
+        Field(final String name, final String value) {
+            this.name = name;
+            this.value = value;
+        }
+
+        int size() {
+            return name.length() + value.length() + ENTRY_OVERHEAD;
+        }
+    }
+
+    /**
+     * Encodes one header into a header block. Names must already be lower case.
+     */
+    static void encode(final String name, final String value, final ByteArrayOutputStream out) {
+        Integer exact = STATIC_FIELDS.get(name + '\0' + value);
+        if (null != exact) {
+            writeInt(out, 0x80, 7, exact);
+            return;
+        }
+        // Credentials are marked so intermediaries never index them either
+        int literal = "authorization".equals(name) || "proxy-authorization".equals(name) ? 0x10 : 0x00;
+        Integer nameIndex = STATIC_NAMES.get(name);
+        if (null != nameIndex) {
+            writeInt(out, literal, 4, nameIndex);
+        } else {
+            out.write(literal);
+            writeString(out, name);
+        }
+        writeString(out, value);
+    }
+
+    private static void writeString(final ByteArrayOutputStream out, final String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.ISO_8859_1);
+        writeInt(out, 0x00, 7, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static void writeInt(final ByteArrayOutputStream out, final int first, final int prefix,
+            final int value) {
+        int max = (1 << prefix) - 1;
+        if (value < max) {
+            out.write(first | value);
+            return;
+        }
+        out.write(first | max);
+        int rest = value - max;
+        while (rest >= 0x80) {
+            out.write((rest & 0x7f) | 0x80);
+            rest >>>= 7;
+        }
+        out.write(rest);
+    }
+
+    /**
+     * Decodes header blocks from one peer, keeping the dynamic table between them.
+     * Not thread safe, a connection decodes on its reader thread.
+     */
+    static final class Decoder {
+        private final ArrayDeque<Field> dynamic = new ArrayDeque<>();
+        private final int limit;
+        private int maxSize;
+        private int size;
+
+        /**
+         * @param limit the SETTINGS_HEADER_TABLE_SIZE we advertised
+         */
+        Decoder(final int limit) {
+            this.limit = limit;
+            this.maxSize = limit;
+        }
+
+        List<Field> decode(final byte[] block) throws IOException {
+            List<Field> fields = new ArrayList<>();
+            int[] pos = { 0 };
+            while (pos[0] < block.length) {
+                int b = block[pos[0]] & 0xff;
+                if (0 != (b & 0x80)) {
+                    fields.add(lookup(readInt(block, pos, 7)));
+                } else if (0x40 == (b & 0xc0)) {
+                    Field field = readLiteral(block, pos, 6);
+                    add(field);
+                    fields.add(field);
+                } else if (0x20 == (b & 0xe0)) {
+                    int newSize = readInt(block, pos, 5);
+                    if (newSize > limit) {
+                        throw new IOException("HPACK table size update over the limit: " + newSize);
+                    }
+                    maxSize = newSize;
+                    evict();
+                } else {
+                    fields.add(readLiteral(block, pos, 4));
+                }
+            }
+            return fields;
+        }
+
+        private Field readLiteral(final byte[] block, final int[] pos, final int prefix) throws IOException {
+            int index = readInt(block, pos, prefix);
+            String name = 0 == index ? readString(block, pos) : lookup(index).name;
+            return new Field(name, readString(block, pos));
+        }
+
+        private Field lookup(final int index) throws IOException {
+            if (index >= 1 && index <= STATIC_TABLE.length) {
+                return new Field(STATIC_TABLE[index - 1][0], STATIC_TABLE[index - 1][1]);
+            }
+            int dynamicIndex = index - STATIC_TABLE.length - 1;
+            if (index < 1 || dynamicIndex >= dynamic.size()) {
+                throw new IOException("HPACK index out of range: " + index);
+            }
+            Iterator<Field> fields = dynamic.iterator();
+            for (int i = 0; i < dynamicIndex; i++) {
+                fields.next();
+            }
+            return fields.next();
+        }
+
+        private void add(final Field field) {
+            dynamic.addFirst(field);
+            size += field.size();
+            evict();
+        }
+
+        private void evict() {
+            while (size > maxSize && !dynamic.isEmpty()) {
+                size -= dynamic.removeLast().size();
+            }
+        }
+    }
+
+    private static int readInt(final byte[] block, final int[] pos, final int prefix) throws IOException {
+        int max = (1 << prefix) - 1;
+        int value = block[pos[0]++] & max;
+        if (value < max) {
+            return value;
+        }
+        for (int shift = 0; shift < 28; shift += 7) {
+            if (pos[0] >= block.length) {
+                throw new IOException("Truncated HPACK integer");
+            }
+            int b = block[pos[0]++] & 0xff;
+            value += (b & 0x7f) << shift;
+            if (0 == (b & 0x80)) {
+                return value;
+            }
+        }
+        throw new IOException("HPACK integer too large");
+    }
+
+    private static String readString(final byte[] block, final int[] pos) throws IOException {
+        if (pos[0] >= block.length) {
+            throw new IOException("Truncated HPACK string");
+        }
+        boolean huffman = 0 != (block[pos[0]] & 0x80);
+        int length = readInt(block, pos, 7);
+        if (length > block.length - pos[0]) {
+            throw new IOException("Truncated HPACK string");
+        }
+        String value = huffman
+                ? decodeHuffman(block, pos[0], length)
+                : new String(block, pos[0], length, StandardCharsets.ISO_8859_1);
+        pos[0] += length;
+        return value;
+    }
+
+    static String decodeHuffman(final byte[] data, final int offset, final int length) throws IOException {
+        StringBuilder out = new StringBuilder(length * 8 / 5);
+        int node = 0;
+        int depth = 0;
+        boolean allOnes = true;
+        for (int i = offset; i < offset + length; i++) {
+            int b = data[i] & 0xff;
+            for (int bit = 7; bit >= 0; bit--) {
+                int one = (b >>> bit) & 1;
+                int next = TREE[node * 2 + one];
+                if (0 == next) {
+                    throw new IOException("Invalid Huffman code");
+                }
+                allOnes &= 1 == one;
+                depth++;
+                if (next < 0) {
+                    out.append((char) (-next - 1));
+                    node = 0;
+                    depth = 0;
+                    allOnes = true;
+                } else {
+                    node = next;
+                }
+            }
+        }
+        // Only a partial EOS, which is all ones, may pad the last octet
+        if (depth > 7 || !allOnes) {
+            throw new IOException("Invalid Huffman padding");
+        }
+        return out.toString();
+    }
+
+    private static int[] buildTree() {
+        int[] tree = new int[2 * 2 * CODES.length];
+        int nodes = 1;
+        for (int symbol = 0; symbol < CODES.length; symbol++) {
+            int node = 0;
+            for (int bit = LENGTHS[symbol] - 1; bit >= 0; bit--) {
+                int slot = node * 2 + ((CODES[symbol] >>> bit) & 1);
+                if (0 == bit) {
+                    tree[slot] = -symbol - 1;
+                } else {
+                    if (0 == tree[slot]) {
+                        tree[slot] = nodes++;
+                    }
+                    node = tree[slot];
+                }
+            }
+        }
+        return tree;
+    }
+}
@@ -0,0 +1,683 @@
+package com.pavlovmedia.oss.osgi.http.transport;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.pavlovmedia.oss.osgi.http.HttpRequest;
+
+/**
+ * One HTTP/2 connection (RFC 7540) that any number of requests to the same
+ * origin share as concurrent streams. Frames are read by a dedicated reader
+ * thread and handed to their {@link Http2Stream}; writers take turns on the
+ * socket through a lock, and wait for room when the peer's stream limit or
+ * flow control windows are used up.
+ * <p>
+ * Locks are always taken writer lock first, then state lock, and no monitor
+ * is ever held around socket I/O, so callers on virtual threads do not pin.
+ *
+ * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
+ *
+ */
+final class Http2Connection implements Closeable {
+    static final int DATA = 0x0;
+    static final int HEADERS = 0x1;
+    static final int RST_STREAM = 0x3;
+    static final int SETTINGS = 0x4;
+    static final int PUSH_PROMISE = 0x5;
+    static final int PING = 0x6;
+    static final int GOAWAY = 0x7;
+    static final int WINDOW_UPDATE = 0x8;
+    static final int CONTINUATION = 0x9;
+
+    static final int FLAG_END_STREAM = 0x1;
+    static final int FLAG_ACK = 0x1;
+    static final int FLAG_END_HEADERS = 0x4;
+    static final int FLAG_PADDED = 0x8;
+    static final int FLAG_PRIORITY = 0x20;
+
+    static final int CANCEL = 0x8;
+
+    static final int DEFAULT_WINDOW = 65535;
+    static final int DEFAULT_FRAME_SIZE = 16384;
+    private static final int LARGEST_FRAME_SIZE = 0xffffff;
+    private static final int MAX_WINDOW = Integer.MAX_VALUE;
+    private static final int MAX_STREAM_ID = Integer.MAX_VALUE;
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final List<String> CONNECTION_HEADERS = Arrays.asList("connection", "keep-alive",
+            "proxy-connection", "transfer-encoding", "upgrade", "host");
+
+    final Route route;
+    private final Socket socket;
+    private final DataInputStream in;
+    private final OutputStream out;
+    private final int receiveWindow;
+    private final int readTimeout;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final Map<Integer, Http2Stream> streams = new HashMap<>();
+    private final Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+    private final byte[] header = new byte[9];
+
+    // Guarded by lock
+    private int nextStreamId = 1;
+    private int reserved;
+    private int waiting;
+    private int peerMaxStreams = Integer.MAX_VALUE;
+    private int peerInitialWindow = DEFAULT_WINDOW;
+    private int peerMaxFrameSize = DEFAULT_FRAME_SIZE;
+    private long sendWindow = DEFAULT_WINDOW;
+    private boolean goingAway;
+    private IOException failure;
+
+    private Http2Connection(final Route route, final Socket socket, final int receiveWindow,
+            final int readTimeout) throws IOException {
+        this.route = route;
+        this.socket = socket;
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), DEFAULT_FRAME_SIZE));
+        this.out = new BufferedOutputStream(socket.getOutputStream(), DEFAULT_FRAME_SIZE + 9);
+        this.receiveWindow = receiveWindow;
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * Connects with prior knowledge (h2c), sends our preface and starts the reader
+     */
+    static Http2Connection connect(final Route route, final int connectTimeout, final int receiveWindow,
+            final int readTimeout) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            socket.connect(new InetSocketAddress(route.host, route.port), connectTimeout);
+            Http2Connection connection = new Http2Connection(route, socket, receiveWindow, readTimeout);
+            // Only wait so long for the server's preface, the reader then blocks for as long as it takes
+            socket.setSoTimeout(connectTimeout);
+            connection.start();
+            socket.setSoTimeout(0);
+            connection.startReader();
+            return connection;
+        } catch (IOException | RuntimeException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    private void start() throws IOException {
+        writeLock.lock();
+        try {
+            out.write(PREFACE);
+            ByteArrayOutputStream settings = new ByteArrayOutputStream(18);
+            setting(settings, SETTINGS_ENABLE_PUSH, 0);
+            setting(settings, SETTINGS_HEADER_TABLE_SIZE, Hpack.DEFAULT_TABLE_SIZE);
+            setting(settings, SETTINGS_INITIAL_WINDOW_SIZE, receiveWindow);
+            writeFrame(SETTINGS, 0, 0, settings.toByteArray(), 0, settings.size());
+            if (receiveWindow > DEFAULT_WINDOW) {
+                writeFrame(WINDOW_UPDATE, 0, 0, int32(receiveWindow - DEFAULT_WINDOW), 0, 4);
+            }
+            out.flush();
+        } finally {
+            writeLock.unlock();
+        }
+
+        // The server's preface is a SETTINGS frame, reading it before any stream is
+        // started means we never go over its concurrent stream limit
+        in.readFully(header);
+        int length = ((header[0] & 0xff) << 16) | ((header[1] & 0xff) << 8) | (header[2] & 0xff);
+        if (SETTINGS != header[3] || 0 != (header[4] & FLAG_ACK) || length > DEFAULT_FRAME_SIZE) {
+            throw new IOException(route + " did not answer with HTTP/2 settings");
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        onSettings(payload);
+    }
+
+    private void startReader() {
+        Thread reader = new Thread(this::readLoop, String.format("pavlov-http2-%s", route));
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * True if new streams can still be started on this connection
+     */
+    boolean isUsable() {
+        lock.lock();
+        try {
+            return null == failure && !goingAway;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int activeStreams() {
+        lock.lock();
+        try {
+            return streams.size() + reserved;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int waitingStreams() {
+        lock.lock();
+        try {
+            return waiting;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Starts a stream for the request, waiting for the peer's concurrent stream
+     * limit if it has been reached, then writes the headers and any body
+     * @param waitMillis how long to wait for a free stream, 0 is forever
+     */
+    Http2Stream newStream(final HttpRequest request, final URL url, final int waitMillis) throws IOException {
+        reserve(waitMillis);
+        Http2Stream stream;
+        writeLock.lock();
+        try {
+            lock.lock();
+            try {
+                reserved--;
+                checkOpen();
+                stream = new Http2Stream(this, nextStreamId, url, receiveWindow, readTimeout,
+                        peerInitialWindow);
+                streams.put(stream.id, stream);
+                nextStreamId += 2;
+                if (nextStreamId > MAX_STREAM_ID - 2) {
+                    // Out of ids, the transport will start a fresh connection
+                    goingAway = true;
+                }
+            } finally {
+                lock.unlock();
+            }
+            writeHeaders(stream.id, encodeHeaders(request, url), !request.body.isPresent());
+            out.flush();
+        } catch (IOException e) {
+            fail(e);
+            throw e;
+        } finally {
+            writeLock.unlock();
+        }
+
+        if (request.body.isPresent()) {
+            try (Http2Stream.BodyOutputStream body = stream.new BodyOutputStream()) {
+                request.body.get().accept(body);
+            } catch (UncheckedIOException e) {
+                stream.close();
+                throw e.getCause();
+            } catch (IOException | RuntimeException e) {
+                stream.close();
+                throw e;
+            }
+        }
+        return stream;
+    }
+
+    private void reserve(final int waitMillis) throws IOException {
+        lock.lock();
+        try {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitMillis);
+            waiting++;
+            try {
+                while (streams.size() + reserved >= peerMaxStreams) {
+                    checkOpen();
+                    if (waitMillis <= 0) {
+                        changed.await();
+                    } else if (changed.awaitNanos(deadline - System.nanoTime()) <= 0) {
+                        throw new SocketTimeoutException(String.format(
+                                "Timed out after %dms waiting for a stream on %s", waitMillis, route));
+                    }
+                }
+                checkOpen();
+                reserved++;
+            } finally {
+                waiting--;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for a stream on " + route);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (null != failure) {
+            throw new IOException("Connection to " + route + " failed", failure);
+        }
+        if (goingAway) {
+            throw new IOException("Connection to " + route + " is shutting down");
+        }
+    }
+
+    private byte[] encodeHeaders(final HttpRequest request, final URL url) {
+        ByteArrayOutputStream block = new ByteArrayOutputStream(256);
+        String path = url.getFile();
+        Hpack.encode(":method", request.verb.name(), block);
+        Hpack.encode(":scheme", route.scheme, block);
+        Hpack.encode(":authority", route.hostHeader(), block);
+        Hpack.encode(":path", path.isEmpty() ? "/" : path, block);
+        request.headers.forEach((name, values) -> {
+            String lower = name.toLowerCase(Locale.ROOT);
+            if (!CONNECTION_HEADERS.contains(lower)) {
+                values.forEach(v -> Hpack.encode(lower, v, block));
+            }
+        });
+        if (request.body.isPresent() && request.contentLength >= 0
+                && !request.getHeader("Content-Length").isPresent()) {
+            Hpack.encode("content-length", Long.toString(request.contentLength), block);
+        }
+        return block.toByteArray();
+    }
+
+    /**
+     * Must hold the write lock
+     */
+    private void writeHeaders(final int streamId, final byte[] block, final boolean endStream)
+            throws IOException {
+        int frameSize = maxFrameSize();
+        int offset = 0;
+        boolean first = true;
+        do {
+            int length = Math.min(frameSize, block.length - offset);
+            boolean last = offset + length == block.length;
+            int flags = (last ? FLAG_END_HEADERS : 0) | (first && endStream ? FLAG_END_STREAM : 0);
+            writeFrame(first ? HEADERS : CONTINUATION, flags, streamId, block, offset, length);
+            offset += length;
+            first = false;
+        } while (offset < block.length);
+    }
+
+    /**
+     * Sends body bytes as DATA frames, waiting whenever the connection or stream window is empty
+     */
+    void sendData(final Http2Stream stream, final byte[] data, final int offset, final int length,
+            final boolean endStream) throws IOException {
+        int sent = 0;
+        do {
+            int chunk = 0 == length ? 0 : takeWindow(stream, length - sent);
+            boolean last = sent + chunk == length;
+            writeLock.lock();
+            try {
+                writeFrame(DATA, last && endStream ? FLAG_END_STREAM : 0, stream.id, data, offset + sent, chunk);
+                out.flush();
+            } catch (IOException e) {
+                fail(e);
+                throw e;
+            } finally {
+                writeLock.unlock();
+            }
+            sent += chunk;
+        } while (sent < length);
+    }
+
+    private int takeWindow(final Http2Stream stream, final int wanted) throws IOException {
+        lock.lock();
+        try {
+            while (sendWindow <= 0 || stream.sendWindow <= 0) {
+                if (null != failure) {
+                    throw new IOException("Connection to " + route + " failed", failure);
+                }
+                stream.checkSendable();
+                if (readTimeout <= 0) {
+                    changed.await();
+                } else if (!changed.await(readTimeout, TimeUnit.MILLISECONDS)) {
+                    throw new SocketTimeoutException(String.format(
+                            "Timed out after %dms waiting for flow control on %s", readTimeout, route));
+                }
+            }
+            int chunk = (int) Math.min(Math.min(wanted, peerMaxFrameSize),
+                    Math.min(sendWindow, stream.sendWindow));
+            sendWindow -= chunk;
+            stream.sendWindow -= chunk;
+            return chunk;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for flow control on " + route);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int maxFrameSize() {
+        lock.lock();
+        try {
+            return peerMaxFrameSize;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gives the peer back window for body bytes the application has read
+     */
+    void windowUpdate(final int streamId, final int increment) {
+        control(WINDOW_UPDATE, 0, streamId, int32(increment));
+    }
+
+    /**
+     * Cancels a stream the caller no longer wants
+     */
+    void reset(final Http2Stream stream, final int code) {
+        if (remove(stream)) {
+            control(RST_STREAM, 0, stream.id, int32(code));
+        }
+    }
+
+    /**
+     * Drops a finished stream, freeing its slot for anyone waiting
+     * @return true if it was still active
+     */
+    boolean remove(final Http2Stream stream) {
+        boolean removed;
+        boolean drained;
+        lock.lock();
+        try {
+            removed = null != streams.remove(stream.id);
+            drained = goingAway && null == failure && streams.isEmpty() && 0 == reserved;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (drained) {
+            // Nothing new can start here, so the last stream out closes it
+            close();
+        }
+        return removed;
+    }
+
+    private void control(final int type, final int flags, final int streamId, final byte[] payload) {
+        writeLock.lock();
+        try {
+            writeFrame(type, flags, streamId, payload, 0, payload.length);
+            out.flush();
+        } catch (IOException e) {
+            fail(e);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Must hold the write lock
+     */
+    private void writeFrame(final int type, final int flags, final int streamId, final byte[] payload,
+            final int offset, final int length) throws IOException {
+        out.write(length >>> 16);
+        out.write(length >>> 8);
+        out.write(length);
+        out.write(type);
+        out.write(flags);
+        out.write(int32(streamId));
+        out.write(payload, offset, length);
+    }
+
+    private void readLoop() {
+        try {
+            while (true) {
+                in.readFully(header);
+                int length = ((header[0] & 0xff) << 16) | ((header[1] & 0xff) << 8) | (header[2] & 0xff);
+                int type = header[3] & 0xff;
+                int flags = header[4] & 0xff;
+                int streamId = readInt(header, 5) & MAX_STREAM_ID;
+                if (length > DEFAULT_FRAME_SIZE) {
+                    throw new IOException("Frame too large: " + length);
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                onFrame(type, flags, streamId, payload);
+            }
+        } catch (EOFException e) {
+            fail(new EOFException("Connection to " + route + " closed by the server"));
+        } catch (IOException | RuntimeException e) {
+            fail(e instanceof IOException ? (IOException) e : new IOException(e));
+        }
+    }
+
+    private void onFrame(final int type, final int flags, final int streamId, final byte[] payload)
+            throws IOException {
+        switch (type) {
+            case DATA:
+                onData(flags, streamId, payload);
+                break;
+            case HEADERS:
+                onHeaders(flags, streamId, payload);
+                break;
+            case RST_STREAM:
+                stream(streamId).ifPresent(s -> s.onReset(readInt(payload, 0)));
+                break;
+            case SETTINGS:
+                if (0 == (flags & FLAG_ACK)) {
+                    onSettings(payload);
+                }
+                break;
+            case PING:
+                if (0 == (flags & FLAG_ACK)) {
+                    control(PING, FLAG_ACK, 0, payload);
+                }
+                break;
+            case GOAWAY:
+                onGoAway(readInt(payload, 0) & MAX_STREAM_ID, readInt(payload, 4));
+                break;
+            case WINDOW_UPDATE:
+                onWindowUpdate(streamId, readInt(payload, 0) & MAX_WINDOW);
+                break;
+            case PUSH_PROMISE:
+                // We turned push off in our settings
+                throw new IOException("Server sent PUSH_PROMISE with push disabled");
+            default:
+                // PRIORITY and unknown frames are ignored
+                break;
+        }
+    }
+
+    private void onData(final int flags, final int streamId, final byte[] payload) throws IOException {
+        if (payload.length > 0) {
+            // The connection window is returned right away, each stream holds
+            // back its own window until the application reads the data
+            windowUpdate(0, payload.length);
+        }
+        int padding = 0 != (flags & FLAG_PADDED) ? (payload[0] & 0xff) + 1 : 0;
+        int offset = padding > 0 ? 1 : 0;
+        int length = payload.length - padding;
+        if (length < 0) {
+            throw new IOException("Bad DATA padding");
+        }
+        Optional<Http2Stream> stream = stream(streamId);
+        if (stream.isPresent()) {
+            stream.get().onData(payload, offset, length, payload.length, 0 != (flags & FLAG_END_STREAM));
+        }
+    }
+
+    private void onHeaders(final int flags, final int streamId, final byte[] payload) throws IOException {
+        int offset = 0;
+        int padding = 0;
+        if (0 != (flags & FLAG_PADDED)) {
+            padding = payload[0] & 0xff;
+            offset++;
+        }
+        if (0 != (flags & FLAG_PRIORITY)) {
+            offset += 5;
+        }
+        ByteArrayOutputStream block = new ByteArrayOutputStream(payload.length);
+        block.write(payload, offset, payload.length - offset - padding);
+        boolean endHeaders = 0 != (flags & FLAG_END_HEADERS);
+        while (!endHeaders) {
+            in.readFully(header);
+            int length = ((header[0] & 0xff) << 16) | ((header[1] & 0xff) << 8) | (header[2] & 0xff);
+            if (CONTINUATION != (header[3] & 0xff) || (readInt(header, 5) & MAX_STREAM_ID) != streamId) {
+                throw new IOException("Expected CONTINUATION for stream " + streamId);
+            }
+            byte[] more = new byte[length];
+            in.readFully(more);
+            block.write(more, 0, more.length);
+            endHeaders = 0 != (header[4] & FLAG_END_HEADERS);
+        }
+        // Always decode, even for streams we dropped, to keep the table in step
+        List<Hpack.Field> fields = decoder.decode(block.toByteArray());
+        Optional<Http2Stream> stream = stream(streamId);
+        if (stream.isPresent()) {
+            stream.get().onHeaders(fields, 0 != (flags & FLAG_END_STREAM));
+        }
+    }
+
+    private void onSettings(final byte[] payload) throws IOException {
+        if (0 != payload.length % 6) {
+            throw new IOException("Bad SETTINGS length");
+        }
+        lock.lock();
+        try {
+            for (int i = 0; i < payload.length; i += 6) {
+                int id = ((payload[i] & 0xff) << 8) | (payload[i + 1] & 0xff);
+                int value = readInt(payload, i + 2);
+                switch (id) {
+                    case SETTINGS_MAX_CONCURRENT_STREAMS:
+                        peerMaxStreams = value < 0 ? Integer.MAX_VALUE : value;
+                        break;
+                    case SETTINGS_INITIAL_WINDOW_SIZE:
+                        if (value < 0) {
+                            throw new IOException("Bad initial window size");
+                        }
+                        int delta = value - peerInitialWindow;
+                        peerInitialWindow = value;
+                        streams.values().forEach(s -> s.sendWindow += delta);
+                        break;
+                    case SETTINGS_MAX_FRAME_SIZE:
+                        // The spec makes anything outside these bounds a connection error
+                        if (value < DEFAULT_FRAME_SIZE || value > LARGEST_FRAME_SIZE) {
+                            throw new IOException("Bad max frame size " + value);
+                        }
+                        peerMaxFrameSize = value;
+                        break;
+                    default:
+                        // Our encoder never indexes, so the table size does not matter to us
+                        break;
+                }
+            }
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        control(SETTINGS, FLAG_ACK, 0, new byte[0]);
+    }
+
+    private void onGoAway(final int lastStreamId, final int code) {
+        List<Http2Stream> refused = new ArrayList<>();
+        lock.lock();
+        try {
+            goingAway = true;
+            streams.values().stream().filter(s -> s.id > lastStreamId).forEach(refused::add);
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        refused.forEach(s -> s.onFailure(new IOException(String.format(
+                "Stream %d was refused by %s going away (error %d)", s.id, route, code))));
+    }
+
+    private void onWindowUpdate(final int streamId, final int increment) throws IOException {
+        lock.lock();
+        try {
+            if (0 == streamId) {
+                sendWindow += increment;
+                if (sendWindow > MAX_WINDOW) {
+                    throw new IOException("Flow control window overflow on " + route);
+                }
+            } else {
+                Http2Stream stream = streams.get(streamId);
+                if (null != stream) {
+                    stream.sendWindow += increment;
+                }
+            }
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Optional<Http2Stream> stream(final int streamId) {
+        lock.lock();
+        try {
+            return Optional.ofNullable(streams.get(streamId));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void fail(final IOException e) {
+        List<Http2Stream> failed;
+        lock.lock();
+        try {
+            if (null != failure) {
+                return;
+            }
+            failure = e;
+            failed = new ArrayList<>(streams.values());
+            streams.clear();
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        failed.forEach(s -> s.onFailure(e));
+        try {
+            socket.close();
+        } catch (IOException closing) {
+            // Already failed
+        }
+    }
+
+    @Override
+    public void close() {
+        fail(new IOException("Connection to " + route + " was closed"));
+    }
+
+    private static void setting(final ByteArrayOutputStream out, final int id, final int value) {
+        out.write(id >>> 8);
+        out.write(id);
+        out.write(int32(value), 0, 4);
+    }
+
+    private static byte[] int32(final int value) {
+        return new byte[] { (byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value };
+    }
+
+    private static int readInt(final byte[] data, final int offset) {
+        return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16)
+                | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+    }
+
+    @Override
+    public String toString() {
+        return "Http2Connection[" + route + "]";
+    }
+}
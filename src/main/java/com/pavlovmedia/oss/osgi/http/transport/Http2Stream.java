@@ -0,0 +1,404 @@
+package com.pavlovmedia.oss.osgi.http.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One request and response on an {@link Http2Connection}. The reader thread
+ * queues DATA frames here and the application drains them through
+ * {@link #getInputStream()}, which is what returns flow control window to
+ * the server, so a slow reader only ever holds back its own stream.
+ *
+ * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
+ *
+ */
+final class Http2Stream implements HttpExchange {
+    final int id;
+    private final Http2Connection connection;
+    private final URL url;
+    private final int receiveWindow;
+    private final int readTimeout;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition arrived = lock.newCondition();
+    private final ArrayDeque<byte[]> chunks = new ArrayDeque<>();
+    private final CompletableFuture<Http2Stream> responded = new CompletableFuture<>();
+
+    /**
+     * What the server lets us send on this stream, guarded by the connection's lock
+     */
+    long sendWindow;
+
+    // Guarded by lock, but only ever set once so they can be read after the headers arrive
+    private volatile int code = -1;
+    private volatile Map<String, List<String>> headers = Collections.emptyMap();
+
+    // Guarded by lock
+    private int chunkOffset;
+    private int unacked;
+    private boolean ended;
+    private boolean reset;
+    private IOException failure;
+
+    Http2Stream(final Http2Connection connection, final int id, final URL url,
+            final int receiveWindow, final int readTimeout, final int sendWindow) {
+        this.connection = connection;
+        this.id = id;
+        this.url = url;
+        this.receiveWindow = receiveWindow;
+        this.readTimeout = readTimeout;
+        this.sendWindow = sendWindow;
+    }
+
+    URL getUrl() {
+        return url;
+    }
+
+    /**
+     * Completes once the final response headers have arrived
+     */
+    CompletableFuture<Http2Stream> responded() {
+        return responded;
+    }
+
+    Optional<String> header(final String name) {
+        List<String> values = headers.get(name);
+        return null == values || values.isEmpty() ? Optional.empty() : Optional.of(values.get(0));
+    }
+
+    @Override
+    public int getResponseCode() throws IOException {
+        awaitHeaders();
+        return code;
+    }
+
+    @Override
+    public Map<String, List<String>> getHeaderFields() {
+        try {
+            awaitHeaders();
+        } catch (IOException e) {
+            return Collections.emptyMap();
+        }
+        return headers;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        NioExchange.checkStatus(getResponseCode(), url);
+        return new BodyInputStream();
+    }
+
+    @Override
+    public Optional<InputStream> getErrorStream() {
+        try {
+            return getResponseCode() >= 400 ? Optional.of(new BodyInputStream()) : Optional.empty();
+        } catch (IOException e) {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Cancels the stream if the response has not been read to the end
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            if (ended || reset || null != failure) {
+                return;
+            }
+            reset = true;
+            chunks.clear();
+            arrived.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        connection.reset(this, Http2Connection.CANCEL);
+        responded.completeExceptionally(new IOException("Stream " + id + " was closed"));
+    }
+
+    void checkSendable() throws IOException {
+        lock.lock();
+        try {
+            if (null != failure) {
+                throw failure;
+            }
+            if (reset) {
+                throw new IOException("Stream " + id + " was reset");
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void onHeaders(final List<Hpack.Field> fields, final boolean endStream) throws IOException {
+        boolean complete = false;
+        if (endStream) {
+            // Free the slot before anyone can see the response end
+            connection.remove(this);
+        }
+        lock.lock();
+        try {
+            if (-1 == code) {
+                int status = fields.stream()
+                        .filter(f -> ":status".equals(f.name))
+                        .mapToInt(f -> parseStatus(f.value))
+                        .findFirst()
+                        .orElse(-1);
+                if (status < 0) {
+                    throw new IOException("Response on stream " + id + " has no :status");
+                }
+                if (status < 200) {
+                    // Interim response, the real one follows
+                    return;
+                }
+                TreeMap<String, List<String>> map = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+                fields.stream()
+                        .filter(f -> !f.name.startsWith(":"))
+                        .forEach(f -> map.computeIfAbsent(f.name, k -> new ArrayList<>()).add(f.value));
+                map.replaceAll((k, v) -> Collections.unmodifiableList(v));
+                headers = Collections.unmodifiableMap(map);
+                code = status;
+                complete = true;
+            }
+            // Anything after the response headers is a trailer, which we drop
+            if (endStream) {
+                ended = true;
+            }
+            arrived.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (complete) {
+            responded.complete(this);
+        }
+    }
+
+    private static int parseStatus(final String status) {
+        try {
+            return Integer.parseInt(status.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    void onData(final byte[] payload, final int offset, final int length, final int flowed,
+            final boolean endStream) throws IOException {
+        int returned = 0;
+        if (endStream) {
+            connection.remove(this);
+        }
+        lock.lock();
+        try {
+            if (-1 == code) {
+                throw new IOException("DATA before headers on stream " + id);
+            }
+            if (reset) {
+                return;
+            }
+            if (length > 0) {
+                chunks.add(offset == 0 && length == payload.length
+                        ? payload
+                        : Arrays.copyOfRange(payload, offset, offset + length));
+            }
+            // Padding counts against the window but is never read, so hand it straight back
+            returned = flowed - length;
+            if (endStream) {
+                ended = true;
+            }
+            arrived.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (returned > 0 && !endStream) {
+            connection.windowUpdate(id, returned);
+        }
+    }
+
+    void onReset(final int errorCode) {
+        onFailure(new IOException(String.format("Stream %d was reset by the server (error %d)", id, errorCode)));
+        connection.remove(this);
+    }
+
+    void onFailure(final IOException e) {
+        lock.lock();
+        try {
+            if (ended && chunks.isEmpty()) {
+                return;
+            }
+            failure = e;
+            arrived.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        responded.completeExceptionally(e);
+    }
+
+    private void awaitHeaders() throws IOException {
+        lock.lock();
+        try {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(readTimeout);
+            while (-1 == code) {
+                check();
+                await(deadline);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Must hold the lock
+     */
+    private void check() throws IOException {
+        if (null != failure) {
+            throw failure;
+        }
+        if (reset) {
+            throw new IOException("Stream " + id + " was closed");
+        }
+    }
+
+    /**
+     * Must hold the lock
+     */
+    private void await(final long deadline) throws IOException {
+        try {
+            if (readTimeout <= 0) {
+                arrived.await();
+            } else if (arrived.awaitNanos(deadline - System.nanoTime()) <= 0) {
+                throw new SocketTimeoutException(String.format("Timed out after %dms on stream %d of %s",
+                        readTimeout, id, connection.route));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted reading stream " + id);
+        }
+    }
+
+    /**
+     * Reads queued DATA, returning window to the server once half of it has been consumed
+     */
+    final class BodyInputStream extends InputStream {
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return -1 == read(one, 0, 1) ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (0 == len) {
+                return 0;
+            }
+            int count;
+            int ack = 0;
+            lock.lock();
+            try {
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(readTimeout);
+                while (chunks.isEmpty()) {
+                    if (ended) {
+                        return -1;
+                    }
+                    check();
+                    await(deadline);
+                }
+                byte[] chunk = chunks.peek();
+                count = Math.min(len, chunk.length - chunkOffset);
+                System.arraycopy(chunk, chunkOffset, b, off, count);
+                chunkOffset += count;
+                if (chunkOffset == chunk.length) {
+                    chunks.poll();
+                    chunkOffset = 0;
+                }
+                unacked += count;
+                if (!ended && unacked >= receiveWindow / 2) {
+                    ack = unacked;
+                    unacked = 0;
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (ack > 0) {
+                connection.windowUpdate(id, ack);
+            }
+            return count;
+        }
+
+        @Override
+        public int available() {
+            lock.lock();
+            try {
+                return chunks.isEmpty() ? 0 : chunks.peek().length - chunkOffset;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void close() {
+            Http2Stream.this.close();
+        }
+    }
+
+    /**
+     * Buffers request body bytes into DATA frames, the last of which ends the stream on close
+     */
+    final class BodyOutputStream extends OutputStream {
+        private final byte[] buffer = new byte[Http2Connection.DEFAULT_FRAME_SIZE];
+        private int count;
+        private boolean closed;
+
+        @Override
+        public void write(final int b) throws IOException {
+            if (count == buffer.length) {
+                flushBuffer(false);
+            }
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            int written = 0;
+            while (written < len) {
+                if (count == buffer.length) {
+                    flushBuffer(false);
+                }
+                int chunk = Math.min(len - written, buffer.length - count);
+                System.arraycopy(b, off + written, buffer, count, chunk);
+                count += chunk;
+                written += chunk;
+            }
+        }
+
+        private void flushBuffer(final boolean end) throws IOException {
+            checkSendable();
+            if (count > 0 || end) {
+                connection.sendData(Http2Stream.this, buffer, 0, count, end);
+            }
+            count = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                flushBuffer(true);
+            }
+        }
+    }
+}
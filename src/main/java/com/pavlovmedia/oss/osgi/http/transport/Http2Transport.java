@@ -0,0 +1,258 @@
+package com.pavlovmedia.oss.osgi.http.transport;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.pavlovmedia.oss.osgi.http.HttpRequest;
+import com.pavlovmedia.oss.osgi.http.HttpVerbs;
+
+/**
+ * A transport that speaks HTTP/2 over cleartext with prior knowledge (h2c),
+ * keeping a single connection per origin and running every concurrent request
+ * to it as a separate stream. New streams wait while the server's
+ * SETTINGS_MAX_CONCURRENT_STREAMS limit is reached, and request and response
+ * bodies follow the connection and stream flow control windows. Verbs such
+ * as PATCH go out as-is in the :method pseudo header.
+ * <p>
+ * Only plain http is supported, https requests should use {@link UrlConnectionTransport}.
+ *
+ * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
+ *
+ */
+public class Http2Transport implements HttpTransport {
+    private static final List<Integer> REDIRECTS = Arrays.asList(301, 302, 303, 307, 308);
+    private static final int MAX_REDIRECTS = 5;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<Route, CompletableFuture<Http2Connection>> connections = new HashMap<>();
+    private int readTimeout = 0;
+    private int streamTimeout = 0;
+    private int receiveWindow = 1 << 20;
+    private boolean followRedirects = true;
+    private final AtomicLong created = new AtomicLong();
+    private long closed;
+
+    /**
+     * Sets how long to wait for response headers and body data in milliseconds,
+     * 0 (the default) waits forever
+     * @param readTimeout
+     */
+    public Http2Transport withReadTimeout(final int readTimeout) {
+        this.readTimeout = readTimeout;
+        return this;
+    }
+
+    /**
+     * Sets how long a request waits for a free stream when the server's concurrent
+     * stream limit is reached, 0 (the default) waits forever
+     * @param streamTimeout
+     */
+    public Http2Transport withStreamTimeout(final int streamTimeout) {
+        this.streamTimeout = streamTimeout;
+        return this;
+    }
+
+    /**
+     * Sets the flow control window we give the server for each stream, which
+     * is how much of a response can be buffered before it is read. Defaults to 1MB.
+     * Only applies to connections opened after it is set.
+     * @param receiveWindow
+     */
+    public Http2Transport withReceiveWindow(final int receiveWindow) {
+        if (receiveWindow < Http2Connection.DEFAULT_WINDOW) {
+            throw new IllegalArgumentException("The receive window can not be below 65535");
+        }
+        this.receiveWindow = receiveWindow;
+        return this;
+    }
+
+    /**
+     * Sets whether GET and HEAD requests follow redirects, which they do by default
+     * @param followRedirects
+     */
+    public Http2Transport withFollowRedirects(final boolean followRedirects) {
+        this.followRedirects = followRedirects;
+        return this;
+    }
+
+    /**
+     * Reports streams as leased, connections without streams as idle, and requests
+     * waiting on a server's stream limit as pending
+     */
+    @Override
+    public Optional<PoolStats> getPoolStats() {
+        lock.lock();
+        try {
+            int streams = 0;
+            int idle = 0;
+            int waiting = 0;
+            for (CompletableFuture<Http2Connection> pending : connections.values()) {
+                if (!pending.isDone() || pending.isCompletedExceptionally()) {
+                    continue;
+                }
+                Http2Connection connection = pending.join();
+                int active = connection.activeStreams();
+                streams += active;
+                idle += 0 == active ? 1 : 0;
+                waiting += connection.waitingStreams();
+            }
+            return Optional.of(new PoolStats(streams, idle, waiting, created.get(), closed));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public HttpExchange open(final HttpRequest request) throws IOException {
+        URL url = request.url;
+        for (int hop = 0;; hop++) {
+            Http2Stream stream = send(request, url);
+            Optional<URL> next = redirect(request, stream, hop);
+            if (!next.isPresent()) {
+                return stream;
+            }
+            stream.close();
+            url = next.get();
+        }
+    }
+
+    /**
+     * Sends the request and body on the executor, then completes once the response
+     * headers arrive without holding a thread while the server works
+     */
+    @Override
+    public CompletableFuture<HttpExchange> openAsync(final HttpRequest request, final Executor executor) {
+        return openAsync(request, request.url, 0, executor);
+    }
+
+    private CompletableFuture<HttpExchange> openAsync(final HttpRequest request, final URL url, final int hop,
+            final Executor executor) {
+        return CompletableFuture
+                .supplyAsync(() -> {
+                    try {
+                        return send(request, url);
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    } catch (UncheckedIOException e) {
+                        throw new CompletionException(e.getCause());
+                    }
+                }, executor)
+                .thenCompose(Http2Stream::responded)
+                .thenComposeAsync(stream -> {
+                    Optional<URL> next;
+                    try {
+                        next = redirect(request, stream, hop);
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                    if (!next.isPresent()) {
+                        return CompletableFuture.<HttpExchange>completedFuture(stream);
+                    }
+                    stream.close();
+                    return openAsync(request, next.get(), hop + 1, executor);
+                }, executor);
+    }
+
+    private Http2Stream send(final HttpRequest request, final URL url) throws IOException {
+        Route route = Route.of(url);
+        if (!"http".equals(route.scheme)) {
+            throw new IOException(String.format("%s only supports h2c over http, not %s",
+                    getClass().getSimpleName(), route.scheme));
+        }
+        return connection(route, request.connectTimeout).newStream(request, url, streamTimeout);
+    }
+
+    private Optional<URL> redirect(final HttpRequest request, final Http2Stream stream, final int hop)
+            throws IOException {
+        boolean follow = followRedirects && hop < MAX_REDIRECTS && !request.body.isPresent()
+                && (HttpVerbs.GET == request.verb || HttpVerbs.HEAD == request.verb)
+                && REDIRECTS.contains(stream.getResponseCode());
+        if (!follow) {
+            return Optional.empty();
+        }
+        return stream.header("Location")
+                .flatMap(l -> resolve(stream.getUrl(), l))
+                .filter(u -> "http".equalsIgnoreCase(u.getProtocol()));
+    }
+
+    private Optional<URL> resolve(final URL base, final String location) {
+        try {
+            return Optional.of(new URL(base, location));
+        } catch (MalformedURLException e) {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Gets the shared connection for a route, replacing it if it has failed or
+     * is going away. Concurrent first requests to an origin wait on the one
+     * connect instead of racing to open several.
+     */
+    private Http2Connection connection(final Route route, final int connectTimeout) throws IOException {
+        CompletableFuture<Http2Connection> pending;
+        boolean connecting = false;
+        lock.lock();
+        try {
+            pending = connections.get(route);
+            if (null != pending && pending.isDone() && !pending.isCompletedExceptionally()
+                    && !pending.join().isUsable()) {
+                // Streams still running on it keep it open until they finish
+                closed++;
+                pending = null;
+            }
+            if (null == pending || pending.isCompletedExceptionally()) {
+                pending = new CompletableFuture<>();
+                connections.put(route, pending);
+                connecting = true;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (connecting) {
+            try {
+                Http2Connection connection = Http2Connection.connect(route, connectTimeout, receiveWindow,
+                        readTimeout);
+                created.incrementAndGet();
+                pending.complete(connection);
+            } catch (IOException | RuntimeException e) {
+                pending.completeExceptionally(e);
+                throw e;
+            }
+        }
+        try {
+            return pending.join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof IOException
+                ? (IOException) e.getCause()
+                : new IOException(e.getCause());
+        }
+    }
+
+    @Override
+    public void close() {
+        List<CompletableFuture<Http2Connection>> open;
+        lock.lock();
+        try {
+            open = new ArrayList<>(connections.values());
+            closed += open.size();
+            connections.clear();
+        } finally {
+            lock.unlock();
+        }
+        open.forEach(pending -> pending.thenAccept(Http2Connection::close));
+    }
+}
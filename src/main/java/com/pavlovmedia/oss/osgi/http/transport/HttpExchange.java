@@ -0,0 +1,59 @@
+package com.pavlovmedia.oss.osgi.http.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * A single request/response on a transport. The accessors follow the
+ * semantics of {@link java.net.HttpURLConnection} so that the client
+ * can treat every transport the same way.
+ *
+ * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
+ *
+ */
+public interface HttpExchange extends Closeable {
+    /**
+     * Gets the response code, blocking until the response head is read
+     * @throws IOException
+     */
+    int getResponseCode() throws IOException;
+
+    /**
+     * Gets the response headers
+     */
+    Map<String,List<String>> getHeaderFields();
+
+    /**
+     * Gets the response body, throwing an IOException if the response
+     * code is an error (400 and up)
+     * @throws IOException
+     */
+    InputStream getInputStream() throws IOException;
+
+    /**
+     * Gets the body of an error response, if there is one
+     */
+    Optional<InputStream> getErrorStream();
+
+    /**
+     * Gives up the exchange, closing the connection if the response
+     * was not completely read
+     */
+    @Override
+    void close();
+
+    /**
+     * Drops the connection right away, and may be called from another
+     * thread so that a read blocked on it ends. By default this is
+     * {@link #close()}, which for most transports closes the socket. The
+     * {@link UrlConnectionTransport} can't end a blocked read early, so there
+     * the connection is dropped once the read returns.
+     */
+    default void abort() {
+        close();
+    }
+}
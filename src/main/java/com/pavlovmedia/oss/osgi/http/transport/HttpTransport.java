@@ -0,0 +1,62 @@
+package com.pavlovmedia.oss.osgi.http.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+import com.pavlovmedia.oss.osgi.http.HttpRequest;
+
+/**
+ * The engine that {@link com.pavlovmedia.oss.osgi.http.PavlovHttpClient} uses to
+ * send requests. A transport is shared by a client and all of its clones, so
+ * implementations must be thread safe.
+ *
+ * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
+ *
+ */
+public interface HttpTransport extends Closeable {
+    /**
+     * Sends the request, including any body, and returns an exchange that
+     * can be used to read the response.
+     *
+     * @param request the request to send
+     * @throws IOException if the request could not be sent
+     */
+    HttpExchange open(HttpRequest request) throws IOException;
+
+    /**
+     * Sends the request without blocking the caller. The default runs {@link #open(HttpRequest)}
+     * on the executor, transports that can do better without tying up a thread should.
+     *
+     * @param request the request to send
+     * @param executor where the returned future is completed
+     */
+    default CompletableFuture<HttpExchange> openAsync(final HttpRequest request, final Executor executor) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return open(request);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            } catch (UncheckedIOException e) {
+                throw new CompletionException(e.getCause());
+            }
+        }, executor);
+    }
+
+    /**
+     * Gets the connection pool statistics, if this transport pools its own connections
+     */
+    default Optional<PoolStats> getPoolStats() {
+        return Optional.empty();
+    }
+
+    /**
+     * Releases anything held by this transport, such as pooled connections
+     */
+    @Override
+    default void close() { }
+}
@@ -0,0 +1,187 @@
+package com.pavlovmedia.oss.osgi.http.transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import com.pavlovmedia.oss.osgi.http.HttpRequest;
+
+/**
+ * One stream of a {@link StreamMultiplexer}, driven through connect, write
+ * and read by readiness callbacks the same way {@link NioAsyncExchange} is,
+ * except that the body goes to a listener as it arrives instead of into memory.
+ *
+ * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
+ *
+ */
+final class MultiplexedStream implements NioEventLoop.Handler, StreamMultiplexer.Stream {
+    private final StreamMultiplexer multiplexer;
+    private final StreamMultiplexer.LoopStreams loop;
+    private final HttpRequest request;
+    private final Route route;
+    private final InetSocketAddress address;
+    private final ByteBuffer[] out;
+    private final StreamMultiplexer.Listener listener;
+    private final BooleanSupplier stop;
+
+    private NioConnection connection;
+    private ResponseParser parser;
+    private boolean headSent;
+    private long lastActivity = System.nanoTime();
+    private volatile boolean open = true;
+
+    MultiplexedStream(final StreamMultiplexer multiplexer, final StreamMultiplexer.LoopStreams loop,
+            final HttpRequest request, final Route route, final InetSocketAddress address, final ByteBuffer[] out,
+            final StreamMultiplexer.Listener listener, final BooleanSupplier stop) {
+        this.multiplexer = multiplexer;
+        this.loop = loop;
+        this.request = request;
+        this.route = route;
+        this.address = address;
+        this.out = out;
+        this.listener = listener;
+        this.stop = stop;
+    }
+
+    /**
+     * Starts connecting, on the loop thread
+     */
+    void begin() {
+        try {
+            connection = NioConnection.start(route, address, multiplexer.settings());
+            if (connection.isConnected()) {
+                write();
+            } else {
+                loop.loop.interest(connection.channel(), SelectionKey.OP_CONNECT, this);
+            }
+        } catch (IOException | RuntimeException e) {
+            finish(Optional.of(e));
+        }
+    }
+
+    @Override
+    public void ready(final SelectionKey key) throws IOException {
+        if (!open) {
+            return;
+        }
+        lastActivity = System.nanoTime();
+        if (key.isConnectable()) {
+            if (connection.finishConnect()) {
+                write();
+            }
+        } else if (key.isWritable()) {
+            write();
+        } else if (key.isReadable()) {
+            read();
+        }
+    }
+
+    private void write() throws IOException {
+        if (connection.writeNow(out)) {
+            parser = new ResponseParser(request.verb);
+            loop.loop.interest(connection.channel(), SelectionKey.OP_READ, this);
+            read();
+        } else {
+            loop.loop.interest(connection.channel(), SelectionKey.OP_WRITE, this);
+        }
+    }
+
+    private void read() throws IOException {
+        while (open) {
+            int count = connection.readNow();
+            if (count < 0) {
+                parser.endOfStream();
+                sendHead();
+                finish(Optional.empty());
+                return;
+            }
+            if (0 == count) {
+                return;
+            }
+            boolean done = parser.feed(connection.readBuffer(), data -> {
+                sendHead();
+                listener.onData(data);
+            });
+            sendHead();
+            if (done) {
+                finish(Optional.empty());
+            }
+        }
+    }
+
+    private void sendHead() {
+        ResponseHead head = parser.head();
+        if (!headSent && null != head) {
+            headSent = true;
+            listener.onHead(head.code, head.headers);
+        }
+    }
+
+    /**
+     * Checks for a stop request or an idle timeout, on the loop thread
+     */
+    void check() {
+        if (!open) {
+            return;
+        }
+        boolean stopped;
+        try {
+            stopped = stop.getAsBoolean();
+        } catch (RuntimeException e) {
+            finish(Optional.of(e));
+            return;
+        }
+        if (stopped) {
+            finish(Optional.empty());
+            return;
+        }
+        int timeout = multiplexer.getIdleTimeout();
+        if (timeout > 0 && TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastActivity) >= timeout) {
+            finish(Optional.of(new SocketTimeoutException(String.format("No data for %dms on %s", timeout,
+                    route))));
+        }
+    }
+
+    /**
+     * Ends the stream without a failure, on the loop thread
+     */
+    void end() {
+        finish(Optional.empty());
+    }
+
+    private void finish(final Optional<Throwable> failure) {
+        if (!open) {
+            return;
+        }
+        open = false;
+        if (null != connection) {
+            connection.close();
+        }
+        multiplexer.ended(loop, this);
+        try {
+            listener.onEnd(failure);
+        } catch (RuntimeException e) {
+            // Nowhere left to report it, and it must not take the loop down
+        }
+    }
+
+    @Override
+    public void failed(final Throwable t) {
+        finish(Optional.of(t));
+    }
+
+    @Override
+    public void close() {
+        loop.loop.execute(this::end);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+}
@@ -0,0 +1,294 @@
+package com.pavlovmedia.oss.osgi.http.transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import com.pavlovmedia.oss.osgi.http.BodyTooLargeException;
+import com.pavlovmedia.oss.osgi.http.HttpRequest;
+
+/**
+ * Drives one request through connect, write and read entirely from
+ * {@link NioEventLoop} readiness callbacks, so no thread waits on the
+ * socket. The response is read into memory, up to the request's maximum
+ * body size, and the future is completed on the caller's executor.
+ *
+ * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
+ *
+ */
+final class NioAsyncExchange implements NioEventLoop.Handler, ConnectionPool.LeaseCallback {
+    private static final int MAX_PRESIZE = 1 << 20;
+    // The largest array the JVM will reliably hand out
+    private static final int MAX_ARRAY = Integer.MAX_VALUE - 8;
+
+    private final NioHttpTransport transport;
+    private final NioEventLoop loop;
+    private final HttpRequest request;
+    private final URL url;
+    private final Route route;
+    private final InetSocketAddress address;
+    private final ByteBuffer[] out;
+    private final int hop;
+    private final Executor executor;
+    private final CompletableFuture<HttpExchange> future;
+
+    private NioConnection connection;
+    private ResponseParser parser;
+    private byte[] body = new byte[0];
+    private int length;
+    private NioEventLoop.Timer timer;
+    private int timeout;
+    private long lastActivity;
+    private boolean finished;
+    // Whether the connection came from the pool, and whether any of the response has arrived on it
+    private boolean reused;
+    private boolean answered;
+    // Whether this is already the second try after a pooled connection failed
+    private boolean retried;
+
+    NioAsyncExchange(final NioHttpTransport transport, final NioEventLoop loop, final HttpRequest request,
+            final URL url, final InetSocketAddress address, final ByteBuffer[] out, final int hop,
+            final Executor executor, final CompletableFuture<HttpExchange> future) {
+        this.transport = transport;
+        this.loop = loop;
+        this.request = request;
+        this.url = url;
+        this.route = Route.of(url);
+        this.address = address;
+        this.out = out;
+        this.hop = hop;
+        this.executor = executor;
+        this.future = future;
+    }
+
+    void start() {
+        transport.getPool().leaseAsync(route, this, loop);
+    }
+
+    @Override
+    public void leased(final Route leasedRoute, final NioConnection leased, final boolean fresh) {
+        loop.execute(() -> begin(leased, fresh));
+    }
+
+    @Override
+    public void failed(final IOException e) {
+        fail(e);
+    }
+
+    private void begin(final NioConnection leased, final boolean fresh) {
+        if (fresh) {
+            try {
+                connection = NioConnection.start(route, address, transport.settings());
+                transport.getPool().opened(route, true);
+            } catch (IOException | RuntimeException e) {
+                transport.getPool().opened(route, false);
+                fail(e);
+                return;
+            }
+        } else {
+            connection = leased;
+            reused = true;
+        }
+
+        try {
+            if (connection.isConnected()) {
+                write();
+            } else {
+                arm(request.connectTimeout);
+                loop.interest(connection.channel(), SelectionKey.OP_CONNECT, this);
+            }
+        } catch (IOException | RuntimeException e) {
+            fail(e);
+        }
+    }
+
+    @Override
+    public void ready(final SelectionKey key) throws IOException {
+        if (finished) {
+            return;
+        }
+        lastActivity = System.nanoTime();
+        if (key.isConnectable()) {
+            if (connection.finishConnect()) {
+                write();
+            }
+        } else if (key.isWritable()) {
+            write();
+        } else if (key.isReadable()) {
+            read();
+        }
+    }
+
+    private void write() throws IOException {
+        if (connection.writeNow(out)) {
+            parser = new ResponseParser(request.verb);
+            arm(transport.getReadTimeout());
+            loop.interest(connection.channel(), SelectionKey.OP_READ, this);
+            read();
+        } else {
+            arm(transport.getReadTimeout());
+            loop.interest(connection.channel(), SelectionKey.OP_WRITE, this);
+        }
+    }
+
+    private void read() throws IOException {
+        while (!finished) {
+            int count = connection.readNow();
+            if (count < 0) {
+                if (parser.endOfStream()) {
+                    finish(false);
+                }
+                return;
+            }
+            if (0 == count) {
+                return;
+            }
+            answered = true;
+            if (parser.feed(connection.readBuffer(), this::append) && !finished) {
+                finish(true);
+            }
+        }
+    }
+
+    private void append(final ByteBuffer data) throws BodyTooLargeException {
+        int count = data.remaining();
+        long limit = request.maxBodySize < 0 ? MAX_ARRAY : Math.min(request.maxBodySize, MAX_ARRAY);
+        if (0 == length) {
+            long declared = -1;
+            try {
+                declared = parser.head().contentLength();
+            } catch (IOException e) {
+                // Just grow as we go
+            }
+            if (declared > limit) {
+                throw new BodyTooLargeException(limit);
+            }
+            if (declared > body.length) {
+                body = new byte[(int) Math.min(declared, MAX_PRESIZE)];
+            }
+        }
+        if ((long) length + count > limit) {
+            throw new BodyTooLargeException(limit);
+        }
+        if (length + count > body.length) {
+            long size = Math.max(2L * body.length, length + count);
+            body = Arrays.copyOf(body, (int) Math.min(size, limit));
+        }
+        data.get(body, length, count);
+        length += count;
+    }
+
+    private void finish(final boolean open) {
+        finished = true;
+        disarm();
+        quiet();
+        ResponseHead head = parser.head();
+        boolean reusable = open && transport.isKeepAlive() && head.isKeepAlive()
+                && !connection.hasBufferedInput();
+        transport.getPool().release(connection, reusable);
+
+        BufferedExchange exchange = new BufferedExchange(url, head, body, length);
+        if (!transport.redirect(request, exchange, hop, future, executor)) {
+            complete(exchange);
+        }
+    }
+
+    private void fail(final Throwable t) {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        disarm();
+        if (null != connection) {
+            // Only ever set on the loop thread, which is where we are
+            quiet();
+            transport.getPool().release(connection, false);
+        }
+        if (reused && !retried && transport.isRetryable(request) && NioHttpTransport.isStale(t, answered)) {
+            // The server had closed the pooled connection, the body is in memory so it can go again
+            transport.evictIdle(route);
+            for (ByteBuffer buffer : out) {
+                buffer.rewind();
+            }
+            NioAsyncExchange again = new NioAsyncExchange(transport, loop, request, url, address, out, hop,
+                    executor, future);
+            again.retried = true;
+            again.start();
+            return;
+        }
+        dispatch(() -> future.completeExceptionally(t));
+    }
+
+    private void complete(final HttpExchange exchange) {
+        dispatch(() -> future.complete(exchange));
+    }
+
+    /**
+     * Hands completion to the caller's executor so their callbacks never run on the loop thread
+     */
+    private void dispatch(final Runnable completion) {
+        try {
+            executor.execute(completion);
+        } catch (RejectedExecutionException e) {
+            completion.run();
+        }
+    }
+
+    /**
+     * Stops selecting on the channel but leaves it registered for the next lease
+     */
+    private void quiet() {
+        try {
+            if (null != connection) {
+                loop.interest(connection.channel(), 0, null);
+            }
+        } catch (IOException | RuntimeException e) {
+            // Closed channels drop their keys on their own
+        }
+    }
+
+    @Override
+    public void failed(final Throwable t) {
+        fail(t);
+    }
+
+    /**
+     * Keeps one timer per exchange that checks for inactivity when it fires,
+     * rather than rescheduling on every read
+     */
+    private void arm(final int millis) {
+        timeout = millis;
+        lastActivity = System.nanoTime();
+        if (null == timer && millis > 0) {
+            timer = loop.schedule(this::checkTimeout, millis);
+        }
+    }
+
+    private void checkTimeout() {
+        timer = null;
+        if (finished || timeout <= 0) {
+            return;
+        }
+        long idle = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastActivity);
+        if (idle >= timeout) {
+            fail(new SocketTimeoutException(String.format("Timed out after %dms on %s", timeout, route)));
+        } else {
+            timer = loop.schedule(this::checkTimeout, timeout - idle);
+        }
+    }
+
+    private void disarm() {
+        if (null != timer) {
+            timer.cancel();
+            timer = null;
+        }
+    }
+}
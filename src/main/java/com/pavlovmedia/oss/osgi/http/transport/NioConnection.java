@@ -0,0 +1,343 @@
+package com.pavlovmedia.oss.osgi.http.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A non-blocking socket to a single route. Blocking style reads and writes
+ * that cannot make progress park on a selector private to this connection,
+ * which is only opened the first time it is needed, so the channel never
+ * blocks the calling thread inside the kernel without a timeout. Connections
+ * driven by an {@link NioEventLoop} use {@link #readNow()} and
+ * {@link #writeNow(ByteBuffer...)} instead and never open that selector.
+ * <p>
+ * Waiting in a selector holds on to a virtual thread's carrier, so a connection
+ * used from a virtual thread can instead be told to {@link #parkOn(NioEventLoop)}
+ * a shared loop, which wakes the thread back up when the channel is ready.
+ *
+ * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
+ *
+ */
+final class NioConnection implements Closeable {
+    final Route route;
+    private final SocketChannel channel;
+    private final ByteBuffer readBuffer;
+    private Selector selector;
+    private SelectionKey key;
+    private NioEventLoop loop;
+    private volatile long lastUsed = System.nanoTime();
+
+    private NioConnection(final Route route, final SocketChannel channel, final int bufferSize) {
+        this.route = route;
+        this.channel = channel;
+        this.readBuffer = ByteBuffer.allocateDirect(bufferSize);
+        this.readBuffer.flip();
+    }
+
+    /**
+     * Opens a new connection, waiting at most connectTimeout millis for it to complete
+     */
+    static NioConnection connect(final Route route, final int connectTimeout,
+            final SocketSettings settings, final NioEventLoop parkOn) throws IOException {
+        NioConnection connection = start(route, new InetSocketAddress(route.host, route.port), settings);
+        connection.parkOn(parkOn);
+        try {
+            if (!connection.isConnected()) {
+                connection.await(SelectionKey.OP_CONNECT, connectTimeout);
+                connection.channel.finishConnect();
+            }
+            return connection;
+        } catch (IOException e) {
+            connection.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens a channel and starts connecting to an already resolved address without
+     * waiting, an event loop finishes the connect once the channel is ready.
+     */
+    static NioConnection start(final Route route, final InetSocketAddress address,
+            final SocketSettings settings) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, settings.tcpNoDelay);
+            channel.setOption(StandardSocketOptions.SO_KEEPALIVE, settings.keepAlive);
+            if (settings.sendBufferSize > 0) {
+                channel.setOption(StandardSocketOptions.SO_SNDBUF, settings.sendBufferSize);
+            }
+            if (settings.receiveBufferSize > 0) {
+                channel.setOption(StandardSocketOptions.SO_RCVBUF, settings.receiveBufferSize);
+            }
+            channel.connect(address);
+            return new NioConnection(route, channel, settings.bufferSize);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Sets the loop that blocking reads and writes wait on, null goes back
+     * to the private selector
+     */
+    void parkOn(final NioEventLoop loop) {
+        this.loop = loop;
+    }
+
+    SocketChannel channel() {
+        return channel;
+    }
+
+    boolean isConnected() {
+        return channel.isConnected();
+    }
+
+    /**
+     * Completes a connect started by {@link #start(Route, InetSocketAddress, SocketSettings)}
+     * @return true once connected
+     */
+    boolean finishConnect() throws IOException {
+        return channel.finishConnect();
+    }
+
+    /**
+     * Does a single non-blocking read into the read buffer, which is left holding
+     * the unconsumed bytes in read mode
+     * @return the bytes read, 0 if nothing was ready, or -1 at end of stream
+     */
+    int readNow() throws IOException {
+        readBuffer.compact();
+        try {
+            return channel.read(readBuffer);
+        } finally {
+            readBuffer.flip();
+        }
+    }
+
+    /**
+     * The unconsumed bytes that have been read, in read mode
+     */
+    ByteBuffer readBuffer() {
+        return readBuffer;
+    }
+
+    /**
+     * Writes as much as the socket will take without waiting
+     * @return true if everything was written
+     */
+    boolean writeNow(final ByteBuffer... srcs) throws IOException {
+        channel.write(srcs);
+        return !srcs[srcs.length - 1].hasRemaining();
+    }
+
+    /**
+     * Reads up to len bytes, waiting at most timeout millis (0 is forever) for data
+     * @return the number of bytes read or -1 at end of stream
+     */
+    int read(final byte[] b, final int off, final int len, final int timeout) throws IOException {
+        if (!readBuffer.hasRemaining() && fill(timeout) < 0) {
+            return -1;
+        }
+        int count = Math.min(len, readBuffer.remaining());
+        readBuffer.get(b, off, count);
+        return count;
+    }
+
+    /**
+     * Reads a single byte, or -1 at end of stream
+     */
+    int read(final int timeout) throws IOException {
+        if (!readBuffer.hasRemaining() && fill(timeout) < 0) {
+            return -1;
+        }
+        return readBuffer.get() & 0xff;
+    }
+
+    private int fill(final int timeout) throws IOException {
+        readBuffer.clear();
+        try {
+            int count;
+            while (0 == (count = channel.read(readBuffer))) {
+                await(SelectionKey.OP_READ, timeout);
+            }
+            return count;
+        } finally {
+            readBuffer.flip();
+        }
+    }
+
+    /**
+     * Writes the whole of every buffer in one gathering write where the socket allows,
+     * waiting at most timeout millis each time the socket is full
+     */
+    void write(final int timeout, final ByteBuffer... srcs) throws IOException {
+        while (srcs[srcs.length - 1].hasRemaining()) {
+            if (0 == channel.write(srcs)) {
+                await(SelectionKey.OP_WRITE, timeout);
+            }
+        }
+    }
+
+    private void await(final int ops, final int timeout) throws IOException {
+        if (null != loop) {
+            awaitOnLoop(ops, timeout);
+            return;
+        }
+        if (null == selector) {
+            selector = Selector.open();
+            key = channel.register(selector, 0);
+        }
+        try {
+            key.interestOps(ops);
+            try {
+                int ready = timeout > 0 ? selector.select(timeout) : selector.select();
+                selector.selectedKeys().clear();
+                if (0 == ready && timeout > 0) {
+                    throw new SocketTimeoutException(String.format("Timed out after %dms on %s", timeout, route));
+                }
+            } finally {
+                key.interestOps(0);
+            }
+        } catch (CancelledKeyException e) {
+            // Another thread closed the channel, which is how an exchange is aborted
+            throw new ClosedChannelException();
+        }
+    }
+
+    /**
+     * Parks the calling thread until the loop sees the channel is ready, which
+     * lets a virtual thread unmount instead of pinning its carrier in a select
+     */
+    private void awaitOnLoop(final int ops, final int timeout) throws IOException {
+        CompletableFuture<Void> ready = new CompletableFuture<>();
+        NioEventLoop.Handler handler = new NioEventLoop.Handler() {
+            @Override
+            public void ready(final SelectionKey selected) throws IOException {
+                selected.interestOps(0);
+                ready.complete(null);
+            }
+
+            @Override
+            public void failed(final Throwable t) {
+                ready.completeExceptionally(t);
+            }
+        };
+        loop.execute(() -> {
+            try {
+                loop.interest(channel, ops, handler);
+            } catch (IOException | RuntimeException e) {
+                ready.completeExceptionally(e);
+            }
+        });
+        try {
+            if (timeout > 0) {
+                ready.get(timeout, TimeUnit.MILLISECONDS);
+            } else {
+                ready.get();
+            }
+        } catch (TimeoutException e) {
+            throw new SocketTimeoutException(String.format("Timed out after %dms on %s", timeout, route));
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException
+                ? (IOException) e.getCause()
+                : new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting on " + route);
+        } finally {
+            NioEventLoop current = loop;
+            current.execute(() -> {
+                try {
+                    current.interest(channel, 0, null);
+                } catch (IOException | RuntimeException e) {
+                    // Closed channels drop their keys on their own
+                }
+            });
+        }
+    }
+
+    /**
+     * True if there are bytes that were read from the socket but not consumed
+     */
+    boolean hasBufferedInput() {
+        return readBuffer.hasRemaining();
+    }
+
+    /**
+     * Checks if a pooled connection can still be used. Since the socket is non-blocking
+     * we can probe it without waiting: a quiet socket reads 0 bytes, a socket the
+     * server has closed reads -1, and anything else is a protocol error.
+     */
+    boolean isReusable() {
+        if (!channel.isOpen() || readBuffer.hasRemaining()) {
+            return false;
+        }
+        try {
+            readBuffer.clear();
+            int count = channel.read(readBuffer);
+            readBuffer.flip();
+            return 0 == count;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    void touch() {
+        lastUsed = System.nanoTime();
+    }
+
+    long idleMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastUsed);
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Nothing more to do with it
+        }
+        if (null != selector) {
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // Nothing more to do with it
+            }
+        }
+    }
+
+    /**
+     * The socket options a connection is opened with
+     */
+    static final class SocketSettings {
+        final boolean tcpNoDelay;
+        final boolean keepAlive;
+        final int sendBufferSize;
+        final int receiveBufferSize;
+        final int bufferSize;
+
+        SocketSettings(final boolean tcpNoDelay, final boolean keepAlive, final int sendBufferSize,
+                final int receiveBufferSize, final int bufferSize) {
+            this.tcpNoDelay = tcpNoDelay;
+            this.keepAlive = keepAlive;
+            this.sendBufferSize = sendBufferSize;
+            this.receiveBufferSize = receiveBufferSize;
+            this.bufferSize = bufferSize;
+        }
+    }
+}
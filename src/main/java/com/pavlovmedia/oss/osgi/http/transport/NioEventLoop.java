@@ -0,0 +1,189 @@
+package com.pavlovmedia.oss.osgi.http.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A single selector thread that drives non-blocking channels through
+ * readiness callbacks. Everything that touches the selector, including
+ * registration, happens on the loop thread; other threads hand work over
+ * with {@link #execute(Runnable)}.
+ *
+ * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
+ *
+ */
+final class NioEventLoop implements Closeable {
+    /**
+     * Called on the loop thread when a registered channel is ready
+     */
+    interface Handler {
+        void ready(SelectionKey key) throws IOException;
+
+        void failed(Throwable t);
+    }
+
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    private final Selector selector;
+    private final Thread thread;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>();
+    private volatile boolean running = true;
+
+    NioEventLoop(final String name) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this::run, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Runs the task on the loop thread, right away if already on it
+     */
+    void execute(final Runnable task) {
+        if (inLoop()) {
+            task.run();
+        } else {
+            tasks.add(task);
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Runs the task on the loop thread after a delay
+     * @return a timer that can be cancelled
+     */
+    Timer schedule(final Runnable task, final long delayMillis) {
+        Timer timer = new Timer(task, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis));
+        execute(() -> timers.add(timer));
+        return timer;
+    }
+
+    /**
+     * Sets what a channel is waiting for, registering it on first use.
+     * Must be called on the loop thread.
+     */
+    SelectionKey interest(final SelectableChannel channel, final int ops, final Handler handler)
+            throws ClosedChannelException {
+        SelectionKey key = channel.keyFor(selector);
+        if (null == key || !key.isValid()) {
+            return channel.register(selector, ops, handler);
+        }
+        key.attach(handler);
+        key.interestOps(ops);
+        return key;
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                runTasks();
+                long wait = runTimers();
+                if (!tasks.isEmpty()) {
+                    selector.selectNow();
+                } else if (wait > 0) {
+                    selector.select(wait);
+                } else {
+                    selector.select();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Handler handler = (Handler) key.attachment();
+                    if (null == handler || !key.isValid()) {
+                        continue;
+                    }
+                    try {
+                        handler.ready(key);
+                    } catch (IOException | RuntimeException e) {
+                        handler.failed(e);
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                // A broken selector or task should not take the loop down with it
+                continue;
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // Shutting down anyway
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while (null != (task = tasks.poll())) {
+            task.run();
+        }
+    }
+
+    /**
+     * Fires due timers
+     * @return millis until the next timer, or 0 if there are none
+     */
+    private long runTimers() {
+        long now = System.nanoTime();
+        Timer timer;
+        while (null != (timer = timers.peek())) {
+            if (timer.cancelled) {
+                timers.poll();
+                continue;
+            }
+            if (timer.deadline - now > 0) {
+                return Math.max(1, TimeUnit.NANOSECONDS.toMillis(timer.deadline - now));
+            }
+            timers.poll();
+            timer.task.run();
+        }
+        return 0;
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+    }
+
+    /**
+     * A scheduled task
+     */
+    static final class Timer implements Comparable<Timer> {
+        private final Runnable task;
+        private final long deadline;
+        private final long sequence = SEQUENCE.incrementAndGet();
+        private volatile boolean cancelled;
+
+        private Timer(final Runnable task, final long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        void cancel() {
+            cancelled = true;
+        }
+
+        @Override
+        public int compareTo(final Timer other) {
+            long diff = deadline - other.deadline;
+            if (0 != diff) {
+                return diff < 0 ? -1 : 1;
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+}
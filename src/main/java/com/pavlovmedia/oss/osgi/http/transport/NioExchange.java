@@ -0,0 +1,356 @@
+package com.pavlovmedia.oss.osgi.http.transport;
+
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.pavlovmedia.oss.osgi.http.HttpRequest;
+
+/**
+ * One HTTP/1.1 request and response over an {@link NioConnection}.
+ *
+ * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
+ *
+ */
+final class NioExchange implements HttpExchange {
+    private static final byte[] CRLF = { '\r', '\n' };
+    private static final byte[] LAST_CHUNK = { '0', '\r', '\n', '\r', '\n' };
+
+    private final NioHttpTransport transport;
+    private final NioConnection connection;
+    private final HttpRequest request;
+    private final URL url;
+    private final int readTimeout;
+    private final AtomicBoolean done = new AtomicBoolean();
+    private final InputStream source = new ConnectionInputStream();
+
+    private ResponseHead head;
+    private InputStream body;
+    private boolean reusable;
+    // Whether any of the response has arrived
+    private boolean answered;
+
+    NioExchange(final NioHttpTransport transport, final NioConnection connection,
+            final HttpRequest request, final URL url, final int readTimeout) {
+        this.transport = transport;
+        this.connection = connection;
+        this.request = request;
+        this.url = url;
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * Encodes the request line and headers
+     * @param contentLength the body's length, or -1 to send it with chunked transfer encoding
+     */
+    static ByteBuffer encodeHead(final HttpRequest request, final URL url, final Route route,
+            final boolean keepAlive, final long contentLength) {
+        boolean hasBody = request.body.isPresent();
+        StringBuilder head = new StringBuilder(256);
+        String target = url.getFile();
+        head.append(request.verb.name()).append(' ')
+            .append(target.isEmpty() ? "/" : target)
+            .append(" HTTP/1.1\r\n");
+        head.append("Host: ").append(route.hostHeader()).append("\r\n");
+        request.headers.forEach((name, values) -> {
+            if (!"Host".equalsIgnoreCase(name)) {
+                values.forEach(v -> head.append(name).append(": ").append(v).append("\r\n"));
+            }
+        });
+        if (!keepAlive) {
+            head.append("Connection: close\r\n");
+        }
+        if (hasBody && !request.getHeader("Content-Length").isPresent()) {
+            if (contentLength < 0) {
+                head.append("Transfer-Encoding: chunked\r\n");
+            } else {
+                head.append("Content-Length: ").append(contentLength).append("\r\n");
+            }
+        }
+        head.append("\r\n");
+        return ByteBuffer.wrap(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * Writes the request head and body
+     */
+    void send() throws IOException {
+        boolean hasBody = request.body.isPresent();
+        boolean chunked = hasBody && request.contentLength < 0
+                && !request.getHeader("Content-Length").isPresent();
+        ByteBuffer headBytes = encodeHead(request, url, connection.route, transport.isKeepAlive(),
+                request.contentLength);
+
+        if (!hasBody) {
+            connection.write(readTimeout, headBytes);
+            return;
+        }
+
+        BodyOutputStream out = new BodyOutputStream(headBytes, chunked);
+        try {
+            request.body.get().accept(out);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        out.finish();
+    }
+
+    private void readHead() throws IOException {
+        if (null != head) {
+            return;
+        }
+        ResponseHead.Builder builder = new ResponseHead.Builder();
+        ResponseHead parsed = null;
+        while (null == parsed) {
+            String line = readLine();
+            if (null == line) {
+                throw new EOFException(builder.hasStarted()
+                        ? "Connection closed inside the response headers"
+                        : "Connection closed before a response was read from " + url);
+            }
+            parsed = builder.line(line);
+        }
+        head = parsed;
+        reusable = transport.isKeepAlive() && head.isKeepAlive();
+
+        if (!head.hasBody(request.verb)) {
+            body = new FixedLengthInputStream(source, 0, this::complete, this::close);
+        } else if (head.isChunked()) {
+            body = new ChunkedInputStream(source, this::complete, this::close);
+        } else if (head.contentLength() >= 0) {
+            body = new FixedLengthInputStream(source, head.contentLength(), this::complete, this::close);
+        } else {
+            // Read until the server closes the connection
+            reusable = false;
+            body = new FixedLengthInputStream(source, -1, this::complete, this::close);
+        }
+    }
+
+    private String readLine() throws IOException {
+        StringBuilder sb = new StringBuilder(64);
+        int ch;
+        while ('\n' != (ch = source.read())) {
+            if (ch < 0) {
+                return sb.length() == 0 ? null : sb.toString();
+            }
+            if ('\r' != ch) {
+                if (sb.length() >= ResponseHead.MAX_LINE) {
+                    throw new IOException("Response header line too long");
+                }
+                sb.append((char) ch);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Whether the server sent anything back, when it didn't a failure may be
+     * a pooled connection it had already closed
+     */
+    boolean isAnswered() {
+        return answered;
+    }
+
+    Optional<String> header(final String name) {
+        return null == head ? Optional.empty() : head.header(name);
+    }
+
+    URL getUrl() {
+        return url;
+    }
+
+    @Override
+    public int getResponseCode() throws IOException {
+        readHead();
+        return head.code;
+    }
+
+    @Override
+    public Map<String, List<String>> getHeaderFields() {
+        try {
+            readHead();
+        } catch (IOException e) {
+            close();
+            return Collections.emptyMap();
+        }
+        return head.headers;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        readHead();
+        checkStatus(head.code, url);
+        return body;
+    }
+
+    /**
+     * Throws the same exceptions {@link java.net.HttpURLConnection#getInputStream()}
+     * does for error responses
+     */
+    static void checkStatus(final int code, final URL url) throws IOException {
+        if (404 == code || 410 == code) {
+            throw new FileNotFoundException(url.toExternalForm());
+        }
+        if (code >= 400) {
+            throw new IOException(String.format("Server returned HTTP response code: %d for URL: %s",
+                    code, url.toExternalForm()));
+        }
+    }
+
+    @Override
+    public Optional<InputStream> getErrorStream() {
+        return null != head && head.code >= 400 ? Optional.of(body) : Optional.empty();
+    }
+
+    /**
+     * Reads and throws away a small remaining body so the connection can be reused,
+     * otherwise closes it
+     */
+    void discard() {
+        try {
+            readHead();
+            byte[] scratch = new byte[4096];
+            int total = 0;
+            int count;
+            while (total < 65536 && (count = body.read(scratch)) >= 0) {
+                total += count;
+            }
+        } catch (IOException e) {
+            // Falls through to close
+        }
+        close();
+    }
+
+    private void complete() {
+        if (done.compareAndSet(false, true)) {
+            transport.release(connection, reusable && !connection.hasBufferedInput());
+        }
+    }
+
+    @Override
+    public void close() {
+        if (done.compareAndSet(false, true)) {
+            transport.release(connection, false);
+        }
+    }
+
+    /**
+     * A view of the connection as a stream, with the transport read timeout
+     */
+    private final class ConnectionInputStream extends InputStream {
+        @Override
+        public int read() throws IOException {
+            int b = connection.read(readTimeout);
+            answered |= b >= 0;
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            int count = connection.read(b, off, len, readTimeout);
+            answered |= count > 0;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return connection.hasBufferedInput() ? 1 : 0;
+        }
+    }
+
+    /**
+     * Buffers the request body, sending the head along with the first write and
+     * framing each buffer as a chunk when the length is unknown. Closing only
+     * flushes, the body is finished once the writer returns.
+     */
+    private final class BodyOutputStream extends OutputStream {
+        private final byte[] buffer = new byte[8192];
+        private final boolean chunked;
+        private ByteBuffer head;
+        private int count;
+
+        BodyOutputStream(final ByteBuffer head, final boolean chunked) {
+            this.head = head;
+            this.chunked = chunked;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            if (count == buffer.length) {
+                flushBuffer();
+            }
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            if (len >= buffer.length) {
+                flushBuffer();
+                send(ByteBuffer.wrap(b, off, len), chunked);
+                return;
+            }
+            if (len > buffer.length - count) {
+                flushBuffer();
+            }
+            System.arraycopy(b, off, buffer, count, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            flushBuffer();
+        }
+
+        @Override
+        public void close() throws IOException {
+            flushBuffer();
+        }
+
+        void finish() throws IOException {
+            flushBuffer();
+            if (chunked) {
+                send(ByteBuffer.wrap(LAST_CHUNK), false);
+            } else if (null != head) {
+                connection.write(readTimeout, head);
+                head = null;
+            }
+        }
+
+        private void flushBuffer() throws IOException {
+            if (count > 0) {
+                send(ByteBuffer.wrap(buffer, 0, count), chunked);
+                count = 0;
+            }
+        }
+
+        private void send(final ByteBuffer data, final boolean frame) throws IOException {
+            List<ByteBuffer> parts = new ArrayList<>(4);
+            if (null != head) {
+                parts.add(head);
+                head = null;
+            }
+            if (frame) {
+                parts.add(ByteBuffer.wrap(Integer.toHexString(data.remaining())
+                        .getBytes(StandardCharsets.US_ASCII)));
+                parts.add(ByteBuffer.wrap(CRLF));
+                parts.add(data);
+                parts.add(ByteBuffer.wrap(CRLF));
+            } else {
+                parts.add(data);
+            }
+            connection.write(readTimeout, parts.toArray(new ByteBuffer[parts.size()]));
+        }
+    }
+}
@@ -0,0 +1,370 @@
+package com.pavlovmedia.oss.osgi.http.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.pavlovmedia.oss.osgi.http.HttpRequest;
+import com.pavlovmedia.oss.osgi.http.HttpVerbs;
+import com.pavlovmedia.oss.osgi.http.VirtualThreads;
+
+/**
+ * A transport built directly on non-blocking {@link java.nio.channels.SocketChannel}s
+ * that speaks HTTP/1.1 itself and keeps its own {@link ConnectionPool} of keep-alive
+ * connections, so socket options and reuse are under our control instead of the JDK's.
+ * Only plain http is supported, https requests should use {@link UrlConnectionTransport}.
+ * <p>
+ * {@link #openAsync(HttpRequest, Executor)} never parks a thread on a socket: a small, fixed set
+ * of selector threads drives connect, write and read through readiness callbacks, and the
+ * caller's executor is only used to complete the returned future.
+ * <p>
+ * A server may close a keep-alive connection while it sits in the pool. When
+ * a reused connection fails before any of the response arrives, a GET, HEAD,
+ * OPTIONS, PUT or DELETE is sent once more on a new connection. Blocking
+ * requests are only retried without a body, since the body can't be replayed.
+ *
+ * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
+ *
+ */
+public class NioHttpTransport implements HttpTransport {
+    private static final List<Integer> REDIRECTS = Arrays.asList(301, 302, 303, 307, 308);
+    private static final List<HttpVerbs> IDEMPOTENT = Arrays.asList(HttpVerbs.GET, HttpVerbs.HEAD,
+            HttpVerbs.OPTIONS, HttpVerbs.PUT, HttpVerbs.DELETE);
+    private static final int MAX_REDIRECTS = 5;
+
+    private ConnectionPool pool = new ConnectionPool();
+    private int readTimeout = 0;
+    private boolean keepAlive = true;
+    private boolean tcpNoDelay = true;
+    private boolean followRedirects = true;
+    private int sendBufferSize = 0;
+    private int receiveBufferSize = 0;
+    private int bufferSize = 16384;
+    private int eventLoopCount = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    private final ReentrantLock loopLock = new ReentrantLock();
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private volatile NioEventLoop[] loops;
+    private volatile NioConnection.SocketSettings settings = buildSettings();
+
+    /**
+     * Sets the read timeout in milliseconds, 0 (the default) waits forever
+     * @param readTimeout
+     */
+    public NioHttpTransport withReadTimeout(final int readTimeout) {
+        this.readTimeout = readTimeout;
+        return this;
+    }
+
+    /**
+     * Turns connection reuse on or off, it is on by default
+     * @param keepAlive
+     */
+    public NioHttpTransport withKeepAlive(final boolean keepAlive) {
+        this.keepAlive = keepAlive;
+        this.settings = buildSettings();
+        return this;
+    }
+
+    /**
+     * Turns Nagle's algorithm back on, it is off by default
+     * @param tcpNoDelay
+     */
+    public NioHttpTransport withTcpNoDelay(final boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+        this.settings = buildSettings();
+        return this;
+    }
+
+    /**
+     * Sets the kernel socket buffer sizes, 0 leaves the OS default
+     * @param sendBufferSize SO_SNDBUF
+     * @param receiveBufferSize SO_RCVBUF
+     */
+    public NioHttpTransport withSocketBuffers(final int sendBufferSize, final int receiveBufferSize) {
+        this.sendBufferSize = sendBufferSize;
+        this.receiveBufferSize = receiveBufferSize;
+        this.settings = buildSettings();
+        return this;
+    }
+
+    /**
+     * Sets the size of the per-connection read buffer
+     * @param bufferSize
+     */
+    public NioHttpTransport withBufferSize(final int bufferSize) {
+        this.bufferSize = bufferSize;
+        this.settings = buildSettings();
+        return this;
+    }
+
+    /**
+     * Sets how many selector threads drive asynchronous requests, which defaults
+     * to half the available processors. Must be set before the first async request.
+     * @param eventLoopCount
+     */
+    public NioHttpTransport withEventLoops(final int eventLoopCount) {
+        this.eventLoopCount = Math.max(1, eventLoopCount);
+        return this;
+    }
+
+    /**
+     * Replaces the connection pool, closing the current one. This should be
+     * done before the transport is used.
+     * @param pool
+     */
+    public NioHttpTransport withPool(final ConnectionPool pool) {
+        Objects.requireNonNull(pool);
+        ConnectionPool old = this.pool;
+        this.pool = pool;
+        old.close();
+        return this;
+    }
+
+    /**
+     * Gets the connection pool so it can be tuned or watched
+     */
+    public ConnectionPool getPool() {
+        return pool;
+    }
+
+    @Override
+    public Optional<PoolStats> getPoolStats() {
+        return Optional.of(pool.getStats());
+    }
+
+    /**
+     * Sets whether GET and HEAD requests follow redirects, which they do by default
+     * just like {@link java.net.HttpURLConnection}
+     * @param followRedirects
+     */
+    public NioHttpTransport withFollowRedirects(final boolean followRedirects) {
+        this.followRedirects = followRedirects;
+        return this;
+    }
+
+    boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    int getReadTimeout() {
+        return readTimeout;
+    }
+
+    NioConnection.SocketSettings settings() {
+        return settings;
+    }
+
+    @Override
+    public HttpExchange open(final HttpRequest request) throws IOException {
+        URL url = request.url;
+        boolean follow = followRedirects && !request.body.isPresent()
+                && (HttpVerbs.GET == request.verb || HttpVerbs.HEAD == request.verb);
+        for (int hop = 0;; hop++) {
+            NioExchange exchange = send(request, url);
+            if (!follow || hop == MAX_REDIRECTS || !REDIRECTS.contains(exchange.getResponseCode())) {
+                return exchange;
+            }
+            Optional<URL> location = exchange.header("Location").flatMap(l -> resolve(exchange.getUrl(), l));
+            if (!location.isPresent() || !"http".equalsIgnoreCase(location.get().getProtocol())) {
+                return exchange;
+            }
+            exchange.discard();
+            url = location.get();
+        }
+    }
+
+    /**
+     * Sends the request without blocking. The body, if any, is written into memory
+     * on the calling thread first, which is also where the host name is resolved.
+     */
+    @Override
+    public CompletableFuture<HttpExchange> openAsync(final HttpRequest request, final Executor executor) {
+        CompletableFuture<HttpExchange> future = new CompletableFuture<>();
+        sendAsync(request, request.url, 0, executor, future);
+        return future;
+    }
+
+    private void sendAsync(final HttpRequest request, final URL url, final int hop, final Executor executor,
+            final CompletableFuture<HttpExchange> future) {
+        try {
+            Route route = Route.of(url);
+            if (!"http".equals(route.scheme)) {
+                throw new IOException(String.format("%s only supports http, not %s", getClass().getSimpleName(),
+                        route.scheme));
+            }
+            InetSocketAddress address = new InetSocketAddress(route.host, route.port);
+            if (address.isUnresolved()) {
+                throw new UnknownHostException(route.host);
+            }
+
+            ByteBuffer[] out;
+            if (request.body.isPresent()) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+                        request.contentLength > 0 ? (int) request.contentLength : 1024);
+                request.body.get().accept(bytes);
+                out = new ByteBuffer[] {
+                    NioExchange.encodeHead(request, url, route, keepAlive, bytes.size()),
+                    ByteBuffer.wrap(bytes.toByteArray())
+                };
+            } else {
+                out = new ByteBuffer[] { NioExchange.encodeHead(request, url, route, keepAlive, 0) };
+            }
+
+            new NioAsyncExchange(this, nextLoop(), request, url, address, out, hop, executor, future).start();
+        } catch (UncheckedIOException e) {
+            future.completeExceptionally(e.getCause());
+        } catch (IOException | RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Starts following a redirect from an async exchange if it should be followed
+     * @return true if the redirect is being followed and will complete the future
+     */
+    boolean redirect(final HttpRequest request, final BufferedExchange exchange, final int hop,
+            final CompletableFuture<HttpExchange> future, final Executor executor) {
+        boolean follow = followRedirects && !request.body.isPresent()
+                && (HttpVerbs.GET == request.verb || HttpVerbs.HEAD == request.verb)
+                && REDIRECTS.contains(exchange.getResponseCode());
+        if (!follow) {
+            return false;
+        }
+        Optional<URL> location = exchange.header("Location").flatMap(l -> resolve(exchange.getUrl(), l));
+        if (hop >= MAX_REDIRECTS || !location.isPresent()
+                || !"http".equalsIgnoreCase(location.get().getProtocol())) {
+            return false;
+        }
+        sendAsync(request, location.get(), hop + 1, executor, future);
+        return true;
+    }
+
+    private NioEventLoop nextLoop() throws IOException {
+        NioEventLoop[] current = loops;
+        if (null == current) {
+            loopLock.lock();
+            try {
+                current = loops;
+                if (null == current) {
+                    current = new NioEventLoop[eventLoopCount];
+                    for (int i = 0; i < current.length; i++) {
+                        current[i] = new NioEventLoop(String.format("pavlov-http-nio-%d", i));
+                    }
+                    loops = current;
+                }
+            } finally {
+                loopLock.unlock();
+            }
+        }
+        return current[Math.floorMod(nextLoop.getAndIncrement(), current.length)];
+    }
+
+    private NioExchange send(final HttpRequest request, final URL url) throws IOException {
+        return send(request, url, !request.body.isPresent());
+    }
+
+    private NioExchange send(final HttpRequest request, final URL url, final boolean mayRetry) throws IOException {
+        Route route = Route.of(url);
+        if (!"http".equals(route.scheme)) {
+            throw new IOException(String.format("%s only supports http, not %s", getClass().getSimpleName(),
+                    route.scheme));
+        }
+        // Virtual threads wait on a shared loop rather than pin their carrier in a select
+        NioEventLoop parkOn = VirtualThreads.isVirtual(Thread.currentThread()) ? nextLoop() : null;
+        AtomicBoolean opened = new AtomicBoolean();
+        NioConnection connection = acquire(route, request.connectTimeout, parkOn, opened);
+        connection.parkOn(parkOn);
+        boolean retry = mayRetry && !opened.get() && isRetryable(request);
+        NioExchange exchange = new NioExchange(this, connection, request, url, readTimeout);
+        try {
+            exchange.send();
+            if (retry) {
+                // A connection the server closed only shows once the head is read
+                exchange.getResponseCode();
+            }
+            return exchange;
+        } catch (IOException | RuntimeException e) {
+            exchange.close();
+            if (retry && isStale(e, exchange.isAnswered())) {
+                evictIdle(route);
+                return send(request, url, false);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Whether a request may be sent again after a reused connection failed under it
+     */
+    boolean isRetryable(final HttpRequest request) {
+        return IDEMPOTENT.contains(request.verb);
+    }
+
+    /**
+     * Whether a failure looks like a pooled connection the server had closed,
+     * rather than a server that is slow or went wrong partway through
+     */
+    static boolean isStale(final Throwable failure, final boolean answered) {
+        return !answered && failure instanceof IOException && !(failure instanceof SocketTimeoutException);
+    }
+
+    /**
+     * Gives the pool's idle connections on a route up, after one turned out to be closed
+     */
+    void evictIdle(final Route route) {
+        pool.evictIdle(route);
+    }
+
+    private Optional<URL> resolve(final URL base, final String location) {
+        try {
+            return Optional.of(new URL(base, location));
+        } catch (MalformedURLException e) {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Leases a connection, setting opened if it is a new one rather than one from the pool
+     */
+    private NioConnection acquire(final Route route, final int connectTimeout, final NioEventLoop parkOn,
+            final AtomicBoolean opened) throws IOException {
+        NioConnection.SocketSettings current = settings;
+        return pool.lease(route, r -> {
+            opened.set(true);
+            return NioConnection.connect(r, connectTimeout, current, parkOn);
+        });
+    }
+
+    void release(final NioConnection connection, final boolean reusable) {
+        pool.release(connection, reusable);
+    }
+
+    private NioConnection.SocketSettings buildSettings() {
+        return new NioConnection.SocketSettings(tcpNoDelay, keepAlive, sendBufferSize, receiveBufferSize,
+                bufferSize);
+    }
+
+    @Override
+    public void close() {
+        pool.close();
+        NioEventLoop[] current = loops;
+        if (null != current) {
+            Arrays.stream(current).forEach(NioEventLoop::close);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.pavlovmedia.oss.osgi.http.transport;
+
+/**
+ * A point in time snapshot of a {@link ConnectionPool}, either for
+ * the whole pool or for a single route.
+ *
+ * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
+ *
+ */
+public final class PoolStats {
+    /**
+     * Connections currently handed out to requests
+     */
+    public final int leased;
+
+    /**
+     * Connections sitting in the pool waiting to be reused
+     */
+    public final int idle;
+
+    /**
+     * Requests waiting for a connection because the pool is at its limits
+     */
+    public final int pending;
+
+    /**
+     * Connections opened over the life of the pool
+     */
+    public final long created;
+
+    /**
+     * Connections closed by the pool because they sat idle too long,
+     * went stale, or had to make room for another route
+     */
+    public final long evicted;
+
+    PoolStats(final int leased, final int idle, final int pending, final long created, final long evicted) {
+        this.leased = leased;
+        this.idle = idle;
+        this.pending = pending;
+        this.created = created;
+        this.evicted = evicted;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("PoolStats[leased=%d, idle=%d, pending=%d, created=%d, evicted=%d]",
+                leased, idle, pending, created, evicted);
+    }
+}
@@ -0,0 +1,131 @@
+package com.pavlovmedia.oss.osgi.http.transport;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+
+import com.pavlovmedia.oss.osgi.http.HttpVerbs;
+
+/**
+ * The status line and headers of an HTTP/1.x response, along with the
+ * rules for how its body is framed.
+ *
+ * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
+ *
+ */
+final class ResponseHead {
+    static final int MAX_LINE = 65536;
+
+    final String version;
+    final int code;
+    final Map<String,List<String>> headers;
+
+    private ResponseHead(final String version, final int code, final Map<String,List<String>> headers) {
+        this.version = version;
+        this.code = code;
+        this.headers = headers;
+    }
+
+    Optional<String> header(final String name) {
+        List<String> values = headers.get(name);
+        return null == values || values.isEmpty() ? Optional.empty() : Optional.of(values.get(0));
+    }
+
+    /**
+     * True if the server is willing to keep the connection open after this response
+     */
+    boolean isKeepAlive() {
+        String connection = header("Connection").orElse("");
+        return "HTTP/1.0".equals(version)
+                ? connection.equalsIgnoreCase("keep-alive")
+                : !connection.equalsIgnoreCase("close");
+    }
+
+    /**
+     * True if a response to the verb with this status carries a body
+     */
+    boolean hasBody(final HttpVerbs verb) {
+        return HttpVerbs.HEAD != verb && 204 != code && 304 != code && !(code >= 100 && code < 200);
+    }
+
+    boolean isChunked() {
+        return header("Transfer-Encoding").map(t -> t.toLowerCase(Locale.ROOT).contains("chunked")).orElse(false);
+    }
+
+    /**
+     * The Content-Length, or -1 if there isn't one
+     */
+    long contentLength() throws IOException {
+        Optional<String> length = header("Content-Length");
+        if (!length.isPresent()) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(length.get().trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("Bad Content-Length: " + length.get());
+        }
+    }
+
+    /**
+     * Builds a head a line at a time, skipping interim 1xx responses
+     */
+    static final class Builder {
+        private String version;
+        private int code = -1;
+        private TreeMap<String,List<String>> fields = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        private String lastName;
+
+        /**
+         * Adds a line, without its line ending
+         * @return the head once the blank line that ends it has been seen, otherwise null
+         */
+        ResponseHead line(final String line) throws IOException {
+            if (-1 == code) {
+                String[] parts = line.split(" ", 3);
+                if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+                    throw new IOException("Bad status line: " + line);
+                }
+                version = parts[0];
+                try {
+                    code = Integer.parseInt(parts[1]);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Bad status line: " + line);
+                }
+                return null;
+            }
+            if (line.isEmpty()) {
+                if (code >= 100 && code < 200 && 101 != code) {
+                    // An interim response, the real one follows
+                    code = -1;
+                    fields = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+                    lastName = null;
+                    return null;
+                }
+                return new ResponseHead(version, code, Collections.unmodifiableMap(fields));
+            }
+            if ((' ' == line.charAt(0) || '\t' == line.charAt(0)) && null != lastName) {
+                // Obsolete line folding continues the last value
+                List<String> values = fields.get(lastName);
+                int last = values.size() - 1;
+                values.set(last, values.get(last) + " " + line.trim());
+                return null;
+            }
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                lastName = line.substring(0, colon).trim();
+                fields.computeIfAbsent(lastName, k -> new ArrayList<>()).add(line.substring(colon + 1).trim());
+            }
+            return null;
+        }
+
+        boolean hasStarted() {
+            return -1 != code;
+        }
+    }
+}
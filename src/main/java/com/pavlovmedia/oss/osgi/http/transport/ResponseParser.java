@@ -0,0 +1,178 @@
+package com.pavlovmedia.oss.osgi.http.transport;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.pavlovmedia.oss.osgi.http.HttpVerbs;
+
+/**
+ * An incremental HTTP/1.x response parser. Bytes are pushed in as they
+ * arrive from a non-blocking socket, in whatever pieces the network gives
+ * us, and body bytes are handed to a {@link BodySink} with the framing
+ * (Content-Length or chunked) already removed.
+ *
+ * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
+ *
+ */
+final class ResponseParser {
+    /**
+     * Receives body bytes, the buffer is only valid for the duration of the call
+     */
+    @FunctionalInterface
+    interface BodySink {
+        void onBody(ByteBuffer data) throws IOException;
+    }
+
+    private enum State { HEAD, FIXED, CHUNK_SIZE, CHUNK_DATA, CHUNK_END, TRAILERS, UNTIL_CLOSE, DONE }
+
+    private final HttpVerbs verb;
+    private final StringBuilder line = new StringBuilder(64);
+    private final ResponseHead.Builder builder = new ResponseHead.Builder();
+    private ResponseHead head;
+    private State state = State.HEAD;
+    private long remaining;
+
+    ResponseParser(final HttpVerbs verb) {
+        this.verb = verb;
+    }
+
+    /**
+     * Gets the head, which is null until it has been completely read
+     */
+    ResponseHead head() {
+        return head;
+    }
+
+    boolean isDone() {
+        return State.DONE == state;
+    }
+
+    /**
+     * True if the body runs until the server closes the connection
+     */
+    boolean readsUntilClose() {
+        return State.UNTIL_CLOSE == state;
+    }
+
+    /**
+     * Consumes as much of the buffer as belongs to this response
+     * @return true once the whole response has been read
+     */
+    boolean feed(final ByteBuffer in, final BodySink sink) throws IOException {
+        while (in.hasRemaining() && State.DONE != state) {
+            switch (state) {
+                case HEAD:
+                    if (readLine(in)) {
+                        head = builder.line(takeLine());
+                        if (null != head) {
+                            startBody();
+                        }
+                    }
+                    break;
+                case FIXED:
+                case CHUNK_DATA:
+                    int count = (int) Math.min(remaining, in.remaining());
+                    ByteBuffer slice = in.duplicate();
+                    slice.limit(slice.position() + count);
+                    in.position(in.position() + count);
+                    remaining -= count;
+                    sink.onBody(slice);
+                    if (0 == remaining) {
+                        state = State.FIXED == state ? State.DONE : State.CHUNK_END;
+                    }
+                    break;
+                case UNTIL_CLOSE:
+                    sink.onBody(in.duplicate());
+                    in.position(in.limit());
+                    break;
+                case CHUNK_SIZE:
+                    if (readLine(in)) {
+                        chunkSize(takeLine());
+                    }
+                    break;
+                case CHUNK_END:
+                    if (readLine(in)) {
+                        takeLine();
+                        state = State.CHUNK_SIZE;
+                    }
+                    break;
+                case TRAILERS:
+                    if (readLine(in) && takeLine().isEmpty()) {
+                        state = State.DONE;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        return State.DONE == state;
+    }
+
+    /**
+     * Tells the parser the server closed the connection
+     * @return true if that legitimately ends the response
+     */
+    boolean endOfStream() throws IOException {
+        if (State.UNTIL_CLOSE == state) {
+            state = State.DONE;
+            return true;
+        }
+        if (State.DONE == state) {
+            return true;
+        }
+        throw new EOFException(State.HEAD == state
+                ? "Connection closed before the response was complete"
+                : "Connection closed inside the response body");
+    }
+
+    private void startBody() throws IOException {
+        if (!head.hasBody(verb)) {
+            state = State.DONE;
+        } else if (head.isChunked()) {
+            state = State.CHUNK_SIZE;
+        } else if (head.contentLength() >= 0) {
+            remaining = head.contentLength();
+            state = 0 == remaining ? State.DONE : State.FIXED;
+        } else {
+            state = State.UNTIL_CLOSE;
+        }
+    }
+
+    private void chunkSize(final String sizeLine) throws IOException {
+        int extension = sizeLine.indexOf(';');
+        String size = (extension >= 0 ? sizeLine.substring(0, extension) : sizeLine).trim();
+        try {
+            remaining = Long.parseLong(size, 16);
+        } catch (NumberFormatException e) {
+            throw new IOException("Bad chunk size: " + sizeLine);
+        }
+        state = 0 == remaining ? State.TRAILERS : State.CHUNK_DATA;
+    }
+
+    /**
+     * Accumulates bytes into the current line
+     * @return true once a full line is waiting in {@link #takeLine()}
+     */
+    private boolean readLine(final ByteBuffer in) throws IOException {
+        while (in.hasRemaining()) {
+            char ch = (char) (in.get() & 0xff);
+            if ('\n' == ch) {
+                return true;
+            }
+            if ('\r' != ch) {
+                if (line.length() >= ResponseHead.MAX_LINE) {
+                    throw new IOException("Response line too long");
+                }
+                line.append(ch);
+            }
+        }
+        return false;
+    }
+
+    private String takeLine() {
+        String ret = line.toString();
+        line.setLength(0);
+        return ret;
+    }
+}
@@ -0,0 +1,63 @@
+package com.pavlovmedia.oss.osgi.http.transport;
+
+import java.net.URL;
+import java.util.Locale;
+import java.util.Objects;
+
+/**
+ * The scheme, host and port a connection is made to. Connections
+ * are only ever reused for requests on the same route.
+ *
+ * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
+ *
+ */
+public final class Route {
+    public final String scheme;
+    public final String host;
+    public final int port;
+
+    public Route(final String scheme, final String host, final int port) {
+        this.scheme = scheme.toLowerCase(Locale.ROOT);
+        this.host = host.toLowerCase(Locale.ROOT);
+        this.port = port;
+    }
+
+    /**
+     * Gets the route for a URL, filling in the default port
+     * @param url
+     */
+    public static Route of(final URL url) {
+        return new Route(url.getProtocol(), url.getHost(),
+                -1 == url.getPort() ? url.getDefaultPort() : url.getPort());
+    }
+
+    /**
+     * The value to send in a Host header, which leaves off default ports
+     */
+    public String hostHeader() {
+        boolean defaultPort = ("http".equals(scheme) && 80 == port) || ("https".equals(scheme) && 443 == port);
+        return defaultPort ? host : String.format("%s:%d", host, port);
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof Route)) {
+            return false;
+        }
+        Route other = (Route) obj;
+        return port == other.port && scheme.equals(other.scheme) && host.equals(other.host);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(scheme, host, port);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s://%s:%d", scheme, host, port);
+    }
+}
@@ -0,0 +1,295 @@
+package com.pavlovmedia.oss.osgi.http.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+
+import com.pavlovmedia.oss.osgi.http.HttpRequest;
+
+/**
+ * Runs long lived responses, such as SSE feeds, without a thread per stream.
+ * Every stream is a non-blocking connection registered with one of a few
+ * {@link NioEventLoop} threads; when its socket has data the loop feeds it
+ * through an incremental {@link ResponseParser} and hands the body bytes to
+ * the stream's {@link Listener}. Idle streams cost a socket and a small read
+ * buffer, so thousands of them fit on a handful of threads.
+ * <p>
+ * Listener callbacks run on a loop thread that is shared with many other
+ * streams, so they must be quick. Anything slow belongs behind a queue such
+ * as {@link com.pavlovmedia.oss.osgi.http.SseRingBuffer}.
+ * <p>
+ * Streams get a connection of their own that is closed when they end, since
+ * they are expected to outlive any pool timeout. Only plain http is
+ * supported, redirects are not followed, and bodies are handed over as the
+ * server sent them, without content decoding.
+ *
+ * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
+ *
+ */
+public class StreamMultiplexer implements Closeable {
+    /**
+     * How often each loop checks its streams for stop requests and idle timeouts
+     */
+    private static final long SWEEP_MILLIS = 250;
+
+    /**
+     * Gets a stream's response as it arrives, always on a loop thread
+     */
+    public interface Listener {
+        /**
+         * The status and headers have arrived, before any of the body
+         */
+        void onHead(int code, Map<String, List<String>> headers);
+
+        /**
+         * The next piece of the body, with any chunked framing removed. The
+         * buffer is only valid for the duration of the call.
+         */
+        void onData(ByteBuffer data);
+
+        /**
+         * The stream is over, because the body ended, it was stopped, or it failed.
+         * Always called exactly once.
+         * @param failure what went wrong, if anything did
+         */
+        void onEnd(Optional<Throwable> failure);
+    }
+
+    /**
+     * A handle on an open stream
+     */
+    public interface Stream extends Closeable {
+        /**
+         * Ends the stream, its listener is told it ended without a failure
+         */
+        @Override
+        void close();
+
+        boolean isOpen();
+    }
+
+    private int eventLoopCount = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    private int bufferSize = 4096;
+    private int idleTimeout = 0;
+    private boolean tcpNoDelay = true;
+    private final ReentrantLock loopLock = new ReentrantLock();
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private final AtomicInteger openStreams = new AtomicInteger();
+    private volatile LoopStreams[] loops;
+    private volatile boolean closed;
+
+    /**
+     * Sets how many selector threads carry the streams, half the processors
+     * by default. Only has an effect before the first stream is opened.
+     * @param eventLoopCount
+     */
+    public StreamMultiplexer withEventLoops(final int eventLoopCount) {
+        this.eventLoopCount = Math.max(1, eventLoopCount);
+        return this;
+    }
+
+    /**
+     * Sets each stream's read buffer size, 4KB by default, which is what
+     * an idle stream mostly costs
+     * @param bufferSize
+     */
+    public StreamMultiplexer withBufferSize(final int bufferSize) {
+        this.bufferSize = bufferSize;
+        return this;
+    }
+
+    /**
+     * Sets how long a stream can go without any bytes before it fails with a
+     * timeout, in milliseconds. 0, the default, waits forever; SSE servers
+     * usually send keep alive comments, so a few multiples of their interval works.
+     * @param idleTimeout
+     */
+    public StreamMultiplexer withIdleTimeout(final int idleTimeout) {
+        this.idleTimeout = idleTimeout;
+        return this;
+    }
+
+    /**
+     * Sets TCP_NODELAY on stream sockets, on by default
+     * @param tcpNoDelay
+     */
+    public StreamMultiplexer withTcpNoDelay(final boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+        return this;
+    }
+
+    /**
+     * How many streams are open
+     */
+    public int getOpenStreams() {
+        return openStreams.get();
+    }
+
+    /**
+     * Sends a request and streams its response to a listener. The host name is
+     * resolved and any body is written into memory on the calling thread;
+     * everything after that happens on a loop thread.
+     * @param request
+     * @param listener
+     * @param stop checked regularly, the stream ends once it returns true
+     * @return the stream, whose listener has already been told if it couldn't start
+     */
+    public Stream open(final HttpRequest request, final Listener listener, final BooleanSupplier stop) {
+        LoopStreams loop;
+        Route route;
+        InetSocketAddress address;
+        ByteBuffer[] out;
+        try {
+            route = Route.of(request.url);
+            if (!"http".equals(route.scheme)) {
+                throw new IOException(String.format("%s only supports http, not %s", getClass().getSimpleName(),
+                        route.scheme));
+            }
+            address = new InetSocketAddress(route.host, route.port);
+            if (address.isUnresolved()) {
+                throw new UnknownHostException(route.host);
+            }
+            out = encode(request, route);
+            loop = nextLoop();
+        } catch (UncheckedIOException e) {
+            return failed(listener, e.getCause());
+        } catch (IOException | RuntimeException e) {
+            return failed(listener, e);
+        }
+        MultiplexedStream stream = new MultiplexedStream(this, loop, request, route, address, out, listener, stop);
+        openStreams.incrementAndGet();
+        loop.loop.execute(() -> {
+            loop.streams.add(stream);
+            stream.begin();
+        });
+        return stream;
+    }
+
+    private static ByteBuffer[] encode(final HttpRequest request, final Route route) {
+        if (!request.body.isPresent()) {
+            return new ByteBuffer[] { NioExchange.encodeHead(request, request.url, route, false, 0) };
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+                request.contentLength > 0 ? (int) request.contentLength : 1024);
+        request.body.get().accept(bytes);
+        return new ByteBuffer[] {
+            NioExchange.encodeHead(request, request.url, route, false, bytes.size()),
+            ByteBuffer.wrap(bytes.toByteArray())
+        };
+    }
+
+    private static Stream failed(final Listener listener, final Throwable t) {
+        listener.onEnd(Optional.of(t));
+        return new Stream() {
+            @Override
+            public void close() {
+                // Never opened
+            }
+
+            @Override
+            public boolean isOpen() {
+                return false;
+            }
+        };
+    }
+
+    int getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    NioConnection.SocketSettings settings() {
+        return new NioConnection.SocketSettings(tcpNoDelay, true, 0, 0, bufferSize);
+    }
+
+    /**
+     * Called on the stream's loop thread once it has ended
+     */
+    void ended(final LoopStreams loop, final MultiplexedStream stream) {
+        if (loop.streams.remove(stream)) {
+            openStreams.decrementAndGet();
+        }
+    }
+
+    private LoopStreams nextLoop() throws IOException {
+        if (closed) {
+            throw new IOException(getClass().getSimpleName() + " is closed");
+        }
+        LoopStreams[] current = loops;
+        if (null == current) {
+            loopLock.lock();
+            try {
+                if (closed) {
+                    throw new IOException(getClass().getSimpleName() + " is closed");
+                }
+                current = loops;
+                if (null == current) {
+                    current = new LoopStreams[eventLoopCount];
+                    for (int i = 0; i < current.length; i++) {
+                        LoopStreams streams = new LoopStreams(
+                                new NioEventLoop(String.format("pavlov-http-stream-%d", i)));
+                        // The streams list is only touched on the loop thread, sweeping included
+                        streams.loop.execute(streams::sweep);
+                        current[i] = streams;
+                    }
+                    loops = current;
+                }
+            } finally {
+                loopLock.unlock();
+            }
+        }
+        return current[Math.floorMod(nextLoop.getAndIncrement(), current.length)];
+    }
+
+    /**
+     * Ends every stream and stops the loops, streams opened afterwards fail
+     */
+    @Override
+    public void close() {
+        LoopStreams[] current;
+        loopLock.lock();
+        try {
+            closed = true;
+            current = loops;
+        } finally {
+            loopLock.unlock();
+        }
+        if (null != current) {
+            Arrays.stream(current).forEach(l -> l.loop.execute(() -> {
+                new ArrayList<>(l.streams).forEach(MultiplexedStream::end);
+                l.loop.close();
+            }));
+        }
+    }
+
+    /**
+     * A loop and the streams it carries, which are only touched on the loop thread
+     */
+    static final class LoopStreams {
+        final NioEventLoop loop;
+        final List<MultiplexedStream> streams = new ArrayList<>();
+
+        LoopStreams(final NioEventLoop loop) {
+            this.loop = loop;
+        }
+
+        /**
+         * One timer per loop checks every stream, rather than one per stream
+         */
+        void sweep() {
+            new ArrayList<>(streams).forEach(MultiplexedStream::check);
+            loop.schedule(this::sweep, SWEEP_MILLIS);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.pavlovmedia.oss.osgi.http.transport;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.HttpURLConnection;
+import java.net.ProtocolException;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import com.pavlovmedia.oss.osgi.http.HttpRequest;
+import com.pavlovmedia.oss.osgi.http.HttpVerbs;
+
+/**
+ * The default transport, built on {@link HttpURLConnection}. Connection
+ * reuse is left to the JDK keep-alive cache.
+ *
+ * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
+ *
+ */
+public class UrlConnectionTransport implements HttpTransport {
+    /**
+     * A shared instance, this transport holds no state
+     */
+    public static final UrlConnectionTransport INSTANCE = new UrlConnectionTransport();
+
+    @Override
+    public HttpExchange open(final HttpRequest request) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) request.url.openConnection();
+        connection.setConnectTimeout(request.connectTimeout);
+
+        request.headers.forEach((key, valueList) -> {
+            valueList.forEach(value -> connection.setRequestProperty(key, value));
+        });
+        setVerb(connection, request.verb);
+
+        request.beforeConnect.ifPresent(c -> c.accept(connection));
+
+        if (request.body.isPresent()) {
+            connection.setDoOutput(true);
+            try {
+                request.body.get().accept(connection.getOutputStream());
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        } else {
+            connection.connect();
+        }
+
+        request.beforeFinish.ifPresent(f -> f.accept(connection));
+        return new UrlConnectionExchange(connection);
+    }
+
+    /**
+     * {@link HttpURLConnection} refuses PATCH, so it is tunneled through POST.
+     * {@link NioHttpTransport} and {@link Http2Transport} send it natively.
+     */
+    protected void setVerb(final HttpURLConnection connection, final HttpVerbs verb) throws ProtocolException {
+        switch (verb) {
+            case PATCH:
+                connection.setRequestProperty("X-HTTP-Method-Override", "PATCH");
+                connection.setRequestMethod("POST");
+                break;
+            default:
+                connection.setRequestMethod(verb.toString());
+        }
+    }
+
+    private static class UrlConnectionExchange implements HttpExchange {
+        private final HttpURLConnection connection;
+
+        UrlConnectionExchange(final HttpURLConnection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public int getResponseCode() throws IOException {
+            try {
+                return connection.getResponseCode();
+            } catch (FileNotFoundException e) {
+                return 404;
+            }
+        }
+
+        @Override
+        public Map<String, List<String>> getHeaderFields() {
+            return connection.getHeaderFields();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return connection.getInputStream();
+        }
+
+        @Override
+        public Optional<InputStream> getErrorStream() {
+            return Optional.ofNullable(connection.getErrorStream());
+        }
+
+        @Override
+        public void close() {
+            // The stream owns the connection, closing it hands the socket back
+            // to the JDK keep-alive cache
+        }
+
+        /**
+         * HttpURLConnection holds a lock while a read blocks, and disconnecting
+         * waits on it, so this can only drop the connection once the read
+         * returns. It is done on a thread of its own so the caller doesn't wait too.
+         */
+        @Override
+        public void abort() {
+            Thread disconnect = new Thread(connection::disconnect, "pavlov-http-abort");
+            disconnect.setDaemon(true);
+            disconnect.start();
+        }
+    }
+}
@@ -0,0 +1,6 @@
+/**
+ * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
+ * The pluggable transports that actually move a {@link com.pavlovmedia.oss.osgi.http.HttpRequest}
+ * over the wire for {@link com.pavlovmedia.oss.osgi.http.PavlovHttpClient}
+ */
+package com.pavlovmedia.oss.osgi.http.transport;
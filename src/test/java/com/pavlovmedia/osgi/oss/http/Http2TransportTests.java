@@ -0,0 +1,349 @@
+package com.pavlovmedia.osgi.oss.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.pavlovmedia.oss.osgi.http.HttpResponse;
+import com.pavlovmedia.oss.osgi.http.HttpVerbs;
+import com.pavlovmedia.oss.osgi.http.PavlovHttpClient;
+import com.pavlovmedia.oss.osgi.http.PavlovHttpClientImpl;
+import com.pavlovmedia.oss.osgi.http.transport.Http2Transport;
+
+/**
+ * Runs the HTTP/2 transport against a bare bones h2c server that limits
+ * concurrent streams and keeps the request window small
+ *
+ * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
+ *
+ */
+public class Http2TransportTests {
+    private static final int MAX_STREAMS = 2;
+    private static final int SERVER_WINDOW = 100;
+
+    private ServerSocket serverSocket;
+    private URL baseUrl;
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger open = new AtomicInteger();
+    private final AtomicInteger maxOpen = new AtomicInteger();
+    private volatile int maxFrameSize = 16384;
+
+    @Before
+    public void startServer() throws Exception {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(() -> {
+            try {
+                while (true) {
+                    Socket socket = serverSocket.accept();
+                    connections.incrementAndGet();
+                    new Thread(() -> serve(socket)).start();
+                }
+            } catch (IOException e) {
+                // Closed
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+        baseUrl = new URL(String.format("http://127.0.0.1:%d", serverSocket.getLocalPort()));
+    }
+
+    @After
+    public void stopServer() throws IOException {
+        serverSocket.close();
+    }
+
+    @Test
+    public void testMultiplexesWithinStreamLimit() throws Exception {
+        try (Http2Transport transport = new Http2Transport().withReadTimeout(5000)) {
+            List<CompletableFuture<HttpResponse>> futures = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                futures.add(client(transport).withUrlPath("/item/" + i).withVerb(HttpVerbs.GET).executeAsync());
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                assertEquals("GET /item/" + i + " 0", text(futures.get(i).get(10, TimeUnit.SECONDS)));
+            }
+            assertEquals(1, connections.get());
+            assertTrue(maxOpen.get() <= MAX_STREAMS);
+            assertEquals(0, transport.getPoolStats().get().leased);
+        }
+    }
+
+    @Test
+    public void testFlowControlBothWays() throws Exception {
+        try (Http2Transport transport = new Http2Transport().withReadTimeout(5000).withReceiveWindow(65535)) {
+            // The server only lets us send 100 bytes at a time
+            String body = new String(new char[1000]).replace('\0', 'x');
+            assertEquals("POST /upload 1000", text(client(transport)
+                    .withUrlPath("/upload")
+                    .withVerb(HttpVerbs.POST)
+                    .withData(body)
+                    .execute(e -> { throw new IllegalStateException(e); }).get()));
+
+            // And we only let the server send 64k before we read it
+            HttpResponse big = client(transport).withUrlPath("/big").withVerb(HttpVerbs.GET)
+                    .execute(e -> { throw new IllegalStateException(e); }).get();
+            assertEquals(300000, readAll(big.responseStream.get().get()).length);
+        }
+    }
+
+    @Test
+    public void testSendsPatchNatively() throws Exception {
+        try (Http2Transport transport = new Http2Transport().withReadTimeout(5000)) {
+            assertEquals("PATCH /thing 4", text(client(transport)
+                    .withUrlPath("/thing")
+                    .withVerb(HttpVerbs.PATCH)
+                    .withData("data")
+                    .execute(e -> { throw new IllegalStateException(e); }).get()));
+        }
+    }
+
+    @Test
+    public void testRejectsABadMaxFrameSize() throws Exception {
+        // Smaller than the spec allows
+        maxFrameSize = 1000;
+        try (Http2Transport transport = new Http2Transport().withReadTimeout(5000)) {
+            List<Exception> errors = new ArrayList<>();
+            assertFalse(client(transport)
+                    .withUrlPath("/thing")
+                    .withVerb(HttpVerbs.GET)
+                    .execute(errors::add).isPresent());
+            assertEquals(1, errors.size());
+        }
+    }
+
+    private PavlovHttpClient client(final Http2Transport transport) {
+        return new PavlovHttpClientImpl()
+                .againstUrl(baseUrl)
+                .withTransport(transport);
+    }
+
+    private static String text(final HttpResponse response) throws IOException {
+        assertEquals(200, response.responseCode);
+        return new String(readAll(response.responseStream.get().get()), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readAll(final InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int count;
+        while ((count = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, count);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Just enough of a server: it understands the literal headers our client
+     * sends, answers with a body describing the request, and honors the
+     * client's flow control window on the way back
+     */
+    private void serve(final Socket socket) {
+        Object writeLock = new Object();
+        Object windowLock = new Object();
+        Map<Integer, String> requestLines = new HashMap<>();
+        Map<Integer, Integer> bodySizes = new HashMap<>();
+        Map<Integer, long[]> windows = new HashMap<>();
+        long[] connectionWindow = { 65535 };
+        try (DataInputStream in = new DataInputStream(socket.getInputStream())) {
+            OutputStream out = socket.getOutputStream();
+            in.readFully(new byte[24]);
+            // MAX_CONCURRENT_STREAMS, INITIAL_WINDOW_SIZE and MAX_FRAME_SIZE
+            byte[] frameSize = int32(maxFrameSize);
+            frame(out, writeLock, 0x4, 0, 0, new byte[] { 0, 3, 0, 0, 0, MAX_STREAMS, 0, 4, 0, 0, 0, SERVER_WINDOW,
+                0, 5, frameSize[0], frameSize[1], frameSize[2], frameSize[3] });
+            int clientWindow = 65535;
+            while (true) {
+                byte[] head = new byte[9];
+                in.readFully(head);
+                int length = ((head[0] & 0xff) << 16) | ((head[1] & 0xff) << 8) | (head[2] & 0xff);
+                int type = head[3];
+                int flags = head[4];
+                int stream = readInt(head, 5);
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                boolean end = (0x0 == type || 0x1 == type) && 0 != (flags & 0x1);
+                switch (type) {
+                    case 0x1:
+                        int now = open.incrementAndGet();
+                        maxOpen.accumulateAndGet(now, Math::max);
+                        requestLines.put(stream, parseRequestLine(payload));
+                        bodySizes.put(stream, 0);
+                        synchronized (windowLock) {
+                            windows.put(stream, new long[] { clientWindow });
+                        }
+                        break;
+                    case 0x0:
+                        bodySizes.merge(stream, length, Integer::sum);
+                        if (length > 0) {
+                            frame(out, writeLock, 0x8, 0, stream, int32(length));
+                            frame(out, writeLock, 0x8, 0, 0, int32(length));
+                        }
+                        break;
+                    case 0x4:
+                        if (0 == (flags & 0x1)) {
+                            for (int i = 0; i < payload.length; i += 6) {
+                                if (4 == payload[i + 1]) {
+                                    clientWindow = readInt(payload, i + 2);
+                                }
+                            }
+                            frame(out, writeLock, 0x4, 0x1, 0, new byte[0]);
+                        }
+                        break;
+                    case 0x8:
+                        synchronized (windowLock) {
+                            long[] window = 0 == stream ? connectionWindow : windows.get(stream);
+                            if (null != window) {
+                                window[0] += readInt(payload, 0);
+                            }
+                            windowLock.notifyAll();
+                        }
+                        break;
+                    default:
+                        break;
+                }
+                if (end) {
+                    int id = stream;
+                    String line = requestLines.get(id) + " " + bodySizes.get(id);
+                    long[] window;
+                    synchronized (windowLock) {
+                        window = windows.get(id);
+                    }
+                    // Answer later so several streams are open at once
+                    new Thread(() -> respond(out, writeLock, windowLock, id, line, window, connectionWindow)).start();
+                }
+            }
+        } catch (IOException e) {
+            // Client went away
+        }
+    }
+
+    private void respond(final OutputStream out, final Object writeLock, final Object windowLock, final int stream,
+            final String line, final long[] window, final long[] connectionWindow) {
+        try {
+            Thread.sleep(20);
+            byte[] body = line.startsWith("GET /big")
+                    ? new byte[300000]
+                    : line.getBytes(StandardCharsets.UTF_8);
+            open.decrementAndGet();
+            // :status 200 from the static table
+            frame(out, writeLock, 0x1, 0x4, stream, new byte[] { (byte) 0x88 });
+            int sent = 0;
+            while (sent < body.length) {
+                int chunk;
+                synchronized (windowLock) {
+                    while (window[0] <= 0 || connectionWindow[0] <= 0) {
+                        windowLock.wait(5000);
+                    }
+                    chunk = (int) Math.min(Math.min(16384, body.length - sent), Math.min(window[0], connectionWindow[0]));
+                    window[0] -= chunk;
+                    connectionWindow[0] -= chunk;
+                }
+                byte[] data = new byte[chunk];
+                System.arraycopy(body, sent, data, 0, chunk);
+                sent += chunk;
+                frame(out, writeLock, 0x0, sent == body.length ? 0x1 : 0, stream, data);
+            }
+        } catch (IOException | InterruptedException e) {
+            // Client went away
+        }
+    }
+
+    /**
+     * Reads :method and :path out of a header block written by our own encoder,
+     * which only uses static indexes and plain literals
+     */
+    private static String parseRequestLine(final byte[] block) {
+        String method = null;
+        String path = null;
+        int[] pos = { 0 };
+        while (pos[0] < block.length) {
+            int b = block[pos[0]] & 0xff;
+            String name;
+            String value;
+            if (0 != (b & 0x80)) {
+                int index = readHpackInt(block, pos, 7);
+                name = staticName(index);
+                value = 2 == index ? "GET" : 3 == index ? "POST" : 4 == index ? "/" : "";
+            } else {
+                int index = readHpackInt(block, pos, 4);
+                name = 0 == index ? readHpackString(block, pos) : staticName(index);
+                value = readHpackString(block, pos);
+            }
+            if (":method".equals(name)) {
+                method = value;
+            } else if (":path".equals(name)) {
+                path = value;
+            }
+        }
+        return method + " " + path;
+    }
+
+    private static String staticName(final int index) {
+        return 2 == index || 3 == index ? ":method" : 4 == index || 5 == index ? ":path" : "other";
+    }
+
+    private static int readHpackInt(final byte[] block, final int[] pos, final int prefix) {
+        int max = (1 << prefix) - 1;
+        int value = block[pos[0]++] & max;
+        if (value < max) {
+            return value;
+        }
+        int shift = 0;
+        int b;
+        do {
+            b = block[pos[0]++] & 0xff;
+            value += (b & 0x7f) << shift;
+            shift += 7;
+        } while (0 != (b & 0x80));
+        return value;
+    }
+
+    private static String readHpackString(final byte[] block, final int[] pos) {
+        int length = readHpackInt(block, pos, 7);
+        String value = new String(block, pos[0], length, StandardCharsets.ISO_8859_1);
+        pos[0] += length;
+        return value;
+    }
+
+    private static void frame(final OutputStream out, final Object writeLock, final int type, final int flags,
+            final int stream, final byte[] payload) throws IOException {
+        synchronized (writeLock) {
+            out.write(new byte[] { (byte) (payload.length >>> 16), (byte) (payload.length >>> 8),
+                (byte) payload.length, (byte) type, (byte) flags });
+            out.write(int32(stream));
+            out.write(payload);
+            out.flush();
+        }
+    }
+
+    private static byte[] int32(final int value) {
+        return new byte[] { (byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value };
+    }
+
+    private static int readInt(final byte[] data, final int offset) {
+        return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16)
+                | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+    }
+}
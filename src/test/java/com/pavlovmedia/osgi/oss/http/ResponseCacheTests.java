@@ -0,0 +1,302 @@
+package com.pavlovmedia.osgi.oss.http;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataOutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.pavlovmedia.oss.osgi.http.BufferPool;
+import com.pavlovmedia.oss.osgi.http.DiskStore;
+import com.pavlovmedia.oss.osgi.http.HttpResponse;
+import com.pavlovmedia.oss.osgi.http.HttpVerbs;
+import com.pavlovmedia.oss.osgi.http.PavlovHttpClient;
+import com.pavlovmedia.oss.osgi.http.PavlovHttpClientImpl;
+import com.pavlovmedia.oss.osgi.http.SseSubscription;
+import com.pavlovmedia.oss.osgi.http.cache.CacheStats;
+import com.pavlovmedia.oss.osgi.http.cache.ResponseCache;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Checks the cache against a local server that counts what actually reaches it
+ *
+ * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
+ *
+ */
+public class ResponseCacheTests {
+    private static final byte[] LARGE = new byte[3 * 1024 * 1024];
+
+    static {
+        for (int i = 0; i < LARGE.length; i++) {
+            LARGE[i] = (byte) (i % 251);
+        }
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private HttpServer server;
+    private URL baseUrl;
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger notModified = new AtomicInteger();
+
+    @Before
+    public void startServer() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            requests.incrementAndGet();
+            String path = exchange.getRequestURI().getPath();
+            if (path.startsWith("/validated")) {
+                exchange.getResponseHeaders().add("ETag", "\"v1\"");
+                exchange.getResponseHeaders().add("Cache-Control", "no-cache");
+                if ("\"v1\"".equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                    notModified.incrementAndGet();
+                    exchange.sendResponseHeaders(304, -1);
+                    exchange.close();
+                    return;
+                }
+            } else if (path.startsWith("/fresh")) {
+                exchange.getResponseHeaders().add("Cache-Control", "max-age=60");
+            }
+            byte[] body = path.startsWith("/fresh/large")
+                    ? LARGE
+                    : ("body of " + path).getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        server.start();
+        baseUrl = new URL(String.format("http://127.0.0.1:%d", server.getAddress().getPort()));
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    public void testServesFreshResponsesFromMemory() throws Exception {
+        ResponseCache cache = new ResponseCache();
+        for (int i = 0; i < 3; i++) {
+            assertEquals("body of /fresh", get(cache, "/fresh"));
+        }
+        assertEquals("body of /fresh", client(cache).withUrlPath("/fresh").withVerb(HttpVerbs.GET)
+                .executeAsync().get(5, TimeUnit.SECONDS).getResponseText());
+        assertEquals(1, requests.get());
+        CacheStats stats = cache.getStats();
+        assertEquals(1, stats.misses);
+        assertEquals(3, stats.hits);
+
+        // A successful POST means the stored copy may be out of date
+        client(cache).withUrlPath("/fresh").withVerb(HttpVerbs.POST).withData("x").execute(e -> { });
+        get(cache, "/fresh");
+        assertEquals(3, requests.get());
+        assertEquals(2, cache.getStats().misses);
+    }
+
+    @Test
+    public void testRevalidatesWithEtag() throws Exception {
+        ResponseCache cache = new ResponseCache();
+        for (int i = 0; i < 3; i++) {
+            assertEquals("body of /validated", get(cache, "/validated"));
+        }
+        assertEquals(3, requests.get());
+        assertEquals(2, notModified.get());
+        CacheStats stats = cache.getStats();
+        assertEquals(2, stats.revalidations);
+        assertEquals(2, stats.notModified);
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() throws Exception {
+        ResponseCache cache = new ResponseCache().withMaxEntries(2);
+        get(cache, "/fresh/a");
+        get(cache, "/fresh/b");
+        get(cache, "/fresh/a");
+        get(cache, "/fresh/c");
+        assertEquals(1, cache.getStats().evictions);
+        assertEquals(2, cache.getStats().entries);
+        // b was the one dropped
+        get(cache, "/fresh/a");
+        get(cache, "/fresh/b");
+        assertEquals(4, requests.get());
+    }
+
+    @Test
+    public void testKeepsEntriesOnDisk() throws Exception {
+        try (DiskStore store = new DiskStore(folder.getRoot().toPath())) {
+            ResponseCache cache = new ResponseCache().withMaxEntrySize(64 * 1024).withDiskStore(store);
+            get(cache, "/fresh");
+            try (HttpResponse response = client(cache).withUrlPath("/fresh/large").withVerb(HttpVerbs.GET)
+                    .execute(e -> { throw new IllegalStateException(e); }).get()) {
+                assertArrayEquals(LARGE, response.getResponseBytes());
+            }
+            assertEquals(2, store.getEntries());
+        }
+        assertEquals(2, requests.get());
+
+        // A new cache over the same directory picks up where the last left off
+        try (DiskStore store = new DiskStore(folder.getRoot().toPath())) {
+            ResponseCache cache = new ResponseCache().withMaxEntrySize(64 * 1024).withDiskStore(store);
+            assertEquals("body of /fresh", get(cache, "/fresh"));
+            CachingTransportBody large = new CachingTransportBody(cache);
+            assertTrue(large.direct);
+            assertArrayEquals(LARGE, large.bytes);
+        }
+        assertEquals(2, requests.get());
+    }
+
+    @Test
+    public void testStopsAtACorruptIndexRecord() throws Exception {
+        Path root = folder.getRoot().toPath();
+        try (DiskStore store = new DiskStore(root)) {
+            get(new ResponseCache().withDiskStore(store), "/fresh");
+            assertEquals(1, store.getEntries());
+        }
+        // A record claiming far more metadata than the file holds, and one more after it
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(root.resolve("index.log"),
+                StandardOpenOption.APPEND))) {
+            out.writeByte(1);
+            out.writeUTF("bad");
+            out.writeLong(5);
+            out.writeLong(10);
+            out.writeInt(Integer.MAX_VALUE);
+            out.writeByte(2);
+            out.writeUTF(baseUrl + "/fresh");
+        }
+        for (int i = 0; i < 2; i++) {
+            try (DiskStore store = new DiskStore(root)) {
+                assertEquals(1, store.getEntries());
+                assertEquals("body of /fresh", get(new ResponseCache().withDiskStore(store), "/fresh"));
+            }
+        }
+        assertEquals(1, requests.get());
+    }
+
+    @Test
+    public void testOnlyClearsOutItsOwnFiles() throws Exception {
+        Path root = folder.getRoot().toPath();
+        Files.write(root.resolve("notes.txt"), "someone else's".getBytes(StandardCharsets.UTF_8));
+        Files.write(root.resolve("body123.tmp"), new byte[10]);
+        Files.write(root.resolve("00000000000000ff.body"), new byte[10]);
+        try (DiskStore store = new DiskStore(root)) {
+            assertEquals(0, store.getEntries());
+        }
+        assertTrue(Files.exists(root.resolve("notes.txt")));
+        assertTrue(!Files.exists(root.resolve("body123.tmp")));
+        assertTrue(!Files.exists(root.resolve("00000000000000ff.body")));
+    }
+
+    @Test
+    public void testSpillsLargeBodies() throws Exception {
+        try (DiskStore store = new DiskStore(folder.getRoot().toPath()).withSpillThreshold(64 * 1024)) {
+            BufferPool pool = new BufferPool().withSpill(store);
+            ByteBuffer small = pool.readFully(new ByteArrayInputStream(new byte[1000]), -1);
+            assertTrue(!small.isDirect());
+            ByteBuffer unknown = pool.readFully(new ByteArrayInputStream(LARGE), -1);
+            ByteBuffer known = pool.readFully(new ByteArrayInputStream(LARGE), LARGE.length);
+            for (ByteBuffer buffer : Arrays.asList(unknown, known)) {
+                assertTrue(buffer.isDirect());
+                byte[] read = new byte[buffer.remaining()];
+                buffer.get(read);
+                assertArrayEquals(LARGE, read);
+            }
+            // Spilled bodies aren't kept as entries
+            assertEquals(0, store.getEntries());
+        }
+    }
+
+    /**
+     * Reads the large body through a client and notes whether it came back mapped
+     */
+    private final class CachingTransportBody {
+        final boolean direct;
+        final byte[] bytes;
+
+        CachingTransportBody(final ResponseCache cache) throws Exception {
+            try (HttpResponse response = client(cache).withUrlPath("/fresh/large").withVerb(HttpVerbs.GET)
+                    .execute(e -> { throw new IllegalStateException(e); }).get()) {
+                direct = response.getResponseBuffer().isDirect();
+                bytes = response.getResponseBytes();
+            }
+        }
+    }
+
+    @Test
+    public void testLeavesEventStreamsOutOfTheCache() throws Exception {
+        AtomicInteger streams = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        server.createContext("/events", exchange -> {
+            streams.incrementAndGet();
+            exchange.getResponseHeaders().add("Content-Type", "text/event-stream");
+            exchange.getResponseHeaders().add("Cache-Control", "max-age=60");
+            exchange.getResponseHeaders().add("ETag", "\"e1\"");
+            byte[] event = "data: hello\n\n".getBytes(StandardCharsets.UTF_8);
+            if (exchange.getRequestURI().getPath().startsWith("/events/short")) {
+                exchange.sendResponseHeaders(200, event.length);
+                exchange.getResponseBody().write(event);
+            } else {
+                // Holds the stream open, the way a live feed does
+                exchange.sendResponseHeaders(200, 0);
+                exchange.getResponseBody().write(event);
+                exchange.getResponseBody().flush();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            exchange.close();
+        });
+        ResponseCache cache = new ResponseCache();
+        CountDownLatch received = new CountDownLatch(1);
+        SseSubscription subscription = client(cache)
+                .withUrlPath("/events")
+                .withVerb(HttpVerbs.GET)
+                .subscribeSse(e -> received.countDown());
+        Thread reader = new Thread(subscription::run);
+        reader.start();
+        try {
+            assertTrue("the event should arrive while the stream is open", received.await(5, TimeUnit.SECONDS));
+        } finally {
+            subscription.close();
+            release.countDown();
+            reader.join(5000);
+        }
+
+        // Even read whole, an event stream isn't worth keeping
+        assertEquals("data: hello\n\n", get(cache, "/events/short"));
+        assertEquals("data: hello\n\n", get(cache, "/events/short"));
+        assertEquals(3, streams.get());
+        assertEquals(0, cache.getStats().entries);
+    }
+
+    private PavlovHttpClient client(final ResponseCache cache) {
+        return new PavlovHttpClientImpl()
+                .againstUrl(baseUrl)
+                .withCache(cache);
+    }
+
+    private String get(final ResponseCache cache, final String path) {
+        return client(cache).withUrlPath(path).withVerb(HttpVerbs.GET)
+                .execute(e -> { throw new IllegalStateException(e); }).get().getResponseText();
+    }
+}
@@ -0,0 +1,439 @@
+package com.pavlovmedia.osgi.oss.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.pavlovmedia.oss.osgi.http.HttpResponse;
+import com.pavlovmedia.oss.osgi.http.HttpVerbs;
+import com.pavlovmedia.oss.osgi.http.PavlovHttpClientImpl;
+import com.pavlovmedia.oss.osgi.http.Spider;
+import com.pavlovmedia.oss.osgi.http.spider.BloomVisitedSet;
+import com.pavlovmedia.oss.osgi.http.spider.CrawlCheckpoint;
+import com.pavlovmedia.oss.osgi.http.spider.ExactVisitedSet;
+import com.pavlovmedia.oss.osgi.http.spider.Frontier;
+import com.pavlovmedia.oss.osgi.http.spider.LinkExtractor;
+import com.pavlovmedia.oss.osgi.http.spider.NdjsonSink;
+import com.pavlovmedia.oss.osgi.http.spider.UrlNormalizer;
+import com.pavlovmedia.oss.osgi.http.spider.VisitedSet;
+import com.pavlovmedia.oss.osgi.http.spider.WarcSink;
+import com.pavlovmedia.oss.osgi.http.spider.WriteBehindSink;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Crawls a site served locally, a binary tree of 63 pages where every page also links back to the root
+ *
+ * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
+ *
+ */
+public class SpiderTests {
+    private static final int PAGES = 63;
+
+    private HttpServer server;
+    private URL baseUrl;
+    private URL otherUrl;
+    private final Map<String, AtomicInteger> hits = new ConcurrentHashMap<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+    private final Map<String, AtomicInteger> hostInFlight = new ConcurrentHashMap<>();
+    private final AtomicInteger maxOnHost = new AtomicInteger();
+    private volatile String throttled = "";
+
+    @Before
+    public void startServer() throws Exception {
+        // Every address, so it can be reached as localhost and 127.0.0.1, which the crawl sees as two hosts
+        server = HttpServer.create(new InetSocketAddress(0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/", exchange -> {
+            String path = exchange.getRequestURI().getPath();
+            if (hits.computeIfAbsent(path, p -> new AtomicInteger()).incrementAndGet() == 1
+                    && path.equals(throttled)) {
+                exchange.getResponseHeaders().add("Retry-After", "1");
+                exchange.sendResponseHeaders(429, -1);
+                exchange.close();
+                return;
+            }
+            AtomicInteger onHost = hostInFlight.computeIfAbsent(exchange.getRequestHeaders().getFirst("Host"),
+                h -> new AtomicInteger());
+            maxOnHost.accumulateAndGet(onHost.incrementAndGet(), Math::max);
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            int page = Integer.parseInt(path.substring("/page/".length()));
+            // The same pages written a few different ways
+            List<String> links = new ArrayList<>(Arrays.asList("/page/0#top", "/./page/0"));
+            for (int child = 2 * page + 1; child <= 2 * page + 2 && child < PAGES; child++) {
+                links.add("/page/" + child);
+                links.add("/x/../page/" + child + "#section");
+            }
+            byte[] body = String.join("\n", links).getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            inFlight.decrementAndGet();
+            onHost.decrementAndGet();
+            exchange.close();
+        });
+        server.start();
+        baseUrl = new URL(String.format("http://127.0.0.1:%d", server.getAddress().getPort()));
+        otherUrl = new URL(String.format("http://localhost:%d", server.getAddress().getPort()));
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    public void testFetchesEveryPageOnceInParallel() throws Exception {
+        Map<URL, HttpResponse> saved = new ConcurrentHashMap<>();
+        List<Exception> errors = Collections.synchronizedList(new ArrayList<>());
+        new Spider(new PavlovHttpClientImpl())
+            .withParallelism(8)
+            .setUrlParser(this::links)
+            .doSpider(new URL(baseUrl, "/page/0"), u -> true, u -> pageOf(u) >= PAGES / 2, saved, errors::add);
+
+        assertEquals(Collections.emptyList(), errors);
+        assertEquals(PAGES, hits.size());
+        hits.forEach((path, count) -> assertEquals(path, 1, count.get()));
+        assertEquals(PAGES - PAGES / 2, saved.size());
+        assertTrue(maxInFlight.get() > 1);
+    }
+
+    @Test
+    public void testLimitsEachHostAndBacksOffOnlyTheThrottledOne() throws Exception {
+        throttled = "/page/6";
+        Map<URL, HttpResponse> saved = new ConcurrentHashMap<>();
+        long started = System.nanoTime();
+        new Spider(new PavlovHttpClientImpl())
+            .withParallelism(8)
+            .withMaxPerHost(1)
+            .setUrlParser(r -> spread(links(r)))
+            .doSpider(new URL(baseUrl, "/page/0"), u -> true, u -> false, saved, e -> { });
+
+        assertEquals(PAGES, hits.size());
+        assertEquals(2, hits.get(throttled).get());
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) >= 1000);
+        // One at a time on each host, but both hosts at once
+        assertEquals(1, maxOnHost.get());
+        assertEquals(2, maxInFlight.get());
+    }
+
+    @Test
+    public void testReportsAPageThatRanOutOfRetries() throws Exception {
+        throttled = "/page/6";
+        List<Exception> errors = Collections.synchronizedList(new ArrayList<>());
+        new Spider(new PavlovHttpClientImpl())
+            .withParallelism(4)
+            .withMaxRetries(0)
+            .setUrlParser(this::links)
+            .doSpider(new URL(baseUrl, "/page/0"), u -> true, u -> false, new ConcurrentHashMap<>(), errors::add);
+
+        assertEquals(1, hits.get(throttled).get());
+        // The 429 itself, then giving up on the page
+        assertEquals(errors.toString(), 2, errors.size());
+        String gaveUp = errors.get(1).getMessage();
+        assertTrue(gaveUp, gaveUp.startsWith("Gave up on ") && gaveUp.contains(throttled) && gaveUp.contains("429"));
+    }
+
+    /**
+     * Moves the odd pages over to the other host name
+     */
+    private Set<URL> spread(final Set<URL> links) {
+        Set<URL> spread = new HashSet<>();
+        for (URL link : links) {
+            try {
+                spread.add(new URL(pageOf(link) % 2 == 0 ? baseUrl : otherUrl, link.getFile()));
+            } catch (MalformedURLException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return spread;
+    }
+
+    @Test
+    public void testExtractsLinksAsItReads() throws Exception {
+        String html = "<!DOCTYPE html><html><head><base href='/docs/v1/'>"
+                + "<base href=\"/ignored/\"><script>var s = '<a href=\"/no\">';</script>"
+                + "<style>a { color: red }</style></head><body>"
+                + "<A HREF=\"guide.html\">x</A><a class=x href='./api/'>y</a><a href=../v2/ >z</a>"
+                + "<!-- <a href=\"/commented\"> --><area shape=rect href=\"/map?a=1&amp;b=2\">"
+                + "<a href=\"#top\"><a href=\"mailto:me@example.com\"><a href=\"javascript:void(0)\">"
+                + "<a name=anchor><a\nhref\n=\n\"https://other.example.com/\">"
+                + "</body></html>";
+        List<String> links = new ArrayList<>();
+        LinkExtractor.extract(new StringReader(html), new URL("http://example.com/start/page.html"),
+            u -> links.add(u.toExternalForm()));
+        assertEquals(Arrays.asList(
+                "http://example.com/docs/v1/guide.html",
+                "http://example.com/docs/v1/api/",
+                "http://example.com/docs/v2/",
+                "http://example.com/map?a=1&b=2",
+                "https://other.example.com/"), links);
+    }
+
+    @Test
+    public void testDropsLinksTooLongToKeep() throws Exception {
+        StringBuilder tooLong = new StringBuilder("/long?q=");
+        while (tooLong.length() <= 8192) {
+            tooLong.append('x');
+        }
+        String html = "<a href=\"" + tooLong + "\" href=\"/second\">x</a><a href=" + tooLong + ">y</a>"
+                + "<a href=\"/short\">z</a>";
+        List<String> links = new ArrayList<>();
+        LinkExtractor.extract(new StringReader(html), new URL("http://example.com/"),
+            u -> links.add(u.toExternalForm()));
+        assertEquals(Collections.singletonList("http://example.com/short"), links);
+    }
+
+    @Test
+    public void testVisitedSetsClaimEachUrlOnce() throws Exception {
+        for (VisitedSet visited : new VisitedSet[] { new ExactVisitedSet(), new ExactVisitedSet(50000, true) }) {
+            for (int i = 0; i < 100000; i++) {
+                assertTrue(visited.add("http://example.com/page/" + i));
+            }
+            for (int i = 0; i < 100000; i++) {
+                assertFalse(visited.add("http://example.com/page/" + i));
+            }
+            assertFalse(visited.contains("http://example.com/other"));
+            assertEquals(100000, visited.size());
+            assertTrue(visited.getBytesPerUrl() < 50);
+        }
+
+        BloomVisitedSet bloom = new BloomVisitedSet(100000, 0.01);
+        assertEquals(BloomVisitedSet.bytesFor(100000, 0.01), bloom.getBytesUsed());
+        for (int i = 0; i < 100000; i++) {
+            bloom.add("http://example.com/page/" + i);
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < 100000; i++) {
+            assertTrue(bloom.contains("http://example.com/page/" + i));
+            falsePositives += bloom.contains("http://example.com/other/" + i) ? 1 : 0;
+        }
+        assertTrue(falsePositives < 2000);
+        assertTrue(bloom.getBytesPerUrl() < 1.5);
+    }
+
+    @Test
+    public void testResumesAStoppedCrawlFromItsCheckpoint() throws Exception {
+        Path directory = Files.createTempDirectory("crawl");
+        try {
+            List<Exception> errors = Collections.synchronizedList(new ArrayList<>());
+            CrawlCheckpoint checkpoint = new CrawlCheckpoint(directory);
+            AtomicInteger parsed = new AtomicInteger();
+            Spider first = new Spider(new PavlovHttpClientImpl())
+                .withParallelism(4)
+                .withCheckpoint(checkpoint)
+                .withFrontierSpill(directory, 4);
+            first.setUrlParser(r -> {
+                if (parsed.incrementAndGet() == 20) {
+                    first.stop();
+                }
+                return links(r);
+            });
+            first.doSpider(new URL(baseUrl, "/page/0"), u -> true, u -> false, new ConcurrentHashMap<>(), errors::add);
+            assertTrue(checkpoint.exists());
+            assertTrue(hits.size() < PAGES);
+
+            new Spider(new PavlovHttpClientImpl())
+                .withParallelism(4)
+                .withCheckpoint(checkpoint)
+                .withFrontierSpill(directory, 4)
+                .setUrlParser(this::links)
+                .doSpider(new URL(baseUrl, "/page/0"), u -> true, u -> false, new ConcurrentHashMap<>(), errors::add);
+
+            assertEquals(Collections.emptyList(), errors);
+            assertEquals(PAGES, hits.size());
+            hits.forEach((path, count) -> assertEquals(path, 1, count.get()));
+            assertFalse(checkpoint.exists());
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void testSpillFileStaysBoundedWhileItNeverDrains() throws Exception {
+        Path directory = Files.createTempDirectory("spill");
+        // Longer than writeUTF could take
+        StringBuilder padding = new StringBuilder();
+        while (padding.length() < 70000) {
+            padding.append("abcdefghij");
+        }
+        try (Frontier frontier = new Frontier().withSpill(directory.resolve("frontier"), 2)) {
+            int added = 0;
+            for (; added < 10; added++) {
+                frontier.add(new URL("http://example.com/" + added + "?" + padding));
+            }
+            long largest = 0;
+            for (int taken = 0; taken < 200; taken++) {
+                URL url = frontier.take().get();
+                assertEquals("/" + taken, url.getPath());
+                frontier.done(url);
+                frontier.add(new URL("http://example.com/" + added++ + "?" + padding));
+                largest = Math.max(largest, Files.size(directory.resolve("frontier")));
+            }
+            // 200 pages of 70KB went through, the file only ever held a compaction's worth
+            assertTrue(largest < 10 * 1024 * 1024);
+            List<String> pending = new ArrayList<>();
+            frontier.forEachPending(pending::add);
+            assertEquals(10, pending.size());
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void testReplaysTheJournalAfterACrash() throws Exception {
+        Path directory = Files.createTempDirectory("crawl");
+        try {
+            CrawlCheckpoint crashed = new CrawlCheckpoint(directory);
+            Frontier frontier = new Frontier();
+            crashed.open(new ExactVisitedSet(), frontier);
+            for (String page : Arrays.asList("a", "b", "c")) {
+                crashed.claimed("http://example.com/" + page);
+                frontier.add(new URL("http://example.com/" + page));
+            }
+            URL taken = frontier.take().get();
+            crashed.done(taken.toExternalForm());
+            // Never closed, as if the process died here
+
+            VisitedSet visited = new ExactVisitedSet();
+            Frontier resumed = new Frontier();
+            assertTrue(new CrawlCheckpoint(directory).open(visited, resumed));
+            assertEquals(3, visited.size());
+            assertTrue(visited.contains("http://example.com/a"));
+            assertEquals(2, resumed.size());
+            assertEquals("http://example.com/b", resumed.take().get().toExternalForm());
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void testStreamsSavedPagesIntoSinks() throws Exception {
+        Path directory = Files.createTempDirectory("sink");
+        try {
+            List<Exception> errors = Collections.synchronizedList(new ArrayList<>());
+            Path warc = directory.resolve("crawl.warc.gz");
+            try (WriteBehindSink sink = new WriteBehindSink(new WarcSink(warc), 4).withErrorHandler(errors::add)) {
+                new Spider(new PavlovHttpClientImpl())
+                    .withParallelism(8)
+                    .setUrlParser(this::links)
+                    .doSpider(new URL(baseUrl, "/page/0"), u -> true, u -> pageOf(u) >= PAGES / 2, sink, errors::add);
+            }
+            Path ndjson = directory.resolve("crawl.ndjson");
+            try (NdjsonSink sink = new NdjsonSink(ndjson)) {
+                new Spider(new PavlovHttpClientImpl())
+                    .setUrlParser(this::links)
+                    .doSpider(new URL(baseUrl, "/page/0"), u -> true, u -> pageOf(u) >= PAGES / 2, sink, errors::add);
+            }
+            assertEquals(Collections.emptyList(), errors);
+
+            // Every record is a gzip member of its own, read back to back
+            String records;
+            try (InputStream in = new GZIPInputStream(Files.newInputStream(warc))) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] chunk = new byte[8192];
+                int count;
+                while ((count = in.read(chunk)) >= 0) {
+                    out.write(chunk, 0, count);
+                }
+                records = new String(out.toByteArray(), StandardCharsets.UTF_8);
+            }
+            assertEquals(PAGES - PAGES / 2, records.split("WARC-Type: response\r\n", -1).length - 1);
+            assertTrue(records.contains("WARC-Target-URI: " + new URL(baseUrl, "/page/62") + "\r\n"));
+
+            List<String> lines = Files.readAllLines(ndjson, StandardCharsets.UTF_8);
+            assertEquals(PAGES - PAGES / 2, lines.size());
+            JsonObject line = new JsonParser().parse(lines.get(0)).getAsJsonObject();
+            assertEquals(200, line.get("status").getAsInt());
+            assertTrue(line.get("url").getAsString().startsWith(baseUrl + "/page/"));
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void testSinksStampWhenThePageWasFetched() throws Exception {
+        Path ndjson = Files.createTempFile("fetched", ".ndjson");
+        try {
+            URL page = new URL(baseUrl, "/page/1");
+            try (WriteBehindSink sink = new WriteBehindSink(new NdjsonSink(ndjson), 4)) {
+                // Queued now, written whenever the writer gets to it
+                sink.save(page, new PavlovHttpClientImpl().againstUrl(page).withVerb(HttpVerbs.GET)
+                        .execute(e -> { throw new IllegalStateException(e); }).get(), Instant.EPOCH);
+            }
+            List<String> lines = Files.readAllLines(ndjson, StandardCharsets.UTF_8);
+            assertEquals(1, lines.size());
+            assertEquals("1970-01-01T00:00:00Z",
+                    new JsonParser().parse(lines.get(0)).getAsJsonObject().get("fetched").getAsString());
+        } finally {
+            Files.deleteIfExists(ndjson);
+        }
+    }
+
+    private static void delete(final Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    @Test
+    public void testNormalizesUrls() throws Exception {
+        assertEquals("http://example.com/a/c?q=1",
+                UrlNormalizer.normalize(new URL("HTTP://Example.COM:80/a/b/../c?q=1#f")));
+        assertEquals("https://example.com:8443/", UrlNormalizer.normalize(new URL("https://example.com:8443")));
+    }
+
+    private Set<URL> links(final HttpResponse response) {
+        Set<URL> links = new HashSet<>();
+        for (String link : response.getResponseText().split("\n")) {
+            try {
+                links.add(new URL(baseUrl, link));
+            } catch (MalformedURLException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return links;
+    }
+
+    private static int pageOf(final URL url) {
+        return Integer.parseInt(url.getPath().substring(url.getPath().lastIndexOf('/') + 1));
+    }
+}
@@ -0,0 +1,417 @@
+package com.pavlovmedia.osgi.oss.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.pavlovmedia.oss.osgi.http.HttpVerbs;
+import com.pavlovmedia.oss.osgi.http.PavlovHttpClientImpl;
+import com.pavlovmedia.oss.osgi.http.PavlovHttpClient;
+import com.pavlovmedia.oss.osgi.http.SseHub;
+import com.pavlovmedia.oss.osgi.http.SseMessageEvent;
+import com.pavlovmedia.oss.osgi.http.SseParser;
+import com.pavlovmedia.oss.osgi.http.SseRingBuffer;
+import com.pavlovmedia.oss.osgi.http.SseStats;
+import com.pavlovmedia.oss.osgi.http.SseSubscription;
+import com.pavlovmedia.oss.osgi.http.transport.NioHttpTransport;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Feeds the parser streams written to the corners of the event stream format
+ *
+ * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
+ *
+ */
+public class SseParserTests {
+    private static final String STREAM = "\uFEFF: keep alive\r\n"
+            + "data: first\r\n"
+            + "data:second\r\n"
+            + "\r\n"
+            + "id: 7\r"
+            + "event: update\r"
+            + "retry: 2500\r"
+            + "data\r"
+            + "\r"
+            + "retry: soon\n"
+            + "unknown: field\n"
+            + "data: {\"a\":1}\n"
+            + "\n"
+            + "data: never finished\n";
+
+    @Test
+    public void testParsesWholeStream() throws Exception {
+        List<SseMessageEvent> events = new ArrayList<>();
+        List<Long> retries = new ArrayList<>();
+        new SseParser(events::add).withRetryListener(retries::add)
+                .parse(new ByteArrayInputStream(STREAM.getBytes(StandardCharsets.UTF_8)), () -> false);
+        check(events, retries);
+    }
+
+    @Test
+    public void testParsesOneByteAtATime() {
+        List<SseMessageEvent> events = new ArrayList<>();
+        List<Long> retries = new ArrayList<>();
+        SseParser parser = new SseParser(events::add).withRetryListener(retries::add);
+        byte[] bytes = STREAM.getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < bytes.length; i++) {
+            parser.feed(bytes, i, 1);
+        }
+        check(events, retries);
+        assertEquals("7", parser.getLastEventId().get());
+    }
+
+    @Test
+    public void testRingDrainsInBatchesOffTheReader() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> threads = Collections.synchronizedList(new ArrayList<>());
+        SseRingBuffer ring = new SseRingBuffer(6).withMaxBatch(4).withBatchConsumer(batch -> {
+            threads.add(Thread.currentThread());
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            batchSizes.add(batch.size());
+        });
+        assertEquals(8, ring.getCapacity());
+
+        SseMessageEvent event = new SseMessageEvent(Optional.empty(), Optional.empty(), Optional.empty());
+        ring.accept(event);
+        // Wait for the first event to be taken, so what follows piles up behind the stuck consumer
+        while (ring.getDepth() > 0) {
+            Thread.sleep(1);
+        }
+        for (int i = 0; i < 20; i++) {
+            ring.accept(event);
+        }
+        assertEquals(8, ring.getDepth());
+        assertEquals(12, ring.getDropped());
+        release.countDown();
+        while (ring.getDelivered() < 9) {
+            Thread.sleep(1);
+        }
+        assertEquals(Arrays.asList(1, 4, 4), batchSizes);
+        assertFalse(threads.contains(Thread.currentThread()));
+    }
+
+    @Test
+    public void testRingRecoversWhenItsExecutorRejects() throws Exception {
+        ExecutorService stopped = Executors.newSingleThreadExecutor();
+        stopped.shutdown();
+        List<Exception> errors = Collections.synchronizedList(new ArrayList<>());
+        SseRingBuffer ring = new SseRingBuffer(8).withExecutor(stopped).withErrorHandler(errors::add);
+        SseMessageEvent event = new SseMessageEvent(Optional.empty(), Optional.empty(), Optional.empty());
+        ring.accept(event);
+        ring.accept(event);
+        // Each event tried to start a drain, so none were left stuck behind a task that never ran
+        assertEquals(2, errors.size());
+        assertTrue(errors.get(0) instanceof RejectedExecutionException);
+
+        ExecutorService running = Executors.newSingleThreadExecutor();
+        try {
+            ring.withExecutor(running).accept(event);
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (ring.getDelivered() < 3 && System.nanoTime() < deadline) {
+                Thread.sleep(1);
+            }
+            assertEquals(3, ring.getDelivered());
+        } finally {
+            running.shutdown();
+        }
+    }
+
+    @Test
+    public void testSubscriptionResumesAfterDrops() throws Exception {
+        AtomicInteger connections = new AtomicInteger();
+        List<String> lastIds = Collections.synchronizedList(new ArrayList<>());
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/feed", exchange -> {
+            int connection = connections.incrementAndGet();
+            lastIds.add(String.valueOf(exchange.getRequestHeaders().getFirst("Last-Event-ID")));
+            if (connection > 2) {
+                exchange.sendResponseHeaders(204, -1);
+            } else {
+                byte[] body = String.format("retry: 10\nid: %d\ndata: event %d\n\n", connection, connection)
+                        .getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().add("Content-Type", "text/event-stream");
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+            }
+            // Closing is the stream dropping
+            exchange.close();
+        });
+        server.start();
+        try {
+            List<String> data = new ArrayList<>();
+            SseSubscription subscription = new PavlovHttpClientImpl()
+                    .againstUrl(new URL(String.format("http://127.0.0.1:%d", server.getAddress().getPort())))
+                    .withUrlPath("/feed")
+                    .withVerb(HttpVerbs.GET)
+                    .subscribeSse(e -> data.add(e.getData().get().get()));
+            subscription.run();
+
+            assertEquals(2, data.size());
+            assertEquals("event 2", data.get(1));
+            assertEquals(3, connections.get());
+            assertEquals("null", lastIds.get(0));
+            assertEquals("1", lastIds.get(1));
+            assertEquals("2", lastIds.get(2));
+            SseStats stats = subscription.getStats();
+            assertEquals(2, stats.reconnects);
+            assertEquals(2, stats.events);
+            assertEquals(0, stats.failures);
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testReconnectStartsWithACleanParser() throws Exception {
+        AtomicInteger connections = new AtomicInteger();
+        List<String> lastIds = Collections.synchronizedList(new ArrayList<>());
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/feed", exchange -> {
+            int connection = connections.incrementAndGet();
+            lastIds.add(String.valueOf(exchange.getRequestHeaders().getFirst("Last-Event-ID")));
+            if (connection > 2) {
+                exchange.sendResponseHeaders(204, -1);
+            } else {
+                // The first drops partway through an event, after clearing the id
+                byte[] body = (1 == connection ? "retry: 10\nid: 7\nid\ndata: a\n\ndata: fo" : "data: x\n\n")
+                        .getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().add("Content-Type", "text/event-stream");
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+            }
+            exchange.close();
+        });
+        server.start();
+        try {
+            List<String> data = new ArrayList<>();
+            new PavlovHttpClientImpl()
+                    .againstUrl(new URL(String.format("http://127.0.0.1:%d", server.getAddress().getPort())))
+                    .withUrlPath("/feed")
+                    .withVerb(HttpVerbs.GET)
+                    .subscribeSse(e -> data.add(e.getData().get().get()))
+                    .run();
+
+            assertEquals(Arrays.asList("a", "x"), data);
+            assertEquals(Arrays.asList("null", "null", "null"), lastIds);
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testSubscriptionRetriesServerErrorsButNotOthers() throws Exception {
+        AtomicInteger connections = new AtomicInteger();
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/feed", exchange -> {
+            // A 503 is worth another try, a 404 will only ever be a 404
+            exchange.sendResponseHeaders(connections.incrementAndGet() == 1 ? 503 : 404, -1);
+            exchange.close();
+        });
+        server.start();
+        try {
+            List<Exception> errors = Collections.synchronizedList(new ArrayList<>());
+            SseSubscription subscription = new PavlovHttpClientImpl()
+                    .againstUrl(new URL(String.format("http://127.0.0.1:%d", server.getAddress().getPort())))
+                    .withUrlPath("/feed")
+                    .withVerb(HttpVerbs.GET)
+                    .subscribeSse(e -> { })
+                    .withInitialDelay(10)
+                    .withErrorHandler(errors::add);
+            subscription.run();
+
+            assertEquals(2, connections.get());
+            assertEquals(2, subscription.getStats().failures);
+            assertTrue(errors.get(errors.size() - 1).getMessage().contains("404"));
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testClosingEndsAQuietStreamRightAway() throws Exception {
+        CountDownLatch finished = new CountDownLatch(1);
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/feed", exchange -> {
+            exchange.getResponseHeaders().add("Content-Type", "text/event-stream");
+            exchange.sendResponseHeaders(200, 0);
+            exchange.getResponseBody().write("data: hello\n\n".getBytes(StandardCharsets.UTF_8));
+            exchange.getResponseBody().flush();
+            try {
+                // Then nothing, not even a keep alive
+                finished.await(30, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            exchange.close();
+        });
+        server.start();
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            CountDownLatch received = new CountDownLatch(1);
+            SseSubscription subscription = new PavlovHttpClientImpl()
+                    .againstUrl(new URL(String.format("http://127.0.0.1:%d", server.getAddress().getPort())))
+                    .withUrlPath("/feed")
+                    .withVerb(HttpVerbs.GET)
+                    // HttpURLConnection can't have a blocked read cut short, this transport can
+                    .withTransport(new NioHttpTransport())
+                    .subscribeSse(e -> received.countDown());
+            CompletableFuture<Void> running = subscription.start(pool);
+            assertTrue(received.await(5, TimeUnit.SECONDS));
+            // Long enough for the reader to be back in a read that nothing will answer
+            Thread.sleep(250);
+            long closedAt = System.nanoTime();
+            subscription.close();
+            running.get(5, TimeUnit.SECONDS);
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - closedAt) < 2000);
+        } finally {
+            finished.countDown();
+            pool.shutdown();
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testHubSharesOneUpstream() throws Exception {
+        AtomicInteger connections = new AtomicInteger();
+        CountDownLatch subscribed = new CountDownLatch(1);
+        CountDownLatch checked = new CountDownLatch(1);
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/feed", exchange -> {
+            if (connections.incrementAndGet() > 1) {
+                // Keeps the upstream reconnecting until the checks are done, a 204 would end it
+                try {
+                    checked.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                exchange.sendResponseHeaders(204, -1);
+                exchange.close();
+                return;
+            }
+            try {
+                subscribed.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            StringBuilder body = new StringBuilder();
+            for (int i = 0; i < 50; i++) {
+                body.append("retry: 10\ndata: ").append(i).append("\n\n");
+            }
+            byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, bytes.length);
+            exchange.getResponseBody().write(bytes);
+            exchange.close();
+        });
+        server.start();
+        try (SseHub hub = new SseHub()) {
+            PavlovHttpClient client = new PavlovHttpClientImpl()
+                    .againstUrl(new URL(String.format("http://127.0.0.1:%d", server.getAddress().getPort())))
+                    .withUrlPath("/feed")
+                    .withVerb(HttpVerbs.GET);
+            CountDownLatch allDelivered = new CountDownLatch(50);
+            SseHub.Subscriber fast = hub.subscribe(client, e -> allDelivered.countDown());
+            CountDownLatch stuck = new CountDownLatch(1);
+            CountDownLatch disconnected = new CountDownLatch(1);
+            SseHub.Subscriber slow = hub.subscribe(client, e -> {
+                try {
+                    stuck.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }, 2, SseHub.OverflowPolicy.DISCONNECT).onDisconnect(disconnected::countDown);
+            assertEquals(1, hub.getUpstreamCount());
+            subscribed.countDown();
+
+            // The slow one falls behind and is dropped while the fast one gets everything
+            assertTrue(disconnected.await(5, TimeUnit.SECONDS));
+            assertTrue(allDelivered.await(5, TimeUnit.SECONDS));
+            stuck.countDown();
+            assertFalse(slow.isConnected());
+            assertTrue(fast.isConnected());
+            assertEquals(0, fast.getDropped());
+        } finally {
+            checked.countDown();
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testHubDisconnectsSubscribersWhenTheUpstreamEnds() throws Exception {
+        CountDownLatch subscribed = new CountDownLatch(1);
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/feed", exchange -> {
+            try {
+                subscribed.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            exchange.sendResponseHeaders(404, -1);
+            exchange.close();
+        });
+        server.start();
+        try (SseHub hub = new SseHub()) {
+            PavlovHttpClient client = new PavlovHttpClientImpl()
+                    .againstUrl(new URL(String.format("http://127.0.0.1:%d", server.getAddress().getPort())))
+                    .withUrlPath("/feed")
+                    .withVerb(HttpVerbs.GET);
+            List<Exception> errors = Collections.synchronizedList(new ArrayList<>());
+            CountDownLatch disconnected = new CountDownLatch(1);
+            SseHub.Subscriber subscriber = hub.subscribe(client, e -> { })
+                    .onError(errors::add)
+                    .onDisconnect(disconnected::countDown);
+            subscribed.countDown();
+
+            // Nothing will change the 404, so the upstream stops and takes its subscriber with it
+            assertTrue(disconnected.await(5, TimeUnit.SECONDS));
+            assertFalse(subscriber.isConnected());
+            assertEquals(0, hub.getUpstreamCount());
+            assertTrue(errors.stream().anyMatch(e -> String.valueOf(e.getMessage()).contains("404")));
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    private static void check(final List<SseMessageEvent> events, final List<Long> retries) {
+        assertEquals(3, events.size());
+        assertEquals("first\nsecond", events.get(0).getData().get().get());
+        assertEquals("message", events.get(0).getEventType());
+        assertFalse(events.get(0).getId().isPresent());
+
+        assertEquals("", events.get(1).getData().get().get());
+        assertEquals("update", events.get(1).getEventType());
+        assertEquals("7", events.get(1).getId().get());
+
+        // The id carries over and the event type doesn't
+        assertEquals("{\"a\":1}", events.get(2).getData().get().get());
+        assertEquals("message", events.get(2).getEventType());
+        assertEquals("7", events.get(2).getId().get());
+
+        assertEquals(1, retries.size());
+        assertEquals(2500L, retries.get(0).longValue());
+    }
+}
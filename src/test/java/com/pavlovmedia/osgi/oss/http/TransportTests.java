@@ -0,0 +1,698 @@
+package com.pavlovmedia.osgi.oss.http;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.gson.reflect.TypeToken;
+import com.pavlovmedia.oss.osgi.http.BodyTooLargeException;
+import com.pavlovmedia.oss.osgi.http.BufferPool;
+import com.pavlovmedia.oss.osgi.http.HttpBatch;
+import com.pavlovmedia.oss.osgi.http.HttpExceptionCollection;
+import com.pavlovmedia.oss.osgi.http.HttpResponse;
+import com.pavlovmedia.oss.osgi.http.HttpVerbs;
+import com.pavlovmedia.oss.osgi.http.JsonConverters;
+import com.pavlovmedia.oss.osgi.http.PavlovHttpClient;
+import com.pavlovmedia.oss.osgi.http.PavlovHttpClientImpl;
+import com.pavlovmedia.oss.osgi.http.VirtualThreads;
+import com.pavlovmedia.oss.osgi.http.flow.Flow;
+import com.pavlovmedia.oss.osgi.http.transport.ConnectionPool;
+import com.pavlovmedia.oss.osgi.http.transport.HttpTransport;
+import com.pavlovmedia.oss.osgi.http.transport.NioHttpTransport;
+import com.pavlovmedia.oss.osgi.http.transport.StreamMultiplexer;
+import com.pavlovmedia.oss.osgi.http.transport.UrlConnectionTransport;
+import com.pavlovmedia.oss.osgi.utilities.convertible.ConvertibleAsset;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs the same requests through each transport against a local server
+ *
+ * @author Shawn Dempsay {@literal <sdempsay@pavlovmedia.com>}
+ *
+ */
+public class TransportTests {
+    private HttpServer server;
+    private URL baseUrl;
+
+    @Before
+    public void startServer() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            String requestBody = new String(readAll(exchange.getRequestBody()), StandardCharsets.UTF_8);
+            String path = exchange.getRequestURI().toString();
+            if (path.startsWith("/missing")) {
+                exchange.sendResponseHeaders(404, -1);
+                exchange.close();
+                return;
+            }
+            if (path.startsWith("/redirect")) {
+                exchange.getResponseHeaders().add("Location", "/landed");
+                exchange.sendResponseHeaders(302, -1);
+                exchange.close();
+                return;
+            }
+            if (path.startsWith("/latin1") || path.startsWith("/broken")) {
+                byte[] body = "caf\u00e9".getBytes(StandardCharsets.ISO_8859_1);
+                exchange.getResponseHeaders().add("Content-Type", "text/plain; charset=\"ISO-8859-1\"");
+                exchange.sendResponseHeaders(path.startsWith("/broken") ? 500 : 200, body.length);
+                exchange.getResponseBody().write(body);
+                exchange.close();
+                return;
+            }
+            if (path.startsWith("/large")) {
+                exchange.sendResponseHeaders(200, 0);
+                for (int i = 0; i < 100; i++) {
+                    exchange.getResponseBody().write(new String(new char[1000]).replace('\0', 'x')
+                            .getBytes(StandardCharsets.UTF_8));
+                    exchange.getResponseBody().flush();
+                }
+                exchange.close();
+                return;
+            }
+            if (path.startsWith("/json")) {
+                exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+                exchange.getResponseHeaders().add("Content-Type", "application/json");
+                exchange.sendResponseHeaders(200, 0);
+                try (OutputStream out = new GZIPOutputStream(exchange.getResponseBody())) {
+                    out.write('[');
+                    for (int i = 0; i < 1000; i++) {
+                        out.write(String.format("%s{\"id\":%d,\"name\":\"item %d\"}", 0 == i ? "" : ",", i, i)
+                                .getBytes(StandardCharsets.UTF_8));
+                    }
+                    out.write(']');
+                }
+                exchange.close();
+                return;
+            }
+            if (path.startsWith("/gzip") || path.startsWith("/deflate")) {
+                boolean gzip = path.startsWith("/gzip");
+                exchange.getResponseHeaders().add("Content-Encoding", gzip ? "gzip" : "deflate");
+                exchange.sendResponseHeaders(200, 0);
+                try (OutputStream out = gzip
+                        ? new GZIPOutputStream(exchange.getResponseBody())
+                        : new DeflaterOutputStream(exchange.getResponseBody())) {
+                    out.write(binaryBody());
+                }
+                exchange.close();
+                return;
+            }
+            byte[] body = String.format("%s %s %s", exchange.getRequestMethod(), path, requestBody)
+                    .getBytes(StandardCharsets.UTF_8);
+            // Length 0 makes the server send a chunked response
+            exchange.sendResponseHeaders(200, path.startsWith("/chunked") ? 0 : body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        server.start();
+        baseUrl = new URL(String.format("http://127.0.0.1:%d", server.getAddress().getPort()));
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    public void testUrlConnectionTransport() throws Exception {
+        runAgainst(UrlConnectionTransport.INSTANCE);
+    }
+
+    @Test
+    public void testNioTransport() throws Exception {
+        try (NioHttpTransport transport = new NioHttpTransport()) {
+            runAgainst(transport);
+        }
+    }
+
+    @Test
+    public void testNioPoolReusesAndLimits() throws Exception {
+        ConnectionPool pool = new ConnectionPool()
+                .withMaxPerRoute(1)
+                .withLeaseTimeout(100);
+        try (NioHttpTransport transport = new NioHttpTransport().withPool(pool)) {
+            for (int i = 0; i < 3; i++) {
+                text(client(transport).withUrlPath("/reuse").withVerb(HttpVerbs.GET));
+            }
+            assertEquals(1, pool.getStats().created);
+            assertEquals(1, pool.getStats().idle);
+
+            // Holding the only connection makes the next request wait and time out
+            HttpResponse held = client(transport).withUrlPath("/held").withVerb(HttpVerbs.GET)
+                    .execute(e -> { }).get();
+            assertEquals(1, pool.getStats().leased);
+            List<Exception> errors = new ArrayList<>();
+            assertFalse(client(transport).withUrlPath("/waits").withVerb(HttpVerbs.GET)
+                    .execute(errors::add).isPresent());
+            assertEquals(1, errors.size());
+            assertTrue(((HttpExceptionCollection) errors.get(0)).exceptions.get(0) instanceof SocketTimeoutException);
+
+            readAll(held.responseStream.get().get());
+            assertEquals(0, pool.getStats().leased);
+            assertEquals(1, pool.getStats().created);
+        }
+    }
+
+    @Test
+    public void testNioRetriesAConnectionTheServerClosed() throws Exception {
+        AtomicInteger accepted = new AtomicInteger();
+        try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            // Answers the first request on each connection, then drops the connection on the next
+            Thread acceptor = new Thread(() -> {
+                try {
+                    while (true) {
+                        try (Socket socket = server.accept()) {
+                            accepted.incrementAndGet();
+                            InputStream in = socket.getInputStream();
+                            readRequestHead(in);
+                            socket.getOutputStream().write("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok"
+                                    .getBytes(StandardCharsets.US_ASCII));
+                            readRequestHead(in);
+                        }
+                    }
+                } catch (IOException e) {
+                    // Closed
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+            URL url = new URL(String.format("http://127.0.0.1:%d", server.getLocalPort()));
+            ExecutorService callbacks = Executors.newSingleThreadExecutor();
+            try (NioHttpTransport transport = new NioHttpTransport()) {
+                PavlovHttpClient client = new PavlovHttpClientImpl().againstUrl(url).withTransport(transport);
+                assertEquals("ok", text(client.clone().withUrlPath("/a").withVerb(HttpVerbs.GET)));
+                assertEquals("ok", text(client.clone().withUrlPath("/b").withVerb(HttpVerbs.GET)));
+                HttpResponse async = client.clone().withUrlPath("/c").withVerb(HttpVerbs.DELETE)
+                        .executeAsync(callbacks).get(10, TimeUnit.SECONDS);
+                assertEquals("ok", new String(readAll(async.responseStream.get().get()), StandardCharsets.UTF_8));
+                assertEquals(3, accepted.get());
+
+                // Sending a POST twice could do the work twice, so it fails instead
+                List<Exception> errors = new ArrayList<>();
+                assertFalse(client.clone().withUrlPath("/d").withVerb(HttpVerbs.POST).withData("x")
+                        .execute(errors::add).isPresent());
+                assertEquals(3, accepted.get());
+            } finally {
+                callbacks.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testNioSendsPatchNatively() throws Exception {
+        try (NioHttpTransport transport = new NioHttpTransport()) {
+            assertEquals("PATCH /chunked data", text(client(transport)
+                    .withUrlPath("/chunked")
+                    .withVerb(HttpVerbs.PATCH)
+                    .withData("data")));
+        }
+    }
+
+    @Test
+    public void testNioAsyncUsesFewThreads() throws Exception {
+        ExecutorService callbacks = Executors.newFixedThreadPool(2);
+        try (NioHttpTransport transport = new NioHttpTransport().withEventLoops(1)) {
+            List<CompletableFuture<HttpResponse>> futures = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                futures.add(client(transport).withUrlPath("/async/" + i).withVerb(HttpVerbs.POST)
+                        .withData("n" + i).executeAsync(callbacks));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                HttpResponse response = futures.get(i).get(10, TimeUnit.SECONDS);
+                assertEquals(String.format("POST /async/%d n%d", i, i),
+                        new String(readAll(response.responseStream.get().get()), StandardCharsets.UTF_8));
+            }
+
+            HttpResponse redirected = client(transport).withUrlPath("/redirect").withVerb(HttpVerbs.GET)
+                    .executeAsync(callbacks).get(10, TimeUnit.SECONDS);
+            assertEquals(200, redirected.responseCode);
+            assertEquals("GET /landed ",
+                    new String(readAll(redirected.responseStream.get().get()), StandardCharsets.UTF_8));
+            assertEquals(0, transport.getPool().getStats().leased);
+        } finally {
+            callbacks.shutdown();
+        }
+    }
+
+    @Test
+    public void testMultiplexerHoldsManyStreamsOnFewThreads() throws Exception {
+        int streams = 200;
+        CountDownLatch finish = new CountDownLatch(1);
+        ExecutorService serverThreads = Executors.newCachedThreadPool();
+        HttpServer feeds = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        feeds.setExecutor(serverThreads);
+        feeds.createContext("/feed", exchange -> {
+            String id = exchange.getRequestURI().getPath().substring("/feed/".length());
+            exchange.sendResponseHeaders(200, 0);
+            OutputStream out = exchange.getResponseBody();
+            out.write(String.format("data: %s first\n\n", id).getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            try {
+                finish.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            out.write(String.format("data: %s second\n\n", id).getBytes(StandardCharsets.UTF_8));
+            exchange.close();
+        });
+        feeds.start();
+        URL feedUrl = new URL(String.format("http://127.0.0.1:%d", feeds.getAddress().getPort()));
+        try (StreamMultiplexer multiplexer = new StreamMultiplexer().withEventLoops(2)) {
+            CountDownLatch firsts = new CountDownLatch(streams);
+            List<String> seconds = Collections.synchronizedList(new ArrayList<>());
+            List<CompletableFuture<HttpResponse>> futures = new ArrayList<>();
+            for (int i = 0; i < streams; i++) {
+                futures.add(new PavlovHttpClientImpl().againstUrl(feedUrl).withUrlPath("/feed/" + i)
+                        .withVerb(HttpVerbs.GET)
+                        .withMultiplexer(multiplexer)
+                        .asSse(e -> {
+                            String data = e.getData().get().get();
+                            if (data.endsWith("first")) {
+                                firsts.countDown();
+                            } else {
+                                seconds.add(data);
+                            }
+                        })
+                        .executeAsync());
+            }
+            // Every stream is open and idle at once
+            assertTrue(firsts.await(10, TimeUnit.SECONDS));
+            assertEquals(streams, multiplexer.getOpenStreams());
+            long loopThreads = Thread.getAllStackTraces().keySet().stream()
+                    .filter(t -> t.getName().startsWith("pavlov-http-stream-")).count();
+            assertEquals(2, loopThreads);
+
+            finish.countDown();
+            for (CompletableFuture<HttpResponse> future : futures) {
+                assertEquals(200, future.get(10, TimeUnit.SECONDS).responseCode);
+            }
+            assertEquals(streams, seconds.size());
+            assertEquals(0, multiplexer.getOpenStreams());
+        } finally {
+            feeds.stop(0);
+            serverThreads.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testClosedMultiplexerTurnsStreamsAway() throws Exception {
+        StreamMultiplexer multiplexer = new StreamMultiplexer().withEventLoops(1);
+        multiplexer.close();
+        try {
+            client(UrlConnectionTransport.INSTANCE).withUrlPath("/feed").withVerb(HttpVerbs.GET)
+                    .withMultiplexer(multiplexer)
+                    .asSse(e -> { })
+                    .executeAsync().get(10, TimeUnit.SECONDS);
+            fail("the multiplexer is closed");
+        } catch (ExecutionException e) {
+            Exception cause = ((HttpExceptionCollection) e.getCause()).exceptions.get(0);
+            assertTrue(cause instanceof IOException);
+            assertTrue(cause.getMessage().contains("closed"));
+        }
+        assertEquals(0, multiplexer.getOpenStreams());
+    }
+
+    @Test
+    public void testVirtualThreadMode() throws Exception {
+        try (NioHttpTransport transport = new NioHttpTransport().withEventLoops(1)) {
+            // Falls back to the common pool before JDK 21
+            List<CompletableFuture<HttpResponse>> futures = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                futures.add(client(transport).withUrlPath("/virtual/" + i).withVerb(HttpVerbs.GET)
+                        .withVirtualThreads().executeAsync());
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                HttpResponse response = futures.get(i).get(10, TimeUnit.SECONDS);
+                assertEquals(String.format("GET /virtual/%d ", i),
+                        new String(readAll(response.responseStream.get().get()), StandardCharsets.UTF_8));
+            }
+
+            if (VirtualThreads.isSupported()) {
+                // Blocking requests made from a virtual thread wait on the loop
+                String text = CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return text(client(transport).withUrlPath("/blocking").withVerb(HttpVerbs.GET));
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }, VirtualThreads.executor().get()).get(10, TimeUnit.SECONDS);
+                assertEquals("GET /blocking ", text);
+            }
+        }
+    }
+
+    @Test
+    public void testBatchReusesConnectionsAndKeepsOrder() throws Exception {
+        try (NioHttpTransport transport = new NioHttpTransport().withEventLoops(1)) {
+            List<String> paths = new ArrayList<>();
+            for (int i = 0; i < 40; i++) {
+                paths.add(i == 7 ? "/missing" : "/batch/" + i);
+            }
+            List<HttpBatch.Result> results = HttpBatch
+                    .from(client(transport).withVerb(HttpVerbs.GET), paths, (p, c) -> c.withUrlPath(p))
+                    .withMaxInFlight(4)
+                    .executeAll();
+            assertEquals(40, results.size());
+            for (int i = 0; i < results.size(); i++) {
+                assertEquals(i, results.get(i).index);
+                if (i == 7) {
+                    assertTrue(results.get(i).error.isPresent());
+                } else {
+                    assertEquals(String.format("GET /batch/%d ", i), new String(
+                            readAll(results.get(i).response.get().responseStream.get().get()), StandardCharsets.UTF_8));
+                }
+            }
+            assertTrue(transport.getPool().getStats().created <= 4);
+
+            long ok = HttpBatch.from(client(transport).withVerb(HttpVerbs.GET), paths.subList(0, 5),
+                        (p, c) -> c.withUrlPath(p))
+                    .withMaxInFlight(2)
+                    .streamByCompletion()
+                    .filter(HttpBatch.Result::isSuccess)
+                    .count();
+            assertEquals(5, ok);
+        }
+    }
+
+    @Test
+    public void testDecodesContentForEveryMode() throws Exception {
+        for (HttpTransport transport : new HttpTransport[] { UrlConnectionTransport.INSTANCE, new NioHttpTransport() }) {
+            HttpResponse buffered = client(transport).withUrlPath("/gzip").withVerb(HttpVerbs.GET).usingGzip()
+                    .execute(e -> { throw new IllegalStateException(e); }).get();
+            assertTrue(buffered.isGziped());
+            assertArrayEquals(binaryBody(), readAll(buffered.responseStream.get().get()));
+
+            AtomicReference<byte[]> streamed = new AtomicReference<>();
+            client(transport).withUrlPath("/deflate").withVerb(HttpVerbs.GET).usingGzip()
+                    .asStreaming(in -> {
+                        try {
+                            streamed.set(readAll(in));
+                        } catch (IOException e) {
+                            throw new IllegalStateException(e);
+                        }
+                    })
+                    .execute(e -> { throw new IllegalStateException(e); });
+            assertArrayEquals(binaryBody(), streamed.get());
+            transport.close();
+        }
+    }
+
+    @Test
+    public void testBodiesReusePooledBuffers() throws Exception {
+        for (BufferPool pool : new BufferPool[] { new BufferPool(), new BufferPool().withDirect(true) }) {
+            try (NioHttpTransport transport = new NioHttpTransport()) {
+                for (int i = 0; i < 5; i++) {
+                    try (HttpResponse response = client(transport).withUrlPath("/pooled").withVerb(HttpVerbs.GET)
+                            .withBufferPool(pool)
+                            .execute(e -> { throw new IllegalStateException(e); }).get()) {
+                        assertEquals("GET /pooled ", new String(response.getResponseBytes(), StandardCharsets.UTF_8));
+                        assertEquals(12, response.getResponseBuffer().remaining());
+                        assertEquals("GET /pooled ", response.getResponseText());
+                    }
+                }
+                assertEquals(1, pool.getAllocated());
+                assertEquals(4, pool.getReused());
+            }
+        }
+    }
+
+    @Test
+    public void testTextHonorsCharsetAndLimit() throws Exception {
+        for (HttpTransport transport : new HttpTransport[] { UrlConnectionTransport.INSTANCE, new NioHttpTransport() }) {
+            assertEquals("caf\u00e9", client(transport).withUrlPath("/latin1").withVerb(HttpVerbs.GET)
+                    .execute(e -> { }).get().getResponseText());
+            HttpResponse broken = client(transport).withUrlPath("/broken").withVerb(HttpVerbs.GET)
+                    .execute(e -> { }).get();
+            assertEquals("caf\u00e9", broken.getErrorText());
+            assertEquals("caf\u00e9", broken.getErrorText());
+
+            // Chunked, so nothing is available up front
+            assertEquals(100000, client(transport).withUrlPath("/large").withVerb(HttpVerbs.GET)
+                    .execute(e -> { }).get().getResponseText().length());
+            List<Exception> errors = new ArrayList<>();
+            assertEquals("", client(transport).withUrlPath("/large").withVerb(HttpVerbs.GET).withMaxBodySize(1000)
+                    .execute(e -> { }).get().getResponseText(errors::add));
+            assertTrue(errors.get(0) instanceof BodyTooLargeException);
+            transport.close();
+        }
+    }
+
+    @Test
+    public void testAsyncReadStopsAtTheLimit() throws Exception {
+        try (NioHttpTransport transport = new NioHttpTransport()) {
+            // Chunked, so the limit is only crossed partway through, and then one that says so up front
+            for (String path : new String[] { "/large", "/declared" }) {
+                try {
+                    client(transport).withUrlPath(path).withVerb(HttpVerbs.GET).withMaxBodySize(5)
+                            .executeAsync().get(10, TimeUnit.SECONDS);
+                    fail("the body is over the limit");
+                } catch (ExecutionException e) {
+                    assertTrue(((HttpExceptionCollection) e.getCause()).exceptions.get(0)
+                            instanceof BodyTooLargeException);
+                }
+            }
+            // The connection that failed isn't reused
+            assertEquals("GET /after ", client(transport).withUrlPath("/after").withVerb(HttpVerbs.GET)
+                    .executeAsync().get(10, TimeUnit.SECONDS).getResponseText());
+        }
+    }
+
+    @Test
+    public void testPublisherReadsOnlyOnDemand() throws Exception {
+        NioHttpTransport transport = new NioHttpTransport();
+        AtomicReference<Flow.Subscription> subscription = new AtomicReference<>();
+        AtomicInteger chunks = new AtomicInteger();
+        AtomicInteger bytes = new AtomicInteger();
+        CountDownLatch first = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        client(transport).withUrlPath("/large").withVerb(HttpVerbs.GET).publishBody()
+            .subscribe(new Flow.Subscriber<ByteBuffer>() {
+                @Override
+                public void onSubscribe(final Flow.Subscription s) {
+                    subscription.set(s);
+                }
+
+                @Override
+                public void onNext(final ByteBuffer item) {
+                    chunks.incrementAndGet();
+                    bytes.addAndGet(item.remaining());
+                    first.countDown();
+                }
+
+                @Override
+                public void onError(final Throwable t) {
+                    failure.set(t);
+                    done.countDown();
+                }
+
+                @Override
+                public void onComplete() {
+                    done.countDown();
+                }
+            });
+        // Nothing is sent until there is demand
+        Thread.sleep(100);
+        assertEquals(0, chunks.get());
+
+        subscription.get().request(1);
+        assertTrue(first.await(5, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        assertEquals(1, chunks.get());
+
+        subscription.get().request(Long.MAX_VALUE);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(null, failure.get());
+        assertEquals(100000, bytes.get());
+        transport.close();
+    }
+
+    @Test
+    public void testParsesJsonFromTheStream() throws Exception {
+        for (HttpTransport transport : new HttpTransport[] { UrlConnectionTransport.INSTANCE, new NioHttpTransport() }) {
+            List<Exception> errors = new ArrayList<>();
+            try (HttpResponse response = client(transport).withUrlPath("/json").withVerb(HttpVerbs.GET)
+                    .execute(errors::add).get()) {
+                List<Item> items = response.<List<Item>>as(new TypeToken<List<Item>>() { }.getType(), errors::add)
+                        .get();
+                assertEquals(1000, items.size());
+                assertEquals("item 999", items.get(999).name);
+            }
+
+            try (HttpResponse response = client(transport).withUrlPath("/json").withVerb(HttpVerbs.GET)
+                    .execute(errors::add).get();
+                    Stream<Item> items = response.asElements(Item.class, errors::add)) {
+                assertEquals(999L * 1000 / 2, items.mapToLong(i -> i.id).sum());
+            }
+            assertEquals(Collections.emptyList(), errors);
+            transport.close();
+        }
+
+        List<Exception> errors = new ArrayList<>();
+        assertEquals(Optional.empty(), new ConvertibleAsset<InputStream>(
+                new ByteArrayInputStream("{\"id\":".getBytes(StandardCharsets.UTF_8)))
+                .convert(JsonConverters.fromJson(Item.class, errors::add)));
+        assertEquals(1, errors.size());
+    }
+
+    @Test
+    public void testWritesJsonStraightToTheConnection() throws Exception {
+        for (HttpTransport transport : new HttpTransport[] { UrlConnectionTransport.INSTANCE, new NioHttpTransport() }) {
+            Item item = new Item();
+            item.id = 7;
+            item.name = "caf\u00e9";
+            assertEquals("POST /echo {\"id\":7,\"name\":\"caf\u00e9\"}", text(client(transport)
+                    .withUrlPath("/echo")
+                    .withVerb(HttpVerbs.POST)
+                    .withJsonBody(item)));
+
+            // Pulled one at a time, only as the body is written
+            Iterator<Integer> numbers = IntStream.range(0, 3).iterator();
+            assertEquals("PUT /echo [0,1,2]", text(client(transport)
+                    .withUrlPath("/echo")
+                    .withVerb(HttpVerbs.PUT)
+                    .withJsonArray(Integer.class, numbers)));
+
+            // A stream is closed once it has been written, and when reading it fails
+            AtomicInteger closed = new AtomicInteger();
+            assertEquals("PUT /echo [3,4]", text(client(transport)
+                    .withUrlPath("/echo")
+                    .withVerb(HttpVerbs.PUT)
+                    .withJsonArray(Integer.class, Stream.of(3, 4).onClose(closed::incrementAndGet))));
+            assertEquals(1, closed.get());
+            try {
+                client(transport)
+                        .withUrlPath("/echo")
+                        .withVerb(HttpVerbs.PUT)
+                        .withJsonArray(Integer.class, Stream.of(5, 0).map(i -> 10 / i).onClose(closed::incrementAndGet))
+                        .execute(e -> { });
+            } catch (ArithmeticException e) {
+                // Some transports hand the writer's own failure straight back
+            }
+            assertEquals(2, closed.get());
+            transport.close();
+        }
+    }
+
+    /**
+     * Shape of the items /json sends
+     */
+    private static final class Item {
+        private long id;
+        private String name;
+    }
+
+    /**
+     * Every byte value, so a decoder that goes through characters would mangle it
+     */
+    private static byte[] binaryBody() {
+        byte[] body = new byte[256 * 400];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) i;
+        }
+        return body;
+    }
+
+    private void runAgainst(final HttpTransport transport) throws Exception {
+        // A few in a row so keep-alive connections get reused
+        for (int i = 0; i < 3; i++) {
+            assertEquals("GET /items?q=a+b ", text(client(transport)
+                    .withUrlPath("/items")
+                    .withQueryParameter("q", "a b")
+                    .withVerb(HttpVerbs.GET)));
+        }
+        assertEquals("POST /chunked payload", text(client(transport)
+                .withUrlPath("/chunked")
+                .withVerb(HttpVerbs.POST)
+                .withData("payload")));
+        assertEquals("PUT /streamed streamed", text(client(transport)
+                .withUrlPath("/streamed")
+                .withVerb(HttpVerbs.PUT)
+                .withData(os -> {
+                    try {
+                        os.write("streamed".getBytes(StandardCharsets.UTF_8));
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    }
+                })));
+
+        Optional<HttpResponse> missing = client(transport)
+                .withUrlPath("/missing")
+                .withVerb(HttpVerbs.GET)
+                .execute(e -> { });
+        assertTrue(missing.isPresent());
+        assertEquals(404, missing.get().responseCode);
+    }
+
+    private PavlovHttpClient client(final HttpTransport transport) {
+        return new PavlovHttpClientImpl()
+                .againstUrl(baseUrl)
+                .withTransport(transport);
+    }
+
+    private String text(final PavlovHttpClient client) throws IOException {
+        HttpResponse response = client.execute(e -> { throw new IllegalStateException(e); }).get();
+        assertEquals(200, response.responseCode);
+        return new String(readAll(response.responseStream.get().get()), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads up to the blank line ending a request head, the requests here have no body
+     */
+    private static void readRequestHead(final InputStream in) throws IOException {
+        int matched = 0;
+        while (matched < 4) {
+            int b = in.read();
+            if (b < 0) {
+                throw new IOException("Connection closed");
+            }
+            matched = (b == (matched % 2 == 0 ? '\r' : '\n')) ? matched + 1 : ('\r' == b ? 1 : 0);
+        }
+    }
+
+    private static byte[] readAll(final InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int count;
+        while ((count = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, count);
+        }
+        return out.toByteArray();
+    }
+}